@@ -1,10 +1,8 @@
 package edu.mit.compilers.le02;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import edu.mit.compilers.tools.CLI;
@@ -33,26 +31,28 @@ public class ErrorReporting {
    * PrintStream e.g. System.out or System.err.
    */
   public static void printErrors(PrintStream ps) {
-    for (CompilerException ce : errorList) {
+    List<CompilerException> errors;
+    synchronized (errorList) {
+      errors = new ArrayList<CompilerException>(errorList);
+    }
+    for (CompilerException ce : errors) {
       ps.println(ce.getMessage());
       SourceLocation loc = ce.getLocation();
 
       if (loc.getLine() >= 0 && loc.getCol() >= 0 &&
           !loc.getFilename().equals(CLI.STDIN)) {
-        try {
-          BufferedReader reader = new BufferedReader(
-            new FileReader(loc.getFilename()));
-          int line = 0;
-          String lineContents = "";
-          while (line < loc.getLine()) {
-            lineContents = reader.readLine();
-            line++;
-          }
+        String lineContents =
+          SourceLineIndex.getLine(loc.getFilename(), loc.getLine());
+        // Bypass printing out debug information if the line is unavailable.
+        if (lineContents != null) {
           ps.println(lineContents);
-          String marker = String.format("%1$#" + loc.getCol() + "s", "^");
+          // Columns count from 1, so the caret goes after col - 1 spaces.
+          StringBuilder marker = new StringBuilder();
+          for (int col = 1; col < loc.getCol(); col++) {
+            marker.append(' ');
+          }
+          marker.append('^');
           ps.println(marker);
-        } catch (IOException e) {
-          // Swallow the error and just bypass printing out debug information.
         }
       }
     }
@@ -73,7 +73,10 @@ public class ErrorReporting {
     errorList.clear();
   }
 
-  /** The list of all CompilerExceptions reported thus far. */
+  /**
+   * The list of all CompilerExceptions reported thus far.  Methods may be
+   * optimized on several threads, so access is synchronized.
+   */
   private static List<CompilerException> errorList =
-    new ArrayList<CompilerException>();
+    Collections.synchronizedList(new ArrayList<CompilerException>());
 }
@@ -3,12 +3,20 @@
 
 package edu.mit.compilers.le02;
 
+import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import antlr.ANTLRException;
 import antlr.ASTFactory;
@@ -21,9 +29,11 @@ import edu.mit.compilers.le02.asm.AsmFile;
 import edu.mit.compilers.le02.ast.ASTNode;
 import edu.mit.compilers.le02.ast.AstPrettyPrinter;
 import edu.mit.compilers.le02.cfg.BasicBlockGraph;
+import edu.mit.compilers.le02.cfg.BasicStatement;
 import edu.mit.compilers.le02.cfg.CFGGenerator;
 import edu.mit.compilers.le02.cfg.CFGVisualizer;
 import edu.mit.compilers.le02.cfg.ControlFlowGraph;
+import edu.mit.compilers.le02.cfg.SimpleCFGNode;
 import edu.mit.compilers.le02.grammar.DecafParser;
 import edu.mit.compilers.le02.grammar.DecafParserTokenTypes;
 import edu.mit.compilers.le02.grammar.DecafScanner;
@@ -31,6 +41,12 @@ import edu.mit.compilers.le02.grammar.DecafScannerTokenTypes;
 import edu.mit.compilers.le02.grammar.LineNumberedAST;
 import edu.mit.compilers.le02.grammar.ScanException;
 import edu.mit.compilers.le02.ir.IrGenerator;
+import edu.mit.compilers.le02.opt.ArrayBoundsChecks;
+import edu.mit.compilers.le02.opt.DependenceAnalysis;
+import edu.mit.compilers.le02.opt.LoopMonotonicCode;
+import edu.mit.compilers.le02.opt.LoopUnrolling;
+import edu.mit.compilers.le02.opt.ParallelLoops;
+import edu.mit.compilers.le02.opt.VectorLoops;
 import edu.mit.compilers.le02.semanticchecks.MasterChecker;
 import edu.mit.compilers.le02.stgenerator.SymbolTableGenerator;
 import edu.mit.compilers.le02.symboltable.FieldDescriptor;
@@ -49,6 +65,7 @@ public class Main {
   public enum ReturnCode {
     SUCCESS(0), SCAN_FAILED(1), PARSE_FAILED(2), SEMANTICS_FAILED(3),
     CFG_FAILED(4), ASM_FAILED(5),
+    BAD_ARGUMENTS(124), INTERNAL_ERROR(125),
     FILE_NOT_FOUND(126), NO_SUCH_ACTION(127);
 
     private int numericCode;
@@ -71,6 +88,18 @@ public class Main {
     LOOP_ARRAY_BOUNDS_CHECKS("abc"),
     REGISTER_ALLOCATION("regalloc"),
     ASM_PEEPHOLE("asm_peephole"),
+    INSTRUCTION_SCHEDULING("sched"),
+    LOOP_INVARIANT_CODE_MOTION("licm"),
+    SPARSE_CONDITIONAL_CONSTANTS("sccp"),
+    CONSTANT_FOLDING("fold"),
+    STRENGTH_REDUCTION("sr"),
+    LINEAR_SCAN("linearscan"),
+    GLOBAL_PROMOTION("globals"),
+    INLINING("inline"),
+    PARALLELIZATION("parallel"),
+    VECTORIZATION("vectorize"),
+    LOOP_UNROLLING("unroll"),
+    RANGE_ANALYSIS("range"),
     ;
     private String flagName;
 
@@ -87,8 +116,6 @@ public class Main {
    * Main entry point for compiler.
    */
   public static void main(String[] args) {
-    // We should exit successfully unless something goes awry.
-    ReturnCode retCode = ReturnCode.SUCCESS;
     // Default to reading from stdin unless we get a valid file input.
     InputStream inputStream = System.in;
 
@@ -96,6 +123,15 @@ public class Main {
     EnumSet<Optimization> enabledOpts = EnumSet.noneOf(Optimization.class);
     CLI.parse(args, enabledOpts);
 
+    if (CLI.batch) {
+      if (CLI.outfile != null) {
+        // Each file's output is written next to it.
+        System.err.println("-o cannot be used with -batch");
+        System.exit(ReturnCode.BAD_ARGUMENTS.numericCode());
+      }
+      System.exit(runBatch(enabledOpts).numericCode());
+    }
+
     // If we have a valid file input, set up the input stream.
     if (CLI.infile != null) {
       try {
@@ -107,6 +143,35 @@ public class Main {
       }
     }
 
+    PrintStream statsOut = openStatsFile();
+    PhaseTimer timer = null;
+    if (CLI.stats) {
+      timer = new PhaseTimer();
+      PhaseTimer.setCurrent(timer);
+    }
+    ReturnCode retCode = compile(inputStream, enabledOpts);
+    PhaseTimer.setCurrent(null);
+    ErrorReporting.printErrors(System.err);
+    if (timer != null) {
+      reportStats(timer, statsOut);
+    }
+    if (statsOut != null) {
+      statsOut.close();
+    }
+    System.exit(retCode.numericCode());
+  }
+
+  /**
+   * Runs the compiler up to CLI.target on a single input.
+   *
+   * @param inputStream The stream to read input from.
+   * @return The return code describing the outcome of the compilation.
+   */
+  protected static ReturnCode compile(InputStream inputStream,
+                                      EnumSet<Optimization> opts) {
+    // We should exit successfully unless something goes awry.
+    ReturnCode retCode = ReturnCode.SUCCESS;
+
     switch (CLI.target) {
      case SCAN:
       if (!runScanner(inputStream) || !ErrorReporting.noErrors()) {
@@ -124,14 +189,14 @@ public class Main {
       }
       break;
      case CFG:
-      if (!generateCFG(inputStream, enabledOpts) ||
+      if (!generateCFG(inputStream, opts) ||
           !ErrorReporting.noErrors()) {
         retCode = ReturnCode.CFG_FAILED;
       }
       break;
      case DEFAULT:
      case ASSEMBLY:
-      if (!generateAsm(inputStream, enabledOpts) ||
+      if (!generateAsm(inputStream, opts) ||
           !ErrorReporting.noErrors()) {
         retCode = ReturnCode.ASM_FAILED;
       }
@@ -141,8 +206,170 @@ public class Main {
       ErrorReporting.reportErrorCompat(new NoSuchMethodException(
         "Action " + CLI.target + " not yet implemented."));
     }
-    ErrorReporting.printErrors(System.err);
-    System.exit(retCode.numericCode());
+    return retCode;
+  }
+
+  /**
+   * Clears all state left over from a previous compilation, so that several
+   * inputs can be compiled in the same process.
+   */
+  public static void resetCompilerState() {
+    ErrorReporting.clearErrors();
+    CFGGenerator.reset();
+    LoopMonotonicCode.reset();
+    ArrayBoundsChecks.reset();
+    DependenceAnalysis.reset();
+    ParallelLoops.reset();
+    VectorLoops.reset();
+    LoopUnrolling.reset();
+    BasicStatement.resetNumbering();
+    SourceLineIndex.clear();
+  }
+
+  /**
+   * Opens the file named by CLI.statsfile, or returns null if statistics
+   * should go to stderr.
+   */
+  private static PrintStream openStatsFile() {
+    if (CLI.statsfile == null) {
+      return null;
+    }
+    try {
+      return new PrintStream(new FileOutputStream(CLI.statsfile));
+    } catch (IOException e) {
+      ErrorReporting.reportErrorCompat(e);
+      return null;
+    }
+  }
+
+  /**
+   * Writes the statistics for the current input as a JSON line to statsOut,
+   * or as a table to stderr if statsOut is null.
+   */
+  private static void reportStats(PhaseTimer timer, PrintStream statsOut) {
+    if (statsOut != null) {
+      statsOut.println(timer.toJson(CLI.getInputFilename()));
+    } else {
+      timer.print(System.err, CLI.getInputFilename());
+    }
+  }
+
+  /**
+   * Compiles every file in CLI.infiles, writing each output next to its
+   * input.  If no files were given, file names are read from stdin one per
+   * line and a result line is printed after each, so that a build can keep
+   * a single compiler process running.
+   *
+   * @return SUCCESS if every file compiled, otherwise the first failure.
+   */
+  protected static ReturnCode runBatch(EnumSet<Optimization> opts) {
+    ReturnCode batchCode = ReturnCode.SUCCESS;
+    boolean interactive = CLI.infiles.isEmpty();
+    BufferedReader requests = null;
+    if (interactive) {
+      requests = new BufferedReader(new InputStreamReader(System.in));
+    }
+
+    PrintStream statsOut = openStatsFile();
+    int files = 0;
+    long totalNanos = 0;
+    int next = 0;
+    while (true) {
+      String file;
+      if (interactive) {
+        try {
+          file = requests.readLine();
+        } catch (IOException e) {
+          ErrorReporting.reportErrorCompat(e);
+          break;
+        }
+        if (file == null) {
+          break;
+        }
+        file = file.trim();
+        if (file.length() == 0) {
+          continue;
+        }
+      } else if (next < CLI.infiles.size()) {
+        file = CLI.infiles.get(next++);
+      } else {
+        break;
+      }
+
+      resetCompilerState();
+      CLI.infile = file;
+      CLI.outfile = CLI.defaultOutfile(file);
+
+      PhaseTimer timer = null;
+      if (CLI.stats) {
+        timer = new PhaseTimer();
+        PhaseTimer.setCurrent(timer);
+      }
+      long start = System.nanoTime();
+      long nanos;
+      ReturnCode retCode;
+      try {
+        retCode = compileFile(file, opts);
+        nanos = System.nanoTime() - start;
+        ErrorReporting.printErrors(System.err);
+        if (timer != null) {
+          reportStats(timer, statsOut);
+        }
+      } catch (RuntimeException e) {
+        // A crash on one input must not stop the rest of the batch, and a
+        // build reading the results still needs this file's line.
+        nanos = System.nanoTime() - start;
+        System.err.println(file + " " + e);
+        e.printStackTrace();
+        retCode = ReturnCode.INTERNAL_ERROR;
+      } finally {
+        PhaseTimer.setCurrent(null);
+      }
+
+      files++;
+      totalNanos += nanos;
+      if (batchCode == ReturnCode.SUCCESS) {
+        batchCode = retCode;
+      }
+      System.out.println(String.format("%s %s %.2f ms", file, retCode,
+                                       nanos / 1e6));
+      System.out.flush();
+    }
+
+    resetCompilerState();
+    if (statsOut != null) {
+      statsOut.close();
+    }
+    if (files > 0) {
+      double seconds = totalNanos / 1e9;
+      System.out.println(String.format(
+        "compiled %d files in %.2f s (%.2f ms/file, %.1f files/s)",
+        files, seconds, totalNanos / 1e6 / files, files / seconds));
+    }
+    return batchCode;
+  }
+
+  /**
+   * Compiles a single file of a batch.
+   */
+  private static ReturnCode compileFile(String file,
+                                        EnumSet<Optimization> opts) {
+    InputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream(file);
+      return compile(inputStream, opts);
+    } catch (IOException e) {
+      ErrorReporting.reportErrorCompat(e);
+      return ReturnCode.FILE_NOT_FOUND;
+    } finally {
+      if (inputStream != null) {
+        try {
+          inputStream.close();
+        } catch (IOException e) {
+          // Nothing useful to do; the compilation already finished.
+        }
+      }
+    }
   }
 
   /**
@@ -370,8 +597,10 @@ public class Main {
         return false;
       }
 
-      ControlFlowGraph lowCfg = CFGGenerator.generateCFG(parent, opts);
-      ControlFlowGraph cfg = BasicBlockGraph.makeBasicBlockGraph(lowCfg, opts);
+      ControlFlowGraph lowCfg =
+        CFGGenerator.generateCFG(parent, opts, CLI.threads, CLI.unroll);
+      ControlFlowGraph cfg =
+        BasicBlockGraph.makeBasicBlockGraph(lowCfg, opts, CLI.jobs);
 
       if (CLI.graphics) {
         if (CLI.debug) {
@@ -400,26 +629,52 @@ public class Main {
                                        EnumSet<Optimization> opts) {
     boolean success = true;
     try {
-      // Initialize and invoke the parser.
+      // Initialize and invoke the parser.  Tokens are scanned on demand, so
+      // the parse phase includes scanning.
+      PhaseTimer.Sample phase = PhaseTimer.start();
       DecafParser parser = initializeParser(inputStream);
       parser.program();
+      PhaseTimer.stop("parse", phase);
 
+      phase = PhaseTimer.start();
       ASTNode parent = IrGenerator.generateIR(parser.getAST());
+      PhaseTimer.stop("ir", phase);
+      if (PhaseTimer.isEnabled()) {
+        PhaseTimer.count("ast nodes", countNodes(parent));
+      }
+      phase = PhaseTimer.start();
       SymbolTable st =
         SymbolTableGenerator.generateSymbolTable(parent).getSymbolTable();
+      PhaseTimer.stop("symboltable", phase);
+      phase = PhaseTimer.start();
       MasterChecker.checkAll(parent);
+      PhaseTimer.stop("semantics", phase);
 
       if (!ErrorReporting.noErrors()) {
         return false;
       }
 
-      ControlFlowGraph lowCfg = CFGGenerator.generateCFG(parent, opts);
-      ControlFlowGraph cfg = BasicBlockGraph.makeBasicBlockGraph(lowCfg, opts);
+      phase = PhaseTimer.start();
+      ControlFlowGraph lowCfg =
+        CFGGenerator.generateCFG(parent, opts, CLI.threads, CLI.unroll);
+      PhaseTimer.stop("cfg", phase);
+      if (PhaseTimer.isEnabled()) {
+        PhaseTimer.count("cfg nodes", countNodes(lowCfg));
+      }
+      ControlFlowGraph cfg =
+        BasicBlockGraph.makeBasicBlockGraph(lowCfg, opts, CLI.jobs);
       for (FieldDescriptor global : st.getFields()) {
         cfg.putGlobal("." + global.getId(), global);
       }
-      AsmFile asm = new AsmFile(cfg, st, new PrintStream(CLI.outfile), opts);
-      asm.write();
+      phase = PhaseTimer.start();
+      Writer out = AsmFile.openOutput(CLI.outfile);
+      try {
+        AsmFile asm = new AsmFile(cfg, st, out, opts);
+        asm.write();
+      } finally {
+        out.close();
+      }
+      PhaseTimer.stop("asm", phase);
     } catch (ANTLRException e) {
       ErrorReporting.reportErrorCompat(e);
       success = false;
@@ -429,4 +684,31 @@ public class Main {
     }
     return success;
   }
+
+  private static int countNodes(ASTNode root) {
+    int count = 1;
+    for (ASTNode child : root.getChildren()) {
+      if (child != null) {
+        count += countNodes(child);
+      }
+    }
+    return count;
+  }
+
+  private static int countNodes(ControlFlowGraph cfg) {
+    Set<SimpleCFGNode> seen = new HashSet<SimpleCFGNode>();
+    List<SimpleCFGNode> worklist = new ArrayList<SimpleCFGNode>();
+    for (String method : cfg.getMethods()) {
+      worklist.add((SimpleCFGNode) cfg.getMethod(method));
+    }
+    while (!worklist.isEmpty()) {
+      SimpleCFGNode node = worklist.remove(worklist.size() - 1);
+      if (node == null || !seen.add(node)) {
+        continue;
+      }
+      worklist.add(node.getNext());
+      worklist.add(node.getBranchTarget());
+    }
+    return seen.size();
+  }
 }
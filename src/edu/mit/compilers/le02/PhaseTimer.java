@@ -0,0 +1,220 @@
+package edu.mit.compilers.le02;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the wall time and allocated bytes of each phase of the
+ * compiler, along with counts of the objects the phases create.  Nothing is
+ * recorded, and start/stop cost almost nothing, until a PhaseTimer is
+ * installed with setCurrent.  Phases may be timed from several threads at
+ * once, in which case their times and allocations are summed.
+ */
+public class PhaseTimer {
+  private static volatile PhaseTimer current = null;
+
+  private static final com.sun.management.ThreadMXBean threadBean =
+    getAllocationBean();
+
+  private Map<String, Long> nanos = new LinkedHashMap<String, Long>();
+  private Map<String, Long> bytes = new LinkedHashMap<String, Long>();
+  private Map<String, Long> counts = new LinkedHashMap<String, Long>();
+
+  /** Marks the beginning of one timed phase. */
+  public static final class Sample {
+    private long startNanos;
+    private long startBytes;
+
+    private Sample() {
+      startBytes = allocatedBytes();
+      startNanos = System.nanoTime();
+    }
+  }
+
+  private static com.sun.management.ThreadMXBean getAllocationBean() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return null;
+    }
+    com.sun.management.ThreadMXBean sunBean =
+      (com.sun.management.ThreadMXBean) bean;
+    try {
+      if (!sunBean.isThreadAllocatedMemorySupported()) {
+        return null;
+      }
+      sunBean.setThreadAllocatedMemoryEnabled(true);
+    } catch (UnsupportedOperationException uoe) {
+      return null;
+    }
+    return sunBean;
+  }
+
+  /**
+   * Returns the bytes allocated so far by the calling thread, or -1 if the
+   * JVM cannot tell us.
+   */
+  private static long allocatedBytes() {
+    if (threadBean == null) {
+      return -1;
+    }
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  public static void setCurrent(PhaseTimer timer) {
+    current = timer;
+  }
+
+  public static PhaseTimer getCurrent() {
+    return current;
+  }
+
+  /**
+   * Returns whether a timer is installed.  Statistics which are expensive to
+   * gather should only be collected when this is true.
+   */
+  public static boolean isEnabled() {
+    return current != null;
+  }
+
+  /**
+   * Starts timing a phase.  Returns null if no timer is installed.
+   */
+  public static Sample start() {
+    if (current == null) {
+      return null;
+    }
+    return new Sample();
+  }
+
+  /**
+   * Charges the time and allocations since sample was taken to the named
+   * phase.  Must be called on the thread which took the sample.
+   */
+  public static void stop(String phase, Sample sample) {
+    PhaseTimer timer = current;
+    if (timer == null || sample == null) {
+      return;
+    }
+    long elapsed = System.nanoTime() - sample.startNanos;
+    long allocated = -1;
+    if (sample.startBytes >= 0) {
+      allocated = allocatedBytes() - sample.startBytes;
+    }
+    timer.record(phase, elapsed, allocated);
+  }
+
+  /**
+   * Adds n to the named object count.
+   */
+  public static void count(String what, long n) {
+    PhaseTimer timer = current;
+    if (timer == null) {
+      return;
+    }
+    timer.addCount(what, n);
+  }
+
+  private static void add(Map<String, Long> map, String key, long n) {
+    Long old = map.get(key);
+    map.put(key, (old == null) ? n : old + n);
+  }
+
+  public synchronized void record(String phase, long elapsed,
+                                  long allocated) {
+    add(nanos, phase, elapsed);
+    if (allocated >= 0) {
+      add(bytes, phase, allocated);
+    }
+  }
+
+  public synchronized void addCount(String what, long n) {
+    add(counts, what, n);
+  }
+
+  /**
+   * Returns the nanoseconds spent in each phase, in the order the phases
+   * were first seen.
+   */
+  public synchronized Map<String, Long> getTimes() {
+    return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(nanos));
+  }
+
+  /**
+   * Returns the bytes allocated in each phase.  Phases are missing if the
+   * JVM does not support allocation accounting.
+   */
+  public synchronized Map<String, Long> getAllocations() {
+    return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(bytes));
+  }
+
+  public synchronized Map<String, Long> getCounts() {
+    return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(counts));
+  }
+
+  /**
+   * Prints a human-readable table of all statistics.
+   */
+  public synchronized void print(PrintStream ps, String file) {
+    ps.println("Statistics for " + file);
+    ps.println(String.format("  %-28s %12s %14s", "phase", "time (ms)",
+                             "alloc (KB)"));
+    long totalNanos = 0;
+    long totalBytes = 0;
+    for (Map.Entry<String, Long> e : nanos.entrySet()) {
+      Long allocated = bytes.get(e.getKey());
+      totalNanos += e.getValue();
+      totalBytes += (allocated == null) ? 0 : allocated;
+      ps.println(String.format("  %-28s %12.3f %14s", e.getKey(),
+        e.getValue() / 1e6,
+        (allocated == null) ? "n/a" : Long.toString(allocated / 1024)));
+    }
+    ps.println(String.format("  %-28s %12.3f %14d", "total",
+                             totalNanos / 1e6, totalBytes / 1024));
+    for (Map.Entry<String, Long> e : counts.entrySet()) {
+      ps.println(String.format("  %-28s %12d", e.getKey(), e.getValue()));
+    }
+  }
+
+  /**
+   * Returns all statistics as a single-line JSON object.
+   */
+  public synchronized String toJson(String file) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"file\": \"").append(escape(file)).append("\", ");
+    sb.append("\"phases\": {");
+    boolean first = true;
+    for (Map.Entry<String, Long> e : nanos.entrySet()) {
+      if (!first) {
+        sb.append(", ");
+      }
+      first = false;
+      sb.append("\"").append(escape(e.getKey())).append("\": {");
+      sb.append("\"nanos\": ").append(e.getValue());
+      Long allocated = bytes.get(e.getKey());
+      if (allocated != null) {
+        sb.append(", \"bytes\": ").append(allocated);
+      }
+      sb.append("}");
+    }
+    sb.append("}, \"counts\": {");
+    first = true;
+    for (Map.Entry<String, Long> e : counts.entrySet()) {
+      if (!first) {
+        sb.append(", ");
+      }
+      first = false;
+      sb.append("\"").append(escape(e.getKey())).append("\": ")
+        .append(e.getValue());
+    }
+    sb.append("}}");
+    return sb.toString();
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+}
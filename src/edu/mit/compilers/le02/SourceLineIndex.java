@@ -0,0 +1,68 @@
+package edu.mit.compilers.le02;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the lines of source files so that assembly annotations and error
+ * messages can look up a line without rereading the file each time.  Each
+ * file is read once, on first use.
+ */
+public class SourceLineIndex {
+  private static Map<String, List<String>> files =
+    new ConcurrentHashMap<String, List<String>>();
+
+  /**
+   * Returns the contents of a line of a file, counting from 1, or null if
+   * the file cannot be read or has no such line.
+   */
+  public static String getLine(String filename, int line) {
+    List<String> lines = files.get(filename);
+    if (lines == null) {
+      lines = readLines(filename);
+      files.put(filename, lines);
+    }
+    if (line < 1 || line > lines.size()) {
+      return null;
+    }
+    return lines.get(line - 1);
+  }
+
+  /**
+   * Forgets all cached files, so that later lookups see their current
+   * contents.
+   */
+  public static void clear() {
+    files.clear();
+  }
+
+  private static List<String> readLines(String filename) {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new FileReader(filename));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    } catch (IOException ioe) {
+      // Cache the failure too; callers just go without the source line.
+      return Collections.emptyList();
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException ioe) {
+          // Nothing useful to do; the lines have already been read.
+        }
+      }
+    }
+    return lines;
+  }
+}
@@ -5,7 +5,6 @@ import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +20,14 @@ import edu.mit.compilers.le02.VariableLocation;
 import edu.mit.compilers.le02.Main.Optimization;
 import edu.mit.compilers.le02.RegisterLocation.Register;
 import edu.mit.compilers.le02.VariableLocation.LocationType;
+import edu.mit.compilers.le02.ast.ArrayLocationNode;
+import edu.mit.compilers.le02.ast.AssignNode;
+import edu.mit.compilers.le02.ast.ExpressionNode;
+import edu.mit.compilers.le02.ast.IntNode;
+import edu.mit.compilers.le02.ast.MathOpNode;
+import edu.mit.compilers.le02.ast.MinusNode;
+import edu.mit.compilers.le02.ast.VariableNode;
+import edu.mit.compilers.le02.ast.MathOpNode.MathOp;
 import edu.mit.compilers.le02.cfg.ArgReassignStatement;
 import edu.mit.compilers.le02.cfg.Argument;
 import edu.mit.compilers.le02.cfg.ArrayVariableArgument;
@@ -34,6 +41,8 @@ import edu.mit.compilers.le02.cfg.OpStatement;
 import edu.mit.compilers.le02.cfg.VariableArgument;
 import edu.mit.compilers.le02.cfg.Argument.ArgType;
 import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.opt.VectorLoops;
+import edu.mit.compilers.le02.opt.VectorLoops.VectorLoop;
 import edu.mit.compilers.le02.symboltable.AnonymousDescriptor;
 import edu.mit.compilers.le02.symboltable.MethodDescriptor;
 import edu.mit.compilers.le02.symboltable.SymbolTable;
@@ -58,6 +67,7 @@ public class AsmBasicBlock implements AsmObject {
 
   private List<AsmObject> instructions;
   private EnumSet<Optimization> opts;
+  private int numVectorLoops = 0;
 
   public AsmBasicBlock(String methodName, BasicBlockNode methodNode,
       MethodDescriptor thisMethod, SymbolTable st,
@@ -77,33 +87,35 @@ public class AsmBasicBlock implements AsmObject {
     instructions.add(instruction);
   }
 
+  /**
+   * Schedules the instructions of each straight-line run so that slow
+   * instructions are issued well before their results are used.
+   */
   public void reorderInstructions() {
-    // TODO @mfrend Finish Method and add optimization check
+    if (opts.contains(Optimization.INSTRUCTION_SCHEDULING)) {
+      instructions = new InstructionScheduler().schedule(instructions);
+    }
   }
 
   /**
-   * Peepholes away instructions we don't want.
+   * Peepholes away instructions we don't want.  Multiplications turned into
+   * LEAs by peepholeStatement get their addressing mode here, and then the
+   * rules of the PeepholeOptimizer are applied.
    * @author Liz Fong (lizfong@mit.edu)
    */
   public void peepholeInstructions() {
-    Iterator<AsmObject> it = instructions.iterator();
-    while (it.hasNext()) {
-      AsmObject obj = it.next();
+    for (AsmObject obj : instructions) {
       if (obj instanceof AsmInstruction) {
         AsmInstruction inst = (AsmInstruction)obj;
         switch (inst.opcode) {
-         case MOVL:
-         case MOVQ:
-          if (inst.first_operand.equals(inst.second_operand)) {
-            it.remove();
-          }
-          break;
          case LEAL:
-          if (inst.first_operand.startsWith("$")) {
-            int factor = Integer.parseInt(inst.first_operand.substring(1));
+          if (inst.first_operand instanceof ImmediateAsmArg &&
+              ((ImmediateAsmArg) inst.first_operand).isConstant() &&
+              inst.second_operand instanceof Register) {
+            long factor = ((ImmediateAsmArg) inst.first_operand).getValue();
             int leaMultiplier = -1;
             boolean add = false;
-            switch (factor) {
+            switch ((int) factor) {
              case 1:
               leaMultiplier = 1;
               add = false;
@@ -135,16 +147,15 @@ public class AsmBasicBlock implements AsmObject {
              default:
               continue;
             }
-            inst.first_operand = "(";
-            if (add) {
-              inst.first_operand += inst.second_operand;
-            }
-            inst.first_operand += "," +
-              inst.second_operand + "," + leaMultiplier + ")";
+            Register reg = (Register) inst.second_operand;
+            inst.first_operand = new MemoryAsmArg(
+              null, 0, add ? reg : null, reg, leaMultiplier);
           }
         }
       }
     }
+
+    new PeepholeOptimizer().optimize(instructions);
   }
 
 
@@ -286,7 +297,7 @@ public class AsmBasicBlock implements AsmObject {
         processBranch(node, branch, next, methodName, loc);
       } else if (next != null) {
         addInstruction(new AsmInstruction(
-            AsmOpCode.JMP, new StringAsmArg(next.getId()), loc));
+            AsmOpCode.JMP, new LabelAsmArg(next.getId()), loc));
       } else if (!(node.getLastStatement() instanceof OpStatement &&
           ((OpStatement) node.getLastStatement()).getOp() == AsmOp.RETURN)) {
         // Insert an implicit return.
@@ -335,7 +346,7 @@ public class AsmBasicBlock implements AsmObject {
       addInstruction(new AsmInstruction(
           AsmOpCode.XORQ, Register.RDI, Register.RDI, sl));
       addInstruction(new AsmInstruction(
-          AsmOpCode.CALL, new StringAsmArg("exit"), sl));
+          AsmOpCode.CALL, new LabelAsmArg("exit"), sl));
     } else {
       // We have an ArgumentStatement that made it to ASM generation.
       // These are supposed to be filtered out during CFG pass 2.
@@ -458,19 +469,19 @@ public class AsmBasicBlock implements AsmObject {
     // in fact true ($1).
     if (conditionalJump != null) {
       addInstruction(new AsmInstruction(
-          conditionalJump, new StringAsmArg(branch.getId()), loc));
+          conditionalJump, new LabelAsmArg(branch.getId()), loc));
     } else {
       addInstruction(new AsmInstruction(
-          AsmOpCode.CMPL, new StringAsmArg("$1"), resultRegister, loc));
+          AsmOpCode.CMPL, new ImmediateAsmArg(1), resultRegister, loc));
       addInstruction(new AsmInstruction(
-          AsmOpCode.JE, new StringAsmArg(branch.getId()), loc));
+          AsmOpCode.JE, new LabelAsmArg(branch.getId()), loc));
     }
 
     // Write the alternate unconditional jump to the next block since by
     // this point we've failed the conditional jump check.
     if (next != null) {
       addInstruction(new AsmInstruction(
-          AsmOpCode.JMP, new StringAsmArg(next.getId()), loc));
+          AsmOpCode.JMP, new LabelAsmArg(next.getId()), loc));
     } else {
       // Insert an implicit return, since there are no more basicblocks
       // left in this method to jump to.
@@ -495,13 +506,19 @@ public class AsmBasicBlock implements AsmObject {
    */
   protected void generateMethodHeader(MethodDescriptor desc, int numLocals) {
     SourceLocation sl = desc.getSourceLocation();
-    addInstruction(new AsmInstruction(
-        AsmOpCode.ENTER,
-        new StringAsmArg("$" + numLocals), new StringAsmArg("$0"), sl));
 
     // R12 is a callee saved register and is modified during array accesses.
     desc.markRegisterUsed(Register.R12);
 
+    // The return address and the saved base pointer take 16 bytes, so %rsp
+    // is 16-byte aligned, as calls require, once the locals and the saved
+    // registers together are a multiple of 16 bytes.
+    int saved = desc.getUsedCalleeRegisters().size() * 8;
+    numLocals += (16 - (numLocals + saved) % 16) % 16;
+    addInstruction(new AsmInstruction(
+        AsmOpCode.ENTER,
+        new ImmediateAsmArg(numLocals), new ImmediateAsmArg(0), sl));
+
     for (Register reg : desc.getUsedCalleeRegisters()) {
       // Save registers used in method.
       addInstruction(new AsmInstruction(AsmOpCode.PUSHQ, reg, sl));
@@ -524,10 +541,10 @@ public class AsmBasicBlock implements AsmObject {
       SourceLocation sl) {
     if (desc.getType() != DecafType.VOID && arg1 == null) {
       addInstruction(new AsmInstruction(AsmOpCode.MOVQ,
-          new StringAsmArg("$." + desc.getId()  + "_name"), Register.R12, sl));
+          new ImmediateAsmArg("." + desc.getId() + "_name"), Register.R12, sl));
       addInstruction(new AsmInstruction(
           AsmOpCode.JLE,
-          new StringAsmArg("nonvoid_noreturn_error_handler"), sl));
+          new LabelAsmArg("nonvoid_noreturn_error_handler"), sl));
       return;
     }
     if (arg1 != null) {
@@ -535,7 +552,7 @@ public class AsmBasicBlock implements AsmObject {
       // directly into RAX with MOV to obey the 64-bit calling convention.
       // However, otherwise we need to sign extend for correctness if we are
       // using a 32-bit variable from program execution.
-      if (arg1 instanceof StringAsmArg && arg1.toString().startsWith("$")) {
+      if (arg1 instanceof ImmediateAsmArg) {
         addInstruction(new AsmInstruction(
           AsmOpCode.MOVQ, arg1, Register.RAX, sl));
       } else {
@@ -645,7 +662,7 @@ public class AsmBasicBlock implements AsmObject {
       break;
      case NOT:
       addInstruction(new AsmInstruction(
-          AsmOpCode.XORL, new StringAsmArg("$1"), arg1, sl));
+          AsmOpCode.XORL, new ImmediateAsmArg(1), arg1, sl));
       break;
      case EQUAL:
      case NOT_EQUAL:
@@ -686,7 +703,8 @@ public class AsmBasicBlock implements AsmObject {
     if (op.getOp() == AsmOp.DIVIDE || op.getOp() == AsmOp.MODULO) {
       // Restore the registers we displaced for division/modulo.
       if (!(op.getResult().getLocation() instanceof RegisterLocation) ||
-          !resultReg.sixtyFour().equals(Register.RDX)) {
+          !op.getResult().getLocation().getRegister().sixtyFour().equals(
+              Register.RDX)) {
         addInstruction(new AsmInstruction(AsmOpCode.POPQ, Register.RDX, sl));
       }
       addInstruction(new AsmInstruction(AsmOpCode.POPQ, Register.RAX, sl));
@@ -754,7 +772,7 @@ public class AsmBasicBlock implements AsmObject {
       break;
     }
     addInstruction(new AsmInstruction(
-        AsmOpCode.MOVL, new StringAsmArg("$1"), Register.R10D, sl));
+        AsmOpCode.MOVL, new ImmediateAsmArg(1), Register.R10D, sl));
     addInstruction(new AsmInstruction(cmovOp, Register.R10D, Register.EAX,
         sl));
   }
@@ -780,9 +798,20 @@ public class AsmBasicBlock implements AsmObject {
     // Push arguments.
     // First six go into registers, rest go on stack in right to left order
     List<Argument> args = call.getArgs();
+    VectorLoop vec = VectorLoops.getVectorLoop(call.getMethodName());
+
+    // %rsp is 16-byte aligned in the method body, so pad the stack if an odd
+    // number of registers and arguments is pushed for the call.
+    int stackBytes = Math.max(args.size() - 6, 0) * 8;
+    if (vec == null && (usedRegisters.size() * 8 + stackBytes) % 16 != 0) {
+      addInstruction(new AsmInstruction(AsmOpCode.SUBQ,
+          new ImmediateAsmArg(8), Register.RSP, sl));
+      stackBytes += 8;
+    }
 
     Map<Register, List<Register>> regMap =
       new TreeMap<Register, List<Register>>();
+    List<Integer> loadedEarly = new ArrayList<Integer>();
     for (int ii = args.size() - 1; ii >= 0; ii--) {
       // Arguments after arg 6 go on the stack in reverse order
       if (ii >= 6) {
@@ -792,9 +821,20 @@ public class AsmBasicBlock implements AsmObject {
         continue;
       }
 
+      // An array element indexed by an argument register is loaded before
+      // the argument registers are filled in, which could change its index,
+      // and kept on the stack until they are.
+      Argument arg = args.get(ii);
+      if (isIndexedByArgumentRegister(arg)) {
+        addInstruction(new AsmInstruction(AsmOpCode.PUSHQ,
+            prepareArgument(arg, null, true, AsmOp.PUSH, null, true, sl),
+            sl));
+        loadedEarly.add(ii);
+        continue;
+      }
+
       // If the arguments before arg 6 are currently in an argument register,
       // and is not in the right one, put it into transposition map.
-      Argument arg = args.get(ii);
       if (arg.isRegister()) {
         Register source = arg.getDesc().getLocation().getRegister();
         List<Register> targets;
@@ -812,7 +852,7 @@ public class AsmBasicBlock implements AsmObject {
 
     for (int ii = 0; ii < Math.min(args.size(), 6); ii++) {
       Argument arg = args.get(ii);
-      if (!arg.isRegister()) {
+      if (!arg.isRegister() && !loadedEarly.contains(ii)) {
         // Arg needs to be moved into its register
         addInstruction(new AsmInstruction(AsmOpCode.MOVQ,
             prepareArgument(args.get(ii),
@@ -823,19 +863,29 @@ public class AsmBasicBlock implements AsmObject {
       }
     }
 
-    // Empty %rax to cope with printf vararg issue
-    addInstruction(new AsmInstruction(AsmOpCode.XORQ, Register.RAX,
-        Register.RAX, sl));
+    Collections.reverse(loadedEarly);
+    for (int ii : loadedEarly) {
+      addInstruction(new AsmInstruction(AsmOpCode.POPQ,
+          argumentRegisters[ii], sl));
+    }
 
-    // Now we're ready to make the call.
-    // This automatically pushes the return address; callee removes return addr
-    addInstruction(new AsmInstruction(
-        AsmOpCode.CALL, new StringAsmArg(call.getMethodName()), sl));
+    if (vec != null) {
+      generateVectorLoop(vec, sl);
+    } else {
+      // Empty %rax to cope with printf vararg issue
+      addInstruction(new AsmInstruction(AsmOpCode.XORQ, Register.RAX,
+          Register.RAX, sl));
 
-    // Pop arguments back off the stack.
-    if (args.size() > 6) {
+      // Now we're ready to make the call.
+      // This automatically pushes the return address; callee removes it
+      addInstruction(new AsmInstruction(
+          AsmOpCode.CALL, new LabelAsmArg(call.getMethodName()), sl));
+    }
+
+    // Pop arguments and padding back off the stack.
+    if (stackBytes > 0) {
       addInstruction(new AsmInstruction(AsmOpCode.ADDQ,
-          new StringAsmArg("$"  + (args.size() - 6) * 8), Register.RSP, sl));
+          new ImmediateAsmArg(stackBytes), Register.RSP, sl));
     }
 
     // Move RAX into the correct save location.
@@ -851,6 +901,195 @@ public class AsmBasicBlock implements AsmObject {
     }
   }
 
+  /**
+   * Returns whether arg is an array element whose index is held in one of
+   * the argument registers.
+   */
+  private static boolean isIndexedByArgumentRegister(Argument arg) {
+    if (arg.getType() != ArgType.ARRAY_VARIABLE) {
+      return false;
+    }
+    Argument index = ((ArrayVariableArgument) arg).getIndex();
+    if (!index.isRegister()) {
+      return false;
+    }
+    Register reg = index.getDesc().getLocation().getRegister().sixtyFour();
+    for (Register argReg : argumentRegisters) {
+      if (argReg == reg) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Holds the addresses a vector loop reads and writes through. */
+  private static Register[] vectorPointers = {
+    Register.RAX,
+    Register.R10,
+    Register.R11,
+  };
+
+  /**
+   * Generates a loop found by VectorLoops in place of the call to it, with
+   * its arguments already in their registers.  Each SSE register holds the
+   * values of two iterations, one in the low 32 bits of each half, and
+   * results are sign-extended to the full half before they are stored.
+   * The first iteration not run is returned in EAX.
+   */
+  private void generateVectorLoop(VectorLoop vec, SourceLocation sl) {
+    String label = "." + methodName + "_vec" + numVectorLoops++;
+    int numOffsets = vec.getOffsets().size();
+    int numArgs = 2 + numOffsets + vec.getScalars().size();
+
+    // The bounds and offsets are used in addresses, so they need all 64
+    // bits.  Scalars and constants get a register of their own each, with
+    // the value in both halves.
+    for (int ii = 0; ii < 2 + numOffsets; ii++) {
+      addInstruction(new AsmInstruction(AsmOpCode.MOVSXD,
+          argumentRegisters[ii].thirtyTwo(), argumentRegisters[ii], sl));
+    }
+    int base = 0;
+    for (int ii = 2 + numOffsets; ii < numArgs; ii++) {
+      broadcast(argumentRegisters[ii].thirtyTwo(), XmmRegister.values()[base++],
+                sl);
+    }
+    for (int value : vec.getConstants()) {
+      addInstruction(new AsmInstruction(AsmOpCode.MOVL,
+          new ImmediateAsmArg(value), Register.EAX, sl));
+      broadcast(Register.EAX, XmmRegister.values()[base++], sl);
+    }
+    for (int ii = 0; ii < vec.getNumPointers(); ii++) {
+      String symbol =
+        "." + vec.getPointerArray(ii).getLocation().getSymbol();
+      Register offset = argumentRegisters[2 + vec.getPointerOffset(ii)];
+      addInstruction(new AsmInstruction(AsmOpCode.LEAQ,
+          new MemoryAsmArg(symbol, 0, null, offset, 8), vectorPointers[ii],
+          sl));
+    }
+
+    // Two iterations are run as long as the second is before the end.
+    addInstruction(new AsmInstruction(AsmOpCode.LEAQ,
+        MemoryAsmArg.based(-1, Register.RSI), Register.RSI, sl));
+    addInstruction(new AsmInstruction(AsmOpCode.JMP,
+        new LabelAsmArg(label + "_test"), sl));
+    addInstruction(AsmFile.writeLabel(label + "_loop"));
+
+    XmmRegister result = XmmRegister.values()[base];
+    XmmRegister temp = XmmRegister.values()[base + 1];
+    for (AssignNode store : vec.getStores()) {
+      generateVectorValue(vec, store.getValue(), base, sl);
+
+      // The high halves get copies of the sign bits, and the low ones the
+      // 32-bit results.
+      AsmObject[] extend = {
+        new AsmInstruction(AsmOpCode.MOVDQA, result, temp, sl),
+        new AsmInstruction(AsmOpCode.PSLLQ, new ImmediateAsmArg(32), temp, sl),
+        new AsmInstruction(AsmOpCode.PSRAD, new ImmediateAsmArg(31), temp, sl),
+        new AsmInstruction(AsmOpCode.PSLLQ, new ImmediateAsmArg(32), result,
+                           sl),
+        new AsmInstruction(AsmOpCode.PSRLQ, new ImmediateAsmArg(32), result,
+                           sl),
+        new AsmInstruction(AsmOpCode.POR, temp, result, sl),
+      };
+      for (AsmObject inst : extend) {
+        addInstruction(inst);
+      }
+      ArrayLocationNode loc = (ArrayLocationNode) store.getLoc();
+      addInstruction(new AsmInstruction(AsmOpCode.MOVDQU, result,
+          MemoryAsmArg.indexed(vectorPointers[vec.getPointer(loc)],
+                               Register.RDI, 8), sl));
+    }
+
+    addInstruction(new AsmInstruction(AsmOpCode.ADDQ,
+        new ImmediateAsmArg(2), Register.RDI, sl));
+    addInstruction(AsmFile.writeLabel(label + "_test"));
+    addInstruction(new AsmInstruction(AsmOpCode.CMPQ,
+        Register.RSI, Register.RDI, sl));
+    addInstruction(new AsmInstruction(AsmOpCode.JL,
+        new LabelAsmArg(label + "_loop"), sl));
+    addInstruction(new AsmInstruction(AsmOpCode.MOVL,
+        Register.EDI, Register.EAX, sl));
+  }
+
+  /**
+   * Puts a 32-bit value in the low 32 bits of both halves of an SSE
+   * register.
+   */
+  private void broadcast(Register source, XmmRegister target,
+                         SourceLocation sl) {
+    addInstruction(new AsmInstruction(AsmOpCode.MOVD, source, target, sl));
+    addInstruction(new AsmInstruction(AsmOpCode.PUNPCKLQDQ, target, target,
+        sl));
+  }
+
+  /**
+   * Computes an expression of a vector loop into the given SSE register,
+   * using the ones above it as needed.
+   */
+  private void generateVectorValue(VectorLoop vec, ExpressionNode expr,
+                                   int reg, SourceLocation sl) {
+    XmmRegister target = XmmRegister.values()[reg];
+    if (vec.isInvariant(expr)) {
+      addInstruction(new AsmInstruction(AsmOpCode.MOVDQA,
+          getInvariantRegister(vec, expr), target, sl));
+    } else if (expr instanceof VariableNode) {
+      ArrayLocationNode loc =
+        (ArrayLocationNode) ((VariableNode) expr).getLoc();
+      addInstruction(new AsmInstruction(AsmOpCode.MOVDQU,
+          MemoryAsmArg.indexed(vectorPointers[vec.getPointer(loc)],
+                               Register.RDI, 8), target, sl));
+    } else if (expr instanceof MinusNode) {
+      generateVectorValue(vec, ((MinusNode) expr).getExpr(), reg + 1, sl);
+      addInstruction(new AsmInstruction(AsmOpCode.PXOR, target, target, sl));
+      addInstruction(new AsmInstruction(AsmOpCode.PSUBD,
+          XmmRegister.values()[reg + 1], target, sl));
+    } else {
+      MathOpNode op = (MathOpNode) expr;
+      generateVectorValue(vec, op.getLeft(), reg, sl);
+      AsmArg right;
+      if (vec.isInvariant(op.getRight())) {
+        right = getInvariantRegister(vec, op.getRight());
+      } else {
+        generateVectorValue(vec, op.getRight(), reg + 1, sl);
+        right = XmmRegister.values()[reg + 1];
+      }
+
+      // Only the low 32 bits of each half matter, and those of an unsigned
+      // 64-bit product are those of the signed 32-bit one.
+      AsmOpCode opcode;
+      switch (op.getOp()) {
+       case ADD:
+        opcode = AsmOpCode.PADDD;
+        break;
+       case SUBTRACT:
+        opcode = AsmOpCode.PSUBD;
+        break;
+       default:
+        assert(op.getOp() == MathOp.MULTIPLY);
+        opcode = AsmOpCode.PMULUDQ;
+        break;
+      }
+      addInstruction(new AsmInstruction(opcode, right, target, sl));
+    }
+  }
+
+  /**
+   * Returns the SSE register generateVectorLoop put a scalar or constant
+   * in.
+   */
+  private static XmmRegister getInvariantRegister(VectorLoop vec,
+                                                  ExpressionNode expr) {
+    int reg;
+    if (expr instanceof IntNode) {
+      reg = vec.getScalars().size() +
+        vec.getConstants().indexOf(((IntNode) expr).getValue());
+    } else {
+      reg = vec.getScalars().indexOf(
+          ((VariableNode) expr).getLoc().getDesc());
+    }
+    return XmmRegister.values()[reg];
+  }
+
   protected boolean isArgumentRegister(Register r, int numArgs) {
     for (int i = 0; i < Math.min(numArgs, 6); i++) {
       if (argumentRegisters[i] == r) {
@@ -904,10 +1143,10 @@ public class AsmBasicBlock implements AsmObject {
 
       if (inImmediatePos && op.acceptsImmediateArg() &&
           !(op == AsmOp.MOVE && !arg2.isRegister())) {
-        return new StringAsmArg("$" + constValue);
+        return new ImmediateAsmArg(constValue);
       } else {
         addInstruction(new AsmInstruction(AsmOpCode.MOVQ,
-            new StringAsmArg("$" + constValue),
+            new ImmediateAsmArg(constValue),
             tempStorage, sl));
       }
       break;
@@ -954,7 +1193,7 @@ public class AsmBasicBlock implements AsmObject {
 
       // Use R12 to store the global name to access.
       addInstruction(new AsmInstruction(AsmOpCode.MOVQ,
-          new StringAsmArg("$" + symbol),
+          new ImmediateAsmArg(symbol),
           Register.R12, sl));
 
       // Finally, perform the indirection to look up from memory+offset.
@@ -969,7 +1208,7 @@ public class AsmBasicBlock implements AsmObject {
         index = indexReg.sixtyFour();
       }
       addInstruction(new AsmInstruction(AsmOpCode.MOVQ,
-          new StringAsmArg("(" + Register.R12 + ", " + index + ", 8)"),
+          MemoryAsmArg.indexed(Register.R12, (Register) index, 8),
           tempStorage, sl));
       break;
     }
@@ -1015,7 +1254,7 @@ public class AsmBasicBlock implements AsmObject {
 
       // Use R12 to store the global name to access.
       addInstruction(new AsmInstruction(AsmOpCode.MOVQ,
-          new StringAsmArg("$" + symbol), Register.R12, sl));
+          new ImmediateAsmArg(symbol), Register.R12, sl));
 
       // Finally, perform the indirection to save to memory+offset.
       if (signExtend) {
@@ -1031,7 +1270,7 @@ public class AsmBasicBlock implements AsmObject {
         index = indexReg.sixtyFour();
       }
       addInstruction(new AsmInstruction(AsmOpCode.MOVQ, Register.R10,
-          new StringAsmArg("("  + Register.R12 + ", " + index + ", 8)"), sl));
+          MemoryAsmArg.indexed(Register.R12, (Register) index, 8), sl));
       break;
     }
   }
@@ -1044,17 +1283,18 @@ public class AsmBasicBlock implements AsmObject {
       VariableLocation loc, boolean thirtyTwo) {
     switch (loc.getLocationType()) {
     case GLOBAL:
-      if (loc.getSymbol().startsWith(".str")) {
-        return new StringAsmArg("$" + loc.getSymbol());
+      // Strings and methods are passed by address.
+      if (loc.getSymbol().startsWith(".str") ||
+          st.getMethod(loc.getSymbol()) != null) {
+        return new ImmediateAsmArg(loc.getSymbol());
       } else {
-        return new StringAsmArg("." + loc.getSymbol());
+        return MemoryAsmArg.global("." + loc.getSymbol());
       }
     case REGISTER:
-      return new StringAsmArg(
-          "" + (thirtyTwo ? loc.getRegister().thirtyTwo() :
-                            loc.getRegister().sixtyFour()));
+      return thirtyTwo ? loc.getRegister().thirtyTwo() :
+                         loc.getRegister().sixtyFour();
     case STACK:
-      return new StringAsmArg(loc.getOffset() + "(%rbp)");
+      return MemoryAsmArg.based(loc.getOffset(), Register.RBP);
     }
     return null;
   }
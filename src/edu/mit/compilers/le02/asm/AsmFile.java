@@ -1,6 +1,13 @@
 package edu.mit.compilers.le02.asm;
 
-import java.io.PrintStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
@@ -27,29 +34,38 @@ import edu.mit.compilers.tools.CLI;
 public class AsmFile {
   private SymbolTable st;
   private ControlFlowGraph cfg;
-  private PrintStream ps;
+  private Writer out;
+  private EnumSet<Optimization> opts;
 
   private List<AsmObject> header = new ArrayList<AsmObject>();
   private List<AsmObject> strings = new ArrayList<AsmObject>();
   private List<AsmObject> globals = new ArrayList<AsmObject>();
-  private List<AsmObject> methods = new ArrayList<AsmObject>();
   private List<AsmObject> errors = new ArrayList<AsmObject>();
 
-  private AsmBasicBlock current;
-
   public AsmFile(ControlFlowGraph graph, SymbolTable table,
-      PrintStream writer, EnumSet<Optimization> opts) {
+      Writer writer, EnumSet<Optimization> opts) {
     cfg = graph;
-    ps = writer;
+    out = writer;
     st = table;
+    this.opts = opts;
 
     writeHeader();
     writeStrings();
     writeGlobals();
-    writeMethods(opts);
     writeErrors();
   }
 
+  /**
+   * Opens a buffered writer on a channel for the named output file.
+   */
+  public static Writer openOutput(String filename) throws IOException {
+    FileChannel channel = FileChannel.open(Paths.get(filename),
+      StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING);
+    return new BufferedWriter(
+      Channels.newWriter(channel, Charset.defaultCharset().name()));
+  }
+
   /**
    * Writes the necessary header information
    */
@@ -115,23 +131,20 @@ public class AsmFile {
   }
 
   /**
-   * Writes the blocks associated with each method to the assembly file.
+   * Generates the blocks associated with a method.
    */
-  public void writeMethods(EnumSet<Optimization> opts) {
-    methods.add(new AsmString(".section .rodata"));
-    for (String methodName : cfg.getMethods()) {
-      BasicBlockNode methodNode =
-        (BasicBlockNode) cfg.getMethod(methodName);
-      MethodDescriptor thisMethod = st.getMethod(methodName);
-
-      current = new AsmBasicBlock(
-        methodName, methodNode, thisMethod, st, opts);
-      if (opts.contains(Optimization.ASM_PEEPHOLE)) {
-        current.peepholeInstructions();
-      }
-      current.reorderInstructions();
-      methods.add(current);
+  private AsmBasicBlock generateMethod(String methodName) {
+    BasicBlockNode methodNode =
+      (BasicBlockNode) cfg.getMethod(methodName);
+    MethodDescriptor thisMethod = st.getMethod(methodName);
+
+    AsmBasicBlock method = new AsmBasicBlock(
+      methodName, methodNode, thisMethod, st, opts);
+    if (opts.contains(Optimization.ASM_PEEPHOLE)) {
+      method.peepholeInstructions();
     }
+    method.reorderInstructions();
+    return method;
   }
 
   /**
@@ -154,16 +167,16 @@ public class AsmFile {
     errors.add(new AsmInstruction(
         AsmOpCode.MOVSXD, Register.R12D, Register.RSI, sl));
     errors.add(new AsmInstruction(
-        AsmOpCode.MOVQ, new StringAsmArg("$." + errmsgLabel),
+        AsmOpCode.MOVQ, new ImmediateAsmArg("." + errmsgLabel),
         Register.RDI, sl));
     errors.add(new AsmInstruction(
-        AsmOpCode.CALL,new StringAsmArg("printf"), sl));
+        AsmOpCode.CALL, new LabelAsmArg("printf"), sl));
     errors.add(new AsmInstruction(
         AsmOpCode.XORQ, Register.RAX, Register.RAX, sl));
     errors.add(new AsmInstruction(
         AsmOpCode.XORQ, Register.RDI, Register.RDI, sl));
     errors.add(new AsmInstruction(
-        AsmOpCode.CALL, new StringAsmArg("exit"), sl));
+        AsmOpCode.CALL, new LabelAsmArg("exit"), sl));
   }
 
   /**
@@ -174,65 +187,54 @@ public class AsmFile {
   }
 
   /**
-   * Write the AsmFile to file
+   * Write the AsmFile to file.  Each method is generated, written and
+   * released in turn, so only one method's instructions are held in memory
+   * at a time.  The writer is flushed but not closed.
    */
-  public void write() {
-    printHeader();
-    printStrings();
-    printGlobals();
+  public void write() throws IOException {
+    print(header);
+    print(strings);
+    print(globals);
     printMethods();
-    printErrors();
-
+    print(errors);
+    out.flush();
   }
 
-  private void printHeader() {
-    for (AsmObject s : header) {
-      ps.println(s.toString());
-    }
-  }
-
-  private void printStrings() {
-    for (AsmObject s : strings) {
-      ps.println(s.toString());
-    }
+  private void println(String line) throws IOException {
+    out.write(line);
+    out.write('\n');
   }
 
-  private void printGlobals() {
-    for (AsmObject s : globals) {
-      ps.println(s.toString());
+  private void print(List<AsmObject> objects) throws IOException {
+    for (AsmObject s : objects) {
+      println(s.toString());
     }
   }
 
-  private void printMethods() {
-    for (AsmObject s : methods) {
-      if (s instanceof AsmBasicBlock){
-        AsmBasicBlock method = (AsmBasicBlock)s;
-        for (int ii = 0; ii < method.getBlock().size(); ii++) {
-          AsmObject obj = method.getBlock().get(ii);
-          if (obj instanceof AsmInstruction) {
-            AsmInstruction inst = (AsmInstruction)obj;
-            if (inst.opcode == AsmOpCode.JMP &&
-                (ii + 1) < method.getBlock().size()) {
-              AsmObject next = method.getBlock().get(ii + 1);
-              String label = next.toString();
-              if (label.equals(inst.first_operand + ":")) {
-                ps.println("  # Falling to " + inst.first_operand + ":");
-                continue;
-              }
+  private void printMethods() throws IOException {
+    println(".section .rodata");
+    for (String methodName : cfg.getMethods()) {
+      AsmBasicBlock method = generateMethod(methodName);
+      List<AsmObject> block = method.getBlock();
+      for (int ii = 0; ii < block.size(); ii++) {
+        AsmObject obj = block.get(ii);
+        if (obj instanceof AsmInstruction) {
+          AsmInstruction inst = (AsmInstruction)obj;
+          if (inst.opcode == AsmOpCode.JMP &&
+              inst.first_operand instanceof LabelAsmArg &&
+              (ii + 1) < block.size()) {
+            AsmObject next = block.get(ii + 1);
+            String label =
+              ((LabelAsmArg) inst.first_operand).getLabel() + ":";
+            if (next instanceof AsmString && label.equals(next.toString())) {
+              println("  # Falling to " + label);
+              continue;
             }
           }
-          ps.println(obj.toString());
         }
-      } else {
-        ps.println(s.toString());
+        println(obj.toString());
       }
     }
   }
 
-  private void printErrors() {
-    for (AsmObject s : errors) {
-      ps.println(s.toString());
-    }
-  }
-
 }
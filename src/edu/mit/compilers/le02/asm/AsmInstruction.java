@@ -1,10 +1,10 @@
 package edu.mit.compilers.le02.asm;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
+import java.util.EnumSet;
 
+import edu.mit.compilers.le02.SourceLineIndex;
 import edu.mit.compilers.le02.SourceLocation;
+import edu.mit.compilers.le02.RegisterLocation.Register;
 import edu.mit.compilers.tools.CLI;
 
 /**
@@ -18,66 +18,271 @@ public class AsmInstruction implements AsmObject {
 
   AsmOpCode opcode;
   SourceLocation loc;
-  String first_operand, second_operand;
+  AsmArg first_operand, second_operand;
 
   public AsmInstruction(AsmOpCode opCode, SourceLocation loc) {
-    this(opCode, "", "", loc);
+    this(opCode, null, null, loc);
   }
 
   public AsmInstruction(AsmOpCode opCode, AsmArg first_operand,
       SourceLocation loc) {
-
-    this(opCode, first_operand.toString(), "", loc);
+    this(opCode, first_operand, null, loc);
   }
 
   public AsmInstruction(AsmOpCode opCode, AsmArg first_operand,
       AsmArg second_operand, SourceLocation loc) {
-    this(opCode, first_operand != null ? first_operand.toString() : "",
-         second_operand != null ? second_operand.toString() : "", loc);
-  }
-
-  private AsmInstruction(AsmOpCode opCode, String first_operand,
-      String second_operand, SourceLocation loc) {
-
     this.opcode = opCode;
     this.first_operand = first_operand;
     this.second_operand = second_operand;
     this.loc = loc;
   }
 
+  public AsmOpCode getOpcode() {
+    return opcode;
+  }
+
+  /** Returns the first (source) operand, or null if there is none. */
+  public AsmArg getFirstOperand() {
+    return first_operand;
+  }
+
+  /** Returns the second (destination) operand, or null if there is none. */
+  public AsmArg getSecondOperand() {
+    return second_operand;
+  }
+
+  public SourceLocation getSourceLocation() {
+    return loc;
+  }
+
+  /**
+   * Returns the registers whose values this instruction depends on, by
+   * their 64-bit names.  Registers used to form a memory address are read
+   * whichever side of the instruction the address is on.
+   */
+  public EnumSet<Register> getRegistersRead() {
+    EnumSet<Register> regs = EnumSet.noneOf(Register.class);
+    if (isZeroingIdiom()) {
+      return regs;
+    }
+    addAddressRegisters(regs, first_operand);
+    addAddressRegisters(regs, second_operand);
+    if (opcode != AsmOpCode.POPQ) {
+      addRegister(regs, first_operand);
+    }
+    if (readsSecondOperand()) {
+      addRegister(regs, second_operand);
+    }
+    switch (opcode) {
+     case CDQ:
+      regs.add(Register.RAX);
+      break;
+     case IDIVL:
+      regs.add(Register.RAX);
+      regs.add(Register.RDX);
+      break;
+     case CALL:
+      for (Register reg : AsmBasicBlock.argumentRegisters) {
+        regs.add(reg);
+      }
+      regs.add(Register.RAX);
+      regs.add(Register.RSP);
+      break;
+     case PUSHQ:
+     case POPQ:
+     case RET:
+      regs.add(Register.RSP);
+      break;
+     case ENTER:
+     case LEAVE:
+      regs.add(Register.RSP);
+      regs.add(Register.RBP);
+      break;
+    }
+    return regs;
+  }
+
+  /**
+   * Returns the registers this instruction may change, by their 64-bit
+   * names.
+   */
+  public EnumSet<Register> getRegistersWritten() {
+    EnumSet<Register> regs = EnumSet.noneOf(Register.class);
+    if (second_operand != null && opcode != AsmOpCode.CMPL &&
+        opcode != AsmOpCode.CMPQ) {
+      addRegister(regs, second_operand);
+    }
+    switch (opcode) {
+     case NEGL:
+     case XCHGQ:
+      addRegister(regs, first_operand);
+      break;
+     case CDQ:
+      regs.add(Register.RDX);
+      break;
+     case IDIVL:
+      regs.add(Register.RAX);
+      regs.add(Register.RDX);
+      break;
+     case CALL:
+      for (Register reg : AsmBasicBlock.argumentRegisters) {
+        regs.add(reg);
+      }
+      regs.add(Register.RAX);
+      regs.add(Register.R10);
+      regs.add(Register.R11);
+      break;
+     case POPQ:
+      addRegister(regs, first_operand);
+      regs.add(Register.RSP);
+      break;
+     case PUSHQ:
+      regs.add(Register.RSP);
+      break;
+     case ENTER:
+     case LEAVE:
+      regs.add(Register.RSP);
+      regs.add(Register.RBP);
+      break;
+    }
+    return regs;
+  }
+
+  /** Returns whether this instruction may load from memory. */
+  public boolean readsMemory() {
+    switch (opcode) {
+     case CALL:
+     case LEAVE:
+     case POPQ:
+     case RET:
+      return true;
+     case LEAL:
+     case LEAQ:
+      // LEA only computes an address.
+      return false;
+    }
+    return first_operand instanceof MemoryAsmArg ||
+      (second_operand instanceof MemoryAsmArg && readsSecondOperand());
+  }
+
+  /** Returns whether this instruction may store to memory. */
+  public boolean writesMemory() {
+    switch (opcode) {
+     case CALL:
+     case ENTER:
+     case PUSHQ:
+      return true;
+     case NEGL:
+     case POPQ:
+     case XCHGQ:
+      if (first_operand instanceof MemoryAsmArg) {
+        return true;
+      }
+      break;
+     case CMPL:
+     case CMPQ:
+      return false;
+    }
+    return second_operand instanceof MemoryAsmArg;
+  }
+
+  public boolean readsFlags() {
+    return opcode.readsFlags();
+  }
+
+  /**
+   * Returns whether this instruction may change the flags.  Shifts by a
+   * constant zero leave them alone.
+   */
+  public boolean writesFlags() {
+    if ((opcode == AsmOpCode.SHLL || opcode == AsmOpCode.SARL) &&
+        first_operand instanceof ImmediateAsmArg &&
+        ((ImmediateAsmArg) first_operand).isConstant() &&
+        ((ImmediateAsmArg) first_operand).getValue() == 0) {
+      return false;
+    }
+    return opcode.writesFlags();
+  }
+
+  /**
+   * Returns whether the old value of the destination is used, as opposed to
+   * simply being overwritten.
+   */
+  private boolean readsSecondOperand() {
+    if (second_operand == null) {
+      return false;
+    }
+    switch (opcode) {
+     case LEAL:
+     case LEAQ:
+     case MOVD:
+     case MOVDQA:
+     case MOVDQU:
+     case MOVL:
+     case MOVQ:
+     case MOVSXD:
+      return false;
+     default:
+      return true;
+    }
+  }
+
+  /** Returns whether this is an xor of a register with itself. */
+  private boolean isZeroingIdiom() {
+    return (opcode == AsmOpCode.XORL || opcode == AsmOpCode.XORQ) &&
+      first_operand instanceof Register && second_operand instanceof Register &&
+      ((Register) first_operand).sixtyFour() ==
+        ((Register) second_operand).sixtyFour();
+  }
+
+  private static void addRegister(EnumSet<Register> regs, AsmArg arg) {
+    if (arg instanceof Register) {
+      regs.add(((Register) arg).sixtyFour());
+    }
+  }
+
+  private static void addAddressRegisters(EnumSet<Register> regs,
+                                          AsmArg arg) {
+    if (arg instanceof MemoryAsmArg) {
+      MemoryAsmArg mem = (MemoryAsmArg) arg;
+      if (mem.getBase() != null) {
+        regs.add(mem.getBase().sixtyFour());
+      }
+      if (mem.getIndex() != null) {
+        regs.add(mem.getIndex().sixtyFour());
+      }
+    }
+  }
+
+  /**
+   * Renders the instruction as a line of assembly.  Operands are only
+   * turned into text here, when the instruction is written out.
+   */
   public String toString() {
-    String result = "  " + opcode.toString();
-    if (first_operand != "") {
-      result += " " + first_operand;
-      if (second_operand != "") {
-        result += ", " + second_operand;
+    StringBuilder result = new StringBuilder("  ");
+    result.append(opcode.toString());
+    if (first_operand != null) {
+      result.append(' ').append(first_operand.toString());
+      if (second_operand != null) {
+        result.append(", ").append(second_operand.toString());
       }
     }
-    return result + getOriginalSource(loc);
+    return result.append(getOriginalSource(loc)).toString();
   }
 
   /**
    * Attempts to pull the original source line corresponding to an ASM op.
    */
   protected static String getOriginalSource(SourceLocation loc) {
-    if (loc.getLine() >= 0 && loc.getCol() >= 0
+    if (CLI.annotate && loc.getLine() >= 0 && loc.getCol() >= 0
         && !loc.getFilename().equals(CLI.STDIN)) {
-      try {
-        BufferedReader reader = new BufferedReader(
-            new FileReader(loc.getFilename()));
-        int line = 0;
-        String lineContents = "";
-        while (line < loc.getLine()) {
-          lineContents = reader.readLine();
-          line++;
-        }
-        return " # " + lineContents.substring(0, loc.getCol()) +
-          "@"  + lineContents.substring(loc.getCol());
-      } catch (IOException ioe) {
-        return "";
-      } catch (StringIndexOutOfBoundsException oob) {
+      String lineContents =
+        SourceLineIndex.getLine(loc.getFilename(), loc.getLine());
+      if (lineContents == null || loc.getCol() > lineContents.length()) {
         return "";
       }
+      return " # " + lineContents.substring(0, loc.getCol()) +
+        "@"  + lineContents.substring(loc.getCol());
     } else {
       return "";
     }
@@ -12,6 +12,7 @@ public enum AsmOpCode {
   CMOVLL,
   CMOVNEL,
   CMPL,
+  CMPQ,
   CALL,
   ENTER,
   IDIVL,
@@ -24,6 +25,7 @@ public enum AsmOpCode {
   JMP,
   JNE,
   LEAL,
+  LEAQ,
   LEAVE,
   MOVQ,
   MOVL,
@@ -35,13 +37,106 @@ public enum AsmOpCode {
   SHLL,
   SARL,
   SUBL,
+  SUBQ,
   XCHGQ,
   XORQ,
   XORL,
+  // SSE2
+  MOVD,
+  MOVDQA,
+  MOVDQU,
+  PADDD,
+  PMULUDQ,
+  POR,
+  PSLLQ,
+  PSRAD,
+  PSRLQ,
+  PSUBD,
+  PUNPCKLQDQ,
+  PXOR,
   ;
 
   public String toString() {
     return name().toLowerCase();
   }
 
+  /** Returns whether this works on the SSE registers. */
+  public boolean isVector() {
+    return compareTo(MOVD) >= 0;
+  }
+
+  /** Returns whether this is a jump, conditional or not. */
+  public boolean isJump() {
+    return this == JMP || isConditionalJump();
+  }
+
+  public boolean isConditionalJump() {
+    return inverse() != null;
+  }
+
+  /**
+   * Returns the conditional jump taken exactly when this one is not, or
+   * null if this is not a conditional jump.
+   */
+  public AsmOpCode inverse() {
+    switch (this) {
+     case JE:
+      return JNE;
+     case JNE:
+      return JE;
+     case JL:
+      return JGE;
+     case JGE:
+      return JL;
+     case JLE:
+      return JG;
+     case JG:
+      return JLE;
+     default:
+      return null;
+    }
+  }
+
+  /** Returns whether this opcode's behaviour depends on the flags. */
+  public boolean readsFlags() {
+    switch (this) {
+     case CMOVEL:
+     case CMOVGEL:
+     case CMOVGL:
+     case CMOVLEL:
+     case CMOVLL:
+     case CMOVNEL:
+      return true;
+     default:
+      return isConditionalJump();
+    }
+  }
+
+  /**
+   * Returns whether this opcode may change the flags.  A call is assumed to
+   * leave them undefined.
+   */
+  public boolean writesFlags() {
+    switch (this) {
+     case ADDQ:
+     case ADDL:
+     case ANDL:
+     case CMPL:
+     case CMPQ:
+     case CALL:
+     case IDIVL:
+     case IMULL:
+     case NEGL:
+     case SHLL:
+     case SARL:
+     case SUBL:
+     case SUBQ:
+     case XORQ:
+     case XORL:
+      return true;
+     default:
+      return false;
+    }
+  }
+
 }
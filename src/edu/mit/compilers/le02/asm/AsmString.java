@@ -14,6 +14,18 @@ public class AsmString implements AsmObject {
     this.line = line;
   }
 
+  /**
+   * Returns whether this line is a label, as written by AsmFile.writeLabel.
+   */
+  public boolean isLabel() {
+    return line.endsWith(":") && !line.startsWith(" ");
+  }
+
+  /** Returns the name of the label on this line, without the colon. */
+  public String getLabel() {
+    return line.substring(0, line.length() - 1);
+  }
+
   public String toString() {
     return line;
   }
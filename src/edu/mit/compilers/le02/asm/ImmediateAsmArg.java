@@ -0,0 +1,55 @@
+package edu.mit.compilers.le02.asm;
+
+/**
+ * An immediate operand: either a constant, or the address of a symbol.
+ */
+public class ImmediateAsmArg implements AsmArg {
+  private long value;
+  private String symbol;
+
+  public ImmediateAsmArg(long value) {
+    this.value = value;
+    this.symbol = null;
+  }
+
+  public ImmediateAsmArg(String symbol) {
+    this.value = 0;
+    this.symbol = symbol;
+  }
+
+  /**
+   * Returns whether this is a constant, as opposed to a symbol address.
+   */
+  public boolean isConstant() {
+    return symbol == null;
+  }
+
+  public long getValue() {
+    return value;
+  }
+
+  public String getSymbol() {
+    return symbol;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ImmediateAsmArg)) {
+      return false;
+    }
+    ImmediateAsmArg other = (ImmediateAsmArg) o;
+    return value == other.value &&
+      ((symbol == null) ? other.symbol == null : symbol.equals(other.symbol));
+  }
+
+  @Override
+  public int hashCode() {
+    return (symbol == null) ? (int) (value ^ (value >>> 32)) :
+                              symbol.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "$" + ((symbol == null) ? Long.toString(value) : symbol);
+  }
+}
@@ -0,0 +1,398 @@
+package edu.mit.compilers.le02.asm;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.RegisterLocation.Register;
+
+/**
+ * A list scheduler for the straight-line runs of instructions in a method.
+ *
+ * A run ends at every label, jump, call, return, push or pop, which stay
+ * where they are, and at every SSE instruction, since the SSE registers are
+ * not tracked.  Within a run, a dependency DAG is built from register,
+ * memory and flags hazards, and instructions are issued one per cycle in
+ * order of their latency-weighted distance to the end of the run, so that
+ * the results of slow instructions (loads, multiplies, divides, cmovs) are
+ * not needed straight away.
+ *
+ * The number of instructions which end up in a new position is reported to
+ * the PhaseTimer as "scheduled moves".
+ */
+public class InstructionScheduler {
+  private static final int LOAD_LATENCY = 4;
+  private static final int IMUL_LATENCY = 3;
+  private static final int IDIV_LATENCY = 26;
+  private static final int CMOV_LATENCY = 2;
+
+  private int moved = 0;
+
+  private static class Node {
+    AsmInstruction inst;
+    int index;
+    int latency;
+    boolean flagsNeeded;
+    List<AsmObject> comments = new ArrayList<AsmObject>();
+
+    List<Node> succs = new ArrayList<Node>();
+    List<Integer> succLatencies = new ArrayList<Integer>();
+    int unscheduledPreds = 0;
+    int priority;
+    int earliest = 0;
+
+    Node(AsmInstruction inst, int index) {
+      this.inst = inst;
+      this.index = index;
+      this.latency = latency(inst);
+    }
+
+    void addEdge(Node succ, int latency) {
+      succs.add(succ);
+      succLatencies.add(latency);
+      succ.unscheduledPreds++;
+    }
+  }
+
+  /** The kinds of memory operand which can be told apart. */
+  private enum MemoryKind { STACK, GLOBAL, ARRAY, UNKNOWN }
+
+  /**
+   * Returns code with each straight-line run of instructions scheduled.
+   */
+  public List<AsmObject> schedule(List<AsmObject> code) {
+    List<AsmObject> result = new ArrayList<AsmObject>(code.size());
+    List<Node> run = new ArrayList<Node>();
+    int lastIndex = -1;
+    for (int ii = 0; ii < code.size(); ii++) {
+      AsmObject obj = code.get(ii);
+      if (obj instanceof AsmInstruction &&
+          !isBarrier((AsmInstruction) obj)) {
+        run.add(new Node((AsmInstruction) obj, run.size()));
+        lastIndex = ii;
+      } else if (obj instanceof AsmInstruction ||
+                 PeepholeOptimizer.isLabel(obj)) {
+        scheduleRun(code, run, lastIndex, result);
+        run.clear();
+        result.add(obj);
+      } else if (run.isEmpty()) {
+        result.add(obj);
+      } else {
+        // Comments stay with the instruction before them.
+        run.get(run.size() - 1).comments.add(obj);
+      }
+    }
+    scheduleRun(code, run, lastIndex, result);
+
+    PhaseTimer.count("scheduled moves", moved);
+    return result;
+  }
+
+  /**
+   * Returns whether inst must stay in place, ending a run.
+   */
+  private static boolean isBarrier(AsmInstruction inst) {
+    switch (inst.opcode) {
+     case CALL:
+     case ENTER:
+     case LEAVE:
+     case POPQ:
+     case PUSHQ:
+     case RET:
+      return true;
+     default:
+      return inst.opcode.isJump() || inst.opcode.isVector();
+    }
+  }
+
+  private static int latency(AsmInstruction inst) {
+    int latency;
+    switch (inst.opcode) {
+     case IDIVL:
+      latency = IDIV_LATENCY;
+      break;
+     case IMULL:
+      latency = IMUL_LATENCY;
+      break;
+     case CMOVEL:
+     case CMOVGEL:
+     case CMOVGL:
+     case CMOVLEL:
+     case CMOVLL:
+     case CMOVNEL:
+      latency = CMOV_LATENCY;
+      break;
+     case MOVL:
+     case MOVQ:
+     case MOVSXD:
+      latency = 0;
+      break;
+     default:
+      latency = 1;
+    }
+    if (inst.readsMemory()) {
+      return LOAD_LATENCY + latency;
+    }
+    return Math.max(1, latency);
+  }
+
+  private void scheduleRun(List<AsmObject> code, List<Node> run,
+                           int lastIndex, List<AsmObject> result) {
+    if (run.size() > 1) {
+      markNeededFlags(code, run, lastIndex);
+      buildDependencies(run);
+      computePriorities(run);
+      run = order(run);
+    }
+    for (int ii = 0; ii < run.size(); ii++) {
+      Node node = run.get(ii);
+      if (node.index != ii) {
+        moved++;
+      }
+      result.add(node.inst);
+      result.addAll(node.comments);
+    }
+  }
+
+  /**
+   * Decides which flag-setting instructions have their flags read, either
+   * later in the run or after it.  The others are free to move among
+   * themselves.
+   */
+  private static void markNeededFlags(List<AsmObject> code, List<Node> run,
+                                      int lastIndex) {
+    boolean live = !PeepholeOptimizer.flagsDeadAfter(code, lastIndex);
+    for (int ii = run.size() - 1; ii >= 0; ii--) {
+      AsmInstruction inst = run.get(ii).inst;
+      if (inst.writesFlags()) {
+        // A shift by a register might leave the flags alone.
+        boolean mayKeep =
+          (inst.opcode == AsmOpCode.SHLL || inst.opcode == AsmOpCode.SARL) &&
+          !(inst.first_operand instanceof ImmediateAsmArg);
+        run.get(ii).flagsNeeded = live || mayKeep;
+        if (!mayKeep) {
+          live = false;
+        }
+      }
+      if (inst.readsFlags()) {
+        live = true;
+      }
+    }
+  }
+
+  private static void buildDependencies(List<Node> run) {
+    Map<Register, Node> lastWriter = new EnumMap<Register, Node>(Register.class);
+    Map<Register, List<Node>> readers =
+      new EnumMap<Register, List<Node>>(Register.class);
+    Node lastFlagsWriter = null;
+    List<Node> flagsReaders = new ArrayList<Node>();
+    List<Node> unneededFlagsWriters = new ArrayList<Node>();
+    List<Node> memoryNodes = new ArrayList<Node>();
+
+    for (Node node : run) {
+      AsmInstruction inst = node.inst;
+
+      EnumSet<Register> read = inst.getRegistersRead();
+      for (Register reg : read) {
+        Node writer = lastWriter.get(reg);
+        if (writer != null) {
+          writer.addEdge(node, writer.latency);
+        }
+        List<Node> regReaders = readers.get(reg);
+        if (regReaders == null) {
+          regReaders = new ArrayList<Node>();
+          readers.put(reg, regReaders);
+        }
+        regReaders.add(node);
+      }
+      for (Register reg : inst.getRegistersWritten()) {
+        List<Node> regReaders = readers.get(reg);
+        if (regReaders != null) {
+          for (Node reader : regReaders) {
+            if (reader != node) {
+              reader.addEdge(node, 0);
+            }
+          }
+          regReaders.clear();
+        }
+        Node writer = lastWriter.get(reg);
+        if (writer != null) {
+          writer.addEdge(node, 0);
+        }
+        lastWriter.put(reg, node);
+      }
+
+      if (inst.readsFlags()) {
+        if (lastFlagsWriter != null) {
+          lastFlagsWriter.addEdge(node, lastFlagsWriter.latency);
+        }
+        flagsReaders.add(node);
+      }
+      if (inst.writesFlags()) {
+        // Whether or not its flags are needed, an instruction must not
+        // clobber flags which an earlier instruction reads.
+        for (Node reader : flagsReaders) {
+          if (reader != node) {
+            reader.addEdge(node, 0);
+          }
+        }
+        if (lastFlagsWriter != null) {
+          lastFlagsWriter.addEdge(node, 0);
+        }
+        if (node.flagsNeeded) {
+          // Nor may unneeded flags land between this and its readers.
+          for (Node writer : unneededFlagsWriters) {
+            writer.addEdge(node, 0);
+          }
+          unneededFlagsWriters.clear();
+          flagsReaders.clear();
+          lastFlagsWriter = node;
+        } else {
+          unneededFlagsWriters.add(node);
+        }
+      }
+
+      if (inst.readsMemory() || inst.writesMemory()) {
+        for (Node other : memoryNodes) {
+          boolean store = inst.writesMemory();
+          boolean otherStore = other.inst.writesMemory();
+          if ((store || otherStore) && mayAlias(other.inst, inst)) {
+            other.addEdge(node, otherStore && !store ? other.latency : 0);
+          }
+        }
+        memoryNodes.add(node);
+      }
+    }
+  }
+
+  private static MemoryAsmArg memoryOperand(AsmInstruction inst) {
+    if (inst.opcode != AsmOpCode.LEAL && inst.opcode != AsmOpCode.LEAQ &&
+        inst.first_operand instanceof MemoryAsmArg) {
+      return (MemoryAsmArg) inst.first_operand;
+    }
+    if (inst.second_operand instanceof MemoryAsmArg) {
+      return (MemoryAsmArg) inst.second_operand;
+    }
+    return null;
+  }
+
+  private static MemoryKind kindOf(MemoryAsmArg mem) {
+    if (mem == null) {
+      return MemoryKind.UNKNOWN;
+    }
+    if (mem.getSymbol() != null && mem.getBase() == null &&
+        mem.getIndex() == null) {
+      return MemoryKind.GLOBAL;
+    }
+    if (mem.getSymbol() == null && mem.getBase() == Register.RBP &&
+        mem.getIndex() == null) {
+      return MemoryKind.STACK;
+    }
+    // Array elements are always addressed from R12.
+    if (mem.getSymbol() == null && mem.getBase() == Register.R12 &&
+        mem.getIndex() != null) {
+      return MemoryKind.ARRAY;
+    }
+    return MemoryKind.UNKNOWN;
+  }
+
+  /**
+   * Returns whether the memory used by two instructions might overlap.
+   * Stack slots, global scalars and global arrays never overlap each other.
+   */
+  private static boolean mayAlias(AsmInstruction a, AsmInstruction b) {
+    MemoryAsmArg memA = memoryOperand(a);
+    MemoryAsmArg memB = memoryOperand(b);
+    MemoryKind kindA = kindOf(memA);
+    MemoryKind kindB = kindOf(memB);
+    if (kindA == MemoryKind.UNKNOWN || kindB == MemoryKind.UNKNOWN) {
+      return true;
+    }
+    if (kindA != kindB) {
+      return false;
+    }
+    switch (kindA) {
+     case STACK:
+      // Slots are eight bytes wide.
+      return Math.abs(memA.getDisplacement() - memB.getDisplacement()) < 8;
+     case GLOBAL:
+      return memA.getSymbol().equals(memB.getSymbol());
+     default:
+      return true;
+    }
+  }
+
+  /**
+   * Sets each node's priority to the latency-weighted length of the
+   * longest path from it to the end of the run.  Edges always point
+   * forwards in the run, so one backwards sweep suffices.
+   */
+  private static void computePriorities(List<Node> run) {
+    for (int ii = run.size() - 1; ii >= 0; ii--) {
+      Node node = run.get(ii);
+      node.priority = node.latency;
+      for (int ss = 0; ss < node.succs.size(); ss++) {
+        node.priority = Math.max(node.priority,
+          node.succLatencies.get(ss) + node.succs.get(ss).priority);
+      }
+    }
+  }
+
+  /**
+   * Issues one instruction per cycle.  Of the instructions whose operands
+   * are ready, the one with the highest priority goes first, falling back
+   * to the original order; if none are ready, the one which will be ready
+   * soonest goes.
+   */
+  private static List<Node> order(List<Node> run) {
+    List<Node> ready = new ArrayList<Node>();
+    for (Node node : run) {
+      if (node.unscheduledPreds == 0) {
+        ready.add(node);
+      }
+    }
+
+    List<Node> scheduled = new ArrayList<Node>(run.size());
+    int cycle = 0;
+    while (!ready.isEmpty()) {
+      Node best = null;
+      for (Node node : ready) {
+        if (best == null || isBetter(node, best, cycle)) {
+          best = node;
+        }
+      }
+      ready.remove(best);
+      scheduled.add(best);
+
+      int issued = Math.max(cycle, best.earliest);
+      cycle = issued + 1;
+      for (int ss = 0; ss < best.succs.size(); ss++) {
+        Node succ = best.succs.get(ss);
+        succ.earliest =
+          Math.max(succ.earliest, issued + best.succLatencies.get(ss));
+        if (--succ.unscheduledPreds == 0) {
+          ready.add(succ);
+        }
+      }
+    }
+    return scheduled;
+  }
+
+  private static boolean isBetter(Node a, Node b, int cycle) {
+    boolean aReady = a.earliest <= cycle;
+    boolean bReady = b.earliest <= cycle;
+    if (aReady != bReady) {
+      return aReady;
+    }
+    if (!aReady && a.earliest != b.earliest) {
+      return a.earliest < b.earliest;
+    }
+    if (a.priority != b.priority) {
+      return a.priority > b.priority;
+    }
+    return a.index < b.index;
+  }
+}
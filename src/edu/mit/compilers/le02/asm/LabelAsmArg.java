@@ -0,0 +1,31 @@
+package edu.mit.compilers.le02.asm;
+
+/**
+ * A label used as the target of a jump or call.
+ */
+public class LabelAsmArg implements AsmArg {
+  private String label;
+
+  public LabelAsmArg(String label) {
+    this.label = label;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return (o instanceof LabelAsmArg) && label.equals(((LabelAsmArg) o).label);
+  }
+
+  @Override
+  public int hashCode() {
+    return label.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return label;
+  }
+}
@@ -0,0 +1,108 @@
+package edu.mit.compilers.le02.asm;
+
+import edu.mit.compilers.le02.RegisterLocation.Register;
+
+/**
+ * A memory operand of the form symbol(base, index, scale) or
+ * displacement(base, index, scale).  Any of the parts may be absent.
+ */
+public class MemoryAsmArg implements AsmArg {
+  private String symbol;
+  private int displacement;
+  private Register base;
+  private Register index;
+  private int scale;
+
+  public MemoryAsmArg(String symbol, int displacement, Register base,
+                      Register index, int scale) {
+    this.symbol = symbol;
+    this.displacement = displacement;
+    this.base = base;
+    this.index = index;
+    this.scale = scale;
+  }
+
+  /** A global variable, addressed by its symbol. */
+  public static MemoryAsmArg global(String symbol) {
+    return new MemoryAsmArg(symbol, 0, null, null, 1);
+  }
+
+  /** A value at an offset from a base register. */
+  public static MemoryAsmArg based(int displacement, Register base) {
+    return new MemoryAsmArg(null, displacement, base, null, 1);
+  }
+
+  /** An element of an array whose address is held in base. */
+  public static MemoryAsmArg indexed(Register base, Register index,
+                                     int scale) {
+    return new MemoryAsmArg(null, 0, base, index, scale);
+  }
+
+  public String getSymbol() {
+    return symbol;
+  }
+
+  public int getDisplacement() {
+    return displacement;
+  }
+
+  public Register getBase() {
+    return base;
+  }
+
+  public Register getIndex() {
+    return index;
+  }
+
+  public int getScale() {
+    return scale;
+  }
+
+  /**
+   * Returns whether reg (in any width) is read to compute this address.
+   */
+  public boolean uses(Register reg) {
+    Register wide = reg.sixtyFour();
+    return (base != null && base.sixtyFour() == wide) ||
+           (index != null && index.sixtyFour() == wide);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof MemoryAsmArg)) {
+      return false;
+    }
+    MemoryAsmArg other = (MemoryAsmArg) o;
+    return displacement == other.displacement && base == other.base &&
+      index == other.index && scale == other.scale &&
+      ((symbol == null) ? other.symbol == null : symbol.equals(other.symbol));
+  }
+
+  @Override
+  public int hashCode() {
+    return ((symbol == null) ? displacement : symbol.hashCode()) * 31 +
+      ((base == null) ? 0 : base.hashCode()) +
+      ((index == null) ? 0 : index.hashCode() * 7) + scale;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    if (symbol != null) {
+      sb.append(symbol);
+    } else if (displacement != 0 || (base == null && index == null)) {
+      sb.append(displacement);
+    }
+    if (base != null || index != null) {
+      sb.append('(');
+      if (base != null) {
+        sb.append(base);
+      }
+      if (index != null) {
+        sb.append(", ").append(index).append(", ").append(scale);
+      }
+      sb.append(')');
+    }
+    return sb.toString();
+  }
+}
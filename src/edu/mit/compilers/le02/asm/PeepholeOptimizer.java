@@ -0,0 +1,447 @@
+package edu.mit.compilers.le02.asm;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.RegisterLocation.Register;
+
+/**
+ * Rewrites the instructions of a method with a set of peephole rules, each
+ * looking at a window of at most WINDOW instructions.  Passes are repeated
+ * until no rule applies.  Windows never extend past a label, since control
+ * may enter there from elsewhere.
+ *
+ * The number of times each rule fires is reported to the PhaseTimer as
+ * "peephole <rule>".
+ */
+public class PeepholeOptimizer {
+  /** The largest number of instructions any rule looks at. */
+  public static final int WINDOW = 4;
+  /** Guards against rules which undo each other. */
+  private static final int MAX_PASSES = 16;
+
+  private List<PeepholeRule> rules;
+  private long[] hits;
+
+  public PeepholeOptimizer() {
+    rules = new ArrayList<PeepholeRule>();
+    rules.add(new SelfMove());
+    rules.add(new StoreReload());
+    rules.add(new RedundantCompare());
+    rules.add(new ZeroXor());
+    rules.add(new JumpThreading());
+    rules.add(new BranchOverJump());
+    rules.add(new JumpToNext());
+    hits = new long[rules.size()];
+  }
+
+  /**
+   * Applies the rules to code until none of them changes anything.
+   */
+  public void optimize(List<AsmObject> code) {
+    boolean changed = true;
+    for (int pass = 0; changed && pass < MAX_PASSES; pass++) {
+      changed = false;
+      for (PeepholeRule rule : rules) {
+        rule.startPass(code);
+      }
+      for (int ii = 0; ii < code.size(); ii++) {
+        for (int rr = 0; rr < rules.size(); rr++) {
+          // A rule may have removed the instruction we started from.
+          if (ii >= code.size() ||
+              !(code.get(ii) instanceof AsmInstruction)) {
+            break;
+          }
+          if (rules.get(rr).apply(code, ii)) {
+            hits[rr]++;
+            changed = true;
+          }
+        }
+      }
+    }
+
+    for (int rr = 0; rr < rules.size(); rr++) {
+      PhaseTimer.count("peephole " + rules.get(rr).getName(), hits[rr]);
+    }
+  }
+
+  /**
+   * Returns the number of times each rule has fired, by rule name.
+   */
+  public Map<String, Long> getHits() {
+    Map<String, Long> result = new LinkedHashMap<String, Long>();
+    for (int rr = 0; rr < rules.size(); rr++) {
+      result.put(rules.get(rr).getName(), hits[rr]);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the index of the first instruction after index, or -1 if a
+   * label or the end of the code comes first.  Comments are skipped.
+   */
+  static int nextInstruction(List<AsmObject> code, int index) {
+    for (int ii = index + 1; ii < code.size(); ii++) {
+      AsmObject obj = code.get(ii);
+      if (obj instanceof AsmInstruction) {
+        return ii;
+      }
+      if (isLabel(obj)) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  static boolean isLabel(AsmObject obj) {
+    return (obj instanceof AsmString) && ((AsmString) obj).isLabel();
+  }
+
+  /**
+   * Returns whether execution falls from index straight into the given
+   * label, with only comments and other labels in between.
+   */
+  static boolean fallsThroughTo(List<AsmObject> code, int index,
+                                String label) {
+    for (int ii = index + 1; ii < code.size(); ii++) {
+      AsmObject obj = code.get(ii);
+      if (obj instanceof AsmInstruction) {
+        return false;
+      }
+      if (isLabel(obj) && ((AsmString) obj).getLabel().equals(label)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the flags are certain to be overwritten after index
+   * before anything reads them.  Flags are assumed live across labels and
+   * jumps.
+   */
+  static boolean flagsDeadAfter(List<AsmObject> code, int index) {
+    for (int ii = index + 1; ii < code.size(); ii++) {
+      AsmObject obj = code.get(ii);
+      if (isLabel(obj)) {
+        return false;
+      }
+      if (!(obj instanceof AsmInstruction)) {
+        continue;
+      }
+      AsmInstruction inst = (AsmInstruction) obj;
+      if (inst.readsFlags() || inst.opcode == AsmOpCode.JMP) {
+        return false;
+      }
+      if (inst.opcode == AsmOpCode.RET) {
+        return true;
+      }
+      // A shift by a register might be a shift by zero.
+      boolean variableShift =
+        (inst.opcode == AsmOpCode.SHLL || inst.opcode == AsmOpCode.SARL) &&
+        !(inst.first_operand instanceof ImmediateAsmArg);
+      if (inst.writesFlags() && !variableShift) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isMove(AsmInstruction inst) {
+    return inst.opcode == AsmOpCode.MOVL || inst.opcode == AsmOpCode.MOVQ;
+  }
+
+  private static boolean isWideRegister(AsmArg arg) {
+    return (arg instanceof Register) &&
+      ((Register) arg) == ((Register) arg).sixtyFour();
+  }
+
+  /**
+   * Removes moves of a register to itself.
+   */
+  private static class SelfMove extends PeepholeRule {
+    SelfMove() {
+      super("self-move");
+    }
+
+    @Override
+    public boolean apply(List<AsmObject> code, int index) {
+      AsmInstruction inst = (AsmInstruction) code.get(index);
+      if (isMove(inst) && inst.first_operand.equals(inst.second_operand)) {
+        code.remove(index);
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * After a 64-bit store or load, the register and the memory hold the same
+   * value, so a later load of the same memory can reuse the register:
+   *   movq %r10, -8(%rbp)            movq %r10, -8(%rbp)
+   *   movq -8(%rbp), %r11     =>     movq %r10, %r11
+   * The reload is dropped entirely if it targets the same register.
+   */
+  private static class StoreReload extends PeepholeRule {
+    StoreReload() {
+      super("store-reload");
+    }
+
+    @Override
+    public boolean apply(List<AsmObject> code, int index) {
+      AsmInstruction inst = (AsmInstruction) code.get(index);
+      if (inst.opcode != AsmOpCode.MOVQ) {
+        return false;
+      }
+      Register reg;
+      MemoryAsmArg mem;
+      if (isWideRegister(inst.first_operand) &&
+          inst.second_operand instanceof MemoryAsmArg) {
+        reg = (Register) inst.first_operand;
+        mem = (MemoryAsmArg) inst.second_operand;
+      } else if (inst.first_operand instanceof MemoryAsmArg &&
+                 isWideRegister(inst.second_operand)) {
+        mem = (MemoryAsmArg) inst.first_operand;
+        reg = (Register) inst.second_operand;
+        if (mem.uses(reg)) {
+          // The load changed the address.
+          return false;
+        }
+      } else {
+        return false;
+      }
+
+      int ii = index;
+      for (int nn = 1; nn < WINDOW; nn++) {
+        ii = nextInstruction(code, ii);
+        if (ii < 0) {
+          return false;
+        }
+        AsmInstruction next = (AsmInstruction) code.get(ii);
+        if (next.opcode == AsmOpCode.MOVQ && mem.equals(next.first_operand) &&
+            isWideRegister(next.second_operand)) {
+          if (next.second_operand == reg) {
+            code.remove(ii);
+          } else {
+            code.set(ii, new AsmInstruction(
+              AsmOpCode.MOVQ, reg, next.second_operand, next.loc));
+          }
+          return true;
+        }
+        if (next.opcode.isJump() || next.opcode == AsmOpCode.RET ||
+            next.writesMemory()) {
+          return false;
+        }
+        for (Register written : next.getRegistersWritten()) {
+          if (written == reg || mem.uses(written)) {
+            return false;
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Removes a compare whose flags are never read, and a compare which
+   * repeats an earlier one whose operands and flags are unchanged.
+   */
+  private static class RedundantCompare extends PeepholeRule {
+    RedundantCompare() {
+      super("redundant-cmp");
+    }
+
+    @Override
+    public boolean apply(List<AsmObject> code, int index) {
+      AsmInstruction inst = (AsmInstruction) code.get(index);
+      if (inst.opcode != AsmOpCode.CMPL) {
+        return false;
+      }
+      if (flagsDeadAfter(code, index)) {
+        code.remove(index);
+        return true;
+      }
+
+      EnumSet<Register> read = inst.getRegistersRead();
+      boolean readsMemory = inst.readsMemory();
+      int ii = index;
+      for (int nn = 1; nn < WINDOW; nn++) {
+        ii = nextInstruction(code, ii);
+        if (ii < 0) {
+          return false;
+        }
+        AsmInstruction next = (AsmInstruction) code.get(ii);
+        if (next.opcode == AsmOpCode.CMPL &&
+            inst.first_operand.equals(next.first_operand) &&
+            inst.second_operand.equals(next.second_operand)) {
+          code.remove(ii);
+          return true;
+        }
+        // Falling past a conditional jump leaves the flags alone.
+        if (next.writesFlags() || next.opcode == AsmOpCode.JMP ||
+            next.opcode == AsmOpCode.RET ||
+            (readsMemory && next.writesMemory())) {
+          return false;
+        }
+        for (Register written : next.getRegistersWritten()) {
+          if (read.contains(written)) {
+            return false;
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Zeroes a register with xor, which is shorter than moving $0 into it,
+   * when nothing reads the flags that the xor clobbers.
+   */
+  private static class ZeroXor extends PeepholeRule {
+    ZeroXor() {
+      super("zero-xor");
+    }
+
+    @Override
+    public boolean apply(List<AsmObject> code, int index) {
+      AsmInstruction inst = (AsmInstruction) code.get(index);
+      if (!isMove(inst) || !(inst.first_operand instanceof ImmediateAsmArg) ||
+          !(inst.second_operand instanceof Register)) {
+        return false;
+      }
+      ImmediateAsmArg imm = (ImmediateAsmArg) inst.first_operand;
+      if (!imm.isConstant() || imm.getValue() != 0 ||
+          !flagsDeadAfter(code, index)) {
+        return false;
+      }
+      // A 32-bit xor also clears the upper half of the register.
+      Register reg = ((Register) inst.second_operand).thirtyTwo();
+      code.set(index, new AsmInstruction(AsmOpCode.XORL, reg, reg, inst.loc));
+      return true;
+    }
+  }
+
+  /**
+   * Retargets a jump to a label which is immediately followed by another
+   * unconditional jump, so that it goes straight to the final target.
+   */
+  private static class JumpThreading extends PeepholeRule {
+    private Map<String, String> forwards = new HashMap<String, String>();
+
+    JumpThreading() {
+      super("jump-thread");
+    }
+
+    @Override
+    public void startPass(List<AsmObject> code) {
+      forwards.clear();
+      List<String> pending = new ArrayList<String>();
+      for (AsmObject obj : code) {
+        if (isLabel(obj)) {
+          pending.add(((AsmString) obj).getLabel());
+        } else if (obj instanceof AsmInstruction) {
+          AsmInstruction inst = (AsmInstruction) obj;
+          if (inst.opcode == AsmOpCode.JMP &&
+              inst.first_operand instanceof LabelAsmArg) {
+            String target = ((LabelAsmArg) inst.first_operand).getLabel();
+            for (String label : pending) {
+              forwards.put(label, target);
+            }
+          }
+          pending.clear();
+        }
+      }
+    }
+
+    @Override
+    public boolean apply(List<AsmObject> code, int index) {
+      AsmInstruction inst = (AsmInstruction) code.get(index);
+      if (!inst.opcode.isJump() ||
+          !(inst.first_operand instanceof LabelAsmArg)) {
+        return false;
+      }
+      String label = ((LabelAsmArg) inst.first_operand).getLabel();
+      String target = label;
+      Set<String> seen = new HashSet<String>();
+      seen.add(target);
+      while (forwards.containsKey(target)) {
+        target = forwards.get(target);
+        if (!seen.add(target)) {
+          // An infinite loop of jumps; leave it be.
+          return false;
+        }
+      }
+      if (target.equals(label)) {
+        return false;
+      }
+      inst.first_operand = new LabelAsmArg(target);
+      return true;
+    }
+  }
+
+  /**
+   * Turns a conditional jump over an unconditional one into a single
+   * conditional jump:
+   *   jl .a                          jge .b
+   *   jmp .b                  =>   .a:
+   * .a:
+   */
+  private static class BranchOverJump extends PeepholeRule {
+    BranchOverJump() {
+      super("branch-over-jump");
+    }
+
+    @Override
+    public boolean apply(List<AsmObject> code, int index) {
+      AsmInstruction inst = (AsmInstruction) code.get(index);
+      if (!inst.opcode.isConditionalJump() ||
+          !(inst.first_operand instanceof LabelAsmArg)) {
+        return false;
+      }
+      int ii = nextInstruction(code, index);
+      if (ii < 0) {
+        return false;
+      }
+      AsmInstruction next = (AsmInstruction) code.get(ii);
+      if (next.opcode != AsmOpCode.JMP ||
+          !(next.first_operand instanceof LabelAsmArg) ||
+          !fallsThroughTo(code, ii,
+                          ((LabelAsmArg) inst.first_operand).getLabel())) {
+        return false;
+      }
+      inst.opcode = inst.opcode.inverse();
+      inst.first_operand = next.first_operand;
+      code.remove(ii);
+      return true;
+    }
+  }
+
+  /**
+   * Removes a jump, conditional or not, to the label that follows it.
+   */
+  private static class JumpToNext extends PeepholeRule {
+    JumpToNext() {
+      super("jump-to-next");
+    }
+
+    @Override
+    public boolean apply(List<AsmObject> code, int index) {
+      AsmInstruction inst = (AsmInstruction) code.get(index);
+      if (!inst.opcode.isJump() ||
+          !(inst.first_operand instanceof LabelAsmArg) ||
+          !fallsThroughTo(code, index,
+                          ((LabelAsmArg) inst.first_operand).getLabel())) {
+        return false;
+      }
+      code.remove(index);
+      return true;
+    }
+  }
+}
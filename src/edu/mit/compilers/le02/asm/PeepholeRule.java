@@ -0,0 +1,33 @@
+package edu.mit.compilers.le02.asm;
+
+import java.util.List;
+
+/**
+ * A rewrite applied by the PeepholeOptimizer to a short window of
+ * instructions.
+ */
+public abstract class PeepholeRule {
+  private String name;
+
+  protected PeepholeRule(String name) {
+    this.name = name;
+  }
+
+  /** Returns the name under which this rule's hits are counted. */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Called before each pass over the code, so that a rule can gather any
+   * method-wide facts it needs.
+   */
+  public void startPass(List<AsmObject> code) {
+  }
+
+  /**
+   * Tries to rewrite the instructions beginning with the one at index.
+   * Returns whether anything was changed.
+   */
+  public abstract boolean apply(List<AsmObject> code, int index);
+}
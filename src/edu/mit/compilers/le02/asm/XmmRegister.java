@@ -0,0 +1,29 @@
+package edu.mit.compilers.le02.asm;
+
+/**
+ * The SSE registers.  Nothing but vector loops uses them, and all of them
+ * are caller-saved.
+ */
+public enum XmmRegister implements AsmArg {
+  XMM0,
+  XMM1,
+  XMM2,
+  XMM3,
+  XMM4,
+  XMM5,
+  XMM6,
+  XMM7,
+  XMM8,
+  XMM9,
+  XMM10,
+  XMM11,
+  XMM12,
+  XMM13,
+  XMM14,
+  XMM15;
+
+  @Override
+  public String toString() {
+    return "%" + this.name().toLowerCase();
+  }
+}
@@ -1,48 +1,81 @@
 package edu.mit.compilers.le02.cfg;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import edu.mit.compilers.le02.ErrorReporting;
 import edu.mit.compilers.le02.Main.Optimization;
+import edu.mit.compilers.le02.PhaseTimer;
 import edu.mit.compilers.le02.ast.ASTNode;
+import edu.mit.compilers.le02.ast.MethodDeclNode;
 import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
 import edu.mit.compilers.le02.dfa.DeadCodeElimination;
 import edu.mit.compilers.le02.dfa.Liveness;
 import edu.mit.compilers.le02.opt.BasicBlockVisitor;
+import edu.mit.compilers.le02.opt.BoundsCheckElimination;
 import edu.mit.compilers.le02.opt.CpVisitor;
+import edu.mit.compilers.le02.opt.ConstantFolding;
 import edu.mit.compilers.le02.opt.CseVisitor;
 import edu.mit.compilers.le02.opt.GlobalCseVisitor;
+import edu.mit.compilers.le02.opt.GlobalPromotion;
+import edu.mit.compilers.le02.opt.Inliner;
+import edu.mit.compilers.le02.opt.LoopInvariantCodeMotion;
 import edu.mit.compilers.le02.opt.RegisterVisitor;
+import edu.mit.compilers.le02.opt.SparseConditionalConstantPropagation;
+import edu.mit.compilers.le02.opt.StrengthReduction;
 import edu.mit.compilers.le02.symboltable.MethodDescriptor;
 import edu.mit.compilers.le02.symboltable.SymbolTable;
 
 public class BasicBlockGraph {
-  private static int id;
-  private static Map<SimpleCFGNode, BasicBlockNode> visited =
-    new HashMap<SimpleCFGNode, BasicBlockNode>();
+  private int id;
+  // SimpleCFGNode has no hashCode, so the blocks are kept in the order they
+  // were made.  A method's block list then never depends on identity hashes.
+  private Map<SimpleCFGNode, BasicBlockNode> visited =
+    new LinkedHashMap<SimpleCFGNode, BasicBlockNode>();
 
-  public static String nextID() {
+  public String nextID() {
     id++;
     return ".block" + Integer.toString(id);
   }
 
   public static ControlFlowGraph makeBasicBlockGraph(ControlFlowGraph cfg,
       EnumSet<Optimization> opts) {
+    return makeBasicBlockGraph(cfg, opts, 1);
+  }
+
+  /**
+   * Builds the basic block graph for every method and optimizes each method
+   * independently, using up to jobs threads.  The resulting graph does not
+   * depend on the number of jobs.
+   */
+  public static ControlFlowGraph makeBasicBlockGraph(ControlFlowGraph cfg,
+      EnumSet<Optimization> opts, int jobs) {
+    PhaseTimer.Sample phase = PhaseTimer.start();
     ControlFlowGraph newCFG = new ControlFlowGraph();
+    BasicBlockGraph graph = new BasicBlockGraph();
 
-    id = -1;
-    for (String methodName : cfg.getMethods()) {
+    graph.id = -1;
+    List<String> methodNames = cfg.getMethods();
+    List<MethodOptimizer> tasks = new ArrayList<MethodOptimizer>();
+    for (String methodName : methodNames) {
       CFGNode node = cfg.getMethod(methodName);
       assert (node instanceof SimpleCFGNode);
       SimpleCFGNode enter = (SimpleCFGNode) node;
 
-      visited.clear();
-      BasicBlockNode methodEnter = makeBasicBlocks(methodName, enter);
+      graph.visited.clear();
+      BasicBlockNode methodEnter = graph.makeBasicBlocks(methodName, enter);
 
-      Iterator<BasicBlockNode> iter = visited.values().iterator();
+      Iterator<BasicBlockNode> iter = graph.visited.values().iterator();
       while (iter.hasNext()) {
         BasicBlockNode n = iter.next();
         if (n.getStatements().isEmpty()) {
@@ -51,39 +84,253 @@ public class BasicBlockGraph {
         }
       }
 
+      tasks.add(new MethodOptimizer(methodEnter,
+        new ArrayList<BasicBlockNode>(graph.visited.values()), opts));
+    }
+
+    PhaseTimer.stop("blocks", phase);
+
+    // Inlining is the only optimization which looks at more than one
+    // method, so it has to run before the methods are optimized separately.
+    if (opts.contains(Optimization.INLINING)) {
+      phase = PhaseTimer.start();
+      Map<String, BasicBlockNode> enters =
+        new LinkedHashMap<String, BasicBlockNode>();
+      Map<String, List<BasicBlockNode>> blocks =
+        new HashMap<String, List<BasicBlockNode>>();
+      for (int i = 0; i < methodNames.size(); i++) {
+        enters.put(methodNames.get(i), tasks.get(i).methodEnter);
+        blocks.put(methodNames.get(i), tasks.get(i).blocks);
+      }
+      Inliner.performInlining(enters, blocks);
+      PhaseTimer.stop("inline", phase);
+    }
+
+    // Every method numbers the statements it creates from the same base, so
+    // the output is the same whichever order the methods are optimized in.
+    int uidBase = BasicStatement.peekNextUid();
+    for (MethodOptimizer task : tasks) {
+      task.uidBase = uidBase;
+    }
+
+    // Methods outlined from loops of other methods share their symbol
+    // tables, so they are optimized afterwards, one at a time, for their
+    // temps to be the same whatever the number of jobs.
+    List<MethodOptimizer> separate = new ArrayList<MethodOptimizer>();
+    List<MethodOptimizer> outlined = new ArrayList<MethodOptimizer>();
+    for (MethodOptimizer task : tasks) {
+      if (task.isOutlined()) {
+        outlined.add(task);
+      } else {
+        separate.add(task);
+      }
+    }
+
+    if (jobs > 1 && separate.size() > 1) {
+      ForkJoinPool pool = new ForkJoinPool(jobs);
+      try {
+        for (Future<BasicBlockNode> result : pool.invokeAll(separate)) {
+          result.get();
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(ie);
+      } catch (ExecutionException ee) {
+        Throwable cause = ee.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+      } finally {
+        pool.shutdown();
+      }
+    } else {
+      for (MethodOptimizer task : separate) {
+        task.call();
+      }
+    }
+    for (MethodOptimizer task : outlined) {
+      task.call();
+    }
+
+    for (int i = 0; i < methodNames.size(); i++) {
+      newCFG.putMethod(methodNames.get(i), tasks.get(i).methodEnter);
+    }
+
+    for (String name : cfg.getGlobals()) {
+      newCFG.putGlobal(name, cfg.getGlobal(name));
+    }
+
+    for (String name : cfg.getAllStringData()) {
+      newCFG.putStringData(name, cfg.getStringData(name));
+    }
+
+    return newCFG;
+  }
+
+  /**
+   * Runs the per-method optimization pipeline.  Each task touches only the
+   * blocks, statements and symbol tables of its own method.
+   */
+  private static class MethodOptimizer implements Callable<BasicBlockNode> {
+    // Each round of folding can only expose what the previous one folded,
+    // so a few are enough.
+    private static final int MAX_FOLDING_ROUNDS = 4;
+
+    private BasicBlockNode methodEnter;
+    private List<BasicBlockNode> blocks;
+    private EnumSet<Optimization> opts;
+    private int uidBase;
+
+    public MethodOptimizer(BasicBlockNode methodEnter,
+                           List<BasicBlockNode> blocks,
+                           EnumSet<Optimization> opts) {
+      this.methodEnter = methodEnter;
+      this.blocks = blocks;
+      this.opts = opts;
+    }
+
+    /**
+     * Returns whether this method's code is not the body of a method in the
+     * program, but was taken from another method.
+     */
+    public boolean isOutlined() {
+      ASTNode enterNode = methodEnter.getStatements().get(0).getNode();
+      MethodDescriptor md =
+        enterNode.getSymbolTable().getMethod(methodEnter.getMethod());
+      return !(md.getCode().getParent() instanceof MethodDeclNode);
+    }
+
+    @Override
+    public BasicBlockNode call() {
+      BasicStatement.beginLocalNumbering(uidBase);
+      try {
+        optimize();
+      } finally {
+        BasicStatement.endLocalNumbering();
+      }
+      return methodEnter;
+    }
+
+    /**
+     * Puts a NOP from the method in the entry block if the optimizations
+     * have emptied it, since later passes expect the entry block to start
+     * with a statement from the method.
+     */
+    private void keepEnterStatement(ASTNode enterNode) {
+      if (methodEnter.getStatements().isEmpty()) {
+        methodEnter.addStatement(new NOPStatement(enterNode));
+      }
+    }
+
+    private void optimize() {
+      ASTNode enterNode = methodEnter.getStatements().get(0).getNode();
+      SymbolTable st = enterNode.getSymbolTable();
+      MethodDescriptor md = st.getMethod(methodEnter.getMethod());
+
       // Run local CP
       if (opts.contains(Optimization.COPY_PROPAGATION)) {
+        PhaseTimer.Sample phase = PhaseTimer.start();
         CpVisitor cp = new CpVisitor();
         cp.visit(methodEnter);
+        PhaseTimer.stop("cp", phase);
       }
 
       // Run local and global CSE
       if (opts.contains(Optimization.LOCAL_COMMON_SUBEXPR)) {
+        PhaseTimer.Sample phase = PhaseTimer.start();
         BasicBlockVisitor cse = new CseVisitor();
         cse.visit(methodEnter);
+        PhaseTimer.stop("lcse", phase);
       }
       if (opts.contains(Optimization.GLOBAL_COMMON_SUBEXPR)) {
+        PhaseTimer.Sample phase = PhaseTimer.start();
         GlobalCseVisitor.performGlobalCse(methodEnter);
+        PhaseTimer.stop("gcse", phase);
       }
 
       // Run local CP
       if (opts.contains(Optimization.COPY_PROPAGATION)) {
+        PhaseTimer.Sample phase = PhaseTimer.start();
         CpVisitor cp = new CpVisitor();
         cp.visit(methodEnter);
+        PhaseTimer.stop("cp", phase);
+      }
+
+      // Propagate constants across blocks and fold constant branches.
+      if (opts.contains(Optimization.SPARSE_CONDITIONAL_CONSTANTS)) {
+        PhaseTimer.Sample phase = PhaseTimer.start();
+        SparseConditionalConstantPropagation
+          .performSparseConditionalConstantPropagation(methodEnter, blocks);
+        PhaseTimer.stop("sccp", phase);
+      }
+
+      // Fold constants and simplify arithmetic, alternating with CP and dead
+      // code elimination until there is nothing left to fold.
+      if (opts.contains(Optimization.CONSTANT_FOLDING)) {
+        PhaseTimer.Sample phase = PhaseTimer.start();
+        for (int round = 0; round < MAX_FOLDING_ROUNDS; round++) {
+          if (!ConstantFolding.performConstantFolding(blocks)) {
+            break;
+          }
+          if (opts.contains(Optimization.COPY_PROPAGATION)) {
+            new CpVisitor().visit(methodEnter);
+          }
+          if (opts.contains(Optimization.DEAD_CODE)) {
+            Liveness live = new Liveness(methodEnter);
+            new DeadCodeElimination(methodEnter, live.getBlockItems());
+          }
+        }
+        PhaseTimer.stop("fold", phase);
+        keepEnterStatement(enterNode);
+      }
+
+      // Fold the bounds checks and other branches which the ranges of
+      // their operands decide.
+      if (opts.contains(Optimization.RANGE_ANALYSIS)) {
+        PhaseTimer.Sample phase = PhaseTimer.start();
+        BoundsCheckElimination.performBoundsCheckElimination(methodEnter,
+                                                             blocks);
+        PhaseTimer.stop("range", phase);
+        keepEnterStatement(enterNode);
+      }
+
+      // Replace multiplications by induction variables with additions.
+      if (opts.contains(Optimization.STRENGTH_REDUCTION)) {
+        PhaseTimer.Sample phase = PhaseTimer.start();
+        StrengthReduction.performStrengthReduction(methodEnter, blocks, md);
+        PhaseTimer.stop("sr", phase);
+      }
+
+      // Hoist loop-invariant statements into loop preheaders.
+      if (opts.contains(Optimization.LOOP_INVARIANT_CODE_MOTION)) {
+        PhaseTimer.Sample phase = PhaseTimer.start();
+        LoopInvariantCodeMotion.performLoopInvariantCodeMotion(methodEnter,
+                                                               blocks);
+        PhaseTimer.stop("licm", phase);
+      }
+
+      // Keep globals in locals across loops which make no calls.
+      if (opts.contains(Optimization.GLOBAL_PROMOTION)) {
+        PhaseTimer.Sample phase = PhaseTimer.start();
+        GlobalPromotion.performGlobalPromotion(methodEnter, blocks, md);
+        PhaseTimer.stop("globals", phase);
       }
 
       // Run global dead code elimination.
       if (opts.contains(Optimization.DEAD_CODE)) {
+        PhaseTimer.Sample phase = PhaseTimer.start();
         Liveness live = new Liveness(methodEnter);
         new DeadCodeElimination(methodEnter, live.getBlockItems());
+        PhaseTimer.stop("dc", phase);
       }
 
-      ASTNode enterNode = methodEnter.getStatements().get(0).getNode();
-      SymbolTable st = enterNode.getSymbolTable();
-      MethodDescriptor md = st.getMethod(methodEnter.getMethod());
+      keepEnterStatement(enterNode);
 
       // Remove any BasicBlockNodes that are empty after optimizations
-      for (BasicBlockNode n : visited.values()) {
+      for (BasicBlockNode n : blocks) {
         if (n.getStatements().isEmpty()) {
           n.removeFromCFG();
         }
@@ -92,7 +339,10 @@ public class BasicBlockGraph {
       RegisterVisitor rv = null;
       // Run register allocation.
       if (opts.contains(Optimization.REGISTER_ALLOCATION)) {
-        rv = RegisterVisitor.runRegisterAllocation(methodEnter, md);
+        PhaseTimer.Sample phase = PhaseTimer.start();
+        rv = RegisterVisitor.runRegisterAllocation(methodEnter, md,
+            opts.contains(Optimization.LINEAR_SCAN));
+        PhaseTimer.stop("regalloc", phase);
       }
 
       // All of these optimizations change the number of local variables.
@@ -100,7 +350,7 @@ public class BasicBlockGraph {
       // optimization is finished.
 
       // Places an enter statement with the desired offset
-      int localOffset = -getLargestLocalOffset();
+      int localOffset = -getLargestLocalOffset(blocks);
 
       // Adjust local offset count.
       if (opts.contains(Optimization.REGISTER_ALLOCATION)) {
@@ -113,26 +363,26 @@ public class BasicBlockGraph {
                                 null, null);
       methodEnter.prependStatement(enterStmt);
 
-
-      newCFG.putMethod(methodName, methodEnter);
-    }
-
-    for (String name : cfg.getGlobals()) {
-      newCFG.putGlobal(name, cfg.getGlobal(name));
-    }
-
-    for (String name : cfg.getAllStringData()) {
-      newCFG.putStringData(name, cfg.getStringData(name));
+      if (PhaseTimer.isEnabled()) {
+        int numBlocks = 0;
+        int numStatements = 0;
+        for (BasicBlockNode n : blocks) {
+          if (!n.getStatements().isEmpty()) {
+            numBlocks++;
+            numStatements += n.getStatements().size();
+          }
+        }
+        PhaseTimer.count("basic blocks", numBlocks);
+        PhaseTimer.count("basic statements", numStatements);
+      }
     }
-
-    return newCFG;
   }
 
-  public static int getLargestLocalOffset() {
+  public static int getLargestLocalOffset(Collection<BasicBlockNode> blocks) {
 
     int min = 0;
     int curr;
-    for (BasicBlockNode n : visited.values()) {
+    for (BasicBlockNode n : blocks) {
       curr = n.largestLocalOffset();
       if (curr < min) {
         min = curr;
@@ -159,12 +409,12 @@ public class BasicBlockGraph {
       break;
     }
   }
-  public static BasicBlockNode makeBasicBlocks(String id,
+  public BasicBlockNode makeBasicBlocks(String id,
                                                SimpleCFGNode start) {
     return makeBasicBlock(id, start, null);
   }
 
-  public static BasicBlockNode makeBasicBlock(String id, SimpleCFGNode start,
+  public BasicBlockNode makeBasicBlock(String id, SimpleCFGNode start,
                                               BasicBlockNode parent) {
     BasicBlockNode currBB;
     if (parent == null) {
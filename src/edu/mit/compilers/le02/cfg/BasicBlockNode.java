@@ -5,6 +5,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import edu.mit.compilers.le02.dfa.Dominators;
+
 public final class BasicBlockNode implements CFGNode {
   private static Set<CFGNode> visited = new HashSet<CFGNode>();
   private Set<BasicBlockNode> predecessors;
@@ -13,6 +15,8 @@ public final class BasicBlockNode implements CFGNode {
   private List<BasicStatement> statements;
   private BasicBlockNode next;
   private BasicBlockNode branchTarget;
+  // Cached on a method's entry block by Dominators.forMethod.
+  private Dominators dominators;
 
   public BasicBlockNode(String id, String method) {
     this.id = id;
@@ -52,19 +56,20 @@ public final class BasicBlockNode implements CFGNode {
       this.next.getPredecessors().remove(this);
     }
 
+    // A predecessor may both fall through and branch to this node, once an
+    // empty block between it and this one has been removed, so both edges
+    // have to be redirected.  Otherwise the result would depend on the
+    // order in which empty blocks are removed.
     for (BasicBlockNode n : predecessors) {
+      assert (this == n.next || this == n.branchTarget);
       if (this == n.next) {
         n.next = this.next;
-        if (this.next != null) {
-          this.next.getPredecessors().add(n);
-        }
-      } else if (this == n.branchTarget) {
+      }
+      if (this == n.branchTarget) {
         n.branchTarget = this.next;
-        if (this.next != null) {
-          this.next.getPredecessors().add(n);
-        }
-      } else {
-        assert(false);
+      }
+      if (this.next != null) {
+        this.next.getPredecessors().add(n);
       }
     }
   }
@@ -115,6 +120,31 @@ public final class BasicBlockNode implements CFGNode {
     branchTarget.predecessors.add(this);
   }
 
+  /**
+   * Turns a branch into a jump to its next block.
+   */
+  public void removeBranchTarget() {
+    if (branchTarget == null) {
+      return;
+    }
+    if (branchTarget != next) {
+      branchTarget.predecessors.remove(this);
+    }
+    branchTarget = null;
+  }
+
+  /**
+   * Unlinks this block from its successors, once it can no longer be
+   * reached.
+   */
+  public void removeSuccessors() {
+    removeBranchTarget();
+    if (next != null) {
+      next.predecessors.remove(this);
+      next = null;
+    }
+  }
+
   public String getTrueBranch() {
     return branchTarget.id;
   }
@@ -232,6 +262,14 @@ public final class BasicBlockNode implements CFGNode {
     return method;
   }
 
+  public Dominators getDominators() {
+    return dominators;
+  }
+
+  public void setDominators(Dominators dominators) {
+    this.dominators = dominators;
+  }
+
   @Override
   public int hashCode() {
     return id.hashCode();
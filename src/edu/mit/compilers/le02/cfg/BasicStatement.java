@@ -3,6 +3,7 @@ package edu.mit.compilers.le02.cfg;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.mit.compilers.le02.RegisterLocation.Register;
 import edu.mit.compilers.le02.ast.ASTNode;
@@ -15,7 +16,8 @@ public abstract class BasicStatement {
   protected BasicStatementType type;
   protected RegisterLiveness registerLiveness;
 
-  private static int nextUid = 0;
+  private static AtomicInteger nextUid = new AtomicInteger(0);
+  private static ThreadLocal<int[]> localUid = new ThreadLocal<int[]>();
 
   public enum BasicStatementType {
     ARGUMENT,
@@ -27,12 +29,50 @@ public abstract class BasicStatement {
   }
 
   public BasicStatement(ASTNode node, TypedDescriptor result) {
-    this.uid = nextUid++;
+    this.uid = allocateUid();
     this.node = node;
     this.result = result;
     this.registerLiveness = new RegisterLiveness();
   }
 
+  private static int allocateUid() {
+    int[] local = localUid.get();
+    if (local != null) {
+      return local[0]++;
+    }
+    return nextUid.getAndIncrement();
+  }
+
+  /**
+   * Returns the uid the next statement created outside of local numbering
+   * will receive.
+   */
+  public static int peekNextUid() {
+    return nextUid.get();
+  }
+
+  /**
+   * Restarts statement numbering, so that each compilation numbers its
+   * statements the same way however many inputs came before it.
+   */
+  public static void resetNumbering() {
+    nextUid.set(0);
+  }
+
+  /**
+   * Number statements created on this thread starting from base until
+   * endLocalNumbering is called.  Optimizing each method under its own
+   * numbering keeps uids (and so hash ordering) independent of the order in
+   * which methods are optimized.
+   */
+  public static void beginLocalNumbering(int base) {
+    localUid.set(new int[] {base});
+  }
+
+  public static void endLocalNumbering() {
+    localUid.remove();
+  }
+
   public ASTNode getNode() {
     return node;
   }
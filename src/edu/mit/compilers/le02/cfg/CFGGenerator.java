@@ -44,9 +44,17 @@ import edu.mit.compilers.le02.ast.SystemCallNode;
 import edu.mit.compilers.le02.ast.VariableNode;
 import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
 import edu.mit.compilers.le02.opt.ArrayBoundsChecks;
+import edu.mit.compilers.le02.opt.DependenceAnalysis;
+import edu.mit.compilers.le02.opt.DependenceAnalysis.Affine;
 import edu.mit.compilers.le02.opt.LoopMonotonicCode;
+import edu.mit.compilers.le02.opt.LoopUnrolling;
+import edu.mit.compilers.le02.opt.ParallelLoops;
+import edu.mit.compilers.le02.opt.VectorLoops;
+import edu.mit.compilers.le02.opt.VectorLoops.VectorLoop;
 import edu.mit.compilers.le02.symboltable.AnonymousDescriptor;
 import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+import edu.mit.compilers.le02.symboltable.MethodDescriptor;
+import edu.mit.compilers.le02.symboltable.ParamDescriptor;
 import edu.mit.compilers.le02.symboltable.SymbolTable;
 import edu.mit.compilers.le02.symboltable.SymbolTable.SymbolType;
 import edu.mit.compilers.le02.symboltable.Descriptor;
@@ -54,14 +62,26 @@ import edu.mit.compilers.le02.symboltable.FieldDescriptor;
 import edu.mit.compilers.le02.symboltable.TypedDescriptor;
 
 public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
-  private static boolean arrayBoundsChecksOpt;
   private static CFGGenerator instance = null;
-  private static String curMethod;
-  private static boolean inFlatFor;
-  private static boolean skipBoundsChecks;
+  private boolean arrayBoundsChecksOpt;
+  private String curMethod;
+  private MethodDescriptor curMethodDesc;
+  private boolean inFlatFor;
+  private boolean skipBoundsChecks;
   private ControlFlowGraph cfg;
   private SimpleCFGNode increment, loopExit;
 
+  // Parallel loops are split across this many threads, if more than one.
+  private int threads;
+  private int numWorkers;
+  // Loops without bounds checks may be run in the SSE registers.
+  private boolean vectorize;
+  // Unrolled loops run this many copies of their bodies back to back.
+  private int unrollFactor;
+  // Variables which are read through another descriptor, in worker methods.
+  private Map<TypedDescriptor, TypedDescriptor> renamed =
+    new HashMap<TypedDescriptor, TypedDescriptor>();
+
 
   public static CFGGenerator getInstance() {
     if (instance == null) {
@@ -70,6 +90,13 @@ public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
     return instance;
   }
 
+  /**
+   * Drops the generator used for the last compilation.
+   */
+  public static void reset() {
+    instance = null;
+  }
+
   /**
    * Make a temporary variable at node's scope with an offset that does not
    * conflict with any of node's, node's ancestors', or node's descendents'
@@ -88,17 +115,45 @@ public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
 
   public static ControlFlowGraph generateCFG(ASTNode root,
       EnumSet<Optimization> opts) {
-    arrayBoundsChecksOpt =
+    return generateCFG(root, opts, 1, 1);
+  }
+
+  /**
+   * Generates the CFG of a program.  If loops are parallelized, each one is
+   * split across the given number of threads, and if they are unrolled, the
+   * bodies of those unrolled are copied unrollFactor times.
+   */
+  public static ControlFlowGraph generateCFG(ASTNode root,
+      EnumSet<Optimization> opts, int threads, int unrollFactor) {
+    // Each compilation gets a fresh generator so no state leaks between runs.
+    CFGGenerator gen = new CFGGenerator();
+    instance = gen;
+    gen.arrayBoundsChecksOpt =
         opts.contains(Optimization.LOOP_ARRAY_BOUNDS_CHECKS);
-    if (arrayBoundsChecksOpt) {
+    gen.threads =
+        opts.contains(Optimization.PARALLELIZATION) ? threads : 1;
+    gen.vectorize = opts.contains(Optimization.VECTORIZATION);
+    gen.unrollFactor =
+        opts.contains(Optimization.LOOP_UNROLLING) ? unrollFactor : 1;
+    if (gen.arrayBoundsChecksOpt || gen.threads > 1 || gen.vectorize) {
       LoopMonotonicCode.findMonotonicCode(root);
     }
-    inFlatFor = false;
-    skipBoundsChecks = false;
+    if (gen.threads > 1 || gen.vectorize) {
+      DependenceAnalysis.findDependences(root);
+    }
+    if (gen.threads > 1) {
+      ParallelLoops.findParallelLoops(root);
+    }
+    if (gen.vectorize) {
+      VectorLoops.findVectorLoops(root);
+    }
+    if (gen.unrollFactor > 1) {
+      LoopUnrolling.findUnrolledLoops(root);
+    }
 
     assert(root instanceof ClassNode);
-    root.accept(getInstance());
-    return getInstance().cfg;
+    root.accept(gen);
+    return gen.cfg;
   }
 
   /**
@@ -182,6 +237,7 @@ public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
   @Override
   public CFGFragment visit(MethodDeclNode node) {
     curMethod = node.getName();
+    curMethodDesc = node.getDescriptor();
     cfg.putMethod(node.getName(), node.getBody().accept(this).getEnter());
     return null;
   }
@@ -260,6 +316,22 @@ public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
 
   @Override
   public CFGFragment visit(ForNode node) {
+    if (threads > 1 && !inFlatFor &&
+        ParallelLoops.getParallelFors().contains(node)) {
+      inFlatFor = true;
+
+      // The threads run the loop without bounds checks, so it can only be
+      // started once all of them have been made.
+      CFGFragment loopFrag = forNodeHelper(node);
+      skipBoundsChecks = true;
+      CFGFragment parallelFrag = parallelForHelper(node);
+      skipBoundsChecks = false;
+      parallelFrag = checkDependences(node, loopFrag, parallelFrag);
+
+      inFlatFor = false;
+      return precheckArrayBounds(node, loopFrag, parallelFrag);
+    }
+
     if (arrayBoundsChecksOpt && !inFlatFor &&
         (LoopMonotonicCode.getFlatFors().contains(node))) {
       inFlatFor = true;
@@ -276,6 +348,68 @@ public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
     return forNodeHelper(node);
   }
 
+  /**
+   * Makes the fragment which runs frag if the loop carries no dependence
+   * given the values of the variables it depends on when it starts (see
+   * DependenceAnalysis), and loopFrag if it may.
+   */
+  private CFGFragment checkDependences(
+      ForNode node, CFGFragment loopFrag, CFGFragment frag) {
+    List<List<Affine>> conditions =
+      DependenceAnalysis.getDependences(node).getConditions();
+    if (conditions.isEmpty()) {
+      return frag;
+    }
+
+    SimpleCFGNode exit = new SimpleCFGNode(new NOPStatement(node));
+    loopFrag.append(exit);
+    frag.append(exit);
+
+    // A condition holds as soon as one of its functions is positive, and
+    // the loop is run as it is if none of them are.
+    SimpleCFGNode pass = frag.getEnter();
+    for (int i = conditions.size() - 1; i >= 0; i--) {
+      SimpleCFGNode fail = loopFrag.getEnter();
+      List<Affine> condition = conditions.get(i);
+      for (int j = condition.size() - 1; j >= 0; j--) {
+        CFGFragment value = evaluateAffine(node, condition.get(j));
+        SimpleCFGNode test = new SimpleCFGNode(new OpStatement(node,
+            AsmOp.GREATER_THAN, value.getExit().getResult(),
+            new ConstantArgument(0), null));
+        test.setBranchTarget(pass);
+        test.setNext(fail);
+        fail = value.append(test).getEnter();
+      }
+      pass = fail;
+    }
+    return new CFGFragment(pass, exit);
+  }
+
+  /**
+   * Makes the fragment which computes an affine function into a temp.  Each
+   * step gets a temp of its own, since temps are only written once.  They go
+   * in the loop's body, which the frame of a worker method holds.
+   */
+  private CFGFragment evaluateAffine(ForNode node, Affine f) {
+    BlockNode body = node.getBody();
+    Argument sum = Argument.makeArgument(makeTemp(body, DecafType.INT));
+    SimpleCFGNode enter = new SimpleCFGNode(new OpStatement(node, AsmOp.MOVE,
+        Argument.makeArgument((int) f.getConstant()), sum, null));
+    CFGFragment frag = new CFGFragment(enter, enter);
+    for (Map.Entry<TypedDescriptor, Long> e :
+         f.getCoefficients().entrySet()) {
+      TypedDescriptor term = makeTemp(body, DecafType.INT);
+      frag = frag.append(new SimpleCFGNode(new OpStatement(node,
+          AsmOp.MULTIPLY, Argument.makeArgument(getRenamed(e.getKey())),
+          Argument.makeArgument(e.getValue().intValue()), term)));
+      TypedDescriptor next = makeTemp(body, DecafType.INT);
+      frag = frag.append(new SimpleCFGNode(new OpStatement(node,
+          AsmOp.ADD, sum, Argument.makeArgument(term), next)));
+      sum = Argument.makeArgument(next);
+    }
+    return frag.append(new SimpleCFGNode(new ArgumentStatement(node, sum)));
+  }
+
   private CFGFragment precheckArrayBounds(
       ForNode node, CFGFragment loopFrag, CFGFragment skipFrag) {
     CFGFragment frag = null;
@@ -401,6 +535,98 @@ public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
   }
 
   private CFGFragment forNodeHelper(ForNode node) {
+    if (getVectorLoop(node) != null) {
+      return vectorForHelper(node, null, null);
+    }
+    return forNodeHelper(node, null, null);
+  }
+
+  /**
+   * Returns the vector loop to run a loop with, or null if it is not to be
+   * vectorized.  Only loops without bounds checks are.
+   */
+  private VectorLoop getVectorLoop(ForNode node) {
+    return (vectorize && skipBoundsChecks) ?
+      VectorLoops.getVectorLoop(node) : null;
+  }
+
+  /**
+   * Makes the fragment for a loop which is run two iterations at a time in
+   * the SSE registers, by a call which AsmBasicBlock expands in place (see
+   * VectorLoops).  The loop itself then runs the iterations left over.  If
+   * endFrag or startFrag is not null, its result is used as the loop's end
+   * or start in place of the loop's own expressions.
+   */
+  private CFGFragment vectorForHelper(ForNode node, CFGFragment endFrag,
+                                      CFGFragment startFrag) {
+    VectorLoop vec = getVectorLoop(node);
+    BlockNode body = node.getBody();
+    Argument hi = Argument.makeArgument(makeTemp(body, DecafType.INT));
+    Argument lo = Argument.makeArgument(makeTemp(body, DecafType.INT));
+    Argument next = Argument.makeArgument(makeTemp(body, DecafType.INT));
+    Argument loopVar =
+      Argument.makeArgument(node.getInit().getLoc().getDesc());
+
+    // The end is evaluated before the start, as in forNodeHelper.
+    CFGFragment frag = (endFrag != null) ? endFrag : node.getEnd().accept(this);
+    frag = frag.append(new SimpleCFGNode(new OpStatement(node, AsmOp.MOVE,
+        frag.getExit().getResult(), hi, null)));
+    frag = frag.link((startFrag != null) ?
+        startFrag : node.getInit().getValue().accept(this));
+    frag = frag.append(new SimpleCFGNode(new OpStatement(node, AsmOp.MOVE,
+        frag.getExit().getResult(), lo, null)));
+
+    List<Argument> args = new ArrayList<Argument>();
+    args.add(lo);
+    args.add(hi);
+    for (Affine offset : vec.getOffsets()) {
+      frag = frag.link(evaluateAffine(node, offset));
+      args.add(frag.getExit().getResult());
+    }
+    for (TypedDescriptor scalar : vec.getScalars()) {
+      args.add(Argument.makeArgument(getRenamed(scalar)));
+    }
+
+    SimpleCFGNode call = new SimpleCFGNode(new CallStatement(
+        node, vec.getName(), args, next.getDesc(), false));
+    SimpleCFGNode endNode = new SimpleCFGNode(new ArgumentStatement(node, hi));
+    SimpleCFGNode startNode = new SimpleCFGNode(
+        new OpStatement(node, AsmOp.MOVE, next, loopVar, null));
+    // At most one iteration is left, so there is no point unrolling.
+    CFGFragment vecFrag = new CFGFragment(call, call).link(forNodeHelper(
+        node, new CFGFragment(endNode, endNode),
+        new CFGFragment(startNode, startNode), 1));
+
+    if (DependenceAnalysis.getDependences(node).isIndependent()) {
+      return frag.link(vecFrag);
+    }
+
+    // The loop carries a dependence unless some condition holds, so it is
+    // run as it is when the condition does not.
+    endNode = new SimpleCFGNode(new ArgumentStatement(node, hi));
+    startNode = new SimpleCFGNode(
+        new OpStatement(node, AsmOp.MOVE, lo, loopVar, null));
+    CFGFragment loopFrag = forNodeHelper(node,
+        new CFGFragment(endNode, endNode),
+        new CFGFragment(startNode, startNode));
+    return frag.link(checkDependences(node, loopFrag, vecFrag));
+  }
+
+  private CFGFragment forNodeHelper(ForNode node, CFGFragment endFrag,
+                                    CFGFragment startFrag) {
+    return forNodeHelper(node, endFrag, startFrag,
+        (unrollFactor > 1 && LoopUnrolling.isUnrolled(node)) ?
+        unrollFactor : 1);
+  }
+
+  /**
+   * Makes the fragment for a for loop.  If endFrag or startFrag is not null,
+   * it computes the loop's end or initializes the loop variable in place of
+   * the loop's own expressions.  If factor is more than one, the loop is
+   * unrolled that many times (see unrollLoop).
+   */
+  private CFGFragment forNodeHelper(ForNode node, CFGFragment endFrag,
+                                    CFGFragment startFrag, int factor) {
     // Save increment and exit nodes of any outer for loop
     SimpleCFGNode oldIncrement = increment;
     SimpleCFGNode oldExit = loopExit;
@@ -411,7 +637,8 @@ public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
 
     // Evaluate the exit condition
     TypedDescriptor exitLoc = makeTemp(node.getBody(), DecafType.INT);
-    CFGFragment exitFrag = node.getEnd().accept(this);
+    CFGFragment exitFrag =
+      (endFrag != null) ? endFrag : node.getEnd().accept(this);
     Argument exitVal = exitFrag.getExit().getResult();
     BasicStatement exitStatement = new OpStatement(node, AsmOp.MOVE,
         exitVal, Argument.makeArgument(exitLoc), null);
@@ -422,10 +649,12 @@ public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
     Argument loopVar = Argument.makeArgument(loc);
     BasicStatement st = new OpStatement(node, AsmOp.ADD,
         loopVar, new ConstantArgument(1), loc);
-    increment = new SimpleCFGNode(st);
+    SimpleCFGNode incrementNode = new SimpleCFGNode(st);
+    increment = incrementNode;
 
     // Compute fragments of the for loop's control flow graph
-    CFGFragment initFrag = node.getInit().accept(this);
+    CFGFragment initFrag =
+      (startFrag != null) ? startFrag : node.getInit().accept(this);
     CFGFragment bodyFrag = node.getBody().accept(this);
 
     // Create a branch node where the condition is evaluated and connect it up
@@ -437,9 +666,13 @@ public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
 
     // Connect fragments together
     exitFrag.getExit().setNext(initFrag.getEnter());
-    initFrag.getExit().setNext(branch);
-    bodyFrag.getExit().setNext(increment);
-    increment.setNext(branch);
+    if (factor > 1) {
+      initFrag.getExit().setNext(unrollLoop(node, exitLoc, factor, branch));
+    } else {
+      initFrag.getExit().setNext(branch);
+    }
+    bodyFrag.getExit().setNext(incrementNode);
+    incrementNode.setNext(branch);
 
     // Restore increment and exit nodes of any outer for loop
     increment = oldIncrement;
@@ -449,6 +682,204 @@ public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
     return new CFGFragment(exitFrag.getEnter(), exit);
   }
 
+  /**
+   * Makes the unrolled part of a loop, which runs factor copies of its body
+   * back to back as long as at least factor iterations are left, and then
+   * goes on to rest, the loop's own condition, for the others.  Each copy
+   * has its own increment, which is where its continues go.
+   */
+  private SimpleCFGNode unrollLoop(ForNode node, TypedDescriptor exitLoc,
+                                   int factor, SimpleCFGNode rest) {
+    TypedDescriptor loc = node.getInit().getLoc().getDesc();
+    Argument loopVar = Argument.makeArgument(loc);
+    Argument end = Argument.makeArgument(exitLoc);
+
+    // The copies run while loopVar < end - (factor - 1), unless that would
+    // overflow.
+    TypedDescriptor limit = makeTemp(node.getBody(), DecafType.INT);
+    SimpleCFGNode overflow = new SimpleCFGNode(new OpStatement(node,
+        AsmOp.LESS_THAN, end,
+        new ConstantArgument(Integer.MIN_VALUE + factor - 1), null));
+    SimpleCFGNode computeLimit = new SimpleCFGNode(new OpStatement(node,
+        AsmOp.SUBTRACT, end, new ConstantArgument(factor - 1), limit));
+    SimpleCFGNode branch = new SimpleCFGNode(new OpStatement(node,
+        AsmOp.LESS_THAN, loopVar, Argument.makeArgument(limit), null));
+    overflow.setBranchTarget(rest);
+    overflow.setNext(computeLimit);
+    computeLimit.setNext(branch);
+    branch.setNext(rest);
+
+    SimpleCFGNode last = null;
+    for (int i = 0; i < factor; i++) {
+      increment = new SimpleCFGNode(new OpStatement(node, AsmOp.ADD,
+          loopVar, new ConstantArgument(1), loc));
+      CFGFragment bodyFrag = node.getBody().accept(this);
+      if (last == null) {
+        branch.setBranchTarget(bodyFrag.getEnter());
+      } else {
+        last.setNext(bodyFrag.getEnter());
+      }
+      bodyFrag.getExit().setNext(increment);
+      last = increment;
+    }
+    last.setNext(branch);
+    return overflow;
+  }
+
+  /**
+   * Makes the fragment which runs a parallel loop on threads.  The loop is
+   * moved into a new worker method, which runs the iterations belonging to
+   * the thread whose number it is passed.  The workers cannot see this
+   * method's frame, so the loop's bounds and the variables from outside the
+   * loop which it reads are passed to them in new globals.  The runtime's
+   * create_and_run_threads returns once every thread is done.
+   */
+  private CFGFragment parallelForHelper(ForNode node) {
+    String name = curMethod + ".par" + numWorkers++;
+    SymbolTable globals = curMethodDesc.getParent();
+    SourceLocation sl = node.getSourceLoc();
+
+    FieldDescriptor lo = makeGlobal(globals, name + ".lo", DecafType.INT, sl);
+    FieldDescriptor hi = makeGlobal(globals, name + ".hi", DecafType.INT, sl);
+    List<TypedDescriptor> shared = ParallelLoops.getSharedVars(node);
+    List<FieldDescriptor> slots = new ArrayList<FieldDescriptor>();
+    for (TypedDescriptor desc : shared) {
+      slots.add(makeGlobal(globals, name + "." + desc.getId(),
+                           desc.getType(), sl));
+    }
+
+    // The end is evaluated before the start, as in forNodeHelper.
+    CFGFragment frag = node.getEnd().accept(this);
+    frag = frag.append(new SimpleCFGNode(new OpStatement(node, AsmOp.MOVE,
+        frag.getExit().getResult(), Argument.makeArgument(hi), null)));
+    frag = frag.link(node.getInit().getValue().accept(this));
+    frag = frag.append(new SimpleCFGNode(new OpStatement(node, AsmOp.MOVE,
+        frag.getExit().getResult(), Argument.makeArgument(lo), null)));
+    for (int i = 0; i < shared.size(); i++) {
+      frag = frag.append(new SimpleCFGNode(new OpStatement(node, AsmOp.MOVE,
+          Argument.makeArgument(shared.get(i)),
+          Argument.makeArgument(slots.get(i)), null)));
+    }
+
+    List<Argument> args = new ArrayList<Argument>();
+    args.add(Argument.makeArgument(threads));
+    frag = frag.append(new SimpleCFGNode(
+        new CallStatement(node, "set_num_threads", args, null, true)));
+
+    // The workers change globals, so starting them is not a callout as far
+    // as the optimizations are concerned.
+    args = new ArrayList<Argument>();
+    args.add(Argument.makeArgument(new AnonymousDescriptor(
+        new GlobalLocation(name))));
+    frag = frag.append(new SimpleCFGNode(
+        new CallStatement(node, "create_and_run_threads", args, null, false)));
+
+    makeWorker(node, name, lo, hi, shared, slots);
+    return frag;
+  }
+
+  private void makeWorker(ForNode node, String name,
+                          FieldDescriptor lo, FieldDescriptor hi,
+                          List<TypedDescriptor> shared,
+                          List<FieldDescriptor> slots) {
+    SymbolTable globals = curMethodDesc.getParent();
+    SourceLocation sl = node.getSourceLoc();
+    BlockNode body = node.getBody();
+
+    SymbolTable params = new SymbolTable(globals);
+    ParamDescriptor tid = new ParamDescriptor(params, "tid", DecafType.INT);
+    tid.setIndex(0);
+    params.put(tid.getId(), tid, sl);
+    List<String> paramNames = new ArrayList<String>();
+    paramNames.add(tid.getId());
+
+    // New temps go in the loop's body, below all of its locals.  The worker
+    // uses the locals of the loop at the same offsets, in its own frame.
+    MethodDescriptor md = new MethodDescriptor(globals, name, DecafType.VOID,
+        params, paramNames, body, sl);
+    globals.put(name, md, sl);
+
+    // Copy in the shared variables.  The parameters of this method are kept
+    // in registers the worker uses itself, so they get new locals.
+    Map<TypedDescriptor, TypedDescriptor> oldRenamed = renamed;
+    renamed = new HashMap<TypedDescriptor, TypedDescriptor>();
+    SimpleCFGNode enter = new SimpleCFGNode(new NOPStatement(body));
+    CFGFragment frag = new CFGFragment(enter, enter);
+    for (int i = 0; i < shared.size(); i++) {
+      TypedDescriptor desc = shared.get(i);
+      if (desc instanceof ParamDescriptor) {
+        LocalDescriptor temp = makeTemp(body, desc.getType());
+        renamed.put(desc, temp);
+        desc = temp;
+      }
+      frag = frag.append(new SimpleCFGNode(new OpStatement(body, AsmOp.MOVE,
+          Argument.makeArgument(slots.get(i)),
+          Argument.makeArgument(desc), null)));
+    }
+
+    // Each thread runs the next (hi - lo + threads - 1) / threads
+    // iterations, or fewer at the end.
+    Argument chunk = Argument.makeArgument(makeTemp(body, DecafType.INT));
+    Argument start = Argument.makeArgument(makeTemp(body, DecafType.INT));
+    Argument end = Argument.makeArgument(makeTemp(body, DecafType.INT));
+    Argument loArg = Argument.makeArgument(lo);
+    Argument hiArg = Argument.makeArgument(hi);
+    OpStatement[] stmts = {
+      new OpStatement(body, AsmOp.SUBTRACT, hiArg, loArg, chunk.getDesc()),
+      new OpStatement(body, AsmOp.ADD, chunk,
+                      Argument.makeArgument(threads - 1), chunk.getDesc()),
+      new OpStatement(body, AsmOp.DIVIDE, chunk,
+                      Argument.makeArgument(threads), chunk.getDesc()),
+      new OpStatement(body, AsmOp.MULTIPLY, Argument.makeArgument(tid),
+                      chunk, start.getDesc()),
+      new OpStatement(body, AsmOp.ADD, start, loArg, start.getDesc()),
+      new OpStatement(body, AsmOp.ADD, start, chunk, end.getDesc()),
+    };
+    for (OpStatement st : stmts) {
+      frag = frag.append(new SimpleCFGNode(st));
+    }
+
+    SimpleCFGNode join = new SimpleCFGNode(new NOPStatement(body));
+    SimpleCFGNode clamp = new SimpleCFGNode(
+        new OpStatement(body, AsmOp.MOVE, hiArg, end, null));
+    clamp.setNext(join);
+    SimpleCFGNode check = new SimpleCFGNode(
+        new OpStatement(body, AsmOp.LESS_THAN, hiArg, end, null));
+    check.setBranchTarget(clamp);
+    check.setNext(join);
+    frag.append(check);
+    frag = new CFGFragment(enter, join);
+
+    // Run the loop over the thread's iterations.
+    SimpleCFGNode endNode = new SimpleCFGNode(new ArgumentStatement(body, end));
+    if (getVectorLoop(node) != null) {
+      SimpleCFGNode startNode =
+        new SimpleCFGNode(new ArgumentStatement(body, start));
+      frag = frag.link(vectorForHelper(node, new CFGFragment(endNode, endNode),
+          new CFGFragment(startNode, startNode)));
+    } else {
+      SimpleCFGNode startNode = new SimpleCFGNode(new OpStatement(body,
+          AsmOp.MOVE, start,
+          Argument.makeArgument(node.getInit().getLoc().getDesc()), null));
+      frag = frag.link(forNodeHelper(node, new CFGFragment(endNode, endNode),
+          new CFGFragment(startNode, startNode)));
+    }
+
+    renamed = oldRenamed;
+    cfg.putMethod(name, frag.getEnter());
+  }
+
+  /**
+   * Makes a global which was not declared in the program.
+   */
+  private static FieldDescriptor makeGlobal(SymbolTable globals, String id,
+                                            DecafType type,
+                                            SourceLocation sl) {
+    FieldDescriptor desc = new FieldDescriptor(globals, id, type);
+    globals.putLateField(id, desc, sl);
+    return desc;
+  }
+
   @Override
   public CFGFragment visit(BreakNode node) {
     SimpleCFGNode breakNode = new SimpleCFGNode(new JumpStatement(node));
@@ -648,9 +1079,17 @@ public final class CFGGenerator extends ASTNodeVisitor<CFGFragment> {
     return node.getLoc().accept(this);
   }
 
+  /**
+   * Returns the descriptor through which a variable is read in the method
+   * being generated.
+   */
+  private TypedDescriptor getRenamed(TypedDescriptor desc) {
+    return renamed.containsKey(desc) ? renamed.get(desc) : desc;
+  }
+
   @Override
   public CFGFragment visit(ScalarLocationNode node) {
-    Argument arg = Argument.makeArgument(node.getDesc());
+    Argument arg = Argument.makeArgument(getRenamed(node.getDesc()));
     ArgumentStatement as = new ArgumentStatement(node, arg);
     SimpleCFGNode cfgNode = new SimpleCFGNode(as);
     return new CFGFragment(cfgNode, cfgNode);
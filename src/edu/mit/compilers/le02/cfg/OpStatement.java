@@ -19,7 +19,7 @@ public final class OpStatement extends BasicStatement {
     BITWISE_AND(true, true, false),
     SHR (true, true, false),
     SHL(true, true, false),
-    UNARY_MINUS(false, true, false),
+    UNARY_MINUS(false, true, true),
     EQUAL(true, false, true),
     NOT_EQUAL(true, false, true),
     LESS_THAN(true, false, true),
@@ -27,7 +27,7 @@ public class RegisterLiveness {
   private static Set<Register> allRegisters = null;
   private static Set<Register> calleeRegisters = null;
 
-  public static Set<Register> getAllRegisters() {
+  public static synchronized Set<Register> getAllRegisters() {
     if (allRegisters == null) {
       allRegisters = new HashSet<Register>();
       allRegisters.add(Register.RAX);
@@ -51,7 +51,7 @@ public class RegisterLiveness {
     return Collections.unmodifiableSet(allRegisters);
   }
 
-  public static Set<Register> getCalleeSavedRegisters() {
+  public static synchronized Set<Register> getCalleeSavedRegisters() {
     if (calleeRegisters == null) {
       calleeRegisters = new HashSet<Register>();
       calleeRegisters.add(Register.RBX);
@@ -12,6 +12,8 @@ import java.util.Set;
 
 import edu.mit.compilers.le02.VariableLocation;
 import edu.mit.compilers.le02.VariableLocation.LocationType;
+import edu.mit.compilers.le02.cfg.Argument;
+import edu.mit.compilers.le02.cfg.ArrayVariableArgument;
 import edu.mit.compilers.le02.cfg.BasicBlockNode;
 import edu.mit.compilers.le02.cfg.BasicStatement;
 import edu.mit.compilers.le02.cfg.BasicStatement.BasicStatementType;
@@ -284,42 +286,38 @@ public class AvailableExpressions extends BasicBlockVisitor
         int index = expressions.size() - 1;
         exprIndices.put(expr, index);
 
-        VariableArgument vArg;
-        if (opSt.getArg1().isVariable()) {
-          vArg = (VariableArgument) opSt.getArg1();
-          if (vArg.getDesc().getLocation().getLocationType() ==
-                LocationType.GLOBAL) {
-            callKill.set(index);
-          }
-
-          BitSet bs = exprsFromVar.get(vArg.getDesc().getLocation());
-
-          if (bs == null) {
-            bs = new BitSet();
-          }
+        addUses(opSt.getArg1(), index);
+        addUses(opSt.getArg2(), index);
+      }
+    }
+  }
 
-          bs.set(index);
-          exprsFromVar.put(vArg.getDesc().getLocation(), bs);
-        }
+  /**
+   * Records that the expression with the given index is killed by writes to
+   * the variables arg reads, including the index of an array element.
+   */
+  private void addUses(Argument arg, int index) {
+    if (arg == null || !arg.isVariable()) {
+      return;
+    }
 
-        if (opSt.getArg2() != null && opSt.getArg2().isVariable()) {
-          vArg = (VariableArgument) opSt.getArg2();
-          if (vArg.getDesc().getLocation().getLocationType() ==
-                LocationType.GLOBAL) {
-            callKill.set(index);
-          }
+    VariableArgument vArg = (VariableArgument) arg;
+    if (vArg.getDesc().getLocation().getLocationType() ==
+          LocationType.GLOBAL) {
+      callKill.set(index);
+    }
 
-          BitSet bs = exprsFromVar.get(vArg.getDesc().getLocation());
+    BitSet bs = exprsFromVar.get(vArg.getDesc().getLocation());
 
-          if (bs == null) {
-            bs = new BitSet();
-          }
+    if (bs == null) {
+      bs = new BitSet();
+    }
 
-          bs.set(index);
-          exprsFromVar.put(vArg.getDesc().getLocation(), bs);
-        }
+    bs.set(index);
+    exprsFromVar.put(vArg.getDesc().getLocation(), bs);
 
-      }
+    if (arg instanceof ArrayVariableArgument) {
+      addUses(((ArrayVariableArgument) arg).getIndex(), index);
     }
   }
 
@@ -394,6 +392,12 @@ public class AvailableExpressions extends BasicBlockVisitor
     return ret;
   }
 
+  @Override
+  public BitSet leastUpperBoundInPlace(BitSet v1, BitSet v2) {
+    v1.and(v2);
+    return v1;
+  }
+
 
 
 }
@@ -0,0 +1,289 @@
+package edu.mit.compilers.le02.dfa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+
+/**
+ * The dominator tree of a method, computed with the iterative algorithm of
+ * Cooper, Harvey and Kennedy ("A Simple, Fast Dominance Algorithm") over
+ * the blocks reachable from the method's entry.  Dominance frontiers and
+ * the loop nest are computed from it the first time they are asked for.
+ *
+ * Use forMethod to get the dominators of a method.  The result is cached on
+ * the method's entry block, along with the edges it was computed from, and
+ * is recomputed once any of those edges has changed.
+ */
+public class Dominators {
+  private BasicBlockNode entry;
+  private List<BasicBlockNode> order;
+  private Map<BasicBlockNode, Integer> number;
+  private int[] idom;
+  private List<List<BasicBlockNode>> children;
+
+  // The successors of each block when the tree was computed.
+  private BasicBlockNode[] nexts;
+  private BasicBlockNode[] branches;
+
+  private List<Set<BasicBlockNode>> frontiers;
+  private LoopNest loopNest;
+
+  /**
+   * Returns the dominators of the method starting at methodEnter, reusing
+   * the cached ones if the method's control flow has not changed.
+   */
+  public static Dominators forMethod(BasicBlockNode methodEnter) {
+    Dominators dom = methodEnter.getDominators();
+    if (dom == null || !dom.isCurrent()) {
+      dom = new Dominators(methodEnter);
+      methodEnter.setDominators(dom);
+    }
+    return dom;
+  }
+
+  private Dominators(BasicBlockNode entry) {
+    this.entry = entry;
+    computeOrder();
+
+    nexts = new BasicBlockNode[order.size()];
+    branches = new BasicBlockNode[order.size()];
+    for (int ii = 0; ii < order.size(); ii++) {
+      nexts[ii] = order.get(ii).getNext();
+      branches[ii] = order.get(ii).getBranchTarget();
+    }
+
+    computeDominators();
+
+    children = new ArrayList<List<BasicBlockNode>>(order.size());
+    for (int ii = 0; ii < order.size(); ii++) {
+      children.add(new ArrayList<BasicBlockNode>());
+    }
+    for (int ii = 1; ii < order.size(); ii++) {
+      children.get(idom[ii]).add(order.get(ii));
+    }
+  }
+
+  /**
+   * Numbers the reachable blocks in reverse postorder, using an explicit
+   * stack so that long methods cannot overflow the Java stack.
+   */
+  private void computeOrder() {
+    List<BasicBlockNode> postorder = new ArrayList<BasicBlockNode>();
+    Set<BasicBlockNode> seen = new HashSet<BasicBlockNode>();
+    List<BasicBlockNode> stack = new ArrayList<BasicBlockNode>();
+    List<Integer> edges = new ArrayList<Integer>();
+    stack.add(entry);
+    edges.add(0);
+    seen.add(entry);
+    while (!stack.isEmpty()) {
+      int top = stack.size() - 1;
+      BasicBlockNode node = stack.get(top);
+      int edge = edges.get(top);
+      List<BasicBlockNode> succs = successors(node);
+      if (edge < succs.size()) {
+        edges.set(top, edge + 1);
+        BasicBlockNode succ = succs.get(edge);
+        if (seen.add(succ)) {
+          stack.add(succ);
+          edges.add(0);
+        }
+      } else {
+        postorder.add(node);
+        stack.remove(top);
+        edges.remove(top);
+      }
+    }
+
+    order = new ArrayList<BasicBlockNode>(postorder.size());
+    number = new HashMap<BasicBlockNode, Integer>();
+    for (int ii = postorder.size() - 1; ii >= 0; ii--) {
+      number.put(postorder.get(ii), order.size());
+      order.add(postorder.get(ii));
+    }
+  }
+
+  private void computeDominators() {
+    idom = new int[order.size()];
+    for (int ii = 0; ii < idom.length; ii++) {
+      idom[ii] = -1;
+    }
+    idom[0] = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int ii = 1; ii < order.size(); ii++) {
+        int newIdom = -1;
+        for (BasicBlockNode pred : order.get(ii).getPredecessors()) {
+          Integer pp = number.get(pred);
+          if (pp == null || idom[pp] == -1) {
+            continue;
+          }
+          newIdom = (newIdom == -1) ? pp : intersect(pp, newIdom);
+        }
+        if (idom[ii] != newIdom) {
+          idom[ii] = newIdom;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  private int intersect(int a, int b) {
+    while (a != b) {
+      while (a > b) {
+        a = idom[a];
+      }
+      while (b > a) {
+        b = idom[b];
+      }
+    }
+    return a;
+  }
+
+  /**
+   * Returns whether the method's edges are still the ones the tree was
+   * computed from.  Any change to the reachable blocks must change the
+   * successors of one of them.
+   */
+  public boolean isCurrent() {
+    for (int ii = 0; ii < order.size(); ii++) {
+      if (order.get(ii).getNext() != nexts[ii] ||
+          order.get(ii).getBranchTarget() != branches[ii]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static List<BasicBlockNode> successors(BasicBlockNode node) {
+    List<BasicBlockNode> succs = new ArrayList<BasicBlockNode>(2);
+    if (node.getNext() != null) {
+      succs.add(node.getNext());
+    }
+    if (node.isBranch()) {
+      succs.add(node.getBranchTarget());
+    }
+    return succs;
+  }
+
+  public BasicBlockNode getEntry() {
+    return entry;
+  }
+
+  /**
+   * Returns the blocks reachable from the entry, in reverse postorder.
+   */
+  public List<BasicBlockNode> getBlocks() {
+    return Collections.unmodifiableList(order);
+  }
+
+  public boolean isReachable(BasicBlockNode node) {
+    return number.containsKey(node);
+  }
+
+  /**
+   * Returns the position of node in reverse postorder, or -1 if it is not
+   * reachable.
+   */
+  public int getNumber(BasicBlockNode node) {
+    Integer nn = number.get(node);
+    return (nn == null) ? -1 : nn;
+  }
+
+  /**
+   * Returns the immediate dominator of node, or null for the entry and for
+   * unreachable blocks.
+   */
+  public BasicBlockNode getImmediateDominator(BasicBlockNode node) {
+    Integer nn = number.get(node);
+    if (nn == null || nn == 0) {
+      return null;
+    }
+    return order.get(idom[nn]);
+  }
+
+  /**
+   * Returns the blocks node immediately dominates.
+   */
+  public List<BasicBlockNode> getChildren(BasicBlockNode node) {
+    Integer nn = number.get(node);
+    if (nn == null) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(children.get(nn));
+  }
+
+  /**
+   * Returns whether a dominates b.  Every block dominates itself.
+   */
+  public boolean dominates(BasicBlockNode a, BasicBlockNode b) {
+    Integer aa = number.get(a);
+    Integer bb = number.get(b);
+    if (aa == null || bb == null) {
+      return false;
+    }
+    int runner = bb;
+    while (runner > aa) {
+      runner = idom[runner];
+    }
+    return runner == aa;
+  }
+
+  /**
+   * Returns the dominance frontier of node: the blocks which have a
+   * predecessor dominated by node but are not strictly dominated by it.
+   */
+  public Set<BasicBlockNode> getFrontier(BasicBlockNode node) {
+    if (frontiers == null) {
+      computeFrontiers();
+    }
+    Integer nn = number.get(node);
+    if (nn == null) {
+      return Collections.emptySet();
+    }
+    return Collections.unmodifiableSet(frontiers.get(nn));
+  }
+
+  private void computeFrontiers() {
+    frontiers = new ArrayList<Set<BasicBlockNode>>(order.size());
+    for (int ii = 0; ii < order.size(); ii++) {
+      frontiers.add(new LinkedHashSet<BasicBlockNode>());
+    }
+    for (int ii = 0; ii < order.size(); ii++) {
+      BasicBlockNode node = order.get(ii);
+      if (node.getPredecessors().size() < 2) {
+        continue;
+      }
+      for (BasicBlockNode pred : node.getPredecessors()) {
+        Integer runner = number.get(pred);
+        if (runner == null) {
+          continue;
+        }
+        while (runner != idom[ii]) {
+          frontiers.get(runner).add(node);
+          if (runner == 0) {
+            break;
+          }
+          runner = idom[runner];
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the natural loops of the method.
+   */
+  public LoopNest getLoopNest() {
+    if (loopNest == null) {
+      loopNest = new LoopNest(this);
+    }
+    return loopNest;
+  }
+}
@@ -4,6 +4,8 @@ import java.util.BitSet;
 
 
 public abstract class GenKillItem extends WorklistItem<BitSet> {
+  // The set replaced by the last update, kept to hold the next result.
+  private BitSet spare = null;
 
   abstract protected BitSet gen();
   abstract protected BitSet kill();
@@ -15,4 +17,45 @@ public abstract class GenKillItem extends WorklistItem<BitSet> {
     return ret;
   }
 
+  /**
+   * Applies the transfer function to in without allocating a new set.
+   */
+  private BitSet transferIntoSpare(BitSet in) {
+    BitSet ret = spare;
+    spare = null;
+    if (ret == null) {
+      ret = new BitSet(in.size());
+    } else {
+      ret.clear();
+    }
+    ret.or(in);
+    ret.andNot(kill());
+    ret.or(gen());
+    return ret;
+  }
+
+  @Override
+  public boolean updateOut() {
+    BitSet newOut = transferIntoSpare(getIn());
+    if (newOut.equals(getOut())) {
+      spare = newOut;
+      return false;
+    }
+    spare = getOut();
+    setOut(newOut);
+    return true;
+  }
+
+  @Override
+  public boolean updateIn() {
+    BitSet newIn = transferIntoSpare(getOut());
+    if (newIn.equals(getIn())) {
+      spare = newIn;
+      return false;
+    }
+    spare = getIn();
+    setIn(newIn);
+    return true;
+  }
+
 }
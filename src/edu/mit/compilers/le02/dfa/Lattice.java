@@ -40,4 +40,10 @@ public interface Lattice<T, U> {
    */
   abstract public T leastUpperBound(T v1, T v2);
 
+  /**
+   * Returns the least upper bound of v1 and v2, which may be v1 updated in
+   * place.  v2 is left alone.
+   */
+  abstract public T leastUpperBoundInPlace(T v1, T v2);
+
 }
@@ -352,6 +352,9 @@ implements Lattice<BitSet, BasicBlockNode> {
       case MULTIPLY:
       case DIVIDE:
       case MODULO:
+      case SHL:
+      case SHR:
+      case BITWISE_AND:
       case EQUAL:
       case NOT_EQUAL:
       case LESS_THAN:
@@ -423,6 +426,12 @@ implements Lattice<BitSet, BasicBlockNode> {
     return ret;
   }
 
+  @Override
+  public BitSet leastUpperBoundInPlace(BitSet v1, BitSet v2) {
+    v1.or(v2);
+    return v1;
+  }
+
   public boolean isEliminable(BasicStatement s) {
     return eliminable.get(s);
   }
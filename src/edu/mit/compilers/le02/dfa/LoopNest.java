@@ -0,0 +1,171 @@
+package edu.mit.compilers.le02.dfa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+
+/**
+ * The natural loops of a method and how they nest.
+ *
+ * A back edge is an edge whose target dominates its source, and its natural
+ * loop is the target together with every block which can reach the source
+ * without passing through the target.  Loops with the same header are
+ * merged.  Two natural loops are then either disjoint or one contains the
+ * other, which gives the nesting.  The method's entry block is never a
+ * header, since there is no way to enter its loop from outside.
+ *
+ * Get the loop nest of a method from Dominators.getLoopNest.
+ */
+public class LoopNest {
+  private List<Loop> loops;
+  private Map<BasicBlockNode, Loop> innermost;
+
+  public static class Loop {
+    private BasicBlockNode header;
+    private Set<BasicBlockNode> blocks = new HashSet<BasicBlockNode>();
+    private List<BasicBlockNode> latches = new ArrayList<BasicBlockNode>();
+    private Loop parent;
+    private List<Loop> children = new ArrayList<Loop>();
+    private int depth;
+
+    private Loop(BasicBlockNode header) {
+      this.header = header;
+      blocks.add(header);
+    }
+
+    public BasicBlockNode getHeader() {
+      return header;
+    }
+
+    /**
+     * Returns the blocks of the loop, including those of nested loops.
+     */
+    public Set<BasicBlockNode> getBlocks() {
+      return Collections.unmodifiableSet(blocks);
+    }
+
+    public boolean contains(BasicBlockNode node) {
+      return blocks.contains(node);
+    }
+
+    /**
+     * Returns the sources of the back edges to the header.
+     */
+    public List<BasicBlockNode> getLatches() {
+      return Collections.unmodifiableList(latches);
+    }
+
+    /**
+     * Returns the innermost loop enclosing this one, or null.
+     */
+    public Loop getParent() {
+      return parent;
+    }
+
+    public List<Loop> getChildren() {
+      return Collections.unmodifiableList(children);
+    }
+
+    /**
+     * Returns the number of loops enclosing this one, counting itself, so
+     * outermost loops have depth 1.
+     */
+    public int getDepth() {
+      return depth;
+    }
+
+    @Override
+    public String toString() {
+      return "Loop " + header.getId() + " (depth " + depth + ", " +
+        blocks.size() + " blocks)";
+    }
+  }
+
+  LoopNest(Dominators dom) {
+    Map<BasicBlockNode, Loop> byHeader =
+      new LinkedHashMap<BasicBlockNode, Loop>();
+    for (BasicBlockNode node : dom.getBlocks()) {
+      for (BasicBlockNode succ : Dominators.successors(node)) {
+        if (succ == dom.getEntry() || !dom.dominates(succ, node)) {
+          continue;
+        }
+        Loop loop = byHeader.get(succ);
+        if (loop == null) {
+          loop = new Loop(succ);
+          byHeader.put(succ, loop);
+        }
+        loop.latches.add(node);
+
+        List<BasicBlockNode> work = new ArrayList<BasicBlockNode>();
+        if (loop.blocks.add(node)) {
+          work.add(node);
+        }
+        while (!work.isEmpty()) {
+          BasicBlockNode member = work.remove(work.size() - 1);
+          for (BasicBlockNode pred : member.getPredecessors()) {
+            if (dom.isReachable(pred) && loop.blocks.add(pred)) {
+              work.add(pred);
+            }
+          }
+        }
+      }
+    }
+
+    // Visit the loops from the outside in, so that the innermost loop seen
+    // so far for a header is the parent of that header's loop.
+    List<Loop> outerFirst = new ArrayList<Loop>(byHeader.values());
+    Collections.sort(outerFirst, new Comparator<Loop>() {
+      @Override
+      public int compare(Loop a, Loop b) {
+        return b.blocks.size() - a.blocks.size();
+      }
+    });
+    innermost = new HashMap<BasicBlockNode, Loop>();
+    for (Loop loop : outerFirst) {
+      loop.parent = innermost.get(loop.header);
+      if (loop.parent == null) {
+        loop.depth = 1;
+      } else {
+        loop.depth = loop.parent.depth + 1;
+        loop.parent.children.add(loop);
+      }
+      for (BasicBlockNode node : loop.blocks) {
+        innermost.put(node, loop);
+      }
+    }
+
+    loops = new ArrayList<Loop>(outerFirst);
+    Collections.reverse(loops);
+  }
+
+  /**
+   * Returns every loop in the method, with each loop before any loop which
+   * encloses it.
+   */
+  public List<Loop> getLoops() {
+    return Collections.unmodifiableList(loops);
+  }
+
+  /**
+   * Returns the innermost loop containing node, or null if it is in none.
+   */
+  public Loop getLoop(BasicBlockNode node) {
+    return innermost.get(node);
+  }
+
+  /**
+   * Returns the number of loops containing node.
+   */
+  public int getDepth(BasicBlockNode node) {
+    Loop loop = innermost.get(node);
+    return (loop == null) ? 0 : loop.depth;
+  }
+}
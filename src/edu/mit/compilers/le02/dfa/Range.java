@@ -0,0 +1,256 @@
+package edu.mit.compilers.le02.dfa;
+
+/**
+ * An interval of ints, the values a variable may hold at some point.  The
+ * empty range is the bottom of the lattice of ranges and ALL is the top.
+ * Arithmetic on ranges wraps around in 32 bits like the generated code, so
+ * a result which may overflow could be any int.
+ */
+public final class Range {
+  public static final Range EMPTY = new Range(1, 0);
+  public static final Range ALL =
+    new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+  public static final Range BOOLEAN = new Range(0, 1);
+  public static final Range TRUE = new Range(1, 1);
+  public static final Range FALSE = new Range(0, 0);
+
+  private final int lo, hi;
+
+  private Range(int lo, int hi) {
+    this.lo = lo;
+    this.hi = hi;
+  }
+
+  public static Range of(int value) {
+    return new Range(value, value);
+  }
+
+  /**
+   * Returns the range from lo to hi, which is empty if lo > hi, and ALL if
+   * it goes outside the ints.
+   */
+  public static Range of(long lo, long hi) {
+    if (lo > hi) {
+      return EMPTY;
+    }
+    if (lo < Integer.MIN_VALUE || hi > Integer.MAX_VALUE) {
+      return ALL;
+    }
+    return new Range((int) lo, (int) hi);
+  }
+
+  public boolean isEmpty() {
+    return lo > hi;
+  }
+
+  public boolean isConstant() {
+    return lo == hi;
+  }
+
+  public int getLow() {
+    return lo;
+  }
+
+  public int getHigh() {
+    return hi;
+  }
+
+  public boolean contains(int value) {
+    return lo <= value && value <= hi;
+  }
+
+  /** Returns the smallest range holding both ranges. */
+  public Range join(Range other) {
+    if (isEmpty()) {
+      return other;
+    }
+    if (other.isEmpty()) {
+      return this;
+    }
+    return of(Math.min(lo, other.lo), Math.max(hi, other.hi));
+  }
+
+  /** Returns the values in both ranges. */
+  public Range meet(Range other) {
+    if (isEmpty() || other.isEmpty()) {
+      return EMPTY;
+    }
+    return of(Math.max(lo, other.lo), Math.min(hi, other.hi));
+  }
+
+  /**
+   * Returns this range, which was an earlier estimate, joined with a later
+   * one, with any bound which moved pushed to the end of the ints so that
+   * estimates can only change a few times.
+   */
+  public Range widen(Range later) {
+    if (isEmpty()) {
+      return later;
+    }
+    if (later.isEmpty()) {
+      return this;
+    }
+    return of((later.lo < lo) ? Integer.MIN_VALUE : lo,
+              (later.hi > hi) ? Integer.MAX_VALUE : hi);
+  }
+
+  /** Returns the values in this range which are at least bound. */
+  public Range atLeast(long bound) {
+    if (isEmpty() || bound > hi) {
+      return EMPTY;
+    }
+    return of(Math.max(lo, bound), hi);
+  }
+
+  /** Returns the values in this range which are at most bound. */
+  public Range atMost(long bound) {
+    if (isEmpty() || bound < lo) {
+      return EMPTY;
+    }
+    return of(lo, Math.min(hi, bound));
+  }
+
+  /** Returns the values in this range other than value. */
+  public Range without(int value) {
+    if (lo == value) {
+      return of((long) lo + 1, hi);
+    }
+    if (hi == value) {
+      return of(lo, (long) hi - 1);
+    }
+    return this;
+  }
+
+  public Range plus(Range other) {
+    if (isEmpty() || other.isEmpty()) {
+      return EMPTY;
+    }
+    return of((long) lo + other.lo, (long) hi + other.hi);
+  }
+
+  public Range minus(Range other) {
+    if (isEmpty() || other.isEmpty()) {
+      return EMPTY;
+    }
+    return of((long) lo - other.hi, (long) hi - other.lo);
+  }
+
+  public Range negate() {
+    if (isEmpty()) {
+      return EMPTY;
+    }
+    return of(-(long) hi, -(long) lo);
+  }
+
+  public Range times(Range other) {
+    if (isEmpty() || other.isEmpty()) {
+      return EMPTY;
+    }
+    long a = (long) lo * other.lo;
+    long b = (long) lo * other.hi;
+    long c = (long) hi * other.lo;
+    long d = (long) hi * other.hi;
+    return of(Math.min(Math.min(a, b), Math.min(c, d)),
+              Math.max(Math.max(a, b), Math.max(c, d)));
+  }
+
+  /**
+   * Returns the quotients of this range by other, rounded towards zero.
+   * Divisions which trap have no result.
+   */
+  public Range divide(Range other) {
+    if (isEmpty() || other.isEmpty()) {
+      return EMPTY;
+    }
+    if (other.lo <= 0 && other.hi >= 0) {
+      // Dividing by values near zero can give anything up to the dividend.
+      long most = Math.max(Math.abs((long) lo), Math.abs((long) hi));
+      return of(-most, most);
+    }
+    // The quotient only moves one way as either side grows, so the corners
+    // bound it.
+    long a = (long) lo / other.lo;
+    long b = (long) lo / other.hi;
+    long c = (long) hi / other.lo;
+    long d = (long) hi / other.hi;
+    return of(Math.min(Math.min(a, b), Math.min(c, d)),
+              Math.max(Math.max(a, b), Math.max(c, d)));
+  }
+
+  /**
+   * Returns the remainders of this range by other, which take the sign of
+   * the dividend and are smaller than the divisor.
+   */
+  public Range modulo(Range other) {
+    if (isEmpty() || other.isEmpty()) {
+      return EMPTY;
+    }
+    long most = Math.max(Math.abs((long) other.lo),
+                         Math.abs((long) other.hi)) - 1;
+    long low = (lo >= 0) ? 0 : Math.max(lo, -most);
+    long high = (hi <= 0) ? 0 : Math.min(hi, most);
+    return of(low, high);
+  }
+
+  /**
+   * Returns TRUE if every value in this range is less than every value in
+   * other, FALSE if none is, and BOOLEAN otherwise.
+   */
+  public Range lessThan(Range other) {
+    if (isEmpty() || other.isEmpty()) {
+      return EMPTY;
+    }
+    if (hi < other.lo) {
+      return TRUE;
+    }
+    if (lo >= other.hi) {
+      return FALSE;
+    }
+    return BOOLEAN;
+  }
+
+  /**
+   * Returns TRUE if the ranges are the same single value, FALSE if they
+   * have no value in common, and BOOLEAN otherwise.
+   */
+  public Range equalTo(Range other) {
+    if (isEmpty() || other.isEmpty()) {
+      return EMPTY;
+    }
+    if (isConstant() && other.isConstant() && lo == other.lo) {
+      return TRUE;
+    }
+    if (hi < other.lo || other.hi < lo) {
+      return FALSE;
+    }
+    return BOOLEAN;
+  }
+
+  /** Returns the range of the negation of a boolean in this range. */
+  public Range not() {
+    if (isEmpty()) {
+      return EMPTY;
+    }
+    return FALSE.equalTo(this);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof Range)) {
+      return false;
+    }
+    Range other = (Range) o;
+    return (isEmpty() && other.isEmpty()) ||
+      (lo == other.lo && hi == other.hi);
+  }
+
+  @Override
+  public int hashCode() {
+    return isEmpty() ? 0 : 31 * lo + hi;
+  }
+
+  @Override
+  public String toString() {
+    return isEmpty() ? "[]" : "[" + lo + ", " + hi + "]";
+  }
+}
@@ -0,0 +1,501 @@
+package edu.mit.compilers.le02.dfa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.compilers.le02.VariableLocation;
+import edu.mit.compilers.le02.cfg.Argument;
+import edu.mit.compilers.le02.cfg.ArrayVariableArgument;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.ConstantArgument;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.VariableArgument;
+import edu.mit.compilers.le02.cfg.Argument.ArgType;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.dfa.LoopNest.Loop;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+/**
+ * Range analysis: finds a Range of values for each local, parameter and
+ * temporary at the start of each block of a method.
+ *
+ * Besides the blocks, each edge of the method is an item of the dataflow
+ * problem, so that what a branch's condition says about its operands can
+ * be known on the edge which it takes and not on the other.  An edge which
+ * the condition can never take leaves nothing reachable.  The ranges at
+ * loop headers are widened each time they change, so that a variable which
+ * keeps growing around a loop gets the rest of the ints at once.  The loop
+ * condition then bounds the variable again on the way into the body.
+ *
+ * Globals and arrays are not tracked, since calls and stores through an
+ * index change them without naming them.  Use evaluateCondition to find
+ * the branches which always go the same way.
+ */
+public class RangeAnalysis implements Lattice<RangeAnalysis.Ranges,
+                                              BasicBlockNode> {
+  private Map<BasicBlockNode, BlockItem> blockItems =
+    new HashMap<BasicBlockNode, BlockItem>();
+  private Set<BasicBlockNode> headers = new HashSet<BasicBlockNode>();
+
+  /**
+   * The ranges of the tracked variables at some point, or nothing if the
+   * point cannot be reached.  Variables without a range may hold any int.
+   */
+  public static class Ranges {
+    private Map<VariableLocation, Range> ranges;
+
+    private Ranges(Map<VariableLocation, Range> ranges) {
+      this.ranges = ranges;
+    }
+
+    public boolean isReachable() {
+      return ranges != null;
+    }
+
+    /**
+     * Returns the values arg may have, which are none if this point cannot
+     * be reached.
+     */
+    public Range get(Argument arg) {
+      if (ranges == null) {
+        return Range.EMPTY;
+      }
+      if (arg instanceof ConstantArgument) {
+        ConstantArgument c = (ConstantArgument) arg;
+        if (c.getType() == ArgType.CONST_BOOL) {
+          return c.getBool() ? Range.TRUE : Range.FALSE;
+        }
+        return Range.of(c.getInt());
+      }
+      VariableLocation loc = getTracked(arg);
+      if (loc == null || !ranges.containsKey(loc)) {
+        return Range.ALL;
+      }
+      return ranges.get(loc);
+    }
+
+    private Ranges copy() {
+      return new Ranges((ranges == null) ? null :
+                        new HashMap<VariableLocation, Range>(ranges));
+    }
+
+    /**
+     * Sets the range of a tracked variable.  No value at all means that
+     * this point cannot be reached.
+     */
+    private void set(VariableLocation loc, Range range) {
+      if (ranges == null) {
+        return;
+      }
+      if (range.isEmpty()) {
+        ranges = null;
+      } else if (range.equals(Range.ALL)) {
+        ranges.remove(loc);
+      } else {
+        ranges.put(loc, range);
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Ranges)) {
+        return false;
+      }
+      Ranges other = (Ranges) o;
+      return (ranges == null) ? (other.ranges == null) :
+        ranges.equals(other.ranges);
+    }
+
+    @Override
+    public int hashCode() {
+      return (ranges == null) ? 0 : ranges.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return (ranges == null) ? "unreachable" : ranges.toString();
+    }
+  }
+
+  /**
+   * A block, whose out is the ranges after its last statement and before
+   * its branch, if any.
+   */
+  private class BlockItem extends WorklistItem<Ranges> {
+    private BasicBlockNode node;
+    private List<WorklistItem<Ranges>> preds =
+      new ArrayList<WorklistItem<Ranges>>();
+    private List<WorklistItem<Ranges>> succs =
+      new ArrayList<WorklistItem<Ranges>>();
+
+    public BlockItem(BasicBlockNode node) {
+      this.node = node;
+    }
+
+    @Override
+    public void setIn(Ranges in) {
+      if (headers.contains(node) && getIn() != null) {
+        in = widen(getIn(), in);
+      }
+      super.setIn(in);
+    }
+
+    @Override
+    public Ranges transferFunction(Ranges in) {
+      Ranges out = in.copy();
+      for (BasicStatement stmt : node.getStatements()) {
+        if (!out.isReachable()) {
+          break;
+        }
+        VariableLocation loc = getTracked(SsaForm.getDefinedVariable(stmt));
+        if (loc != null) {
+          out.set(loc, evaluate(out, stmt));
+        }
+      }
+      return out;
+    }
+
+    @Override
+    public Collection<WorklistItem<Ranges>> predecessors() {
+      return preds;
+    }
+
+    @Override
+    public Collection<WorklistItem<Ranges>> successors() {
+      return succs;
+    }
+  }
+
+  /**
+   * An edge out of a block, whose out is the ranges on the edge once the
+   * block's condition is known to have gone its way.
+   */
+  private class EdgeItem extends WorklistItem<Ranges> {
+    private BlockItem from;
+    private BlockItem to;
+    private boolean taken;
+
+    public EdgeItem(BlockItem from, BlockItem to, boolean taken) {
+      this.from = from;
+      this.to = to;
+      this.taken = taken;
+    }
+
+    @Override
+    public Ranges transferFunction(Ranges in) {
+      if (!from.node.isBranch() || !in.isReachable()) {
+        return in;
+      }
+      Ranges out = in.copy();
+      refine(out, from.node.getConditional(), taken);
+      return out;
+    }
+
+    @Override
+    public Collection<WorklistItem<Ranges>> predecessors() {
+      List<WorklistItem<Ranges>> ret = new ArrayList<WorklistItem<Ranges>>(1);
+      ret.add(from);
+      return ret;
+    }
+
+    @Override
+    public Collection<WorklistItem<Ranges>> successors() {
+      List<WorklistItem<Ranges>> ret = new ArrayList<WorklistItem<Ranges>>(1);
+      ret.add(to);
+      return ret;
+    }
+  }
+
+  public RangeAnalysis(BasicBlockNode methodEnter) {
+    Dominators dom = Dominators.forMethod(methodEnter);
+    for (Loop loop : dom.getLoopNest().getLoops()) {
+      headers.add(loop.getHeader());
+    }
+    // The loop nest leaves out a loop back to the entry block.
+    if (!methodEnter.getPredecessors().isEmpty()) {
+      headers.add(methodEnter);
+    }
+
+    List<WorklistItem<Ranges>> items = new ArrayList<WorklistItem<Ranges>>();
+    for (BasicBlockNode node : dom.getBlocks()) {
+      BlockItem item = new BlockItem(node);
+      blockItems.put(node, item);
+      items.add(item);
+    }
+    for (BasicBlockNode node : dom.getBlocks()) {
+      BlockItem item = blockItems.get(node);
+      if (node.getNext() != null) {
+        items.add(addEdge(item, blockItems.get(node.getNext()), false));
+      }
+      if (node.isBranch()) {
+        items.add(addEdge(item, blockItems.get(node.getBranchTarget()),
+                          true));
+      }
+    }
+
+    WorklistAlgorithm.runForward(items, this, blockItems.get(methodEnter),
+                                 top());
+  }
+
+  private EdgeItem addEdge(BlockItem from, BlockItem to, boolean taken) {
+    EdgeItem edge = new EdgeItem(from, to, taken);
+    from.succs.add(edge);
+    to.preds.add(edge);
+    return edge;
+  }
+
+  /**
+   * Returns the values the condition of a branch may have: TRUE if it is
+   * always taken, FALSE if it never is, BOOLEAN if it may go either way,
+   * and EMPTY if it cannot be reached.
+   */
+  public Range evaluateCondition(BasicBlockNode node) {
+    BlockItem item = blockItems.get(node);
+    if (item == null || !node.isBranch()) {
+      return Range.EMPTY;
+    }
+    BasicStatement cond = node.getConditional();
+    if (cond instanceof OpStatement &&
+        ((OpStatement) cond).getOp() == AsmOp.MOVE) {
+      // The move of a boolean into the register which is tested.
+      return item.getOut().get(((OpStatement) cond).getArg1());
+    }
+    Range value = evaluate(item.getOut(), cond);
+    return item.getOut().isReachable() ? value : Range.EMPTY;
+  }
+
+  /**
+   * Returns the location of arg if its range is tracked, or null.
+   */
+  private static VariableLocation getTracked(Argument arg) {
+    if (!(arg instanceof VariableArgument) ||
+        arg instanceof ArrayVariableArgument) {
+      return null;
+    }
+    return getTracked(arg.getDesc());
+  }
+
+  private static VariableLocation getTracked(TypedDescriptor desc) {
+    return SsaForm.isTracked(desc) ? desc.getLocation() : null;
+  }
+
+  /**
+   * Returns the values stmt may assign, given the ranges before it.
+   */
+  private static Range evaluate(Ranges ranges, BasicStatement stmt) {
+    if (!(stmt instanceof OpStatement)) {
+      // Calls may return anything.
+      return Range.ALL;
+    }
+    OpStatement op = (OpStatement) stmt;
+    Range a = ranges.get(op.getArg1());
+    Range b = (op.getArg2() == null) ? null : ranges.get(op.getArg2());
+    switch (op.getOp()) {
+     case MOVE:
+      return a;
+     case ADD:
+      return a.plus(b);
+     case SUBTRACT:
+      return a.minus(b);
+     case MULTIPLY:
+      return a.times(b);
+     case DIVIDE:
+      return a.divide(b);
+     case MODULO:
+      return a.modulo(b);
+     case UNARY_MINUS:
+      return a.negate();
+     case NOT:
+      return a.not();
+     case EQUAL:
+      return a.equalTo(b);
+     case NOT_EQUAL:
+      return a.equalTo(b).not();
+     case LESS_THAN:
+      return a.lessThan(b);
+     case LESS_OR_EQUAL:
+      return b.lessThan(a).not();
+     case GREATER_THAN:
+      return b.lessThan(a);
+     case GREATER_OR_EQUAL:
+      return a.lessThan(b).not();
+     default:
+      return Range.ALL;
+    }
+  }
+
+  /**
+   * Narrows the ranges of the operands of a comparison to the values for
+   * which it comes out as taken.
+   */
+  private static void refine(Ranges ranges, BasicStatement cond,
+                             boolean taken) {
+    if (!(cond instanceof OpStatement)) {
+      return;
+    }
+    OpStatement op = (OpStatement) cond;
+    Argument left = op.getArg1();
+    Argument right = op.getArg2();
+    AsmOp comparison = op.getOp();
+    if (!taken) {
+      comparison = negate(comparison);
+    }
+    switch (comparison) {
+     case GREATER_THAN:
+      refineLess(ranges, right, left, 1);
+      break;
+     case GREATER_OR_EQUAL:
+      refineLess(ranges, right, left, 0);
+      break;
+     case LESS_THAN:
+      refineLess(ranges, left, right, 1);
+      break;
+     case LESS_OR_EQUAL:
+      refineLess(ranges, left, right, 0);
+      break;
+     case EQUAL:
+      Range both = ranges.get(left).meet(ranges.get(right));
+      refineTo(ranges, left, both);
+      refineTo(ranges, right, both);
+      break;
+     case NOT_EQUAL:
+      Range l = ranges.get(left);
+      Range r = ranges.get(right);
+      if (r.isConstant()) {
+        refineTo(ranges, left, l.without(r.getLow()));
+      }
+      if (l.isConstant()) {
+        refineTo(ranges, right, r.without(l.getLow()));
+      }
+      break;
+     default:
+      // Not a comparison, so there is nothing to learn from it.
+      break;
+    }
+  }
+
+  /**
+   * Narrows the ranges of left and right to the values for which left is
+   * at least gap less than right.
+   */
+  private static void refineLess(Ranges ranges, Argument left,
+                                 Argument right, int gap) {
+    Range l = ranges.get(left);
+    Range r = ranges.get(right);
+    if (l.isEmpty() || r.isEmpty()) {
+      return;
+    }
+    refineTo(ranges, left, l.atMost((long) r.getHigh() - gap));
+    refineTo(ranges, right, r.atLeast((long) l.getLow() + gap));
+  }
+
+  private static void refineTo(Ranges ranges, Argument arg, Range range) {
+    if (range.isEmpty()) {
+      // The edge can never be taken.
+      ranges.ranges = null;
+      return;
+    }
+    VariableLocation loc = getTracked(arg);
+    if (loc != null) {
+      ranges.set(loc, range);
+    }
+  }
+
+  private static AsmOp negate(AsmOp op) {
+    switch (op) {
+     case EQUAL:
+      return AsmOp.NOT_EQUAL;
+     case NOT_EQUAL:
+      return AsmOp.EQUAL;
+     case LESS_THAN:
+      return AsmOp.GREATER_OR_EQUAL;
+     case GREATER_OR_EQUAL:
+      return AsmOp.LESS_THAN;
+     case LESS_OR_EQUAL:
+      return AsmOp.GREATER_THAN;
+     case GREATER_THAN:
+      return AsmOp.LESS_OR_EQUAL;
+     default:
+      return op;
+    }
+  }
+
+  private static Ranges widen(Ranges earlier, Ranges later) {
+    if (!earlier.isReachable() || !later.isReachable()) {
+      return later;
+    }
+    Ranges ret = later.copy();
+    for (Map.Entry<VariableLocation, Range> entry :
+         later.ranges.entrySet()) {
+      Range old = earlier.ranges.get(entry.getKey());
+      ret.set(entry.getKey(),
+              (old == null) ? Range.ALL : old.widen(entry.getValue()));
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the ranges known at the start of a block.
+   */
+  @Override
+  public Ranges abstractionFunction(BasicBlockNode value) {
+    BlockItem item = blockItems.get(value);
+    return (item == null) ? bottom() : item.getIn();
+  }
+
+  @Override
+  public Ranges transferFunction(Ranges[] values) {
+    Ranges ret = bottom();
+    for (Ranges value : values) {
+      ret = leastUpperBoundInPlace(ret, value);
+    }
+    return ret;
+  }
+
+  /** Nothing reaches the point. */
+  @Override
+  public Ranges bottom() {
+    return new Ranges(null);
+  }
+
+  /** Every variable may hold any int. */
+  @Override
+  public Ranges top() {
+    return new Ranges(new HashMap<VariableLocation, Range>());
+  }
+
+  @Override
+  public Ranges leastUpperBound(Ranges v1, Ranges v2) {
+    return leastUpperBoundInPlace(v1.copy(), v2);
+  }
+
+  @Override
+  public Ranges leastUpperBoundInPlace(Ranges v1, Ranges v2) {
+    if (!v2.isReachable()) {
+      return v1;
+    }
+    if (!v1.isReachable()) {
+      return v2.copy();
+    }
+    // A variable missing from either side may hold anything.
+    Iterator<Map.Entry<VariableLocation, Range>> it =
+      v1.ranges.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<VariableLocation, Range> entry = it.next();
+      Range other = v2.ranges.get(entry.getKey());
+      if (other == null) {
+        it.remove();
+      } else {
+        entry.setValue(entry.getValue().join(other));
+      }
+    }
+    return v1;
+  }
+}
@@ -96,13 +96,8 @@ public class ReachingDefinitions extends BasicBlockVisitor
 
       List<BasicStatement> defs = new ArrayList<BasicStatement>();
 
-      int len = parent.definitions.size();
-      for (int i = 0 ; i < len; i++) {
-        BasicStatement s = parent.definitions.get(i);
-
-        if (bs.get(i)) {
-          defs.add(s);
-        }
+      for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1)) {
+        defs.add(parent.definitions.get(i));
       }
 
       return defs;
@@ -279,6 +274,9 @@ public class ReachingDefinitions extends BasicBlockVisitor
       case MULTIPLY:
       case DIVIDE:
       case MODULO:
+      case SHL:
+      case SHR:
+      case BITWISE_AND:
       case UNARY_MINUS:
       case NOT:
         return true;
@@ -301,6 +299,9 @@ public class ReachingDefinitions extends BasicBlockVisitor
       case MULTIPLY:
       case DIVIDE:
       case MODULO:
+      case SHL:
+      case SHR:
+      case BITWISE_AND:
       case UNARY_MINUS:
       case NOT:
         return def.getResult().getLocation();
@@ -342,6 +343,12 @@ public class ReachingDefinitions extends BasicBlockVisitor
     return ret;
   }
 
+  @Override
+  public BitSet leastUpperBoundInPlace(BitSet v1, BitSet v2) {
+    v1.or(v2);
+    return v1;
+  }
+
   public static class FakeDefStatement extends NOPStatement {
     private ParamDescriptor param;
     public FakeDefStatement(ASTNode node, ParamDescriptor param) {
@@ -59,4 +59,10 @@ public class SignAnalysis implements Lattice<Sign, Integer> {
     return Sign.TOP;
   }
 
+  @Override
+  public Sign leastUpperBoundInPlace(Sign v1, Sign v2) {
+    // Signs are immutable.
+    return leastUpperBound(v1, v2);
+  }
+
 }
@@ -0,0 +1,463 @@
+package edu.mit.compilers.le02.dfa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.compilers.le02.VariableLocation;
+import edu.mit.compilers.le02.cfg.Argument;
+import edu.mit.compilers.le02.cfg.ArrayVariableArgument;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.CallStatement;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.VariableArgument;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+import edu.mit.compilers.le02.symboltable.ParamDescriptor;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+/**
+ * Static single assignment form of a method's scalar locals and parameters,
+ * built with the algorithm of Cytron et al. from the dominance frontiers of
+ * the method's Dominators.
+ *
+ * The form is kept beside the statements rather than written into them:
+ * every definition and phi gets a Value, and every use of a variable in a
+ * statement is mapped to the one Value which reaches it.  The statements
+ * themselves are not renamed, so there is nothing to translate back out of
+ * SSA once a pass is done with it, and the form is simply dropped.  It
+ * describes the method as it was built and is not updated as statements
+ * change.
+ *
+ * Phis are only placed for variables which are live into some block
+ * ("semi-pruned" form), since the temporaries which make up most variables
+ * are used only in the block which defines them.  Each variable also has an
+ * initial Value standing for whatever it holds when the method is entered.
+ * Blocks which cannot be reached from the entry are left out.
+ */
+public class SsaForm {
+  private Dominators dom;
+  private Map<VariableLocation, Value> initialValues;
+  private Map<BasicBlockNode, List<Phi>> phis;
+  // Statements are looked up by block as well, since the condition of a
+  // loop is shared by the block entering the loop and the loop's latch.
+  private Map<BasicBlockNode, Map<BasicStatement, Value>> defs;
+  private Map<BasicBlockNode,
+              Map<BasicStatement, Map<VariableLocation, Value>>> uses;
+
+  /**
+   * One name in SSA form: a variable as set by a single definition, a phi,
+   * or the method's entry.
+   */
+  public static class Value {
+    private VariableLocation var;
+    private BasicStatement def;
+    private Phi phi;
+    private List<Use> users = new ArrayList<Use>();
+    private List<Phi> phiUsers = new ArrayList<Phi>();
+
+    private Value(VariableLocation var, BasicStatement def, Phi phi) {
+      this.var = var;
+      this.def = def;
+      this.phi = phi;
+    }
+
+    public VariableLocation getVariable() {
+      return var;
+    }
+
+    /**
+     * Returns the statement which defines this value, or null if it is
+     * defined by a phi or is the variable's value on entry to the method.
+     */
+    public BasicStatement getDefinition() {
+      return def;
+    }
+
+    /**
+     * Returns the phi which defines this value, or null.
+     */
+    public Phi getPhi() {
+      return phi;
+    }
+
+    public boolean isInitial() {
+      return def == null && phi == null;
+    }
+
+    /**
+     * Returns the statements which use this value.
+     */
+    public List<Use> getUsers() {
+      return Collections.unmodifiableList(users);
+    }
+
+    /**
+     * Returns the phis which take this value as an operand.
+     */
+    public List<Phi> getPhiUsers() {
+      return Collections.unmodifiableList(phiUsers);
+    }
+
+    @Override
+    public String toString() {
+      String from = (def != null) ? "" + def :
+                    (phi != null) ? "phi in " + phi.block.getId() : "entry";
+      return "Value(" + var + " from " + from + ")";
+    }
+  }
+
+  /**
+   * A statement, in a particular block, which uses a value.
+   */
+  public static class Use {
+    private BasicBlockNode block;
+    private BasicStatement stmt;
+
+    private Use(BasicBlockNode block, BasicStatement stmt) {
+      this.block = block;
+      this.stmt = stmt;
+    }
+
+    public BasicBlockNode getBlock() {
+      return block;
+    }
+
+    public BasicStatement getStatement() {
+      return stmt;
+    }
+  }
+
+  /**
+   * A phi at the start of a block, merging the values of one variable which
+   * reach the block along each of its incoming edges.
+   */
+  public static class Phi {
+    private BasicBlockNode block;
+    private Value target;
+    private Map<BasicBlockNode, Value> operands =
+      new LinkedHashMap<BasicBlockNode, Value>();
+
+    private Phi(BasicBlockNode block, VariableLocation var) {
+      this.block = block;
+      this.target = new Value(var, null, this);
+    }
+
+    public BasicBlockNode getBlock() {
+      return block;
+    }
+
+    public Value getTarget() {
+      return target;
+    }
+
+    /**
+     * Returns the operands of the phi, keyed by the predecessor they come
+     * from.  The edge into the method's entry from the caller has the key
+     * null.
+     */
+    public Map<BasicBlockNode, Value> getOperands() {
+      return Collections.unmodifiableMap(operands);
+    }
+  }
+
+  public SsaForm(BasicBlockNode methodEnter) {
+    this.dom = Dominators.forMethod(methodEnter);
+    this.initialValues = new HashMap<VariableLocation, Value>();
+    this.phis = new HashMap<BasicBlockNode, List<Phi>>();
+    this.defs = new HashMap<BasicBlockNode, Map<BasicStatement, Value>>();
+    this.uses = new HashMap<BasicBlockNode,
+      Map<BasicStatement, Map<VariableLocation, Value>>>();
+
+    placePhis();
+    rename();
+  }
+
+  /**
+   * Returns whether SSA form covers desc.  Globals and arrays are left out
+   * since calls and stores through an index change them without naming
+   * them, as are the register descriptors used to pass values to branches.
+   */
+  public static boolean isTracked(TypedDescriptor desc) {
+    if (desc == null || desc.getLocation() == null ||
+        (desc.getType() != null && desc.getType().isArray())) {
+      return false;
+    }
+    return desc instanceof LocalDescriptor || desc instanceof ParamDescriptor;
+  }
+
+  /**
+   * Returns the tracked variable stmt assigns to, or null.
+   */
+  public static TypedDescriptor getDefinedVariable(BasicStatement stmt) {
+    TypedDescriptor target = null;
+    if (stmt instanceof OpStatement) {
+      OpStatement op = (OpStatement) stmt;
+      if (op.getOp() == AsmOp.MOVE) {
+        if (!(op.getArg2() instanceof ArrayVariableArgument)) {
+          target = op.getArg2().getDesc();
+        }
+      } else if (op.getOp() != AsmOp.RETURN && op.getOp() != AsmOp.ENTER) {
+        target = op.getResult();
+      }
+    } else if (stmt instanceof CallStatement) {
+      target = stmt.getResult();
+    }
+    return isTracked(target) ? target : null;
+  }
+
+  /**
+   * Returns the tracked variables stmt reads, including array indices.
+   */
+  public static List<TypedDescriptor> getUsedVariables(BasicStatement stmt) {
+    List<TypedDescriptor> used = new ArrayList<TypedDescriptor>();
+    if (stmt instanceof OpStatement) {
+      OpStatement op = (OpStatement) stmt;
+      if (op.getOp() == AsmOp.ENTER) {
+        return used;
+      }
+      addUses(used, op.getArg1());
+      if (op.getOp() == AsmOp.MOVE) {
+        if (op.getArg2() instanceof ArrayVariableArgument) {
+          addUses(used, ((ArrayVariableArgument) op.getArg2()).getIndex());
+        }
+      } else {
+        addUses(used, op.getArg2());
+      }
+    } else if (stmt instanceof CallStatement) {
+      for (Argument arg : ((CallStatement) stmt).getArgs()) {
+        addUses(used, arg);
+      }
+    }
+    return used;
+  }
+
+  private static void addUses(List<TypedDescriptor> used, Argument arg) {
+    if (arg instanceof ArrayVariableArgument) {
+      addUses(used, ((ArrayVariableArgument) arg).getIndex());
+    } else if (arg instanceof VariableArgument && isTracked(arg.getDesc())) {
+      used.add(arg.getDesc());
+    }
+  }
+
+  /**
+   * Places phis for each variable which is live into some block at the
+   * iterated dominance frontier of the blocks which define it.  The entry
+   * counts as defining every variable.
+   */
+  private void placePhis() {
+    Map<VariableLocation, Set<BasicBlockNode>> defBlocks =
+      new LinkedHashMap<VariableLocation, Set<BasicBlockNode>>();
+    Set<VariableLocation> liveIn = new HashSet<VariableLocation>();
+    for (BasicBlockNode node : dom.getBlocks()) {
+      Set<VariableLocation> defined = new HashSet<VariableLocation>();
+      for (BasicStatement stmt : node.getStatements()) {
+        for (TypedDescriptor used : getUsedVariables(stmt)) {
+          if (!defined.contains(used.getLocation())) {
+            liveIn.add(used.getLocation());
+          }
+        }
+        TypedDescriptor target = getDefinedVariable(stmt);
+        if (target != null) {
+          defined.add(target.getLocation());
+          Set<BasicBlockNode> blocks = defBlocks.get(target.getLocation());
+          if (blocks == null) {
+            blocks = new HashSet<BasicBlockNode>();
+            defBlocks.put(target.getLocation(), blocks);
+          }
+          blocks.add(node);
+        }
+      }
+    }
+
+    for (Map.Entry<VariableLocation, Set<BasicBlockNode>> entry :
+         defBlocks.entrySet()) {
+      VariableLocation var = entry.getKey();
+      if (!liveIn.contains(var)) {
+        continue;
+      }
+      List<BasicBlockNode> work =
+        new ArrayList<BasicBlockNode>(entry.getValue());
+      work.add(dom.getEntry());
+      Set<BasicBlockNode> hasPhi = new HashSet<BasicBlockNode>();
+      Set<BasicBlockNode> queued = new HashSet<BasicBlockNode>(work);
+      while (!work.isEmpty()) {
+        BasicBlockNode node = work.remove(work.size() - 1);
+        for (BasicBlockNode frontier : dom.getFrontier(node)) {
+          if (!hasPhi.add(frontier)) {
+            continue;
+          }
+          List<Phi> list = phis.get(frontier);
+          if (list == null) {
+            list = new ArrayList<Phi>();
+            phis.put(frontier, list);
+          }
+          list.add(new Phi(frontier, var));
+          if (queued.add(frontier)) {
+            work.add(frontier);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Walks the dominator tree, keeping a stack of the values of each
+   * variable, to connect every use to its definition.  The walk uses an
+   * explicit stack so that deep trees cannot overflow the Java stack.
+   */
+  private void rename() {
+    Map<VariableLocation, List<Value>> current =
+      new HashMap<VariableLocation, List<Value>>();
+    BasicBlockNode entry = dom.getEntry();
+    for (Phi phi : getPhis(entry)) {
+      phi.operands.put(null, initialValue(phi.target.var));
+    }
+
+    // Each block is on the stack twice: once to be entered, and then, under
+    // its children, once to pop the values it pushed.
+    List<BasicBlockNode> stack = new ArrayList<BasicBlockNode>();
+    List<List<VariableLocation>> pushed = new ArrayList<List<VariableLocation>>();
+    stack.add(entry);
+    pushed.add(null);
+    while (!stack.isEmpty()) {
+      BasicBlockNode node = stack.remove(stack.size() - 1);
+      List<VariableLocation> popping = pushed.remove(pushed.size() - 1);
+      if (popping != null) {
+        for (VariableLocation var : popping) {
+          List<Value> values = current.get(var);
+          values.remove(values.size() - 1);
+        }
+        continue;
+      }
+
+      List<VariableLocation> defined = new ArrayList<VariableLocation>();
+      for (Phi phi : getPhis(node)) {
+        push(current, phi.target);
+        defined.add(phi.target.var);
+      }
+      Map<BasicStatement, Value> blockDefs =
+        new HashMap<BasicStatement, Value>();
+      Map<BasicStatement, Map<VariableLocation, Value>> blockUses =
+        new HashMap<BasicStatement, Map<VariableLocation, Value>>();
+      defs.put(node, blockDefs);
+      uses.put(node, blockUses);
+      for (BasicStatement stmt : node.getStatements()) {
+        Map<VariableLocation, Value> stmtUses =
+          new HashMap<VariableLocation, Value>();
+        for (TypedDescriptor used : getUsedVariables(stmt)) {
+          if (stmtUses.containsKey(used.getLocation())) {
+            continue;
+          }
+          Value value = top(current, used.getLocation());
+          stmtUses.put(used.getLocation(), value);
+          value.users.add(new Use(node, stmt));
+        }
+        blockUses.put(stmt, stmtUses);
+        TypedDescriptor target = getDefinedVariable(stmt);
+        if (target != null) {
+          Value value = new Value(target.getLocation(), stmt, null);
+          blockDefs.put(stmt, value);
+          push(current, value);
+          defined.add(value.var);
+        }
+      }
+      for (BasicBlockNode succ : Dominators.successors(node)) {
+        for (Phi phi : getPhis(succ)) {
+          if (phi.operands.containsKey(node)) {
+            continue;
+          }
+          Value value = top(current, phi.target.var);
+          phi.operands.put(node, value);
+          value.phiUsers.add(phi);
+        }
+      }
+
+      stack.add(node);
+      pushed.add(defined);
+      List<BasicBlockNode> children = dom.getChildren(node);
+      for (int ii = children.size() - 1; ii >= 0; ii--) {
+        stack.add(children.get(ii));
+        pushed.add(null);
+      }
+    }
+  }
+
+  private void push(Map<VariableLocation, List<Value>> current, Value value) {
+    List<Value> values = current.get(value.var);
+    if (values == null) {
+      values = new ArrayList<Value>();
+      current.put(value.var, values);
+    }
+    values.add(value);
+  }
+
+  private Value top(Map<VariableLocation, List<Value>> current,
+                    VariableLocation var) {
+    List<Value> values = current.get(var);
+    if (values == null || values.isEmpty()) {
+      return initialValue(var);
+    }
+    return values.get(values.size() - 1);
+  }
+
+  private Value initialValue(VariableLocation var) {
+    Value value = initialValues.get(var);
+    if (value == null) {
+      value = new Value(var, null, null);
+      initialValues.put(var, value);
+    }
+    return value;
+  }
+
+  public Dominators getDominators() {
+    return dom;
+  }
+
+  /**
+   * Returns the phis at the start of node.
+   */
+  public List<Phi> getPhis(BasicBlockNode node) {
+    List<Phi> list = phis.get(node);
+    if (list == null) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(list);
+  }
+
+  /**
+   * Returns the value stmt defines in node, or null if it defines no
+   * tracked variable.
+   */
+  public Value getDefinition(BasicBlockNode node, BasicStatement stmt) {
+    Map<BasicStatement, Value> blockDefs = defs.get(node);
+    if (blockDefs == null) {
+      return null;
+    }
+    return blockDefs.get(stmt);
+  }
+
+  /**
+   * Returns the value of var which reaches its use in stmt in node, or null
+   * if stmt does not use var there.
+   */
+  public Value getUse(BasicBlockNode node, BasicStatement stmt,
+                      TypedDescriptor var) {
+    Map<BasicStatement, Map<VariableLocation, Value>> blockUses =
+      uses.get(node);
+    if (blockUses == null || var == null) {
+      return null;
+    }
+    Map<VariableLocation, Value> stmtUses = blockUses.get(stmt);
+    if (stmtUses == null) {
+      return null;
+    }
+    return stmtUses.get(var.getLocation());
+  }
+}
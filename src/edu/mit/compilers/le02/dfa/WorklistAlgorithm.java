@@ -1,94 +1,279 @@
 package edu.mit.compilers.le02.dfa;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import edu.mit.compilers.le02.PhaseTimer;
+
+/**
+ * Iterative solver for dataflow problems over WorklistItems.
+ *
+ * Items are numbered so that, ignoring back edges, each item comes after its
+ * predecessors (reverse postorder) for forward problems, and after its
+ * successors (postorder) for backward problems.  The worklist starts with
+ * every item in that order and holds each item at most once, so most items
+ * see their final inputs the first time they are visited.
+ *
+ * Both solvers return the number of items visited, which is also reported
+ * to the PhaseTimer as "worklist visits".
+ */
 public class WorklistAlgorithm {
-  /*
+  /**
+   * The items of one problem, numbered in visiting order, with their edges
+   * as arrays of numbers.
+   */
+  private static class Graph<T> {
+    List<WorklistItem<T>> items;
+    int[][] preds;
+    int[][] succs;
+    boolean[] exit;
+
+    Graph(Collection<? extends WorklistItem<T>> all, WorklistItem<T> start,
+          boolean forward) {
+      List<WorklistItem<T>> order = new ArrayList<WorklistItem<T>>(all);
+      Map<WorklistItem<T>, Integer> index =
+        new HashMap<WorklistItem<T>, Integer>();
+      for (int ii = 0; ii < order.size(); ii++) {
+        index.put(order.get(ii), ii);
+      }
+      int[][] origPreds = new int[order.size()][];
+      int[][] origSuccs = new int[order.size()][];
+      exit = new boolean[order.size()];
+      for (int ii = 0; ii < order.size(); ii++) {
+        Collection<WorklistItem<T>> succItems = order.get(ii).successors();
+        exit[ii] = succItems.isEmpty();
+        origPreds[ii] = indices(order.get(ii).predecessors(), index);
+        origSuccs[ii] = indices(succItems, index);
+      }
+
+      // Depth-first search along successor edges, from the start item or
+      // else from every item without predecessors, then from anything
+      // left over.
+      List<Integer> postorder = new ArrayList<Integer>(order.size());
+      BitSet seen = new BitSet(order.size());
+      if (start != null && index.containsKey(start)) {
+        search(index.get(start), origSuccs, seen, postorder);
+      }
+      for (int ii = 0; ii < order.size(); ii++) {
+        if (origPreds[ii].length == 0) {
+          search(ii, origSuccs, seen, postorder);
+        }
+      }
+      for (int ii = 0; ii < order.size(); ii++) {
+        search(ii, origSuccs, seen, postorder);
+      }
+
+      // Renumber the items in visiting order.
+      int[] renumber = new int[order.size()];
+      items = new ArrayList<WorklistItem<T>>(order.size());
+      boolean[] oldExit = exit;
+      exit = new boolean[order.size()];
+      for (int ii = 0; ii < postorder.size(); ii++) {
+        int old = forward ? postorder.get(postorder.size() - 1 - ii) :
+                            postorder.get(ii);
+        renumber[old] = ii;
+        items.add(order.get(old));
+        exit[ii] = oldExit[old];
+      }
+      preds = new int[order.size()][];
+      succs = new int[order.size()][];
+      for (int old = 0; old < order.size(); old++) {
+        preds[renumber[old]] = renumbered(origPreds[old], renumber);
+        succs[renumber[old]] = renumbered(origSuccs[old], renumber);
+      }
+    }
+
+    private static <T> int[] indices(Collection<WorklistItem<T>> edges,
+                                     Map<WorklistItem<T>, Integer> index) {
+      int[] result = new int[edges.size()];
+      int count = 0;
+      for (WorklistItem<T> item : edges) {
+        Integer ii = index.get(item);
+        if (ii != null) {
+          result[count++] = ii;
+        }
+      }
+      if (count < result.length) {
+        int[] trimmed = new int[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
+      }
+      return result;
+    }
+
+    private static int[] renumbered(int[] edges, int[] renumber) {
+      int[] result = new int[edges.length];
+      for (int ii = 0; ii < edges.length; ii++) {
+        result[ii] = renumber[edges[ii]];
+      }
+      return result;
+    }
+
+    /**
+     * Appends the items reachable from root to postorder, iteratively so
+     * that long chains of blocks cannot overflow the stack.
+     */
+    private static void search(int root, int[][] succs, BitSet seen,
+                               List<Integer> postorder) {
+      if (seen.get(root)) {
+        return;
+      }
+      int[] stack = new int[succs.length];
+      int[] nextEdge = new int[succs.length];
+      int depth = 0;
+      stack[0] = root;
+      nextEdge[0] = 0;
+      seen.set(root);
+      while (depth >= 0) {
+        int node = stack[depth];
+        if (nextEdge[depth] < succs[node].length) {
+          int succ = succs[node][nextEdge[depth]++];
+          if (!seen.get(succ)) {
+            seen.set(succ);
+            depth++;
+            stack[depth] = succ;
+            nextEdge[depth] = 0;
+          }
+        } else {
+          postorder.add(node);
+          depth--;
+        }
+      }
+    }
+  }
+
+  /**
+   * A FIFO of item numbers which holds each item at most once.
    */
-  public static <T> void runForward(Collection<? extends WorklistItem<T>> items,
+  private static class Worklist {
+    private int[] queue;
+    private int head = 0;
+    private int size = 0;
+    private BitSet queued;
+
+    Worklist(int capacity) {
+      queue = new int[Math.max(1, capacity)];
+      queued = new BitSet(capacity);
+    }
+
+    void add(int item) {
+      if (queued.get(item)) {
+        return;
+      }
+      queued.set(item);
+      queue[(head + size) % queue.length] = item;
+      size++;
+    }
+
+    int remove() {
+      int item = queue[head];
+      head = (head + 1) % queue.length;
+      size--;
+      queued.clear(item);
+      return item;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+  }
+
+  public static <T> int runForward(
+      Collection<? extends WorklistItem<T>> items,
       Lattice<T, ?> lattice,
       WorklistItem<T> startItem,
       T startInfo) {
-    LinkedList<WorklistItem<T>> worklist =
-      new LinkedList<WorklistItem<T>>(items);
+    // Assert that startItem was in the given items
+    assert items.contains(startItem);
+
+    Graph<T> graph = new Graph<T>(items, startItem, true);
+    Worklist worklist = new Worklist(graph.items.size());
 
     // Initialize edge maps
-    for (WorklistItem<T> item : items) {
+    for (int ii = 0; ii < graph.items.size(); ii++) {
+      WorklistItem<T> item = graph.items.get(ii);
       item.setIn(lattice.bottom());
       item.setOut(item.transferFunction(lattice.bottom()));
+      worklist.add(ii);
     }
 
-    // Initialize the first item
-    startItem.setIn(startInfo);
-    startItem.setOut(startItem.transferFunction(startInfo));
-    boolean validItems = worklist.remove(startItem);
-
-    // Assert that startItem was in the given items
-    assert validItems;
-
+    int visits = 0;
     while (!worklist.isEmpty()) {
-      WorklistItem<T> item = worklist.remove();
+      int ii = worklist.remove();
+      WorklistItem<T> item = graph.items.get(ii);
+      visits++;
 
       // Calculate the least upper bound of all the predecessors
       T sup = lattice.bottom();
-      for(WorklistItem<T> pred : item.predecessors()) {
-        sup = lattice.leastUpperBound(pred.getOut(), sup);
+      if (item == startItem) {
+        sup = lattice.leastUpperBoundInPlace(sup, startInfo);
+      }
+      for (int pred : graph.preds[ii]) {
+        sup = lattice.leastUpperBoundInPlace(sup,
+                                             graph.items.get(pred).getOut());
       }
       item.setIn(sup);
 
-      // Calculate the new out value for this item
-      T newOut = item.transferFunction(sup);
-
-      // If the value has changed, update it and add successors
-      // to the worklist.
-      if (!newOut.equals(item.getOut())) {
-        item.setOut(newOut);
-
-        worklist.addAll(item.successors());
+      // If the out value has changed, add successors to the worklist.
+      if (item.updateOut()) {
+        for (int succ : graph.succs[ii]) {
+          worklist.add(succ);
+        }
       }
     }
+
+    PhaseTimer.count("worklist visits", visits);
+    return visits;
   }
 
   // Before calling runBackwards, you need to ensure that every
   // WorklistItem with no successors has an out set
   // These out sets are the initial conditions for the algorithm
-  public static <T> void runBackwards(
+  public static <T> int runBackwards(
       Collection<? extends WorklistItem<T>> items,
       Lattice<T, ?> lattice) {
-    LinkedList<WorklistItem<T>> worklist =
-      new LinkedList<WorklistItem<T>>(items);
+    Graph<T> graph = new Graph<T>(items, null, false);
+    Worklist worklist = new Worklist(graph.items.size());
 
     // Initialize edge maps
-    for (WorklistItem<T> item : items) {
-      if (!item.successors().isEmpty()) {
+    for (int ii = 0; ii < graph.items.size(); ii++) {
+      WorklistItem<T> item = graph.items.get(ii);
+      if (!graph.exit[ii]) {
         item.setOut(lattice.bottom());
-      } else {
-        worklist.remove(item);
+        worklist.add(ii);
       }
       item.setIn(item.transferFunction(item.getOut()));
     }
 
+    int visits = 0;
     while (!worklist.isEmpty()) {
-      WorklistItem<T> item = worklist.remove();
+      int ii = worklist.remove();
+      WorklistItem<T> item = graph.items.get(ii);
+      visits++;
 
       // Calculate the least upper bound of all the successors
       T sup = lattice.bottom();
-      for(WorklistItem<T> succ : item.successors()) {
-        sup = lattice.leastUpperBound(succ.getIn(), sup);
+      for (int succ : graph.succs[ii]) {
+        sup = lattice.leastUpperBoundInPlace(sup,
+                                             graph.items.get(succ).getIn());
       }
       item.setOut(sup);
 
-      // Calculate the new out value for this item
-      T newIn = item.transferFunction(sup);
-
-      // If the value has changed, update it and add predecessors
-      // to the worklist.
-      if (!newIn.equals(item.getIn())) {
-        item.setIn(newIn);
-
-        worklist.addAll(item.predecessors());
+      // If the in value has changed, add predecessors to the worklist.
+      if (item.updateIn()) {
+        for (int pred : graph.preds[ii]) {
+          if (!graph.exit[pred]) {
+            worklist.add(pred);
+          }
+        }
       }
     }
+
+    PhaseTimer.count("worklist visits", visits);
+    return visits;
   }
 }
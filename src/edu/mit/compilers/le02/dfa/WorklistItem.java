@@ -34,5 +34,31 @@ public abstract class WorklistItem<T> {
     this.out = out;
   }
 
+  /**
+   * Recomputes out from in for a forward problem, and returns whether it
+   * changed.  Subclasses may override this to reuse storage.
+   */
+  public boolean updateOut() {
+    T newOut = transferFunction(in);
+    if (newOut.equals(out)) {
+      return false;
+    }
+    out = newOut;
+    return true;
+  }
+
+  /**
+   * Recomputes in from out for a backward problem, and returns whether it
+   * changed.
+   */
+  public boolean updateIn() {
+    T newIn = transferFunction(out);
+    if (newIn.equals(in)) {
+      return false;
+    }
+    in = newIn;
+    return true;
+  }
+
 
 }
@@ -37,6 +37,17 @@ public class ArrayBoundsChecks extends ASTNodeVisitor<Boolean> {
     root.accept(getInstance());
   }
 
+  /**
+   * Drops all results so that nothing from the last AST analyzed is kept
+   * alive between compilations.
+   */
+  public static void reset() {
+    arrays = null;
+    lowerBounds = null;
+    upperBounds = null;
+    instance = null;
+  }
+
   public static List<ArrayLocationNode> getAccesses() {
     return arrays;
   }
@@ -0,0 +1,87 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.dfa.Dominators;
+import edu.mit.compilers.le02.dfa.Range;
+import edu.mit.compilers.le02.dfa.RangeAnalysis;
+
+/**
+ * Removes the branches which the RangeAnalysis of a method shows always go
+ * the same way.  These are mostly array bounds checks, whose index is
+ * bounded by a loop condition, an enclosing if or an earlier check of the
+ * same index; the blocks reporting the violation are then unlinked along
+ * with anything else which can no longer be reached.
+ *
+ * The numbers of folded branches and unreachable blocks are reported to
+ * the PhaseTimer as "range folded branches" and "range unreachable
+ * blocks".
+ */
+public class BoundsCheckElimination {
+  /**
+   * Folds the branches of the method starting at methodEnter which always
+   * go the same way.  Blocks which can no longer be reached are removed
+   * from blocks.
+   */
+  public static void performBoundsCheckElimination(
+      BasicBlockNode methodEnter, List<BasicBlockNode> blocks) {
+    RangeAnalysis ranges = new RangeAnalysis(methodEnter);
+
+    int foldedBranches = 0;
+    for (BasicBlockNode node : blocks) {
+      if (!node.isBranch() || node.getBranchTarget() == node.getNext()) {
+        continue;
+      }
+      Range value = ranges.evaluateCondition(node);
+      if (value.equals(Range.TRUE)) {
+        foldBranch(node, node.getBranchTarget());
+        foldedBranches++;
+      } else if (value.equals(Range.FALSE)) {
+        foldBranch(node, node.getNext());
+        foldedBranches++;
+      }
+    }
+
+    int unreachableBlocks = 0;
+    if (foldedBranches > 0) {
+      Dominators dom = Dominators.forMethod(methodEnter);
+      for (BasicBlockNode node : new ArrayList<BasicBlockNode>(blocks)) {
+        if (!dom.isReachable(node)) {
+          node.removeSuccessors();
+          blocks.remove(node);
+          unreachableBlocks++;
+        }
+      }
+    }
+
+    PhaseTimer.count("range folded branches", foldedBranches);
+    PhaseTimer.count("range unreachable blocks", unreachableBlocks);
+  }
+
+  /**
+   * Turns node into a jump to taken.
+   */
+  private static void foldBranch(BasicBlockNode node, BasicBlockNode taken) {
+    // A comparison with nowhere to put its result, or the move of a
+    // boolean into the register which is tested, only sets up the branch.
+    BasicStatement cond = node.getLastStatement();
+    if (cond instanceof OpStatement) {
+      OpStatement op = (OpStatement) cond;
+      if ((op.getOp() == AsmOp.MOVE) ? op.getArg2().isRegister() :
+          op.getResult() == null) {
+        List<BasicStatement> stmts = node.getStatements();
+        stmts.remove(stmts.size() - 1);
+        node.setStatements(stmts);
+      }
+    }
+
+    node.removeBranchTarget();
+    node.setNext(taken);
+  }
+}
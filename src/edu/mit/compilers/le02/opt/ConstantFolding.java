@@ -0,0 +1,380 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.VariableLocation;
+import edu.mit.compilers.le02.cfg.Argument;
+import edu.mit.compilers.le02.cfg.ArrayVariableArgument;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.CallStatement;
+import edu.mit.compilers.le02.cfg.ConstantArgument;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.VariableArgument;
+import edu.mit.compilers.le02.cfg.Argument.ArgType;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.dfa.SsaForm;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+/**
+ * Folds operations on constants and simplifies arithmetic with an identity
+ * or a constant operand.
+ *
+ * Within each block, constants moved into locals are substituted into the
+ * statements which read them before those are looked at.  Operations whose
+ * arguments are all constant become moves of the result, computed with the
+ * 32-bit wraparound of the generated code.  Additions of 0, multiplications
+ * by 0, 1 or -1, divisions by 1, subtractions and comparisons of a variable
+ * with itself, and so on become moves or negations, and multiplications by
+ * other powers of two become shifts.  Divisions and remainders which would
+ * trap are left alone, as is the conditional which ends a branch.
+ *
+ * BasicBlockGraph runs this together with copy propagation and dead code
+ * elimination until it finds nothing more to do.  The numbers of constant
+ * uses, folded operations and simplified operations are reported to the
+ * PhaseTimer as "folded constant uses", "folded operations" and
+ * "simplified operations".
+ */
+public class ConstantFolding {
+  // The constants held by locals at the current point of the block.
+  private Map<VariableLocation, ConstantArgument> constants =
+    new HashMap<VariableLocation, ConstantArgument>();
+
+  private int constantUses = 0;
+  private int foldedOps = 0;
+  private int simplifiedOps = 0;
+
+  /**
+   * Folds and simplifies the statements of blocks.  Returns whether any
+   * statement changed.
+   */
+  public static boolean performConstantFolding(List<BasicBlockNode> blocks) {
+    ConstantFolding folding = new ConstantFolding();
+    for (BasicBlockNode node : blocks) {
+      folding.processNode(node);
+    }
+    PhaseTimer.count("folded constant uses", folding.constantUses);
+    PhaseTimer.count("folded operations", folding.foldedOps);
+    PhaseTimer.count("simplified operations", folding.simplifiedOps);
+    return folding.constantUses + folding.foldedOps +
+      folding.simplifiedOps > 0;
+  }
+
+  /**
+   * Evaluates op on constant arguments, with the 32-bit wraparound of the
+   * generated code.  The second argument of a unary op is ignored.
+   * Returns null if op cannot be evaluated at compile time.
+   */
+  public static ConstantArgument fold(AsmOp op, ConstantArgument a,
+                                      ConstantArgument b) {
+    boolean unary = (op == AsmOp.UNARY_MINUS || op == AsmOp.NOT);
+    if (a == null || (!unary && b == null)) {
+      return null;
+    }
+
+    int x = intValue(a);
+    int y = unary ? 0 : intValue(b);
+    switch (op) {
+      case ADD:
+        return new ConstantArgument(x + y);
+      case SUBTRACT:
+        return new ConstantArgument(x - y);
+      case MULTIPLY:
+        return new ConstantArgument(x * y);
+      case DIVIDE:
+      case MODULO:
+        // idivl traps on these, so the division has to stay.
+        if (y == 0 || (x == Integer.MIN_VALUE && y == -1)) {
+          return null;
+        }
+        return new ConstantArgument((op == AsmOp.DIVIDE) ? x / y : x % y);
+      case SHL:
+        // Shifts take the count first, as the instructions do.
+        return new ConstantArgument(y << x);
+      case SHR:
+        return new ConstantArgument(y >> x);
+      case BITWISE_AND:
+        return new ConstantArgument(x & y);
+      case UNARY_MINUS:
+        return new ConstantArgument(-x);
+      case NOT:
+        return new ConstantArgument(x == 0);
+      case EQUAL:
+        return new ConstantArgument(x == y);
+      case NOT_EQUAL:
+        return new ConstantArgument(x != y);
+      case LESS_THAN:
+        return new ConstantArgument(x < y);
+      case LESS_OR_EQUAL:
+        return new ConstantArgument(x <= y);
+      case GREATER_THAN:
+        return new ConstantArgument(x > y);
+      case GREATER_OR_EQUAL:
+        return new ConstantArgument(x >= y);
+      default:
+        return null;
+    }
+  }
+
+  private static int intValue(ConstantArgument c) {
+    if (c.getType() == ArgType.CONST_BOOL) {
+      return c.getBool() ? 1 : 0;
+    }
+    return c.getInt();
+  }
+
+  /**
+   * Rewrites the statements of node.  Statements are copied rather than
+   * changed, since a loop's condition is shared between blocks.
+   */
+  private void processNode(BasicBlockNode node) {
+    constants.clear();
+    List<BasicStatement> stmts = node.getStatements();
+    List<BasicStatement> newStmts = new ArrayList<BasicStatement>();
+    boolean changed = false;
+    for (int ii = 0; ii < stmts.size(); ii++) {
+      BasicStatement stmt = stmts.get(ii);
+      BasicStatement newStmt = substituteConstants(stmt);
+      if (newStmt instanceof OpStatement &&
+          !(node.isBranch() && ii == stmts.size() - 1)) {
+        newStmt = simplify((OpStatement) newStmt);
+      }
+      changed |= (newStmt != stmt);
+      if (newStmt == null) {
+        continue;
+      }
+      record(newStmt);
+      newStmts.add(newStmt);
+    }
+    if (changed) {
+      node.setStatements(newStmts);
+    }
+  }
+
+  /**
+   * Notes the constant, if any, that stmt leaves in the local it assigns.
+   */
+  private void record(BasicStatement stmt) {
+    TypedDescriptor def = SsaForm.getDefinedVariable(stmt);
+    if (def == null) {
+      return;
+    }
+    OpStatement op = (stmt instanceof OpStatement) ? (OpStatement) stmt
+                                                   : null;
+    if (op != null && op.getOp() == AsmOp.MOVE &&
+        op.getArg1() instanceof ConstantArgument) {
+      constants.put(def.getLocation(), (ConstantArgument) op.getArg1());
+    } else {
+      constants.remove(def.getLocation());
+    }
+  }
+
+  private BasicStatement substituteConstants(BasicStatement stmt) {
+    if (stmt instanceof CallStatement) {
+      CallStatement call = (CallStatement) stmt;
+      List<Argument> args = new ArrayList<Argument>();
+      boolean argsChanged = false;
+      for (Argument arg : call.getArgs()) {
+        Argument newArg = substitute(arg);
+        args.add(newArg);
+        argsChanged |= (newArg != arg);
+      }
+      if (!argsChanged) {
+        return stmt;
+      }
+      return new CallStatement(call.getNode(), call.getMethodName(), args,
+                               call.getResult(), call.isCallout());
+    }
+    if (!(stmt instanceof OpStatement) ||
+        ((OpStatement) stmt).getOp() == AsmOp.ENTER) {
+      return stmt;
+    }
+
+    OpStatement op = (OpStatement) stmt;
+    Argument arg1 = substitute(op.getArg1());
+    Argument arg2 = op.getArg2();
+    if (op.getOp() != AsmOp.MOVE || arg2 instanceof ArrayVariableArgument) {
+      // The target of a move is not a use, but its index is.
+      arg2 = substitute(arg2);
+    }
+    if (arg1 == op.getArg1() && arg2 == op.getArg2()) {
+      return stmt;
+    }
+    return new OpStatement(op.getNode(), op.getOp(), arg1, arg2,
+                           op.getResult());
+  }
+
+  /**
+   * Returns arg with the locals it reads replaced by their constant values,
+   * where those are known.
+   */
+  private Argument substitute(Argument arg) {
+    if (arg instanceof ArrayVariableArgument) {
+      ArrayVariableArgument ava = (ArrayVariableArgument) arg;
+      Argument index = substitute(ava.getIndex());
+      if (index != ava.getIndex()) {
+        return Argument.makeArgument(ava.getDesc(), index);
+      }
+      return arg;
+    }
+    if (!(arg instanceof VariableArgument) || arg.getDesc() == null ||
+        !SsaForm.isTracked(arg.getDesc())) {
+      return arg;
+    }
+    ConstantArgument c = constants.get(arg.getDesc().getLocation());
+    if (c == null) {
+      return arg;
+    }
+    constantUses++;
+    return c;
+  }
+
+  /**
+   * Returns the simplest statement computing the same result as op, which
+   * is op itself if nothing applies, or null if op only moves a variable
+   * into itself.
+   */
+  private OpStatement simplify(OpStatement op) {
+    if (op.getOp() == AsmOp.MOVE) {
+      if (isSameVariable(op.getArg1(), op.getArg2())) {
+        simplifiedOps++;
+        return null;
+      }
+      return op;
+    }
+    TypedDescriptor result = op.getResult();
+    if (result == null) {
+      return op;
+    }
+
+    ConstantArgument c1 = constantOf(op.getArg1());
+    ConstantArgument c2 = constantOf(op.getArg2());
+    ConstantArgument folded = fold(op.getOp(), c1, c2);
+    if (folded != null) {
+      foldedOps++;
+      return move(op, folded);
+    }
+
+    Argument arg1 = op.getArg1();
+    Argument arg2 = op.getArg2();
+    OpStatement simpler = null;
+    switch (op.getOp()) {
+      case ADD:
+        if (isInt(c1, 0)) {
+          simpler = move(op, arg2);
+        } else if (isInt(c2, 0)) {
+          simpler = move(op, arg1);
+        }
+        break;
+      case SUBTRACT:
+        if (isInt(c2, 0)) {
+          simpler = move(op, arg1);
+        } else if (isInt(c1, 0)) {
+          simpler = new OpStatement(op.getNode(), AsmOp.UNARY_MINUS, arg2,
+                                    null, result);
+        } else if (isSameVariable(arg1, arg2)) {
+          simpler = move(op, new ConstantArgument(0));
+        }
+        break;
+      case MULTIPLY:
+        if (c1 != null) {
+          simpler = multiply(op, c1.getInt(), arg2);
+        } else if (c2 != null) {
+          simpler = multiply(op, c2.getInt(), arg1);
+        }
+        break;
+      case DIVIDE:
+        if (isInt(c2, 1)) {
+          simpler = move(op, arg1);
+        }
+        break;
+      case MODULO:
+        if (isInt(c2, 1) && isScalar(arg1)) {
+          simpler = move(op, new ConstantArgument(0));
+        }
+        break;
+      case EQUAL:
+      case LESS_OR_EQUAL:
+      case GREATER_OR_EQUAL:
+        if (isSameVariable(arg1, arg2)) {
+          simpler = move(op, new ConstantArgument(true));
+        }
+        break;
+      case NOT_EQUAL:
+      case LESS_THAN:
+      case GREATER_THAN:
+        if (isSameVariable(arg1, arg2)) {
+          simpler = move(op, new ConstantArgument(false));
+        }
+        break;
+      default:
+        break;
+    }
+    if (simpler == null) {
+      return op;
+    }
+    simplifiedOps++;
+    if (simpler.getOp() == AsmOp.MOVE &&
+        isSameVariable(simpler.getArg1(), simpler.getArg2())) {
+      return null;
+    }
+    return simpler;
+  }
+
+  /**
+   * Returns a statement multiplying arg by factor, or null if it is no
+   * cheaper than a multiplication.
+   */
+  private OpStatement multiply(OpStatement op, int factor, Argument arg) {
+    switch (factor) {
+      case 0:
+        return isScalar(arg) ? move(op, new ConstantArgument(0)) : null;
+      case 1:
+        return move(op, arg);
+      case -1:
+        return new OpStatement(op.getNode(), AsmOp.UNARY_MINUS, arg, null,
+                               op.getResult());
+      default:
+        if (factor > 0 && Integer.bitCount(factor) == 1) {
+          return new OpStatement(op.getNode(), AsmOp.SHL,
+            new ConstantArgument(Integer.numberOfTrailingZeros(factor)),
+            arg, op.getResult());
+        }
+        return null;
+    }
+  }
+
+  private static OpStatement move(OpStatement op, Argument value) {
+    return new OpStatement(op.getNode(), AsmOp.MOVE, value,
+                           Argument.makeArgument(op.getResult()), null);
+  }
+
+  private static ConstantArgument constantOf(Argument arg) {
+    return (arg instanceof ConstantArgument) ? (ConstantArgument) arg : null;
+  }
+
+  private static boolean isInt(ConstantArgument c, int value) {
+    return c != null && c.getType() == ArgType.CONST_INT &&
+      c.getInt() == value;
+  }
+
+  /**
+   * Returns whether reading arg cannot fail, so the read can be dropped.
+   */
+  private static boolean isScalar(Argument arg) {
+    return !(arg instanceof ArrayVariableArgument);
+  }
+
+  private static boolean isSameVariable(Argument a, Argument b) {
+    if (!(a instanceof VariableArgument) || !(b instanceof VariableArgument) ||
+        !isScalar(a) || !isScalar(b) ||
+        a.getDesc() == null || b.getDesc() == null) {
+      return false;
+    }
+    return a.getDesc().getLocation().equals(b.getDesc().getLocation());
+  }
+}
@@ -76,8 +76,10 @@ public class CpVisitor extends BasicBlockVisitor {
                  (!(storedVar instanceof LocalDescriptor) ||
                   !((LocalDescriptor)storedVar).isLocalTemporary())) {
         // We are writing into a non-temporary. We need to clear out
-        // all the places where its value was archived.
+        // all the places where its value was archived, and whatever it was
+        // a copy of.
         // For temporaries, they're write-once and thus this is moot.
+        tmpToVar.remove(storedVar);
         Set<CseVariable> references = varToSet.get(storedVar);
         if (references != null) {
           for (CseVariable temp : references) {
@@ -85,6 +87,7 @@ public class CpVisitor extends BasicBlockVisitor {
           }
           varToSet.remove(storedVar);
         }
+        invalidateIndex(storedVar);
       }
 
       if (op.getOp() == AsmOp.MOVE &&
@@ -174,7 +177,12 @@ public class CpVisitor extends BasicBlockVisitor {
       tmpToVar.entrySet().iterator();
     while (it2.hasNext()) {
       Entry<CseVariable, CseVariable> entry = it2.next();
-      if (entry.getValue() instanceof ArrayVariableArgument &&
+      if (entry.getKey() instanceof ArrayVariableArgument &&
+          ((ArrayVariableArgument)entry.getKey()).getDesc().equals(
+              storedVar.getDesc())) {
+        // The element may be the one just written, under another index.
+        it2.remove();
+      } else if (entry.getValue() instanceof ArrayVariableArgument &&
           ((ArrayVariableArgument)entry.getValue()).getDesc().equals(
               storedVar.getDesc())) {
         entry.setValue(entry.getKey());
@@ -182,6 +190,36 @@ public class CpVisitor extends BasicBlockVisitor {
     }
   }
 
+  /**
+   * Invalidates all references to array elements whose index is the
+   * altered variable, as they now name other elements.
+   */
+  private void invalidateIndex(CseVariable storedVar) {
+    Iterator<CseVariable> it = varToSet.keySet().iterator();
+    while (it.hasNext()) {
+      CseVariable var = it.next();
+      if (var instanceof ArrayVariableArgument &&
+          storedVar.equals(
+              ((ArrayVariableArgument)var).getIndex().getDesc())) {
+        it.remove();
+      }
+    }
+    Iterator<Entry<CseVariable, CseVariable>> it2 =
+      tmpToVar.entrySet().iterator();
+    while (it2.hasNext()) {
+      Entry<CseVariable, CseVariable> entry = it2.next();
+      if (entry.getKey() instanceof ArrayVariableArgument &&
+          storedVar.equals(
+              ((ArrayVariableArgument)entry.getKey()).getIndex().getDesc())) {
+        it2.remove();
+      } else if (entry.getValue() instanceof ArrayVariableArgument &&
+          storedVar.equals(
+              ((ArrayVariableArgument)entry.getValue()).getIndex().getDesc())) {
+        entry.setValue(entry.getKey());
+      }
+    }
+  }
+
   /**
    * Handles substitution and invalidation for a method call.
    */
@@ -43,13 +43,6 @@ public class CseVisitor extends BasicBlockVisitor {
     public int hashCode() {
       return index;
     }
-
-    private static int nextIndex = 0;
-    public static Value nextIndex() {
-      Value ret = new Value(nextIndex);
-      nextIndex++;
-      return ret;
-    }
   }
 
   private class ValExp {
@@ -72,7 +65,7 @@ public class CseVisitor extends BasicBlockVisitor {
         left = stmt.getArg1().getDesc();
       }
       if (!varToVal.containsKey(left)) {
-        varToVal.put(left, Value.nextIndex());
+        varToVal.put(left, nextValue());
       }
       this.left = varToVal.get(left);
 
@@ -92,7 +85,7 @@ public class CseVisitor extends BasicBlockVisitor {
         right = stmt.getArg2().getDesc();
       }
       if (!varToVal.containsKey(right)) {
-        varToVal.put(right, Value.nextIndex());
+        varToVal.put(right, nextValue());
       }
       this.right = varToVal.get(right);
     }
@@ -115,6 +108,13 @@ public class CseVisitor extends BasicBlockVisitor {
     }
   }
 
+  private int nextIndex = 0;
+  private Value nextValue() {
+    Value ret = new Value(nextIndex);
+    nextIndex++;
+    return ret;
+  }
+
   private Map<CseVariable, Value> varToVal =
     new HashMap<CseVariable, Value>();
   private Map<ValExp, Value> expToVal = new HashMap<ValExp, Value>();
@@ -172,9 +172,21 @@ public class CseVisitor extends BasicBlockVisitor {
               it.remove();
             }
           }
+        } else {
+          // Elements indexed by the variable we've written to are now
+          // other elements.
+          Iterator<CseVariable> it = varToVal.keySet().iterator();
+          while (it.hasNext()) {
+            CseVariable var = it.next();
+            if (var instanceof ArrayVariableArgument &&
+                storedVar.equals(
+                    ((ArrayVariableArgument)var).getIndex().getDesc())) {
+              it.remove();
+            }
+          }
         }
 
-        Value val = Value.nextIndex();
+        Value val = nextValue();
         varToVal.put(storedVar, val);
         expToVal.put(valexp, val);
 
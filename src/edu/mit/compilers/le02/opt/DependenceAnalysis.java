@@ -0,0 +1,608 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.ast.ASTNode;
+import edu.mit.compilers.le02.ast.ASTNodeVisitor;
+import edu.mit.compilers.le02.ast.ArrayLocationNode;
+import edu.mit.compilers.le02.ast.AssignNode;
+import edu.mit.compilers.le02.ast.ClassNode;
+import edu.mit.compilers.le02.ast.ExpressionNode;
+import edu.mit.compilers.le02.ast.ForNode;
+import edu.mit.compilers.le02.ast.IntNode;
+import edu.mit.compilers.le02.ast.MathOpNode;
+import edu.mit.compilers.le02.ast.MinusNode;
+import edu.mit.compilers.le02.ast.ScalarLocationNode;
+import edu.mit.compilers.le02.ast.VariableNode;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+/**
+ * Finds the dependences each for loop may carry between the array accesses
+ * in it.  Subscripts must be affine functions of the variables of the loop
+ * and of the loops nested in it, plus terms in variables the loop never
+ * writes, which are treated as symbols.  Every pair of accesses to an array
+ * of which one is a write is tested, for each order of the two iterations,
+ * with
+ * - the GCD test, when both subscripts have the same symbolic terms;
+ * - Banerjee's inequalities, letting the variables of the inner loops range
+ *   independently over their bounds.
+ *
+ * When the bounds are not constants, the Banerjee bounds are affine in the
+ * symbols, so the loop may only be known to be independent if some of them
+ * are positive.  Those conditions are kept so that they can be checked at
+ * run time, before the loop starts.
+ */
+public class DependenceAnalysis extends ASTNodeVisitor<Boolean> {
+  /** Loops needing more checks than this are taken to be dependent. */
+  private static final int MAX_CONDITIONS = 16;
+
+  private static DependenceAnalysis instance;
+  private static Map<ForNode, Dependences> dependences;
+
+  /**
+   * An affine function of variables: a sum of constant multiples of
+   * variables, plus a constant.
+   */
+  public static class Affine {
+    private Map<TypedDescriptor, Long> coeffs =
+      new LinkedHashMap<TypedDescriptor, Long>();
+    private long constant;
+
+    public Affine(long constant) {
+      this.constant = constant;
+    }
+
+    public Affine(TypedDescriptor var) {
+      coeffs.put(var, 1L);
+    }
+
+    /**
+     * Returns the affine function an expression computes, or null if it is
+     * not affine in scalar variables.
+     */
+    public static Affine of(ExpressionNode expr) {
+      if (expr instanceof IntNode) {
+        return new Affine(((IntNode) expr).getValue());
+      }
+
+      if (expr instanceof VariableNode) {
+        VariableNode node = (VariableNode) expr;
+        if (node.getLoc() instanceof ScalarLocationNode) {
+          return new Affine(node.getLoc().getDesc());
+        }
+        return null;
+      }
+
+      if (expr instanceof MinusNode) {
+        Affine inner = of(((MinusNode) expr).getExpr());
+        return (inner == null) ? null : inner.times(-1);
+      }
+
+      if (!(expr instanceof MathOpNode)) {
+        return null;
+      }
+      MathOpNode node = (MathOpNode) expr;
+      Affine left = of(node.getLeft());
+      Affine right = of(node.getRight());
+      if (left == null || right == null) {
+        return null;
+      }
+      switch (node.getOp()) {
+       case ADD:
+        return left.plus(right, 1);
+       case SUBTRACT:
+        return left.plus(right, -1);
+       case MULTIPLY:
+        if (left.isConstant()) {
+          return right.times(left.constant);
+        } else if (right.isConstant()) {
+          return left.times(right.constant);
+        }
+        return null;
+       default:
+        return null;
+      }
+    }
+
+    public Map<TypedDescriptor, Long> getCoefficients() {
+      return Collections.unmodifiableMap(coeffs);
+    }
+
+    public long getCoefficient(TypedDescriptor var) {
+      Long coeff = coeffs.get(var);
+      return (coeff == null) ? 0 : coeff;
+    }
+
+    public long getConstant() {
+      return constant;
+    }
+
+    public boolean isConstant() {
+      return coeffs.isEmpty();
+    }
+
+    /**
+     * Returns this function plus scale times another.
+     */
+    public Affine plus(Affine other, long scale) {
+      Affine result = times(1);
+      result.constant += scale * other.constant;
+      for (Map.Entry<TypedDescriptor, Long> e : other.coeffs.entrySet()) {
+        long coeff = result.getCoefficient(e.getKey()) + scale * e.getValue();
+        if (coeff == 0) {
+          result.coeffs.remove(e.getKey());
+        } else {
+          result.coeffs.put(e.getKey(), coeff);
+        }
+      }
+      return result;
+    }
+
+    public Affine plus(long value) {
+      Affine result = times(1);
+      result.constant += value;
+      return result;
+    }
+
+    public Affine times(long scale) {
+      Affine result = new Affine(constant * scale);
+      if (scale != 0) {
+        for (Map.Entry<TypedDescriptor, Long> e : coeffs.entrySet()) {
+          result.coeffs.put(e.getKey(), e.getValue() * scale);
+        }
+      }
+      return result;
+    }
+
+    private boolean fitsInt() {
+      if (constant != (int) constant) {
+        return false;
+      }
+      for (long coeff : coeffs.values()) {
+        if (coeff != (int) coeff) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Affine)) {
+        return false;
+      }
+      Affine other = (Affine) o;
+      return constant == other.constant && coeffs.equals(other.coeffs);
+    }
+
+    @Override
+    public int hashCode() {
+      return coeffs.hashCode() * 31 + (int) constant;
+    }
+
+    @Override
+    public String toString() {
+      String output = "";
+      for (Map.Entry<TypedDescriptor, Long> e : coeffs.entrySet()) {
+        output += e.getValue() + "*" + e.getKey().getId() + " + ";
+      }
+      return output + constant;
+    }
+  }
+
+  /**
+   * The dependences a loop may carry.
+   */
+  public static class Dependences {
+    private boolean dependent = false;
+    private List<List<Affine>> conditions = new ArrayList<List<Affine>>();
+
+    /**
+     * Returns whether the loop may carry a dependence whatever the values of
+     * the symbols.
+     */
+    public boolean isDependent() {
+      return dependent;
+    }
+
+    /**
+     * Returns whether the loop carries no dependence at all.
+     */
+    public boolean isIndependent() {
+      return !dependent && conditions.isEmpty();
+    }
+
+    /**
+     * Returns the conditions under which the loop carries no dependence.
+     * Each one holds if any of its functions is positive.
+     */
+    public List<List<Affine>> getConditions() {
+      return conditions;
+    }
+
+    private void addCondition(List<Affine> condition) {
+      if (dependent || conditions.contains(condition)) {
+        return;
+      }
+      for (Affine f : condition) {
+        if (!f.fitsInt()) {
+          dependent = true;
+          return;
+        }
+      }
+      conditions.add(condition);
+      if (conditions.size() > MAX_CONDITIONS) {
+        dependent = true;
+      }
+    }
+  }
+
+  /**
+   * An array access inside the loop being analyzed.
+   */
+  private static class Access {
+    private ArrayLocationNode node;
+    private boolean write;
+    /** The loops around the access inside the loop being analyzed. */
+    private List<ForNode> loops;
+    private Affine index;
+
+    public Access(ArrayLocationNode node, boolean write, List<ForNode> loops) {
+      this.node = node;
+      this.write = write;
+      this.loops = new ArrayList<ForNode>(loops);
+      this.index = Affine.of(node.getIndex());
+    }
+  }
+
+  /**
+   * Lists the array accesses in the body of a loop.
+   */
+  private static class AccessCollector extends ASTNodeVisitor<Boolean> {
+    private List<Access> accesses = new ArrayList<Access>();
+    private List<ForNode> loops = new ArrayList<ForNode>();
+
+    public AccessCollector(ForNode node) {
+      node.getBody().accept(this);
+    }
+
+    @Override
+    public Boolean visit(ForNode node) {
+      node.getInit().accept(this);
+      node.getEnd().accept(this);
+      loops.add(node);
+      node.getBody().accept(this);
+      loops.remove(loops.size() - 1);
+      return true;
+    }
+
+    @Override
+    public Boolean visit(AssignNode node) {
+      if (node.getLoc() instanceof ArrayLocationNode) {
+        ArrayLocationNode loc = (ArrayLocationNode) node.getLoc();
+        accesses.add(new Access(loc, true, loops));
+        loc.getIndex().accept(this);
+      }
+      node.getValue().accept(this);
+      return true;
+    }
+
+    @Override
+    public Boolean visit(ArrayLocationNode node) {
+      accesses.add(new Access(node, false, loops));
+      defaultBehavior(node);
+      return true;
+    }
+  }
+
+  /**
+   * The range of values a loop variable takes, with both ends included.
+   */
+  private static class Range {
+    private Affine lower, upper;
+
+    public Range(Affine lower, Affine upper) {
+      this.lower = lower;
+      this.upper = upper;
+    }
+  }
+
+  /**
+   * Analyzes one loop.
+   */
+  private static class LoopAnalysis {
+    private ForNode loop;
+    private TypedDescriptor loopVar;
+    private Range range;
+    private Map<TypedDescriptor, Range> innerRanges =
+      new HashMap<TypedDescriptor, Range>();
+    private Map<TypedDescriptor, Boolean> symbols =
+      new HashMap<TypedDescriptor, Boolean>();
+    private Dependences deps = new Dependences();
+
+    public LoopAnalysis(ForNode loop) {
+      this.loop = loop;
+      this.loopVar = getLoopVar(loop);
+    }
+
+    /**
+     * Checks whether a variable other than a loop variable keeps its value
+     * while the loop runs.
+     */
+    private boolean isSymbol(TypedDescriptor var) {
+      Boolean result = symbols.get(var);
+      if (result == null) {
+        result = LoopMonotonicCode.isUntouched(loop, var, false);
+        symbols.put(var, result);
+      }
+      return result;
+    }
+
+    private boolean isSymbolic(Affine f) {
+      for (TypedDescriptor var : f.coeffs.keySet()) {
+        if (innerRanges.containsKey(var) || var == loopVar ||
+            !isSymbol(var)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns the range of a loop's variable, if its bounds are symbolic.
+     */
+    private Range getRange(ForNode node) {
+      Affine lower = Affine.of(node.getInit().getValue());
+      Affine end = Affine.of(node.getEnd());
+      if (lower == null || end == null ||
+          !isSymbolic(lower) || !isSymbolic(end)) {
+        return null;
+      }
+      return new Range(lower, end.plus(-1));
+    }
+
+    /**
+     * Checks that the subscript of an access is affine in the loop's
+     * variable, the variables of the loops around the access, and symbols.
+     */
+    private boolean isAnalyzable(Access access) {
+      if (access.index == null) {
+        return false;
+      }
+      for (ForNode inner : access.loops) {
+        TypedDescriptor var = getLoopVar(inner);
+        if (!innerRanges.containsKey(var)) {
+          Range r = null;
+          if (LoopMonotonicCode.isUntouched(inner, var, false)) {
+            r = getRange(inner);
+          }
+          innerRanges.put(var, r);
+        }
+      }
+      for (TypedDescriptor var : access.index.coeffs.keySet()) {
+        if (var == loopVar) {
+          continue;
+        }
+        if (innerRanges.containsKey(var)) {
+          if (innerRanges.get(var) == null) {
+            return false;
+          }
+        } else if (!isSymbol(var)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public Dependences analyze() {
+      List<Access> accesses = new AccessCollector(loop).accesses;
+      Map<TypedDescriptor, List<Access>> byArray =
+        new LinkedHashMap<TypedDescriptor, List<Access>>();
+      boolean writes = false;
+      for (Access access : accesses) {
+        TypedDescriptor array = access.node.getDesc();
+        List<Access> list = byArray.get(array);
+        if (list == null) {
+          list = new ArrayList<Access>();
+          byArray.put(array, list);
+        }
+        list.add(access);
+        writes |= access.write;
+      }
+      if (!writes) {
+        return deps;
+      }
+
+      if (!LoopMonotonicCode.isUntouched(loop, loopVar, false)) {
+        deps.dependent = true;
+        return deps;
+      }
+      range = getRange(loop);
+
+      for (List<Access> list : byArray.values()) {
+        for (Access a : list) {
+          if (!a.write) {
+            continue;
+          }
+          for (Access b : list) {
+            if (b.write && accesses.indexOf(b) < accesses.indexOf(a)) {
+              // Already tested the other way around.
+              continue;
+            }
+            if (range == null || !isAnalyzable(a) || !isAnalyzable(b)) {
+              deps.dependent = true;
+              return deps;
+            }
+            test(a, b);
+            if (deps.dependent) {
+              return deps;
+            }
+          }
+        }
+      }
+      return deps;
+    }
+
+    /**
+     * Returns the terms of a subscript in symbols, and its constant.
+     */
+    private Affine symbolicPart(Affine f) {
+      Affine result = new Affine(f.constant);
+      for (Map.Entry<TypedDescriptor, Long> e : f.coeffs.entrySet()) {
+        TypedDescriptor var = e.getKey();
+        if (var != loopVar && !innerRanges.containsKey(var)) {
+          result.coeffs.put(var, e.getValue());
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Tests whether a may touch the same element as b in another iteration
+     * of the loop.
+     */
+    private void test(Access a, Access b) {
+      Affine symbolsA = symbolicPart(a.index);
+      Affine symbolsB = symbolicPart(b.index);
+      long coeffA = a.index.getCoefficient(loopVar);
+      long coeffB = b.index.getCoefficient(loopVar);
+
+      // GCD test: the subscripts can only be equal if the gcd of the
+      // coefficients divides the difference of the rest.
+      Affine diff = symbolsB.plus(symbolsA, -1);
+      if (diff.isConstant()) {
+        long g = gcd(coeffA, coeffB);
+        for (ForNode inner : a.loops) {
+          g = gcd(g, a.index.getCoefficient(getLoopVar(inner)));
+        }
+        for (ForNode inner : b.loops) {
+          g = gcd(g, b.index.getCoefficient(getLoopVar(inner)));
+        }
+        if ((g == 0) ? diff.constant != 0 : diff.constant % g != 0) {
+          return;
+        }
+      }
+
+      // Bounds of fA(x) - fB(y) over everything but the loop variable.
+      Affine min = symbolsA.plus(symbolsB, -1);
+      Affine max = min;
+      for (ForNode inner : a.loops) {
+        TypedDescriptor var = getLoopVar(inner);
+        long coeff = a.index.getCoefficient(var);
+        Range r = innerRanges.get(var);
+        min = min.plus(coeff > 0 ? r.lower : r.upper, coeff);
+        max = max.plus(coeff > 0 ? r.upper : r.lower, coeff);
+      }
+      for (ForNode inner : b.loops) {
+        TypedDescriptor var = getLoopVar(inner);
+        long coeff = -b.index.getCoefficient(var);
+        Range r = innerRanges.get(var);
+        min = min.plus(coeff > 0 ? r.lower : r.upper, coeff);
+        max = max.plus(coeff > 0 ? r.upper : r.lower, coeff);
+      }
+
+      // Banerjee bounds of coeffA * x - coeffB * y for x < y, and for x > y.
+      // Each is linear over the triangle of such pairs, so its extremes are
+      // at the corners.  If the loop runs at most once, span is negative,
+      // but then nothing is carried anyway.
+      Affine span = range.upper.plus(range.lower, -1).plus(-1);
+      Affine first = range.lower.times(coeffA - coeffB);
+      testDirection(min, max, first.plus(-coeffB), span,
+          Math.min(0, Math.min(-coeffB, coeffA - coeffB)),
+          Math.max(0, Math.max(-coeffB, coeffA - coeffB)));
+      testDirection(min, max, first.plus(coeffA), span,
+          Math.min(0, Math.min(coeffA, coeffA - coeffB)),
+          Math.max(0, Math.max(coeffA, coeffA - coeffB)));
+    }
+
+    private void testDirection(Affine min, Affine max, Affine first,
+        Affine span, long low, long high) {
+      min = min.plus(first, 1).plus(span, low);
+      max = max.plus(first, 1).plus(span, high);
+      if ((min.isConstant() && min.constant > 0) ||
+          (max.isConstant() && max.constant < 0)) {
+        return;
+      }
+
+      // The subscripts differ if min > 0 or -max > 0.
+      List<Affine> condition = new ArrayList<Affine>();
+      if (!min.isConstant()) {
+        condition.add(min);
+      }
+      if (!max.isConstant()) {
+        condition.add(max.times(-1));
+      }
+      if (condition.isEmpty()) {
+        deps.dependent = true;
+      } else {
+        deps.addCondition(condition);
+      }
+    }
+  }
+
+  private static TypedDescriptor getLoopVar(ForNode node) {
+    return node.getInit().getLoc().getDesc();
+  }
+
+  private static long gcd(long a, long b) {
+    a = Math.abs(a);
+    b = Math.abs(b);
+    while (b != 0) {
+      long t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  }
+
+  private static DependenceAnalysis getInstance() {
+    if (instance == null) {
+      instance = new DependenceAnalysis();
+    }
+    return instance;
+  }
+
+  /**
+   * Finds the dependences carried by every loop in the AST.
+   */
+  public static void findDependences(ASTNode root) {
+    dependences = new HashMap<ForNode, Dependences>();
+
+    assert(root instanceof ClassNode);
+    root.accept(getInstance());
+
+    int independent = 0;
+    for (Dependences deps : dependences.values()) {
+      if (!deps.isDependent()) {
+        independent++;
+      }
+    }
+    PhaseTimer.count("independent loops", independent);
+  }
+
+  /**
+   * Drops all results so that nothing from the last AST analyzed is kept
+   * alive between compilations.
+   */
+  public static void reset() {
+    dependences = null;
+    instance = null;
+  }
+
+  public static Dependences getDependences(ForNode node) {
+    return dependences.get(node);
+  }
+
+  @Override
+  public Boolean visit(ForNode node) {
+    dependences.put(node, new LoopAnalysis(node).analyze());
+    defaultBehavior(node);
+    return true;
+  }
+}
@@ -10,6 +10,7 @@ import java.util.Set;
 import edu.mit.compilers.le02.VariableLocation;
 import edu.mit.compilers.le02.VariableLocation.LocationType;
 import edu.mit.compilers.le02.cfg.Argument;
+import edu.mit.compilers.le02.cfg.ArrayVariableArgument;
 import edu.mit.compilers.le02.cfg.BasicBlockNode;
 import edu.mit.compilers.le02.cfg.BasicStatement;
 import edu.mit.compilers.le02.cfg.BasicStatement.BasicStatementType;
@@ -194,7 +195,16 @@ public class GlobalCseVisitor extends BasicBlockVisitor {
       return false;
     }
 
-    return !clobbered.contains(vArg.getDesc().getLocation());
+    if (clobbered.contains(vArg.getDesc().getLocation())) {
+      return false;
+    }
+
+    // An array element also changes with its index.
+    if (arg instanceof ArrayVariableArgument) {
+      return checkArg(((ArrayVariableArgument) arg).getIndex(), clobbered,
+                      globalsClobbered);
+    }
+    return true;
   }
 
 
@@ -0,0 +1,342 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.VariableLocation;
+import edu.mit.compilers.le02.VariableLocation.LocationType;
+import edu.mit.compilers.le02.ast.ASTNode;
+import edu.mit.compilers.le02.cfg.Argument;
+import edu.mit.compilers.le02.cfg.ArrayVariableArgument;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.CFGGenerator;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.VariableArgument;
+import edu.mit.compilers.le02.cfg.BasicStatement.BasicStatementType;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.dfa.Dominators;
+import edu.mit.compilers.le02.dfa.LoopNest;
+import edu.mit.compilers.le02.dfa.LoopNest.Loop;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+import edu.mit.compilers.le02.symboltable.MethodDescriptor;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+/**
+ * Promotes scalar globals to locals inside loops without calls, so that the
+ * register allocator can keep them in registers.
+ *
+ * No other method can run while a loop without calls does, so a global
+ * used in such a loop is loaded into a new local in the loop's preheader,
+ * the loop uses the local instead, and if the loop writes the global, the
+ * local is written back on every edge leaving the loop and before every
+ * return from inside it.  Only the outermost loop without calls of each
+ * nest is promoted.
+ *
+ * A global is promoted only if its accesses in the loop, each weighted by
+ * LOOP_WEIGHT for every loop it is inside, outweigh the load and the
+ * write-backs at the depth of the preheader.  The number of promoted
+ * globals is reported to the PhaseTimer as "promoted globals".
+ */
+public class GlobalPromotion {
+  private static final int LOOP_WEIGHT = 10;
+  private static final int MAX_LOOP_DEPTH = 4;
+
+  private BasicBlockNode methodEnter;
+  private List<BasicBlockNode> blocks;
+  /** The method's body, which new variables are declared in. */
+  private ASTNode body;
+  private Dominators dom;
+
+  private int promoted = 0;
+
+  /**
+   * Promotes globals in the loops of the method md starting at methodEnter.
+   * Any blocks which are created are added to blocks.
+   */
+  public static void performGlobalPromotion(BasicBlockNode methodEnter,
+      List<BasicBlockNode> blocks, MethodDescriptor md) {
+    GlobalPromotion gp = new GlobalPromotion(methodEnter, blocks, md);
+    gp.run();
+    PhaseTimer.count("promoted globals", gp.promoted);
+  }
+
+  private GlobalPromotion(BasicBlockNode methodEnter,
+                          List<BasicBlockNode> blocks,
+                          MethodDescriptor md) {
+    this.methodEnter = methodEnter;
+    this.blocks = blocks;
+    this.body = md.getCode();
+  }
+
+  private void run() {
+    dom = Dominators.forMethod(methodEnter);
+    List<Loop> candidates = new ArrayList<Loop>();
+    Set<Loop> withCalls = new HashSet<Loop>();
+    for (Loop loop : dom.getLoopNest().getLoops()) {
+      if (hasCall(loop)) {
+        withCalls.add(loop);
+      }
+    }
+    for (Loop loop : dom.getLoopNest().getLoops()) {
+      if (!withCalls.contains(loop) && loop.getHeader() != methodEnter &&
+          (loop.getParent() == null || withCalls.contains(loop.getParent()))) {
+        candidates.add(loop);
+      }
+    }
+
+    // The candidates are disjoint, so the edges changed for one loop are
+    // never inside another.
+    for (Loop loop : candidates) {
+      promote(loop);
+    }
+  }
+
+  private static boolean hasCall(Loop loop) {
+    for (BasicBlockNode node : loop.getBlocks()) {
+      for (BasicStatement stmt : node.getStatements()) {
+        if (stmt.getType() == BasicStatementType.CALL) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isScalarGlobal(TypedDescriptor desc) {
+    return desc != null && desc.getLocation() != null &&
+      desc.getLocation().getLocationType() == LocationType.GLOBAL &&
+      desc.getType() != null && !desc.getType().isArray();
+  }
+
+  private static int getWeight(int depth) {
+    int weight = 1;
+    for (int i = 0; i < depth && i < MAX_LOOP_DEPTH; i++) {
+      weight *= LOOP_WEIGHT;
+    }
+    return weight;
+  }
+
+  private void promote(Loop loop) {
+    // Weigh the accesses to each global, and note which are written.
+    LoopNest nest = dom.getLoopNest();
+    Map<VariableLocation, TypedDescriptor> globals =
+      new LinkedHashMap<VariableLocation, TypedDescriptor>();
+    Map<VariableLocation, Integer> benefits =
+      new HashMap<VariableLocation, Integer>();
+    Set<VariableLocation> written = new HashSet<VariableLocation>();
+    for (BasicBlockNode node : loop.getBlocks()) {
+      int weight = getWeight(nest.getDepth(node));
+      for (BasicStatement stmt : node.getStatements()) {
+        List<TypedDescriptor> accessed = new ArrayList<TypedDescriptor>();
+        if (stmt instanceof OpStatement) {
+          OpStatement op = (OpStatement) stmt;
+          addGlobals(accessed, op.getArg1());
+          addGlobals(accessed, op.getArg2());
+          if (op.getOp() == AsmOp.MOVE &&
+              isScalarGlobal(op.getArg2().getDesc())) {
+            written.add(op.getArg2().getDesc().getLocation());
+          }
+          if (isScalarGlobal(op.getResult())) {
+            accessed.add(op.getResult());
+            written.add(op.getResult().getLocation());
+          }
+        }
+        for (TypedDescriptor desc : accessed) {
+          VariableLocation loc = desc.getLocation();
+          globals.put(loc, desc);
+          Integer benefit = benefits.get(loc);
+          benefits.put(loc, (benefit == null) ? weight : benefit + weight);
+        }
+      }
+    }
+    if (globals.isEmpty()) {
+      return;
+    }
+
+    List<BasicBlockNode[]> exits = new ArrayList<BasicBlockNode[]>();
+    for (BasicBlockNode node : loop.getBlocks()) {
+      for (BasicBlockNode succ : getSuccessors(node)) {
+        if (!loop.contains(succ)) {
+          exits.add(new BasicBlockNode[] { node, succ });
+        }
+      }
+    }
+    // A block which returns has no successors, but counts as part of the
+    // loop whose header it cannot get back to.
+    List<BasicBlockNode> returns = new ArrayList<BasicBlockNode>();
+    for (BasicBlockNode node : loop.getBlocks()) {
+      if (findReturn(node) >= 0) {
+        returns.add(node);
+      }
+    }
+
+    // Choose the globals worth promoting, and give each a local.
+    int outside = getWeight(loop.getDepth() - 1);
+    Map<VariableLocation, LocalDescriptor> temps =
+      new LinkedHashMap<VariableLocation, LocalDescriptor>();
+    for (VariableLocation loc : globals.keySet()) {
+      int cost = outside;
+      if (written.contains(loc)) {
+        cost += outside * (exits.size() + returns.size());
+      }
+      if (benefits.get(loc) > cost) {
+        temps.put(loc, CFGGenerator.makeTemp(body,
+                                             globals.get(loc).getType()));
+      }
+    }
+    if (temps.isEmpty()) {
+      return;
+    }
+
+    // Rewrite the loop to use the locals.
+    for (BasicBlockNode node : loop.getBlocks()) {
+      List<BasicStatement> stmts = node.getStatements();
+      for (int ii = 0; ii < stmts.size(); ii++) {
+        if (stmts.get(ii) instanceof OpStatement) {
+          stmts.set(ii, rewrite((OpStatement) stmts.get(ii), temps));
+        }
+      }
+      node.setStatements(stmts);
+    }
+
+    // Load the locals before the loop.
+    BasicBlockNode preheader = LoopInvariantCodeMotion.findPreheader(loop);
+    if (preheader == null) {
+      preheader = LoopInvariantCodeMotion.makePreheader(loop.getHeader(),
+                                                        loop.getBlocks(),
+                                                        blocks);
+    }
+    for (Map.Entry<VariableLocation, LocalDescriptor> entry :
+         temps.entrySet()) {
+      preheader.addStatement(new OpStatement(body, AsmOp.MOVE,
+          Argument.makeArgument(globals.get(entry.getKey())),
+          Argument.makeArgument(entry.getValue()), null));
+    }
+
+    // Write the written ones back on every edge leaving the loop.
+    for (BasicBlockNode[] exit : exits) {
+      BasicBlockNode from = exit[0];
+      BasicBlockNode to = exit[1];
+      BasicBlockNode writeBack = null;
+      for (Map.Entry<VariableLocation, LocalDescriptor> entry :
+           temps.entrySet()) {
+        if (!written.contains(entry.getKey())) {
+          continue;
+        }
+        if (writeBack == null) {
+          writeBack = new BasicBlockNode(
+              LoopInvariantCodeMotion.makeBlockId(from.getId() + "_exit",
+                                                  blocks),
+              from.getMethod());
+          if (from.getNext() == to) {
+            from.setNext(writeBack);
+          }
+          if (from.getBranchTarget() == to) {
+            from.setBranchTarget(writeBack);
+          }
+          writeBack.setNext(to);
+          blocks.add(writeBack);
+        }
+        writeBack.addStatement(new OpStatement(body, AsmOp.MOVE,
+            Argument.makeArgument(entry.getValue()),
+            Argument.makeArgument(globals.get(entry.getKey())), null));
+      }
+    }
+
+    // And before every return from the loop.
+    for (BasicBlockNode node : returns) {
+      List<BasicStatement> stmts = node.getStatements();
+      int ret = findReturn(node);
+      for (Map.Entry<VariableLocation, LocalDescriptor> entry :
+           temps.entrySet()) {
+        if (written.contains(entry.getKey())) {
+          stmts.add(ret++, new OpStatement(body, AsmOp.MOVE,
+              Argument.makeArgument(entry.getValue()),
+              Argument.makeArgument(globals.get(entry.getKey())), null));
+        }
+      }
+      node.setStatements(stmts);
+    }
+    promoted += temps.size();
+  }
+
+  /**
+   * Returns the position of the return statement in node, or -1 if it
+   * has none.
+   */
+  private static int findReturn(BasicBlockNode node) {
+    List<BasicStatement> stmts = node.getStatements();
+    for (int ii = 0; ii < stmts.size(); ii++) {
+      if (stmts.get(ii) instanceof OpStatement &&
+          ((OpStatement) stmts.get(ii)).getOp() == AsmOp.RETURN) {
+        return ii;
+      }
+    }
+    return -1;
+  }
+
+  private static List<BasicBlockNode> getSuccessors(BasicBlockNode node) {
+    List<BasicBlockNode> succs = new ArrayList<BasicBlockNode>();
+    if (node.getNext() != null) {
+      succs.add(node.getNext());
+    }
+    if (node.getBranchTarget() != null &&
+        node.getBranchTarget() != node.getNext()) {
+      succs.add(node.getBranchTarget());
+    }
+    return succs;
+  }
+
+  private static void addGlobals(List<TypedDescriptor> accessed,
+                                 Argument arg) {
+    if (arg instanceof ArrayVariableArgument) {
+      addGlobals(accessed, ((ArrayVariableArgument) arg).getIndex());
+    } else if (arg instanceof VariableArgument &&
+               isScalarGlobal(arg.getDesc())) {
+      accessed.add(arg.getDesc());
+    }
+  }
+
+  /**
+   * Returns op with the promoted globals replaced by their locals, or op
+   * itself if it uses none of them.  Statements may be shared with blocks
+   * outside the loop, so they are copied rather than changed.
+   */
+  private static OpStatement rewrite(OpStatement op,
+      Map<VariableLocation, LocalDescriptor> temps) {
+    Argument arg1 = rewrite(op.getArg1(), temps);
+    Argument arg2 = rewrite(op.getArg2(), temps);
+    TypedDescriptor result = op.getResult();
+    if (result != null && temps.containsKey(result.getLocation())) {
+      result = temps.get(result.getLocation());
+    }
+    if (arg1 == op.getArg1() && arg2 == op.getArg2() &&
+        result == op.getResult()) {
+      return op;
+    }
+    return new OpStatement(op.getNode(), op.getOp(), arg1, arg2, result);
+  }
+
+  private static Argument rewrite(Argument arg,
+      Map<VariableLocation, LocalDescriptor> temps) {
+    if (arg instanceof ArrayVariableArgument) {
+      ArrayVariableArgument ava = (ArrayVariableArgument) arg;
+      Argument index = rewrite(ava.getIndex(), temps);
+      if (index == ava.getIndex()) {
+        return arg;
+      }
+      return Argument.makeArgument(ava.getDesc(), index);
+    } else if (arg instanceof VariableArgument &&
+               temps.containsKey(arg.getDesc().getLocation())) {
+      return Argument.makeArgument(temps.get(arg.getDesc().getLocation()));
+    }
+    return arg;
+  }
+}
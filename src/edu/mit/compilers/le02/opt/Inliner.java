@@ -0,0 +1,394 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.compilers.le02.DecafType;
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.VariableLocation;
+import edu.mit.compilers.le02.VariableLocation.LocationType;
+import edu.mit.compilers.le02.ast.ASTNode;
+import edu.mit.compilers.le02.cfg.Argument;
+import edu.mit.compilers.le02.cfg.ArrayVariableArgument;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.CFGGenerator;
+import edu.mit.compilers.le02.cfg.CallStatement;
+import edu.mit.compilers.le02.cfg.HaltStatement;
+import edu.mit.compilers.le02.cfg.NOPStatement;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.VariableArgument;
+import edu.mit.compilers.le02.cfg.BasicStatement.BasicStatementType;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.dfa.Dominators;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+import edu.mit.compilers.le02.symboltable.MethodDescriptor;
+import edu.mit.compilers.le02.symboltable.ParamDescriptor;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+/**
+ * Inlines calls to small methods.  The block making the call is split after
+ * it, the arguments are copied into new locals standing in for the
+ * parameters, and the blocks of the callee are copied in between, with its
+ * locals replaced by new locals of the caller and each return turned into a
+ * copy of the return value and a jump to the rest of the caller.
+ *
+ * Only methods which call no other methods (callouts aside) are inlined, so
+ * a recursive method never is.  Once every call a method makes has been
+ * inlined, it can be inlined in turn.  Methods returning a value which may
+ * fall off their end are not inlined either, since that is a runtime error
+ * reported by the method's own return code.
+ *
+ * A method is inlined if it has at most MAX_INLINE_SIZE statements, or
+ * MAX_LOOP_INLINE_SIZE if the call is inside a loop, and as long as the
+ * caller stays under MAX_METHOD_SIZE.
+ *
+ * This is the only pass which looks at more than one method, so it runs on
+ * the basic blocks of all the methods before they are optimized.  The number
+ * of inlined calls is reported to the PhaseTimer as "inlined calls".
+ */
+public class Inliner {
+  private static final int MAX_INLINE_SIZE = 20;
+  private static final int MAX_LOOP_INLINE_SIZE = 80;
+  private static final int MAX_METHOD_SIZE = 2000;
+
+  private Map<String, BasicBlockNode> methods;
+  private Map<String, List<BasicBlockNode>> methodBlocks;
+  private Map<String, Integer> sizes = new HashMap<String, Integer>();
+  /** The methods which could be inlined, if small enough. */
+  private Set<String> leaves = new HashSet<String>();
+
+  private int inlined = 0;
+
+  /**
+   * Inlines calls in every method, given the entry block and the blocks of
+   * each.  Any blocks which are created are added to the blocks of the
+   * method they are in.
+   */
+  public static void performInlining(Map<String, BasicBlockNode> methods,
+      Map<String, List<BasicBlockNode>> methodBlocks) {
+    Inliner inliner = new Inliner(methods, methodBlocks);
+    inliner.run();
+    PhaseTimer.count("inlined calls", inliner.inlined);
+  }
+
+  private Inliner(Map<String, BasicBlockNode> methods,
+                  Map<String, List<BasicBlockNode>> methodBlocks) {
+    this.methods = methods;
+    this.methodBlocks = methodBlocks;
+  }
+
+  private void run() {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (String name : methods.keySet()) {
+        measure(name);
+      }
+      for (String name : methods.keySet()) {
+        if (inlineCalls(name)) {
+          measure(name);
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts the statements of a method, and notes whether it is a leaf which
+   * cannot fall off its end without returning a value.
+   */
+  private void measure(String name) {
+    int size = 0;
+    boolean leaf = true;
+    for (BasicBlockNode node : methodBlocks.get(name)) {
+      for (BasicStatement stmt : node.getStatements()) {
+        if (stmt.getType() == BasicStatementType.NOP) {
+          continue;
+        }
+        size++;
+        if (stmt.getType() == BasicStatementType.CALL &&
+            !((CallStatement) stmt).isCallout()) {
+          leaf = false;
+        }
+      }
+    }
+    sizes.put(name, size);
+
+    BasicBlockNode enter = methods.get(name);
+    MethodDescriptor desc =
+      enter.getStatements().get(0).getNode().getSymbolTable().getMethod(name);
+    if (desc.getType() != DecafType.VOID) {
+      for (BasicBlockNode node : getBlocks(enter)) {
+        if (fallsOff(node)) {
+          leaf = false;
+        }
+      }
+    }
+    if (leaf) {
+      leaves.add(name);
+    } else {
+      leaves.remove(name);
+    }
+  }
+
+  private static boolean returns(BasicBlockNode node) {
+    for (BasicStatement stmt : node.getStatements()) {
+      if (stmt instanceof OpStatement &&
+          ((OpStatement) stmt).getOp() == AsmOp.RETURN) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean fallsOff(BasicBlockNode node) {
+    return node.getNext() == null && !returns(node) &&
+      !(node.getLastStatement() instanceof HaltStatement);
+  }
+
+  /**
+   * Returns the blocks of a method which can be reached from its entry,
+   * without going past a return.
+   */
+  private static List<BasicBlockNode> getBlocks(BasicBlockNode enter) {
+    List<BasicBlockNode> blocks = new ArrayList<BasicBlockNode>();
+    Set<BasicBlockNode> seen = new HashSet<BasicBlockNode>();
+    blocks.add(enter);
+    seen.add(enter);
+    for (int ii = 0; ii < blocks.size(); ii++) {
+      BasicBlockNode node = blocks.get(ii);
+      if (returns(node)) {
+        continue;
+      }
+      for (BasicBlockNode succ : new BasicBlockNode[] {
+             node.getNext(), node.getBranchTarget() }) {
+        if (succ != null && seen.add(succ)) {
+          blocks.add(succ);
+        }
+      }
+    }
+    return blocks;
+  }
+
+  /**
+   * Inlines whichever calls in the given method are worth it.
+   * @return True if any call was inlined.
+   */
+  private boolean inlineCalls(String caller) {
+    // Calls are inlined, and their blocks numbered, in the order of the
+    // caller's blocks from its entry, rather than the order the list of
+    // them happens to be in.
+    Dominators dom = Dominators.forMethod(methods.get(caller));
+    LinkedList<BasicBlockNode> worklist =
+      new LinkedList<BasicBlockNode>(dom.getBlocks());
+    Set<BasicBlockNode> inLoop = new HashSet<BasicBlockNode>();
+    for (BasicBlockNode node : worklist) {
+      if (dom.getLoopNest().getDepth(node) > 0) {
+        inLoop.add(node);
+      }
+    }
+
+    boolean changed = false;
+    while (!worklist.isEmpty()) {
+      BasicBlockNode node = worklist.removeFirst();
+      List<BasicStatement> stmts = node.getStatements();
+      for (int ii = 0; ii < stmts.size(); ii++) {
+        if (stmts.get(ii).getType() != BasicStatementType.CALL) {
+          continue;
+        }
+        // A call which ends a branching block is its conditional.
+        if (node.isBranch() && ii == stmts.size() - 1) {
+          continue;
+        }
+
+        CallStatement call = (CallStatement) stmts.get(ii);
+        String callee = call.getMethodName();
+        if (call.isCallout() || !leaves.contains(callee) ||
+            callee.equals(caller)) {
+          continue;
+        }
+        int limit = inLoop.contains(node) ? MAX_LOOP_INLINE_SIZE
+                                          : MAX_INLINE_SIZE;
+        int size = sizes.get(callee);
+        if (size > limit || sizes.get(caller) + size > MAX_METHOD_SIZE) {
+          continue;
+        }
+
+        // The rest of the block is now in a new block, which has to be
+        // searched for calls in turn.
+        BasicBlockNode rest = inline(caller, node, ii, call);
+        sizes.put(caller, sizes.get(caller) + size);
+        if (inLoop.contains(node)) {
+          inLoop.add(rest);
+        }
+        worklist.addFirst(rest);
+        changed = true;
+        break;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Inlines the call at the given index of a block of the caller.
+   * @return The block holding the statements which followed the call.
+   */
+  private BasicBlockNode inline(String caller, BasicBlockNode node,
+                                int index, CallStatement call) {
+    inlined++;
+    String prefix = ".inline" + inlined + "_";
+    List<BasicBlockNode> blocks = methodBlocks.get(caller);
+    MethodDescriptor callerDesc =
+      call.getNode().getSymbolTable().getMethod(caller);
+    MethodDescriptor calleeDesc =
+      call.getNode().getSymbolTable().getMethod(call.getMethodName());
+    ASTNode body = callerDesc.getCode();
+    Map<VariableLocation, LocalDescriptor> temps =
+      new HashMap<VariableLocation, LocalDescriptor>();
+
+    // Split the block after the call.
+    List<BasicStatement> stmts = node.getStatements();
+    BasicBlockNode rest = new BasicBlockNode(prefix + "ret", caller);
+    rest.setStatements(new ArrayList<BasicStatement>(
+        stmts.subList(index + 1, stmts.size())));
+    if (rest.getStatements().isEmpty()) {
+      rest.addStatement(new NOPStatement(body));
+    }
+    if (node.getBranchTarget() != null) {
+      rest.setBranchTarget(node.getBranchTarget());
+    }
+    if (node.getNext() != null) {
+      rest.setNext(node.getNext());
+    }
+    node.removeSuccessors();
+    blocks.add(rest);
+
+    // Copy the arguments into the parameters.
+    stmts = new ArrayList<BasicStatement>(stmts.subList(0, index));
+    List<Argument> args = call.getArgs();
+    List<ParamDescriptor> params = calleeDesc.getParams();
+    for (int ii = 0; ii < params.size(); ii++) {
+      stmts.add(new OpStatement(body, AsmOp.MOVE, args.get(ii),
+          Argument.makeArgument(getTemp(params.get(ii), temps, body)),
+          null));
+    }
+    if (stmts.isEmpty()) {
+      stmts.add(new NOPStatement(body));
+    }
+    node.setStatements(stmts);
+
+    // Copy the blocks of the callee.
+    BasicBlockNode enter = methods.get(call.getMethodName());
+    List<BasicBlockNode> originals = getBlocks(enter);
+    Map<BasicBlockNode, BasicBlockNode> copies =
+      new HashMap<BasicBlockNode, BasicBlockNode>();
+    for (BasicBlockNode original : originals) {
+      copies.put(original, new BasicBlockNode(
+          prefix + original.getId().replace(".", ""), caller));
+    }
+
+    for (BasicBlockNode original : originals) {
+      BasicBlockNode copy = copies.get(original);
+      blocks.add(copy);
+      boolean returned = false;
+      for (BasicStatement stmt : original.getStatements()) {
+        if (stmt instanceof OpStatement &&
+            ((OpStatement) stmt).getOp() == AsmOp.RETURN) {
+          Argument value = ((OpStatement) stmt).getArg1();
+          if (value != null && call.getResult() != null) {
+            copy.addStatement(new OpStatement(body, AsmOp.MOVE,
+                copyArgument(value, temps, body),
+                Argument.makeArgument(call.getResult()), null));
+          }
+          returned = true;
+          break;
+        }
+        copy.addStatement(copyStatement(stmt, temps, body));
+      }
+
+      if (returned) {
+        copy.setNext(rest);
+      } else if (original.getNext() != null) {
+        if (original.getBranchTarget() != null) {
+          copy.setBranchTarget(copies.get(original.getBranchTarget()));
+        }
+        copy.setNext(copies.get(original.getNext()));
+      } else if (fallsOff(original)) {
+        copy.setNext(rest);
+      }
+      if (copy.getStatements().isEmpty()) {
+        copy.addStatement(new NOPStatement(body));
+      }
+    }
+    node.setNext(copies.get(enter));
+    return rest;
+  }
+
+  /**
+   * Returns the local of the caller standing in for a local or parameter of
+   * the callee, making it if need be.
+   */
+  private static LocalDescriptor getTemp(TypedDescriptor desc,
+      Map<VariableLocation, LocalDescriptor> temps, ASTNode body) {
+    LocalDescriptor temp = temps.get(desc.getLocation());
+    if (temp == null) {
+      temp = CFGGenerator.makeTemp(body, desc.getType());
+      temps.put(desc.getLocation(), temp);
+    }
+    return temp;
+  }
+
+  private static boolean isLocal(TypedDescriptor desc) {
+    return desc != null &&
+      desc.getLocation().getLocationType() != LocationType.GLOBAL;
+  }
+
+  private static Argument copyArgument(Argument arg,
+      Map<VariableLocation, LocalDescriptor> temps, ASTNode body) {
+    if (arg instanceof ArrayVariableArgument) {
+      ArrayVariableArgument ava = (ArrayVariableArgument) arg;
+      return Argument.makeArgument(ava.getDesc(),
+          copyArgument(ava.getIndex(), temps, body));
+    } else if (arg instanceof VariableArgument && isLocal(arg.getDesc())) {
+      return Argument.makeArgument(getTemp(arg.getDesc(), temps, body));
+    }
+    return arg;
+  }
+
+  /**
+   * Copies a statement of the callee, replacing its locals.
+   */
+  private static BasicStatement copyStatement(BasicStatement stmt,
+      Map<VariableLocation, LocalDescriptor> temps, ASTNode body) {
+    TypedDescriptor result = stmt.getResult();
+    if (isLocal(result)) {
+      result = getTemp(result, temps, body);
+    }
+
+    if (stmt instanceof OpStatement) {
+      OpStatement op = (OpStatement) stmt;
+      Argument arg1 = op.getArg1() == null ? null
+                    : copyArgument(op.getArg1(), temps, body);
+      Argument arg2 = op.getArg2() == null ? null
+                    : copyArgument(op.getArg2(), temps, body);
+      return new OpStatement(body, op.getOp(), arg1, arg2, result);
+    } else if (stmt instanceof CallStatement) {
+      CallStatement call = (CallStatement) stmt;
+      List<Argument> args = new ArrayList<Argument>();
+      for (Argument arg : call.getArgs()) {
+        args.add(copyArgument(arg, temps, body));
+      }
+      return new CallStatement(body, call.getMethodName(), args, result,
+                               call.isCallout());
+    } else if (stmt instanceof HaltStatement) {
+      return new HaltStatement(body);
+    }
+    return new NOPStatement(body);
+  }
+}
@@ -1,179 +1,496 @@
 package edu.mit.compilers.le02.opt;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.SortedSet;
 import java.util.Stack;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+
+/**
+ * The interference graph of the webs of a method, colored with iterated
+ * register coalescing (George and Appel).  Edges are kept both in a bit
+ * matrix, for constant time interference tests, and in adjacency lists, for
+ * walking the neighbors of a node.  Moves between webs are coalesced whenever
+ * the Briggs or George test shows the merged node is still colorable, so the
+ * copy becomes a move of a register to itself.
+ *
+ * Webs left without a color are spilled; they keep their stack locations,
+ * which the code generator already reaches through its scratch registers, so
+ * no spill code has to be inserted and the graph is never rebuilt.
+ *
+ * The lowest colors stand for callee-saved registers.  Webs live across a
+ * call are given those colors where possible, since a callee-saved register
+ * is saved once per method rather than around every call, and the other
+ * webs are kept out of them.
+ */
 public class InterferenceGraph {
-  // Trying to keep things deterministic
-  private SortedMap<Web, IGNode> nodes = new TreeMap<Web, IGNode>();
+  private static enum NodeState {
+    INITIAL, SIMPLIFY, FREEZE, SPILL, SPILLED, COALESCED, COLORED, SELECT
+  }
+
+  private static enum MoveState {
+    WORKLIST, ACTIVE, COALESCED, CONSTRAINED, FROZEN
+  }
+
+  private static class Move {
+    private int src, dst, depth;
+    private MoveState state = MoveState.WORKLIST;
+
+    public Move(int src, int dst, int depth) {
+      this.src = src;
+      this.dst = dst;
+      this.depth = depth;
+    }
+  }
+
+  private List<Web> webs = new ArrayList<Web>();
+  private Map<Web, Integer> indices = new HashMap<Web, Integer>();
+  private List<BitSet> matrix = new ArrayList<BitSet>();
+  private List<List<Integer>> adjList = new ArrayList<List<Integer>>();
+  private List<Move> moves = new ArrayList<Move>();
+  private BitSet crossesCall = new BitSet();
+
+  private int numRegisters;
+  private int numCalleeSaved;
+  private int[] degree;
+  private int[] alias;
+  private int[] color;
+  private double[] cost;
+  private NodeState[] state;
+  private List<List<Move>> moveList;
+
+  // Worklists are insertion ordered, to keep the coloring deterministic.
+  private Set<Integer> simplifyWorklist;
+  private Set<Integer> freezeWorklist;
+  private Set<Integer> spillWorklist;
+  private Set<Move> worklistMoves;
+  private Stack<Integer> selectStack;
 
   public boolean isEmpty() {
-    return nodes.isEmpty();
+    return webs.isEmpty();
   }
 
-  public void addNode(Web web) {
-    nodes.put(web, new IGNode(web));
+  public int numNodes() {
+    return webs.size();
   }
 
-  public void linkNodes(Web w1, Web w2) {
-    if (w1 == w2) {
-      return;
+  public int numEdges() {
+    int ends = 0;
+    for (List<Integer> adj : adjList) {
+      ends += adj.size();
     }
+    return ends / 2;
+  }
 
-    IGNode n1, n2;
-    n1 = nodes.get(w1);
-    n2 = nodes.get(w2);
+  public void addNode(Web web) {
+    web = web.find();
+    if (indices.containsKey(web)) {
+      return;
+    }
+    indices.put(web, webs.size());
+    webs.add(web);
+    matrix.add(new BitSet());
+    adjList.add(new ArrayList<Integer>());
+  }
 
-    n1.addNeighbor(n2);
-    n2.addNeighbor(n1);
+  public void linkNodes(Web w1, Web w2) {
+    addEdge(indices.get(w1.find()), indices.get(w2.find()));
   }
 
-  private IGNode removeLowestDegree() {
-    int min = Integer.MAX_VALUE;
-    IGNode minNode = null;
-    for (IGNode node : nodes.values()) {
-      if (node.wasRemoved()) {
-        continue;
-      }
-      if (node.getDegree() < min) {
-        min = node.getDegree();
-        minNode = node;
-      }
+  /**
+   * Records a copy from the web src to the web dst, made inside depth loops.
+   * Copies in deeper loops are considered for coalescing first.
+   */
+  public void addMove(Web src, Web dst, int depth) {
+    int s = indices.get(src.find());
+    int d = indices.get(dst.find());
+    if (s != d) {
+      moves.add(new Move(s, d, depth));
     }
+  }
 
-    minNode.simulateRemove();
-    return minNode;
+  /**
+   * Records that a web is live across a call.
+   */
+  public void addCallCrossing(Web web) {
+    crossesCall.set(indices.get(web.find()));
   }
 
-  private int colorNode(IGNode node) {
-    HashSet<Integer> colors = new HashSet<Integer>();
-    for (IGNode n : node.getNeighbors()) {
-      colors.add(n.getColor());
+  private void addEdge(int u, int v) {
+    if (u == v || matrix.get(u).get(v)) {
+      return;
     }
-
-    int color = 0;
-    while (colors.contains(color)) {
-      color++;
+    matrix.get(u).set(v);
+    matrix.get(v).set(u);
+    adjList.get(u).add(v);
+    adjList.get(v).add(u);
+    if (degree != null) {
+      degree[u]++;
+      degree[v]++;
     }
-
-    node.setColor(color);
-    return color;
   }
 
-  public int colorGraph() {
-    Stack<IGNode> stack = new Stack<IGNode>();
-    int numColors = 0;
+  /**
+   * Colors the graph with at most numRegisters colors, and sets the color of
+   * every web.  Webs which have to be spilled get the color -1; webs with the
+   * lowest spill cost per neighbor are chosen first.  The first
+   * numCalleeSaved colors are kept for webs live across calls.
+   * @return The number of colors used.
+   */
+  public int colorGraph(int numRegisters, int numCalleeSaved,
+                        Map<BasicStatement, Integer> loopDepths) {
+    this.numRegisters = numRegisters;
+    this.numCalleeSaved = numCalleeSaved;
+    int n = webs.size();
+    degree = new int[n];
+    alias = new int[n];
+    color = new int[n];
+    cost = new double[n];
+    state = new NodeState[n];
+    moveList = new ArrayList<List<Move>>();
+    simplifyWorklist = new LinkedHashSet<Integer>();
+    freezeWorklist = new LinkedHashSet<Integer>();
+    spillWorklist = new LinkedHashSet<Integer>();
+    worklistMoves = new LinkedHashSet<Move>();
+    selectStack = new Stack<Integer>();
+
+    for (int i = 0; i < n; i++) {
+      degree[i] = adjList.get(i).size();
+      alias[i] = i;
+      color[i] = -1;
+      cost[i] = webs.get(i).getSpillCost(loopDepths);
+      state[i] = NodeState.INITIAL;
+      moveList.add(new ArrayList<Move>());
+    }
 
-    for (int i = 0; i < nodes.size(); i++) {
-      stack.push(removeLowestDegree());
+    List<Move> sorted = new ArrayList<Move>(moves);
+    Collections.sort(sorted, new Comparator<Move>() {
+      @Override
+      public int compare(Move m1, Move m2) {
+        return m2.depth - m1.depth;
+      }
+    });
+    for (Move m : sorted) {
+      moveList.get(m.src).add(m);
+      moveList.get(m.dst).add(m);
+      worklistMoves.add(m);
+    }
+
+    makeWorklist();
+    while (true) {
+      if (!simplifyWorklist.isEmpty()) {
+        simplify();
+      } else if (!worklistMoves.isEmpty()) {
+        coalesce();
+      } else if (!freezeWorklist.isEmpty()) {
+        freeze();
+      } else if (!spillWorklist.isEmpty()) {
+        selectSpill();
+      } else {
+        break;
+      }
     }
+    assignColors();
 
-    int color;
-    while (!stack.empty()) {
-      color = colorNode(stack.pop());
-      if (color >= numColors) {
-        numColors = color + 1;
+    int numColors = 0;
+    int coalesced = 0, spilled = 0;
+    for (int i = 0; i < n; i++) {
+      webs.get(i).setColor(color[i]);
+      numColors = Math.max(numColors, color[i] + 1);
+      if (state[i] == NodeState.SPILLED) {
+        spilled++;
+      }
+    }
+    for (Move m : moves) {
+      if (m.state == MoveState.COALESCED) {
+        coalesced++;
       }
     }
+    PhaseTimer.count("coalesced moves", coalesced);
+    PhaseTimer.count("spilled webs", spilled);
     return numColors;
   }
 
-  public static class IGNode implements Comparable<IGNode> {
-    private Web web;
-    private int color = -1;
-    private int degree = 0;
-    private boolean removed = false;
-    // Trying to keep things deterministic
-    private SortedSet<IGNode> neighbors = new TreeSet<IGNode>();
-
-    public IGNode(Web web) {
-      this.web = web;
+  private void makeWorklist() {
+    for (int i = 0; i < webs.size(); i++) {
+      if (degree[i] >= numRegisters) {
+        setState(i, NodeState.SPILL);
+      } else if (isMoveRelated(i)) {
+        setState(i, NodeState.FREEZE);
+      } else {
+        setState(i, NodeState.SIMPLIFY);
+      }
     }
+  }
 
-    public void reset() {
-      removed = false;
-      degree = neighbors.size();
+  /**
+   * Moves a node to the worklist for the given state, taking it off the
+   * worklist it was on.
+   */
+  private void setState(int node, NodeState s) {
+    switch (state[node]) {
+     case SIMPLIFY:
+      simplifyWorklist.remove(node);
+      break;
+     case FREEZE:
+      freezeWorklist.remove(node);
+      break;
+     case SPILL:
+      spillWorklist.remove(node);
+      break;
     }
-
-    public boolean wasRemoved() {
-      return removed;
+    state[node] = s;
+    switch (s) {
+     case SIMPLIFY:
+      simplifyWorklist.add(node);
+      break;
+     case FREEZE:
+      freezeWorklist.add(node);
+      break;
+     case SPILL:
+      spillWorklist.add(node);
+      break;
+     case SELECT:
+      selectStack.push(node);
+      break;
     }
+  }
 
-    public int getDegree() {
-      return degree;
+  /**
+   * Returns the neighbors of a node which are still in the graph.
+   */
+  private List<Integer> adjacent(int node) {
+    List<Integer> ret = new ArrayList<Integer>();
+    for (int m : adjList.get(node)) {
+      if (state[m] != NodeState.SELECT && state[m] != NodeState.COALESCED) {
+        ret.add(m);
+      }
     }
+    return ret;
+  }
 
-    public int getColor() {
-      return color;
+  private List<Move> nodeMoves(int node) {
+    List<Move> ret = new ArrayList<Move>();
+    for (Move m : moveList.get(node)) {
+      if (m.state == MoveState.WORKLIST || m.state == MoveState.ACTIVE) {
+        ret.add(m);
+      }
     }
+    return ret;
+  }
 
-    public Web getWeb() {
-      return web;
+  private boolean isMoveRelated(int node) {
+    return !nodeMoves(node).isEmpty();
+  }
+
+  private int getAlias(int node) {
+    while (state[node] == NodeState.COALESCED) {
+      node = alias[node];
     }
+    return node;
+  }
 
-    public void setColor(int color) {
-      this.color = color;
-      this.web.setColor(color);
+  private void simplify() {
+    Iterator<Integer> it = simplifyWorklist.iterator();
+    int node = it.next();
+    setState(node, NodeState.SELECT);
+    for (int m : adjacent(node)) {
+      decrementDegree(m);
     }
+  }
 
-    public Set<IGNode> getNeighbors() {
-      return neighbors;
+  private void decrementDegree(int node) {
+    int d = degree[node]--;
+    if (d == numRegisters && state[node] == NodeState.SPILL) {
+      enableMoves(node);
+      for (int m : adjacent(node)) {
+        enableMoves(m);
+      }
+      if (isMoveRelated(node)) {
+        setState(node, NodeState.FREEZE);
+      } else {
+        setState(node, NodeState.SIMPLIFY);
+      }
     }
+  }
 
-    public void addNeighbor(IGNode node) {
-      if (neighbors.contains(node)) {
-        return;
+  private void enableMoves(int node) {
+    for (Move m : nodeMoves(node)) {
+      if (m.state == MoveState.ACTIVE) {
+        m.state = MoveState.WORKLIST;
+        worklistMoves.add(m);
       }
+    }
+  }
 
-      neighbors.add(node);
-      degree += 1;
+  private void coalesce() {
+    Iterator<Move> it = worklistMoves.iterator();
+    Move m = it.next();
+    it.remove();
+
+    int u = getAlias(m.src);
+    int v = getAlias(m.dst);
+    if (u == v) {
+      m.state = MoveState.COALESCED;
+      addWorklist(u);
+    } else if (matrix.get(u).get(v)) {
+      m.state = MoveState.CONSTRAINED;
+      addWorklist(u);
+      addWorklist(v);
+    } else if (isBriggsSafe(u, v) || isGeorgeSafe(u, v)) {
+      m.state = MoveState.COALESCED;
+      combine(u, v);
+      addWorklist(u);
+    } else {
+      m.state = MoveState.ACTIVE;
     }
+  }
 
-    public void simulateRemoveNeighbor(IGNode node) {
-      if (!neighbors.contains(node)) {
-        return;
-      }
+  private void addWorklist(int node) {
+    if (state[node] == NodeState.FREEZE && !isMoveRelated(node)
+        && degree[node] < numRegisters) {
+      setState(node, NodeState.SIMPLIFY);
+    }
+  }
 
-      degree -= 1;
+  /**
+   * Merging u and v is safe if the merged node has fewer than numRegisters
+   * neighbors of significant degree.
+   */
+  private boolean isBriggsSafe(int u, int v) {
+    Set<Integer> nodes = new LinkedHashSet<Integer>(adjacent(u));
+    nodes.addAll(adjacent(v));
+    int k = 0;
+    for (int t : nodes) {
+      if (degree[t] >= numRegisters) {
+        k++;
+      }
     }
+    return k < numRegisters;
+  }
 
-    public void simulateRemove() {
-      for (IGNode n : neighbors) {
-        n.simulateRemoveNeighbor(this);
+  /**
+   * Merging v into u is safe if every neighbor of v already interferes with
+   * u or has insignificant degree.
+   */
+  private boolean isGeorgeSafe(int u, int v) {
+    for (int t : adjacent(v)) {
+      if (degree[t] >= numRegisters && !matrix.get(t).get(u)) {
+        return false;
       }
-      removed = true;
     }
+    return true;
+  }
 
-    @Override
-    public String toString() {
-      return "NODE\ndegree: " + getDegree() + "\n"
-           + "color: " + color + "\n"
-           + "removed: " + removed + "\n"
-           + "# neighbors: " + neighbors.size() + "\n";
+  private void combine(int u, int v) {
+    setState(v, NodeState.COALESCED);
+    alias[v] = u;
+    moveList.get(u).addAll(moveList.get(v));
+    cost[u] += cost[v];
+    if (crossesCall.get(v)) {
+      crossesCall.set(u);
+    }
+    enableMoves(v);
+    for (int t : adjacent(v)) {
+      addEdge(t, u);
+      decrementDegree(t);
+    }
+    if (degree[u] >= numRegisters && state[u] == NodeState.FREEZE) {
+      setState(u, NodeState.SPILL);
     }
+  }
+
+  private void freeze() {
+    int node = freezeWorklist.iterator().next();
+    setState(node, NodeState.SIMPLIFY);
+    freezeMoves(node);
+  }
 
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) return true;
-      if (!(o instanceof IGNode)) return false;
-      IGNode other = (IGNode) o;
-      return this.web.equals(other.web);
+  private void freezeMoves(int node) {
+    for (Move m : nodeMoves(node)) {
+      int v;
+      if (getAlias(m.dst) == getAlias(node)) {
+        v = getAlias(m.src);
+      } else {
+        v = getAlias(m.dst);
+      }
+      worklistMoves.remove(m);
+      m.state = MoveState.FROZEN;
+      if (state[v] == NodeState.FREEZE && !isMoveRelated(v)
+          && degree[v] < numRegisters) {
+        setState(v, NodeState.SIMPLIFY);
+      }
     }
+  }
 
-    @Override
-    public int hashCode() {
-      return this.web.hashCode();
+  private void selectSpill() {
+    int best = -1;
+    for (int node : spillWorklist) {
+      if (best == -1 || cost[node] / degree[node] < cost[best] / degree[best]) {
+        best = node;
+      }
     }
+    setState(best, NodeState.SIMPLIFY);
+    freezeMoves(best);
+  }
 
-    @Override
-    public int compareTo(IGNode node) {
-      return this.web.compareTo(node.web);
+  private void assignColors() {
+    while (!selectStack.empty()) {
+      int node = selectStack.pop();
+      BitSet okColors = new BitSet();
+      okColors.set(0, numRegisters);
+      for (int w : adjList.get(node)) {
+        int a = getAlias(w);
+        if (state[a] == NodeState.COLORED) {
+          okColors.clear(color[a]);
+        }
+      }
+      if (okColors.isEmpty()) {
+        state[node] = NodeState.SPILLED;
+        continue;
+      }
+
+      // Keep to the callee-saved colors if the web is live across a call,
+      // and to the others if not, unless none of them are free.
+      BitSet preferred = (BitSet) okColors.clone();
+      if (crossesCall.get(node)) {
+        preferred.clear(numCalleeSaved, numRegisters);
+      } else {
+        preferred.clear(0, numCalleeSaved);
+      }
+      if (preferred.isEmpty()) {
+        preferred = okColors;
+      }
+
+      // Prefer the color of a web this one could not be coalesced with, so
+      // the copy between them may still disappear.
+      int c = preferred.nextSetBit(0);
+      for (Move m : moveList.get(node)) {
+        int other = getAlias(m.src) == node ? getAlias(m.dst)
+                                            : getAlias(m.src);
+        if (state[other] == NodeState.COLORED && preferred.get(color[other])) {
+          c = color[other];
+          break;
+        }
+      }
+      state[node] = NodeState.COLORED;
+      color[node] = c;
     }
 
-  };
+    for (int i = 0; i < webs.size(); i++) {
+      if (state[i] == NodeState.COALESCED) {
+        int a = getAlias(i);
+        color[i] = state[a] == NodeState.COLORED ? color[a] : -1;
+      }
+    }
+  }
 }
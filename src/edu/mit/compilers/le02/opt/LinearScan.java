@@ -0,0 +1,141 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import edu.mit.compilers.le02.PhaseTimer;
+
+/**
+ * A linear-scan register allocator (Poletto and Sarkar).  Each web gets a
+ * live interval spanning every position at which it is live, in a linear
+ * order of the method's statements, and the intervals are then assigned
+ * colors in order of their start.  When every color is taken, the interval
+ * which ends last is spilled.
+ *
+ * This needs no interference graph, so it is much cheaper than
+ * InterferenceGraph on very large methods, at the cost of coarser
+ * allocation: intervals may overlap where the webs never interfere, and no
+ * copies are coalesced.
+ *
+ * As in InterferenceGraph, the lowest colors stand for callee-saved
+ * registers, and are preferred by intervals live across a call and avoided
+ * by the others.
+ */
+public class LinearScan {
+  private static class Interval {
+    private Web web;
+    private int start, end;
+    private int color = -1;
+    private boolean crossesCall = false;
+
+    public Interval(Web web, int pos) {
+      this.web = web;
+      this.start = pos;
+      this.end = pos;
+    }
+  }
+
+  private Map<Web, Interval> intervals = new HashMap<Web, Interval>();
+  private List<Interval> order = new ArrayList<Interval>();
+
+  /**
+   * Records that a web is live at the given position.
+   */
+  public void addPosition(Web web, int pos) {
+    web = web.find();
+    Interval i = intervals.get(web);
+    if (i == null) {
+      i = new Interval(web, pos);
+      intervals.put(web, i);
+      order.add(i);
+    } else {
+      i.start = Math.min(i.start, pos);
+      i.end = Math.max(i.end, pos);
+    }
+  }
+
+  /**
+   * Records that a web is live across a call.
+   */
+  public void addCallCrossing(Web web) {
+    Interval i = intervals.get(web.find());
+    if (i != null) {
+      i.crossesCall = true;
+    }
+  }
+
+  /**
+   * Assigns at most numRegisters colors to the intervals, and sets the color
+   * of every web.  Webs which are spilled get the color -1.  The first
+   * numCalleeSaved colors are kept for intervals live across calls.
+   * @return The number of colors used.
+   */
+  public int allocate(int numRegisters, int numCalleeSaved) {
+    List<Interval> sorted = new ArrayList<Interval>(order);
+    Collections.sort(sorted, new Comparator<Interval>() {
+      @Override
+      public int compare(Interval i1, Interval i2) {
+        if (i1.start != i2.start) {
+          return i1.start - i2.start;
+        }
+        return i1.web.compareTo(i2.web);
+      }
+    });
+
+    // Active intervals are ordered by increasing end.
+    TreeSet<Interval> active = new TreeSet<Interval>(
+        new Comparator<Interval>() {
+      @Override
+      public int compare(Interval i1, Interval i2) {
+        if (i1.end != i2.end) {
+          return i1.end - i2.end;
+        }
+        return i1.web.compareTo(i2.web);
+      }
+    });
+    TreeSet<Integer> free = new TreeSet<Integer>();
+    for (int c = 0; c < numRegisters; c++) {
+      free.add(c);
+    }
+
+    int spilled = 0;
+    for (Interval i : sorted) {
+      // Expire the intervals which end before this one starts.
+      while (!active.isEmpty() && active.first().end < i.start) {
+        free.add(active.pollFirst().color);
+      }
+
+      if (!free.isEmpty()) {
+        Integer color = i.crossesCall ? null : free.ceiling(numCalleeSaved);
+        if (color == null) {
+          color = free.first();
+        }
+        i.color = color;
+        free.remove(color);
+        active.add(i);
+      } else {
+        Interval last = active.last();
+        if (last.end > i.end) {
+          i.color = last.color;
+          last.color = -1;
+          active.remove(last);
+          active.add(i);
+        }
+        spilled++;
+      }
+    }
+
+    int numColors = 0;
+    for (Interval i : order) {
+      i.web.setColor(i.color);
+      numColors = Math.max(numColors, i.color + 1);
+    }
+    PhaseTimer.count("spilled webs", spilled);
+    return numColors;
+  }
+}
@@ -0,0 +1,410 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.VariableLocation;
+import edu.mit.compilers.le02.VariableLocation.LocationType;
+import edu.mit.compilers.le02.cfg.Argument;
+import edu.mit.compilers.le02.cfg.ArrayVariableArgument;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.BasicStatement.BasicStatementType;
+import edu.mit.compilers.le02.cfg.ConstantArgument;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.VariableArgument;
+import edu.mit.compilers.le02.dfa.Dominators;
+import edu.mit.compilers.le02.dfa.Liveness;
+import edu.mit.compilers.le02.dfa.LoopNest.Loop;
+import edu.mit.compilers.le02.dfa.ReachingDefinitions;
+import edu.mit.compilers.le02.dfa.ReachingDefinitions.FakeDefStatement;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+/**
+ * Moves loop-invariant computations out of the natural loops of a method.
+ *
+ * The natural loops come from the method's LoopNest, and each loop header
+ * is given a preheader block through which every entry into the loop
+ * passes.  Loops are then processed from
+ * the innermost outwards, so that a computation can move out of several
+ * loops in turn.
+ *
+ * A statement is hoisted into the preheader if it cannot trap, all of its
+ * operands are constants or have only definitions from outside the loop or
+ * already hoisted reaching them, it is the only definition of its target
+ * in the loop, and its target is not live on entry to the loop header.
+ * The last condition means that no use, in the loop or after it, can see
+ * the value the target held before the loop.
+ *
+ * The number of hoisted statements is reported to the PhaseTimer as
+ * "hoisted statements".
+ */
+public class LoopInvariantCodeMotion {
+  private BasicBlockNode methodEnter;
+  private List<BasicBlockNode> blocks;
+
+  /** The dominators before any preheaders were added. */
+  private Dominators dom;
+
+  private int hoisted = 0;
+
+  /**
+   * Runs LICM on the method starting at methodEnter.  Any preheaders which
+   * are created are added to blocks.
+   */
+  public static void performLoopInvariantCodeMotion(
+      BasicBlockNode methodEnter, List<BasicBlockNode> blocks) {
+    LoopInvariantCodeMotion licm =
+      new LoopInvariantCodeMotion(methodEnter, blocks);
+    licm.run();
+    PhaseTimer.count("hoisted statements", licm.hoisted);
+  }
+
+  private LoopInvariantCodeMotion(BasicBlockNode methodEnter,
+                                  List<BasicBlockNode> blocks) {
+    this.methodEnter = methodEnter;
+    this.blocks = blocks;
+  }
+
+  private void run() {
+    dom = Dominators.forMethod(methodEnter);
+    List<Loop> loops = dom.getLoopNest().getLoops();
+    if (loops.isEmpty()) {
+      return;
+    }
+
+    // Give every header a preheader.  The preheader of a nested loop lies
+    // inside each loop which encloses it.
+    Map<Loop, Set<BasicBlockNode>> bodies =
+      new HashMap<Loop, Set<BasicBlockNode>>();
+    for (Loop loop : loops) {
+      bodies.put(loop, new HashSet<BasicBlockNode>(loop.getBlocks()));
+    }
+    Map<Loop, BasicBlockNode> preheaders = new HashMap<Loop, BasicBlockNode>();
+    for (Loop loop : loops) {
+      BasicBlockNode preheader = makePreheader(loop.getHeader(),
+                                               loop.getBlocks(), blocks);
+      preheaders.put(loop, preheader);
+      for (Loop outer = loop.getParent(); outer != null;
+           outer = outer.getParent()) {
+        bodies.get(outer).add(preheader);
+      }
+    }
+
+    // The analyses are computed once.  Hoisting out of an inner loop only
+    // moves statements into its preheader, which is still inside every
+    // enclosing loop, and the definitions of each loop are recounted from
+    // its current statements, so later loops never rely on a stale fact to
+    // hoist.  Loops come innermost first.
+    ReachingDefinitions rd = new ReachingDefinitions(methodEnter);
+    removeFakeDefs();
+    Liveness live = new Liveness(methodEnter);
+    for (Loop loop : loops) {
+      hoist(loop.getHeader(), bodies.get(loop), preheaders.get(loop), rd,
+            live);
+    }
+  }
+
+  /**
+   * Creates an empty block which every edge into header from outside the
+   * loop is redirected through.  If nothing is hoisted into it, it is
+   * removed again along with the other empty blocks.
+   */
+  static BasicBlockNode makePreheader(BasicBlockNode header,
+                                      Set<BasicBlockNode> body,
+                                      List<BasicBlockNode> blocks) {
+    // The header may already have a preheader from an earlier pass, so
+    // find an unused label.
+    BasicBlockNode preheader =
+      new BasicBlockNode(makeBlockId(header.getId() + "_pre", blocks),
+                         header.getMethod());
+    for (BasicBlockNode pred :
+         new ArrayList<BasicBlockNode>(header.getPredecessors())) {
+      if (body.contains(pred)) {
+        continue;
+      }
+      if (pred.getNext() == header) {
+        pred.setNext(preheader);
+      }
+      if (pred.getBranchTarget() == header) {
+        pred.setBranchTarget(preheader);
+      }
+    }
+    preheader.setNext(header);
+    blocks.add(preheader);
+    return preheader;
+  }
+
+  /**
+   * Returns the only block outside loop which leads into its header, if
+   * that block leads nowhere else.
+   */
+  static BasicBlockNode findPreheader(Loop loop) {
+    BasicBlockNode preheader = null;
+    for (BasicBlockNode pred : loop.getHeader().getPredecessors()) {
+      if (loop.contains(pred)) {
+        continue;
+      }
+      if (preheader != null) {
+        return null;
+      }
+      preheader = pred;
+    }
+    if (preheader == null || preheader.isBranch() ||
+        preheader.getNext() != loop.getHeader()) {
+      return null;
+    }
+    return preheader;
+  }
+
+  /**
+   * Returns prefix, or prefix followed by a number, whichever is the first
+   * not already used as the label of one of blocks.
+   */
+  static String makeBlockId(String prefix, List<BasicBlockNode> blocks) {
+    Set<String> ids = new HashSet<String>();
+    for (BasicBlockNode node : blocks) {
+      ids.add(node.getId());
+    }
+    String id = prefix;
+    for (int ii = 2; ids.contains(id); ii++) {
+      id = prefix + ii;
+    }
+    return id;
+  }
+
+  /**
+   * Hoists the invariant statements of one loop into its preheader.
+   */
+  private void hoist(BasicBlockNode header, Set<BasicBlockNode> body,
+                     BasicBlockNode preheader, ReachingDefinitions rd,
+                     Liveness live) {
+    // Visit the body in reverse postorder, so that definitions are usually
+    // seen before their uses.  Preheaders of inner loops are not numbered.
+    List<BasicBlockNode> loopBlocks = new ArrayList<BasicBlockNode>();
+    for (BasicBlockNode node : dom.getBlocks()) {
+      if (body.contains(node)) {
+        loopBlocks.add(node);
+      }
+    }
+    for (BasicBlockNode node : body) {
+      if (!dom.isReachable(node)) {
+        loopBlocks.add(node);
+      }
+    }
+
+    // Count the definitions of each variable in the loop.  Unlike
+    // ReachingDefinitions, this includes comparisons which store results.
+    Map<VariableLocation, List<BasicStatement>> writers =
+      new HashMap<VariableLocation, List<BasicStatement>>();
+    Set<BasicStatement> inLoop = new HashSet<BasicStatement>();
+    boolean hasCall = false;
+    for (BasicBlockNode node : loopBlocks) {
+      for (BasicStatement s : node.getStatements()) {
+        inLoop.add(s);
+        if (s.getType() == BasicStatementType.CALL) {
+          hasCall = true;
+        }
+        VariableLocation target = getTarget(s);
+        if (target != null) {
+          List<BasicStatement> defs = writers.get(target);
+          if (defs == null) {
+            defs = new ArrayList<BasicStatement>();
+            writers.put(target, defs);
+          }
+          defs.add(s);
+        }
+      }
+    }
+
+    Set<BasicStatement> invariant = new HashSet<BasicStatement>();
+    List<BasicStatement> moved = new ArrayList<BasicStatement>();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (BasicBlockNode node : loopBlocks) {
+        List<BasicStatement> stmts = node.getStatements();
+        // The conditional of a branch must stay where it is.
+        int end = node.isBranch() ? stmts.size() - 1 : stmts.size();
+        for (int ii = 0; ii < end; ii++) {
+          BasicStatement s = stmts.get(ii);
+          if (invariant.contains(s) || !isHoistable(s)) {
+            continue;
+          }
+          OpStatement op = (OpStatement) s;
+          TypedDescriptor dest = getTargetDesc(op);
+          VariableLocation target = dest.getLocation();
+          if (target.getLocationType() == LocationType.GLOBAL ||
+              writers.get(target).size() != 1 ||
+              live.getBlockItem(header).isLiveOnEntrance(dest)) {
+            continue;
+          }
+          if (isInvariant(op.getArg1(), node, stmts, ii, rd, writers,
+                          inLoop, invariant, hasCall) &&
+              (op.getOp() == OpStatement.AsmOp.MOVE ||
+               isInvariant(op.getArg2(), node, stmts, ii, rd, writers,
+                           inLoop, invariant, hasCall))) {
+            invariant.add(s);
+            moved.add(s);
+            changed = true;
+          }
+        }
+      }
+    }
+
+    if (moved.isEmpty()) {
+      return;
+    }
+    for (BasicBlockNode node : loopBlocks) {
+      List<BasicStatement> stmts = node.getStatements();
+      if (stmts.removeAll(invariant)) {
+        node.setStatements(stmts);
+      }
+    }
+    for (BasicStatement s : moved) {
+      preheader.addStatement(s);
+    }
+    hoisted += moved.size();
+  }
+
+  /**
+   * Returns whether s computes a value without side effects and without
+   * any possibility of trapping, so that it may be executed even on paths
+   * which did not execute it before.
+   */
+  private static boolean isHoistable(BasicStatement s) {
+    if (!(s instanceof OpStatement)) {
+      return false;
+    }
+    OpStatement op = (OpStatement) s;
+    if (op.getArg1() instanceof ArrayVariableArgument ||
+        op.getArg2() instanceof ArrayVariableArgument) {
+      return false;
+    }
+    switch (op.getOp()) {
+      case MOVE:
+        return op.getArg2() instanceof VariableArgument;
+      case ADD:
+      case SUBTRACT:
+      case MULTIPLY:
+      case SHL:
+      case SHR:
+      case BITWISE_AND:
+      case UNARY_MINUS:
+      case NOT:
+        return op.getResult() != null;
+      case DIVIDE:
+      case MODULO:
+        // Dividing by zero, or the smallest int by -1, traps.
+        if (!(op.getArg2() instanceof ConstantArgument)) {
+          return false;
+        }
+        int divisor = ((ConstantArgument) op.getArg2()).getInt();
+        return op.getResult() != null && divisor != 0 && divisor != -1;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns whether arg has the same value on every iteration of the loop,
+   * when used by the statement at index ii of node.
+   */
+  private static boolean isInvariant(Argument arg, BasicBlockNode node,
+      List<BasicStatement> stmts, int ii, ReachingDefinitions rd,
+      Map<VariableLocation, List<BasicStatement>> writers,
+      Set<BasicStatement> inLoop,
+      Set<BasicStatement> invariant, boolean hasCall) {
+    if (arg == null || arg instanceof ConstantArgument) {
+      return true;
+    }
+    if (!(arg instanceof VariableArgument) ||
+        arg instanceof ArrayVariableArgument) {
+      return false;
+    }
+    VariableLocation loc = arg.getDesc().getLocation();
+    if (hasCall && loc.getLocationType() == LocationType.GLOBAL) {
+      return false;
+    }
+
+    // ReachingDefinitions does not track every kind of definition, so
+    // check directly that the loop defines the variable at most once, and
+    // then only in a statement which has been hoisted.
+    List<BasicStatement> loopDefs = writers.get(loc);
+    if (loopDefs != null &&
+        (loopDefs.size() > 1 || !invariant.contains(loopDefs.get(0)))) {
+      return false;
+    }
+
+    Collection<BasicStatement> defs = null;
+    for (int jj = ii - 1; jj >= 0; jj--) {
+      if (loc.equals(getTarget(stmts.get(jj)))) {
+        defs = Collections.singletonList(stmts.get(jj));
+        break;
+      }
+    }
+    if (defs == null) {
+      defs = rd.getDefinitions(node).getReachingDefinitions(loc);
+    }
+    for (BasicStatement def : defs) {
+      if (inLoop.contains(def) && !invariant.contains(def)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static TypedDescriptor getTargetDesc(BasicStatement s) {
+    if (s instanceof OpStatement) {
+      OpStatement op = (OpStatement) s;
+      switch (op.getOp()) {
+        case MOVE:
+          return op.getArg2().getDesc();
+        case ENTER:
+        case RETURN:
+          return null;
+        default:
+          return op.getResult();
+      }
+    }
+    return s.getResult();
+  }
+
+  /**
+   * Returns the scalar variable written by s, or null if there is none.
+   */
+  private static VariableLocation getTarget(BasicStatement s) {
+    if (s instanceof OpStatement && ((OpStatement) s).getOp() ==
+        OpStatement.AsmOp.MOVE &&
+        ((OpStatement) s).getArg2() instanceof ArrayVariableArgument) {
+      return null;
+    }
+    TypedDescriptor desc = getTargetDesc(s);
+    if (desc == null) {
+      return null;
+    }
+    return desc.getLocation();
+  }
+
+  /**
+   * Removes the parameter definitions ReachingDefinitions places at the
+   * start of the method, so that later analyses start from a clean block.
+   */
+  private void removeFakeDefs() {
+    List<BasicStatement> stmts = methodEnter.getStatements();
+    List<BasicStatement> kept = new ArrayList<BasicStatement>(stmts.size());
+    for (BasicStatement s : stmts) {
+      if (!(s instanceof FakeDefStatement)) {
+        kept.add(s);
+      }
+    }
+    methodEnter.setStatements(kept);
+  }
+}
@@ -153,6 +153,20 @@ public class LoopMonotonicCode extends ASTNodeVisitor<Boolean> {
     */
   }
 
+  /**
+   * Drops all results so that nothing from the last AST analyzed is kept
+   * alive between compilations.
+   */
+  public static void reset() {
+    fors = null;
+    loopVars = null;
+    monotonicExprs = null;
+    pullup = null;
+    flatFors = null;
+    highestFlatFor = null;
+    instance = null;
+  }
+
   public static Set<ExpressionNode> getMonotonicExprs() {
     return monotonicExprs;
   }
@@ -161,6 +175,17 @@ public class LoopMonotonicCode extends ASTNodeVisitor<Boolean> {
     return flatFors;
   }
 
+  /**
+   * Checks that a variable is never written by a loop's body, or by its
+   * bounds if includeLoopBounds is set.  Calls are taken to write every
+   * global.
+   */
+  public static boolean isUntouched(ForNode node, TypedDescriptor var,
+      boolean includeLoopBounds) {
+    return getInstance().new UntouchedLoopVariable().check(
+        node, var, includeLoopBounds);
+  }
+
   @Override
   public Boolean visit(ForNode node) {
     // If no higher nodes are flat, than this node is the current
@@ -244,8 +269,9 @@ public class LoopMonotonicCode extends ASTNodeVisitor<Boolean> {
     }
 
     MathOp op = node.getOp();
-    boolean left = (node.getLeft().accept(this) == true);
-    boolean right = (node.getRight().accept(this) == true);
+    // Calls and other expressions which are never monotonic return null.
+    boolean left = Boolean.TRUE.equals(node.getLeft().accept(this));
+    boolean right = Boolean.TRUE.equals(node.getRight().accept(this));
     boolean monotonic = false;
 
     if (op == MathOp.ADD) {
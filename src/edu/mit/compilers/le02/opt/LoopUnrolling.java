@@ -0,0 +1,87 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.ast.ASTNode;
+import edu.mit.compilers.le02.ast.ASTNodeVisitor;
+import edu.mit.compilers.le02.ast.ClassNode;
+import edu.mit.compilers.le02.ast.ForNode;
+
+/**
+ * Finds the for loops which CFGGenerator unrolls.  The body of such a loop
+ * is copied several times, each copy followed by its own increment, and
+ * the copies run without checking the loop's condition in between as long
+ * as enough iterations are left; the loop as it is runs the rest.  A loop
+ * qualifies if
+ * - it is innermost, so that the copies do not multiply;
+ * - its body does not write its loop variable, so that the number of
+ *   iterations left is known at the top of the copies;
+ * - its body has at most MAX_BODY_SIZE AST nodes.
+ */
+public class LoopUnrolling extends ASTNodeVisitor<Boolean> {
+  private static final int MAX_BODY_SIZE = 80;
+
+  private static LoopUnrolling instance;
+  private static Set<ForNode> unrolledFors;
+
+  /** Set while a loop's body is visited if it holds another loop. */
+  private boolean nested;
+
+  private static LoopUnrolling getInstance() {
+    if (instance == null) {
+      instance = new LoopUnrolling();
+    }
+    return instance;
+  }
+
+  /**
+   * Finds the loops which can be unrolled.
+   */
+  public static void findUnrolledLoops(ASTNode root) {
+    unrolledFors = new HashSet<ForNode>();
+
+    assert(root instanceof ClassNode);
+    root.accept(getInstance());
+    PhaseTimer.count("unrolled loops", unrolledFors.size());
+  }
+
+  /**
+   * Drops all results so that nothing from the last AST analyzed is kept
+   * alive between compilations.
+   */
+  public static void reset() {
+    unrolledFors = null;
+    instance = null;
+  }
+
+  public static boolean isUnrolled(ForNode node) {
+    return unrolledFors != null && unrolledFors.contains(node);
+  }
+
+  private static int countNodes(ASTNode root) {
+    int count = 1;
+    for (ASTNode child : root.getChildren()) {
+      if (child != null) {
+        count += countNodes(child);
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public Boolean visit(ForNode node) {
+    nested = false;
+    node.getBody().accept(this);
+    if (!nested &&
+        countNodes(node.getBody()) <= MAX_BODY_SIZE &&
+        LoopMonotonicCode.isUntouched(
+            node, node.getInit().getLoc().getDesc(), false)) {
+      unrolledFors.add(node);
+    }
+    // Any loop around this one is not innermost.
+    nested = true;
+    return true;
+  }
+}
@@ -0,0 +1,220 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.ast.ASTNode;
+import edu.mit.compilers.le02.ast.ASTNodeVisitor;
+import edu.mit.compilers.le02.ast.ArrayLocationNode;
+import edu.mit.compilers.le02.ast.AssignNode;
+import edu.mit.compilers.le02.ast.BlockNode;
+import edu.mit.compilers.le02.ast.BreakNode;
+import edu.mit.compilers.le02.ast.ClassNode;
+import edu.mit.compilers.le02.ast.ForNode;
+import edu.mit.compilers.le02.ast.MethodCallNode;
+import edu.mit.compilers.le02.ast.ReturnNode;
+import edu.mit.compilers.le02.ast.ScalarLocationNode;
+import edu.mit.compilers.le02.ast.SystemCallNode;
+import edu.mit.compilers.le02.opt.DependenceAnalysis.Affine;
+import edu.mit.compilers.le02.symboltable.FieldDescriptor;
+import edu.mit.compilers.le02.symboltable.SymbolTable;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+/**
+ * Finds the outer for loops whose iterations can be split across threads.
+ * A loop qualifies if
+ * - it is flat and every array index in it is monotonic, so all of its
+ *   bounds checks can be made before it runs (see LoopMonotonicCode);
+ * - it makes no calls, and neither returns nor breaks out of the loop;
+ * - it writes no global scalars, and no locals or parameters declared
+ *   outside of it, nor its own loop variable;
+ * - it carries no dependence between array accesses, or only under
+ *   conditions which can be checked before it runs (see DependenceAnalysis).
+ *
+ * Loops which are neither nests nor known to run for MIN_TRIP_COUNT
+ * iterations are not worth starting threads for.  Locals and parameters
+ * declared outside a loop and read in it have to be passed to the threads
+ * running it, and are listed by getSharedVars.
+ */
+public class ParallelLoops extends ASTNodeVisitor<Boolean> {
+  private static final int MIN_TRIP_COUNT = 10000;
+
+  private static ParallelLoops instance;
+  private static Set<ForNode> parallelFors;
+  private static Map<ForNode, List<TypedDescriptor>> sharedVars;
+
+  /**
+   * Walks the body of a candidate loop, noting what it reads and writes.
+   */
+  private static class LoopBody extends ASTNodeVisitor<Boolean> {
+    private TypedDescriptor loopVar;
+    private boolean parallel = true;
+    private boolean nested = false;
+    private int depth = 0;
+    /** The scopes declared inside the loop, including the loop's own. */
+    private Set<SymbolTable> scopes = new HashSet<SymbolTable>();
+    private Set<TypedDescriptor> shared =
+      new LinkedHashSet<TypedDescriptor>();
+
+    public LoopBody(ForNode node) {
+      loopVar = node.getInit().getLoc().getDesc();
+      node.getBody().accept(this);
+    }
+
+    private boolean isPrivate(TypedDescriptor desc) {
+      return scopes.contains(desc.getParent());
+    }
+
+    @Override
+    public Boolean visit(BlockNode node) {
+      scopes.add(node.getSymbolTable());
+      defaultBehavior(node);
+      return true;
+    }
+
+    @Override
+    public Boolean visit(ForNode node) {
+      // The loop variable lives in the body's scope, but is first written
+      // by the initialization.
+      scopes.add(node.getBody().getSymbolTable());
+      nested = true;
+      depth++;
+      defaultBehavior(node);
+      depth--;
+      return true;
+    }
+
+    @Override
+    public Boolean visit(AssignNode node) {
+      TypedDescriptor desc = node.getLoc().getDesc();
+      if (!(node.getLoc() instanceof ArrayLocationNode) &&
+          (desc == loopVar || desc instanceof FieldDescriptor ||
+           !isPrivate(desc))) {
+        parallel = false;
+      }
+      defaultBehavior(node);
+      return true;
+    }
+
+    @Override
+    public Boolean visit(ScalarLocationNode node) {
+      TypedDescriptor desc = node.getDesc();
+      if (!(desc instanceof FieldDescriptor) && !isPrivate(desc)) {
+        shared.add(desc);
+      }
+      return true;
+    }
+
+    @Override
+    public Boolean visit(ArrayLocationNode node) {
+      if (!LoopMonotonicCode.getMonotonicExprs().contains(node.getIndex())) {
+        parallel = false;
+      }
+      defaultBehavior(node);
+      return true;
+    }
+
+    @Override
+    public Boolean visit(MethodCallNode node) {
+      parallel = false;
+      return true;
+    }
+
+    @Override
+    public Boolean visit(SystemCallNode node) {
+      parallel = false;
+      return true;
+    }
+
+    @Override
+    public Boolean visit(ReturnNode node) {
+      parallel = false;
+      return true;
+    }
+
+    @Override
+    public Boolean visit(BreakNode node) {
+      if (depth == 0) {
+        parallel = false;
+      }
+      return true;
+    }
+  }
+
+  private static ParallelLoops getInstance() {
+    if (instance == null) {
+      instance = new ParallelLoops();
+    }
+    return instance;
+  }
+
+  /**
+   * Finds the loops which can be run in parallel.  The results of
+   * LoopMonotonicCode.findMonotonicCode and DependenceAnalysis.findDependences
+   * for the same AST must be available.
+   */
+  public static void findParallelLoops(ASTNode root) {
+    parallelFors = new HashSet<ForNode>();
+    sharedVars = new HashMap<ForNode, List<TypedDescriptor>>();
+
+    assert(root instanceof ClassNode);
+    root.accept(getInstance());
+    PhaseTimer.count("parallel loops", parallelFors.size());
+  }
+
+  /**
+   * Drops all results so that nothing from the last AST analyzed is kept
+   * alive between compilations.
+   */
+  public static void reset() {
+    parallelFors = null;
+    sharedVars = null;
+    instance = null;
+  }
+
+  public static Set<ForNode> getParallelFors() {
+    return parallelFors;
+  }
+
+  /**
+   * Returns the locals and parameters declared outside of a parallel loop
+   * which it reads.
+   */
+  public static List<TypedDescriptor> getSharedVars(ForNode node) {
+    return sharedVars.get(node);
+  }
+
+  @Override
+  public Boolean visit(ForNode node) {
+    // Only outer loops are considered, so there is no need to look inside.
+    if (!LoopMonotonicCode.getFlatFors().contains(node)) {
+      return false;
+    }
+
+    LoopBody body = new LoopBody(node);
+    if (!body.parallel ||
+        DependenceAnalysis.getDependences(node).isDependent()) {
+      return false;
+    }
+
+    if (!body.nested) {
+      Affine start = Affine.of(node.getInit().getValue());
+      Affine end = Affine.of(node.getEnd());
+      if (start == null || end == null ||
+          !start.isConstant() || !end.isConstant() ||
+          end.getConstant() - start.getConstant() < MIN_TRIP_COUNT) {
+        return false;
+      }
+    }
+
+    parallelFors.add(node);
+    sharedVars.put(node, new ArrayList<TypedDescriptor>(body.shared));
+    return true;
+  }
+}
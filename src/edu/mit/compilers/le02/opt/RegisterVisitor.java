@@ -4,14 +4,14 @@ import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.Set;
 
+import edu.mit.compilers.le02.PhaseTimer;
 import edu.mit.compilers.le02.RegisterLocation;
 import edu.mit.compilers.le02.StackLocation;
 import edu.mit.compilers.le02.VariableLocation;
@@ -28,8 +28,10 @@ import edu.mit.compilers.le02.cfg.OpStatement;
 import edu.mit.compilers.le02.cfg.Argument.ArgType;
 import edu.mit.compilers.le02.cfg.BasicStatement.BasicStatementType;
 import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.dfa.Dominators;
 import edu.mit.compilers.le02.dfa.GenKillItem;
 import edu.mit.compilers.le02.dfa.Lattice;
+import edu.mit.compilers.le02.dfa.LoopNest;
 import edu.mit.compilers.le02.dfa.ReachingDefinitions;
 import edu.mit.compilers.le02.dfa.WorklistAlgorithm;
 import edu.mit.compilers.le02.dfa.WorklistItem;
@@ -48,24 +50,31 @@ public class RegisterVisitor extends BasicBlockVisitor
   private Map<BasicBlockNode, WebLiveness> blockLiveness;
   private Map<BasicStatement, Collection<Web>> liveWebsAtStatement;
   private Map<BasicStatement, Collection<Web>> dyingWebsAtStatement;
+  private Set<Web> callCrossingWebs;
   private Map<Integer, Register> registerMap;
   private List<Register> registerOrder;
   private List<Web> finalWebs;
   private Map<Web, Integer> webIndices;
-  private Map<TypedDescriptor, Register> allocatedGlobals;
   private InterferenceGraph ig;
+  private LinearScan intervals;
+  private int nextPosition = 0;
   private ReachingDefinitions rd;
+  private Map<BasicStatement, Integer> loopDepths;
   private Pass pass;
   private BasicStatement startOfMethod;
   private MethodDescriptor methodDescriptor;
   private ArgReassignStatement argReassign = null;
   private int argTempOffset = 0;
+  private int nextWebId = 0;
 
   public static final int NUM_REGISTERS = 10;
+  // The first NUM_CALLEE_SAVED registers of registerOrder are callee-saved.
+  // R12 is callee-saved too, but is kept for array accesses.
+  public static final int NUM_CALLEE_SAVED = 4;
 
   // This boolean indicates whether or not to consider globals for allocation
-  // TODO: Add code to spill globals at appropriate times in order to allocate
-  //       them temporarily within a block.
+  // Globals are not allocated directly; GlobalPromotion copies them into
+  // locals across loops which make no calls, and those are allocated.
   public static final boolean ALLOCATE_GLOBALS = false;
 
 
@@ -78,11 +87,15 @@ public class RegisterVisitor extends BasicBlockVisitor
 
 
   public static RegisterVisitor runRegisterAllocation(BasicBlockNode methodHead,
-                                           MethodDescriptor md) {
+                                           MethodDescriptor md,
+                                           boolean linearScan) {
     ReachingDefinitions rd = new ReachingDefinitions(methodHead);
     RegisterVisitor visitor = new RegisterVisitor(rd);
     visitor.methodDescriptor = md;
     visitor.startOfMethod = methodHead.getStatements().get(0);
+    if (!linearScan) {
+      visitor.loopDepths = getLoopDepths(methodHead);
+    }
 
     // == STAGE 1 ==
     // Generate def-use (DU) chains, which pair the definition of a variable
@@ -139,14 +152,21 @@ public class RegisterVisitor extends BasicBlockVisitor
     // Using the per-block web liveness information generated in stage 3,
     // run a per-statement liveness analysis on each block to determine which
     // webs interfere with each other, thus generating an interference graph
-    visitor.initInterferenceGraph();
+    // (or, for linear scan, the live interval of each web).
+    if (linearScan) {
+      visitor.intervals = new LinearScan();
+    } else {
+      visitor.initInterferenceGraph();
+    }
     visitor.pass = Pass.GENERATE_IG;
     visitor.visit(methodHead); // generateInterferenceGraph(node)
 
 
     // == STAGE 5 ==
     // Now that we have an interference graph, we color the interference graph
-    // and do a spill cost analysis on each of the webs to determing which
+    // with iterated register coalescing (or scan the intervals), spilling the
+    // webs that are cheapest to leave in memory, and map the colors to
+    // registers.
     visitor.allocateRegisters();
 
     if (CLI.debug) {
@@ -160,17 +180,45 @@ public class RegisterVisitor extends BasicBlockVisitor
     visitor.pass = Pass.INSERT_REGISTERS;
     visitor.visit(methodHead); // insertRegisters(node)
 
+    PhaseTimer.count("webs", visitor.finalWebs.size());
+    if (visitor.ig != null) {
+      PhaseTimer.count("interference edges", visitor.ig.numEdges());
+    }
     return visitor;
   }
 
+  /**
+   * Maps each statement of the method to the number of loops it is in, for
+   * weighting spill costs.
+   */
+  private static Map<BasicStatement, Integer> getLoopDepths(
+      BasicBlockNode methodHead) {
+    Dominators dom = Dominators.forMethod(methodHead);
+    LoopNest loops = dom.getLoopNest();
+    Map<BasicStatement, Integer> depths =
+      new HashMap<BasicStatement, Integer>();
+    for (BasicBlockNode node : dom.getBlocks()) {
+      int depth = loops.getDepth(node);
+      if (depth == 0) {
+        continue;
+      }
+      for (BasicStatement stmt : node.getStatements()) {
+        depths.put(stmt, depth);
+      }
+    }
+    return depths;
+  }
+
   public RegisterVisitor(ReachingDefinitions rd) {
     this.rd = rd;
+    this.loopDepths = new HashMap<BasicStatement, Integer>();
 
     this.defUses = new HashMap<BasicStatement, Web>();
     this.useToDefs = new HashMap<BasicStatement, List<Web>>();
     this.blockLiveness = new HashMap<BasicBlockNode, WebLiveness>();
     this.liveWebsAtStatement = new HashMap<BasicStatement, Collection<Web>>();
     this.dyingWebsAtStatement = new HashMap<BasicStatement, Collection<Web>>();
+    this.callCrossingWebs = new HashSet<Web>();
     this.finalWebs = new ArrayList<Web>();
     this.webIndices = new HashMap<Web, Integer>();
 
@@ -402,7 +450,7 @@ public class RegisterVisitor extends BasicBlockVisitor
     // Get the use web for this use's def, and add the use to it.
     Web uses = defUses.get(def);
     if (uses == null) {
-      uses = new Web(loc, def);
+      uses = new Web(loc, def, nextWebId++);
     }
     if (clobberPref || uses.getPreferredRegister() == null) {
       uses.setPreferredRegister(prefReg);
@@ -570,25 +618,20 @@ public class RegisterVisitor extends BasicBlockVisitor
       System.out.println("Processing == " + node.getId() + " ==");
     }
 
-    // Link all ending nodes in the interference graph.
-    int size = liveOnExit.size();
-    for (int i = 0; i < size; i++) {
-      Web w1 = liveOnExit.get(i);
-      currentlyLive.put(w1.desc(), w1.find());
-      for (int j = i+1; j < size; j++) {
-        Web w2 = liveOnExit.get(j);
-        ig.linkNodes(w1, w2);
-        if (CLI.debug) {
-          //System.out.println("Linking " + w1 + " and " + w2);
-        }
-      }
+    for (Web w : liveOnExit) {
+      currentlyLive.put(w.desc(), w.find());
     }
 
-
     // Traverse backwards through the statement list to compute liveness
     List<BasicStatement> stmts = node.getStatements();
     Collections.reverse(stmts);
 
+    // For linear scan, the statements of this block take the next positions
+    // in the linear order, with one more position at the end of the block.
+    int position = nextPosition + stmts.size();
+    nextPosition = position + 1;
+    addPositions(currentlyLive.values(), position);
+
     if (CLI.debug) {
       for (Web w : currentlyLive.values()) {
         System.out.println("Starting live: " + w);
@@ -601,27 +644,52 @@ public class RegisterVisitor extends BasicBlockVisitor
         System.out.println("Processing statement " + stmt);
       }
 
+      // Fake definitions of the parameters interfere with everything live
+      // after them, like any other definition.
+      if (stmt instanceof FakeDefStatement) {
+        Web web = defUses.get(stmt);
+        if (web != null) {
+          linkDefinition(web.find(), null, currentlyLive.values());
+          currentlyLive.remove(web.desc());
+        }
+        continue;
+      }
+
       // We only care about Op and Call statements.
       if (stmt.getType() != BasicStatementType.OP
           && stmt.getType() != BasicStatementType.CALL) {
         continue;
       }
 
-      // If we hit a definition, its web is no longer live, so we can remove it.
+      // If we hit a definition, it interferes with every web live after it,
+      // except the source of a copy, which holds the same value.  Its web is
+      // then no longer live, so we can remove it.
       // Note: Thinking forwards instead of backwards, this means the
       //       variable becomes live at the beginning of the next statement.
       Web web = defUses.get(stmt);
+      List<Web> webs = useToDefs.get(stmt);
       if (web != null) {
+        Web source = getCopySource(stmt, webs);
+        linkDefinition(web.find(), source, currentlyLive.values());
+        if (source != null && ig != null) {
+          Integer depth = loopDepths.get(stmt);
+          ig.addMove(source, web, depth == null ? 0 : depth);
+        }
+
         if (CLI.debug) {
           System.out.println("Becoming dead " + web);
         }
         currentlyLive.remove(web.desc());
       }
 
+      // Whatever is still live must survive the call.
+      if (stmt.getType() == BasicStatementType.CALL) {
+        callCrossingWebs.addAll(currentlyLive.values());
+      }
+
       // If we hit a use, this web may become live at this statement.
       // Note: Thinking forwards instead of backwards, this means the variable
       //       begins being dead at the beginning of the next statement
-      List<Web> webs = useToDefs.get(stmt);
       if (webs != null) {
         dying.clear();
         for (Web w : webs) {
@@ -633,13 +701,6 @@ public class RegisterVisitor extends BasicBlockVisitor
             Web newWeb = w.find();
             currentlyLive.put(newWeb.desc(), newWeb);
             dying.add(newWeb);
-
-            for (Web w2 : currentlyLive.values()) {
-              if (CLI.debug) {
-                //System.out.println("Linking " + w + " and " + w2);
-              }
-              ig.linkNodes(newWeb, w2);
-            }
           }
         }
 
@@ -650,167 +711,128 @@ public class RegisterVisitor extends BasicBlockVisitor
 
       // Record liveness info
       liveWebsAtStatement.put(stmt, new ArrayList<Web>(currentlyLive.values()));
+      addPositions(currentlyLive.values(), --position);
     }
   }
 
-
+  /**
+   * Extends the live intervals of the given webs to a position, if we are
+   * allocating with linear scan.
+   */
+  private void addPositions(Collection<Web> live, int position) {
+    if (intervals == null) {
+      return;
+    }
+    for (Web w : live) {
+      intervals.addPosition(w, position);
+    }
+  }
 
   /**
-   * Color the interference graph and then compute the spill cost of each of
-   * the colors to determine which of the colors should get registers.
+   * Links a definition with the webs live after it, skipping the source web
+   * if the definition is a copy.
    */
-  private void allocateRegisters() {
-    // TODO: Intelligent coloring for cases where we have a lot of calculations
-    //       in a row, so:
-    //       ADD a + b -> c
-    //       MUL c * d -> f
-    //       should become
-    //       %r8 -> a, %r9 -> b, %r8 -> c, %r10 -> d or something like that
-    //       add %r8, %r9
-    //       mul %r8, %r10
-    int numColors = ig.colorGraph();
+  private void linkDefinition(Web def, Web source, Collection<Web> live) {
+    if (ig == null) {
+      return;
+    }
+    for (Web w : live) {
+      if (w != source) {
+        ig.linkNodes(def, w);
+      }
+    }
+  }
 
-    // TODO: Register targeting, so we don't have to copy for things like
-    //       arguments and return values, or idiv arguments
-    if (numColors <= NUM_REGISTERS) {
+  /**
+   * Returns the web of the variable copied by a move from one variable to
+   * another, or null if the statement is not such a move.
+   */
+  private Web getCopySource(BasicStatement stmt, List<Web> webs) {
+    if (webs == null || stmt.getType() != BasicStatementType.OP) {
+      return null;
+    }
+    OpStatement op = (OpStatement) stmt;
+    if (op.getOp() != AsmOp.MOVE
+        || op.getArg1().getType() != ArgType.VARIABLE
+        || op.getArg2().getType() != ArgType.VARIABLE) {
+      return null;
+    }
+    for (Web w : webs) {
+      if (w.desc().equals(op.getArg1().getDesc())) {
+        return w.find();
+      }
+    }
+    return null;
+  }
 
-      registerMap.clear();
-      ArrayList<Register> unallocatedRegisters =
-        new ArrayList<Register>(registerOrder);
 
-      // Reverse so it is faster to pull it off the end
-      Collections.reverse(unallocatedRegisters);
 
-      HashSet<Register> allocatedRegisters = new HashSet<Register>();
+  /**
+   * Color the interference graph (or scan the live intervals) with at most
+   * NUM_REGISTERS colors, and then assign a register to each of the colors,
+   * honoring the preferred registers of the webs where possible.  Colors
+   * below NUM_CALLEE_SAVED, which the webs live across calls get, are given
+   * callee-saved registers, which are saved once in the method header
+   * instead of around every call.  Spilled webs have no color, and so no
+   * register.
+   */
+  private void allocateRegisters() {
+    if (intervals != null) {
       for (Web w : finalWebs) {
-        Register r = w.getPreferredRegister();
-        if (r != null && !allocatedRegisters.contains(r)) {
-          registerMap.put(w.find().getColor(), r);
-          allocatedRegisters.add(r);
-          unallocatedRegisters.remove(r);
-        }
+        w.find().setColor(-1);
       }
-
-      // Assign registers to everything, since we're ok (also the register
-      // map is setup in the initialization).
-      for (int i = 0; i < numColors; i++) {
-        Register reg = registerMap.get(i);
-        if (reg == null) {
-          assert !unallocatedRegisters.isEmpty();
-          reg = unallocatedRegisters.remove(unallocatedRegisters.size() - 1);
-          registerMap.put(i, reg);
-        }
-        methodDescriptor.markRegisterUsed(reg);
+      for (Web w : callCrossingWebs) {
+        intervals.addCallCrossing(w);
       }
-      return;
-    }
-    else {
-
-      // TODO: Take loop nesting into account in spill cost calculation
-      // Tree maps used for determinism
-      TreeMap<Integer, List<Web>> colorMap = new TreeMap<Integer, List<Web>>();
-      for (Web w : finalWebs) {
-        List<Web> list = colorMap.get(w.find().getColor());
-        if (list == null) {
-          list = new ArrayList<Web>();
-        }
-        list.add(w.find());
-        colorMap.put(w.find().getColor(), list);
+      intervals.allocate(NUM_REGISTERS, NUM_CALLEE_SAVED);
+    } else {
+      for (Web w : callCrossingWebs) {
+        ig.addCallCrossing(w);
       }
+      ig.colorGraph(NUM_REGISTERS, NUM_CALLEE_SAVED, loopDepths);
+    }
 
-      if (CLI.debug) {
-        for (Integer i : colorMap.keySet()) {
-          System.out.println("Webs colored with " + ":");
-          for (Web w : colorMap.get(i)) {
-            System.out.println("  " + w + " color: " + w.getColor());
-          }
-          System.out.println();
-        }
+    // TODO: Register targeting, so we don't have to copy for things like
+    //       arguments and return values, or idiv arguments
+    registerMap.clear();
+    List<Register> calleeSaved =
+      new ArrayList<Register>(registerOrder.subList(0, NUM_CALLEE_SAVED));
+    List<Register> callerSaved = new ArrayList<Register>(
+        registerOrder.subList(NUM_CALLEE_SAVED, NUM_REGISTERS));
+
+    // Only colors which some web has need a register; an unused callee-saved
+    // register would still have to be saved.
+    BitSet usedColors = new BitSet();
+    for (Web w : finalWebs) {
+      if (w.find().getColor() >= 0) {
+        usedColors.set(w.find().getColor());
       }
+    }
 
-      ArrayList<List<Web>> webLists =
-          new ArrayList<List<Web>>(colorMap.values());
-      Collections.sort(webLists, new Comparator<List<Web>>() {
-        // Want the highest spill costs to be first in the list
-        @Override
-        public int compare(List<Web> w1, List<Web> w2) {
-          int s1 = 0;
-          int s2 = 0;
-
-          for (Web x : w1) {
-            s1 += x.getSpillCost();
-          }
-          for (Web y : w2) {
-            s2 += y.getSpillCost();
-          }
-
-          // DETERMINIZE!
-          if (s1 == s2) {
-            return w1.hashCode() - w2.hashCode();
-          }
-          return -(s1 - s2);
-        }
-      });
-
-
-      if (CLI.debug) {
-        System.out.println("Web lists: ");
-        for (List<Web> lw : webLists) {
-          System.out.println("  Color " + lw.get(0).getColor());
-        }
+    for (Web w : finalWebs) {
+      Register r = w.getPreferredRegister();
+      int color = w.find().getColor();
+      if (r == null || color < 0 || registerMap.containsKey(color)) {
+        continue;
       }
-
-      // Reset the register map
-      registerMap.clear();
-
-      ArrayList<Register> unallocatedRegisters =
-        new ArrayList<Register>(registerOrder);
-      HashSet<Register> allocatedRegisters = new HashSet<Register>();
-      Register reg;
-      for (int i = 0; i < NUM_REGISTERS && i < webLists.size(); i++) {
-        List<Web> list = webLists.get(i);
-        reg = null;
-        for (Web w : list) {
-          reg = w.getPreferredRegister();
-          if (reg != null && !allocatedRegisters.contains(reg)) {
-            break;
-          }
-        }
-        if (reg == null) {
-          continue;
-        }
-        allocatedRegisters.add(reg);
-        unallocatedRegisters.remove(reg);
-
-        // Assign a register to this color
-        registerMap.put(list.get(0).getColor(), reg);
+      List<Register> free =
+        (color < NUM_CALLEE_SAVED) ? calleeSaved : callerSaved;
+      if (free.remove(r)) {
+        registerMap.put(color, r);
       }
+    }
 
-      for (int i = 0; i < NUM_REGISTERS && i < webLists.size(); i++) {
-        List<Web> list = webLists.get(i);
-        reg = registerMap.get(list.get(0).getColor());
-        if (reg == null) {
-          reg = unallocatedRegisters.remove(0);
-          allocatedRegisters.add(reg);
-          registerMap.put(list.get(0).getColor(), reg);
-        }
-
-        if (CLI.debug) {
-          System.out.println("Assigning " + reg + " to color " +
-              list.get(0).getColor());
-        }
-
-        // Mark this register as used in the function
-        methodDescriptor.markRegisterUsed(reg);
-
-        // Mark any globals that have been assigned to a register as such,
-        // so we can easily spill and restore them later.
-        for (Web w : list) {
-          if (w.desc().getLocation().getLocationType() == LocationType.GLOBAL) {
-            allocatedGlobals.put(w.desc(), reg);
-          }
-        }
+    for (int i = usedColors.nextSetBit(0); i >= 0;
+         i = usedColors.nextSetBit(i + 1)) {
+      Register reg = registerMap.get(i);
+      if (reg == null) {
+        List<Register> free =
+          (i < NUM_CALLEE_SAVED) ? calleeSaved : callerSaved;
+        assert !free.isEmpty();
+        reg = free.remove(0);
+        registerMap.put(i, reg);
       }
+      methodDescriptor.markRegisterUsed(reg);
     }
   }
 
@@ -992,9 +1014,20 @@ public class RegisterVisitor extends BasicBlockVisitor
       }
     }
     if (dyingWebs != null) {
+      // A coalesced copy may leave a web which stays live in the register of
+      // one which dies here, and then the register is not dying.
+      HashSet<Register> kept = new HashSet<Register>();
+      if (liveWebs != null) {
+        for (Web w : liveWebs) {
+          Register r = registerMap.get(w.find().getColor());
+          if (r != null && !dyingWebs.contains(w.find())) {
+            kept.add(r);
+          }
+        }
+      }
       for (Web w : dyingWebs) {
         Register r = registerMap.get(w.find().getColor());
-        if (r != null) {
+        if (r != null && !kept.contains(r)) {
           newStatement.setRegisterDying(r, true);
         }
       }
@@ -1169,4 +1202,10 @@ public class RegisterVisitor extends BasicBlockVisitor
     ret.or(v2);
     return ret;
   }
+
+  @Override
+  public BitSet leastUpperBoundInPlace(BitSet v1, BitSet v2) {
+    v1.or(v2);
+    return v1;
+  }
 }
@@ -0,0 +1,439 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.cfg.Argument;
+import edu.mit.compilers.le02.cfg.ArrayVariableArgument;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.CallStatement;
+import edu.mit.compilers.le02.cfg.ConstantArgument;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.VariableArgument;
+import edu.mit.compilers.le02.cfg.Argument.ArgType;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.dfa.SsaForm;
+import edu.mit.compilers.le02.dfa.SsaForm.Phi;
+import edu.mit.compilers.le02.dfa.SsaForm.Use;
+import edu.mit.compilers.le02.dfa.SsaForm.Value;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck) over the
+ * SsaForm of a method.
+ *
+ * Each SSA value starts out unknown and only ever moves down to a single
+ * constant and then to varying.  Blocks are only evaluated once an edge
+ * into them is found to be executable, and a branch whose condition is
+ * constant only makes the edge it takes executable, so constants flow
+ * through joins which the other branch would have spoiled.
+ *
+ * Afterwards, uses of constant values are replaced with the constants,
+ * computations of constants become moves, branches with only one
+ * executable edge become jumps, and blocks with no executable edge into
+ * them are unlinked from the method.  Arithmetic is folded with the 32-bit
+ * wraparound of the generated code; divisions which would trap are left
+ * alone.
+ *
+ * The numbers of constant uses, folded branches and unreachable blocks are
+ * reported to the PhaseTimer as "constant uses", "folded branches" and
+ * "unreachable blocks".
+ */
+public class SparseConditionalConstantPropagation {
+  /**
+   * The lattice value of an SSA value which may hold more than one
+   * constant.  It is only ever compared by identity.
+   */
+  private static final ConstantArgument VARYING = new ConstantArgument(0);
+
+  private BasicBlockNode methodEnter;
+  private List<BasicBlockNode> blocks;
+  private SsaForm ssa;
+
+  // Values not in the map have not been seen to hold anything yet.
+  private Map<Value, ConstantArgument> values =
+    new HashMap<Value, ConstantArgument>();
+  // The executable edges into each block, by source.  The edge into the
+  // method's entry has the source null.
+  private Map<BasicBlockNode, Set<BasicBlockNode>> executableEdges =
+    new HashMap<BasicBlockNode, Set<BasicBlockNode>>();
+  private Set<BasicBlockNode> visited = new HashSet<BasicBlockNode>();
+
+  private List<BasicBlockNode[]> edgeWork = new ArrayList<BasicBlockNode[]>();
+  private List<Value> valueWork = new ArrayList<Value>();
+
+  private int constantUses = 0;
+  private int foldedBranches = 0;
+  private int unreachableBlocks = 0;
+
+  /**
+   * Runs SCCP on the method starting at methodEnter.  Unreachable blocks
+   * are removed from blocks.
+   */
+  public static void performSparseConditionalConstantPropagation(
+      BasicBlockNode methodEnter, List<BasicBlockNode> blocks) {
+    SparseConditionalConstantPropagation sccp =
+      new SparseConditionalConstantPropagation(methodEnter, blocks);
+    sccp.propagate();
+    sccp.rewrite();
+    PhaseTimer.count("constant uses", sccp.constantUses);
+    PhaseTimer.count("folded branches", sccp.foldedBranches);
+    PhaseTimer.count("unreachable blocks", sccp.unreachableBlocks);
+  }
+
+  private SparseConditionalConstantPropagation(BasicBlockNode methodEnter,
+                                               List<BasicBlockNode> blocks) {
+    this.methodEnter = methodEnter;
+    this.blocks = blocks;
+  }
+
+  private void propagate() {
+    ssa = new SsaForm(methodEnter);
+    addEdge(null, methodEnter);
+    while (!edgeWork.isEmpty() || !valueWork.isEmpty()) {
+      while (!edgeWork.isEmpty()) {
+        BasicBlockNode[] edge = edgeWork.remove(edgeWork.size() - 1);
+        visitEdge(edge[1]);
+      }
+      while (!valueWork.isEmpty()) {
+        Value value = valueWork.remove(valueWork.size() - 1);
+        for (Phi phi : value.getPhiUsers()) {
+          if (executableEdges.containsKey(phi.getBlock())) {
+            visitPhi(phi);
+          }
+        }
+        for (Use use : value.getUsers()) {
+          if (visited.contains(use.getBlock())) {
+            visitStatement(use.getBlock(), use.getStatement());
+          }
+        }
+      }
+    }
+  }
+
+  private void addEdge(BasicBlockNode from, BasicBlockNode to) {
+    Set<BasicBlockNode> preds = executableEdges.get(to);
+    if (preds == null) {
+      preds = new HashSet<BasicBlockNode>();
+      executableEdges.put(to, preds);
+    }
+    if (preds.add(from)) {
+      edgeWork.add(new BasicBlockNode[] {from, to});
+    }
+  }
+
+  /**
+   * Re-evaluates the phis of node for a new executable edge into it, and
+   * evaluates its statements the first time it is reached.
+   */
+  private void visitEdge(BasicBlockNode node) {
+    for (Phi phi : ssa.getPhis(node)) {
+      visitPhi(phi);
+    }
+    if (!visited.add(node)) {
+      return;
+    }
+    for (BasicStatement stmt : node.getStatements()) {
+      visitStatement(node, stmt);
+    }
+    if (!node.isBranch() && node.getNext() != null) {
+      addEdge(node, node.getNext());
+    }
+  }
+
+  private void visitPhi(Phi phi) {
+    Set<BasicBlockNode> preds = executableEdges.get(phi.getBlock());
+    ConstantArgument merged = null;
+    for (Map.Entry<BasicBlockNode, Value> operand :
+         phi.getOperands().entrySet()) {
+      if (preds.contains(operand.getKey())) {
+        merged = meet(merged, valueOf(operand.getValue()));
+      }
+    }
+    lower(phi.getTarget(), merged);
+  }
+
+  private void visitStatement(BasicBlockNode node, BasicStatement stmt) {
+    Value def = ssa.getDefinition(node, stmt);
+    if (def != null) {
+      lower(def, evaluate(node, stmt));
+    }
+    if (node.isBranch() && stmt == node.getLastStatement()) {
+      visitBranch(node, stmt);
+    }
+  }
+
+  /**
+   * Makes the edges out of node which its condition may take executable.
+   */
+  private void visitBranch(BasicBlockNode node, BasicStatement cond) {
+    ConstantArgument value = VARYING;
+    if (cond instanceof OpStatement) {
+      OpStatement op = (OpStatement) cond;
+      if (op.getOp() == AsmOp.MOVE) {
+        value = argValue(node, op, op.getArg1());
+      } else {
+        value = fold(op.getOp(), argValue(node, op, op.getArg1()),
+                     argValue(node, op, op.getArg2()));
+      }
+    }
+
+    if (value == null) {
+      return;
+    }
+    if (value == VARYING || intValue(value) == 1) {
+      addEdge(node, node.getBranchTarget());
+    }
+    if (value == VARYING || intValue(value) != 1) {
+      addEdge(node, node.getNext());
+    }
+  }
+
+  /**
+   * Returns the value stmt assigns in node, or null if it is not known
+   * yet.
+   */
+  private ConstantArgument evaluate(BasicBlockNode node,
+                                    BasicStatement stmt) {
+    if (!(stmt instanceof OpStatement)) {
+      return VARYING;
+    }
+    OpStatement op = (OpStatement) stmt;
+    if (op.getOp() == AsmOp.MOVE) {
+      return argValue(node, op, op.getArg1());
+    }
+    return fold(op.getOp(), argValue(node, op, op.getArg1()),
+                argValue(node, op, op.getArg2()));
+  }
+
+  private ConstantArgument argValue(BasicBlockNode node, BasicStatement stmt,
+                                    Argument arg) {
+    if (arg == null) {
+      return null;
+    }
+    if (arg instanceof ConstantArgument) {
+      return (ConstantArgument) arg;
+    }
+    if (arg instanceof ArrayVariableArgument) {
+      return VARYING;
+    }
+    Value value = ssa.getUse(node, stmt, arg.getDesc());
+    if (value == null) {
+      return VARYING;
+    }
+    return valueOf(value);
+  }
+
+  private ConstantArgument valueOf(Value value) {
+    if (value.isInitial()) {
+      return VARYING;
+    }
+    return values.get(value);
+  }
+
+  private static ConstantArgument meet(ConstantArgument a,
+                                       ConstantArgument b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    if (a == VARYING || b == VARYING || !a.equals(b)) {
+      return VARYING;
+    }
+    return a;
+  }
+
+  private void lower(Value value, ConstantArgument c) {
+    ConstantArgument old = values.get(value);
+    ConstantArgument lowered = meet(old, c);
+    if (lowered != old) {
+      values.put(value, lowered);
+      valueWork.add(value);
+    }
+  }
+
+  /**
+   * Evaluates op on constant arguments.  Returns null if an argument is
+   * not known yet, and VARYING if an argument varies or the result cannot
+   * be computed at compile time.
+   */
+  private static ConstantArgument fold(AsmOp op, ConstantArgument a,
+                                       ConstantArgument b) {
+    boolean unary = (op == AsmOp.UNARY_MINUS || op == AsmOp.NOT);
+    if (a == VARYING || (!unary && b == VARYING)) {
+      return VARYING;
+    }
+    if (a == null || (!unary && b == null)) {
+      return null;
+    }
+    ConstantArgument result = ConstantFolding.fold(op, a, b);
+    return (result == null) ? VARYING : result;
+  }
+
+  private static boolean isComparison(AsmOp op) {
+    switch (op) {
+      case EQUAL:
+      case NOT_EQUAL:
+      case LESS_THAN:
+      case LESS_OR_EQUAL:
+      case GREATER_THAN:
+      case GREATER_OR_EQUAL:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static int intValue(ConstantArgument c) {
+    if (c.getType() == ArgType.CONST_BOOL) {
+      return c.getBool() ? 1 : 0;
+    }
+    return c.getInt();
+  }
+
+  private static boolean isConstant(ConstantArgument c) {
+    return c != null && c != VARYING;
+  }
+
+  private void rewrite() {
+    for (BasicBlockNode node : new ArrayList<BasicBlockNode>(blocks)) {
+      if (!visited.contains(node)) {
+        node.removeSuccessors();
+        blocks.remove(node);
+        unreachableBlocks++;
+        continue;
+      }
+      if (node.isBranch() && node.getBranchTarget() != node.getNext()) {
+        foldBranch(node);
+      }
+      rewriteStatements(node);
+    }
+  }
+
+  /**
+   * Turns node into a jump if only one of its edges is executable.
+   */
+  private void foldBranch(BasicBlockNode node) {
+    Set<BasicBlockNode> intoBranch =
+      executableEdges.get(node.getBranchTarget());
+    Set<BasicBlockNode> intoNext = executableEdges.get(node.getNext());
+    boolean branchTaken = intoBranch != null && intoBranch.contains(node);
+    boolean nextTaken = intoNext != null && intoNext.contains(node);
+    if (branchTaken == nextTaken) {
+      return;
+    }
+
+    // A comparison with nowhere to put its result, or the move of a
+    // boolean into the register which is tested, only sets up the branch.
+    BasicStatement cond = node.getLastStatement();
+    if (cond instanceof OpStatement) {
+      OpStatement op = (OpStatement) cond;
+      if ((op.getOp() == AsmOp.MOVE) ? op.getArg2().isRegister() :
+          (isComparison(op.getOp()) && op.getResult() == null)) {
+        List<BasicStatement> stmts = node.getStatements();
+        stmts.remove(stmts.size() - 1);
+        node.setStatements(stmts);
+      }
+    }
+
+    BasicBlockNode taken = branchTaken ? node.getBranchTarget()
+                                       : node.getNext();
+    node.removeBranchTarget();
+    node.setNext(taken);
+    foldedBranches++;
+  }
+
+  /**
+   * Replaces the uses of constants in node's statements with the constants,
+   * and computations of constants with moves of them.  Statements are
+   * copied rather than changed, since a loop's condition is shared between
+   * blocks.
+   */
+  private void rewriteStatements(BasicBlockNode node) {
+    List<BasicStatement> stmts = node.getStatements();
+    boolean changed = false;
+    for (int ii = 0; ii < stmts.size(); ii++) {
+      BasicStatement stmt = stmts.get(ii);
+      BasicStatement newStmt = stmt;
+      if (stmt instanceof CallStatement) {
+        CallStatement call = (CallStatement) stmt;
+        List<Argument> args = new ArrayList<Argument>();
+        boolean argsChanged = false;
+        for (Argument arg : call.getArgs()) {
+          Argument newArg = substitute(node, call, arg);
+          args.add(newArg);
+          argsChanged |= (newArg != arg);
+        }
+        if (argsChanged) {
+          newStmt = new CallStatement(call.getNode(), call.getMethodName(),
+                                      args, call.getResult(),
+                                      call.isCallout());
+        }
+      } else if (stmt instanceof OpStatement &&
+                 ((OpStatement) stmt).getOp() != AsmOp.ENTER) {
+        OpStatement op = (OpStatement) stmt;
+        Value def = ssa.getDefinition(node, op);
+        if (def != null && op.getOp() != AsmOp.MOVE &&
+            isConstant(values.get(def)) &&
+            !(node.isBranch() && ii == stmts.size() - 1)) {
+          // The conditional of a remaining branch has to stay a comparison.
+          newStmt = new OpStatement(op.getNode(), AsmOp.MOVE,
+                                    values.get(def),
+                                    Argument.makeArgument(op.getResult()),
+                                    null);
+        } else {
+          Argument arg1 = substitute(node, op, op.getArg1());
+          Argument arg2 = op.getArg2();
+          if (op.getOp() != AsmOp.MOVE ||
+              arg2 instanceof ArrayVariableArgument) {
+            // The target of a move is not a use, but its index is.
+            arg2 = substitute(node, op, arg2);
+          }
+          if (arg1 != op.getArg1() || arg2 != op.getArg2()) {
+            newStmt = new OpStatement(op.getNode(), op.getOp(), arg1, arg2,
+                                      op.getResult());
+          }
+        }
+      }
+      if (newStmt != stmt) {
+        stmts.set(ii, newStmt);
+        changed = true;
+      }
+    }
+    if (changed) {
+      node.setStatements(stmts);
+    }
+  }
+
+  /**
+   * Returns arg with the variables it reads in stmt replaced by their
+   * values, where those are constant.
+   */
+  private Argument substitute(BasicBlockNode node, BasicStatement stmt,
+                              Argument arg) {
+    if (arg instanceof ArrayVariableArgument) {
+      ArrayVariableArgument ava = (ArrayVariableArgument) arg;
+      Argument index = substitute(node, stmt, ava.getIndex());
+      if (index != ava.getIndex()) {
+        return Argument.makeArgument(ava.getDesc(), index);
+      }
+      return arg;
+    }
+    if (!(arg instanceof VariableArgument)) {
+      return arg;
+    }
+    Value value = ssa.getUse(node, stmt, arg.getDesc());
+    if (value == null || !isConstant(valueOf(value))) {
+      return arg;
+    }
+    constantUses++;
+    return valueOf(value);
+  }
+}
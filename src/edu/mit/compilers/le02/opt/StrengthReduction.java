@@ -0,0 +1,464 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.compilers.le02.DecafType;
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.VariableLocation;
+import edu.mit.compilers.le02.ast.ASTNode;
+import edu.mit.compilers.le02.cfg.Argument;
+import edu.mit.compilers.le02.cfg.ArrayVariableArgument;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.CFGGenerator;
+import edu.mit.compilers.le02.cfg.ConstantArgument;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.VariableArgument;
+import edu.mit.compilers.le02.cfg.Argument.ArgType;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.dfa.Dominators;
+import edu.mit.compilers.le02.dfa.Liveness;
+import edu.mit.compilers.le02.dfa.SsaForm;
+import edu.mit.compilers.le02.dfa.LoopNest.Loop;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+import edu.mit.compilers.le02.symboltable.MethodDescriptor;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+/**
+ * Strength reduction of induction variables in the natural loops of a
+ * method.
+ *
+ * A basic induction variable is a local whose only definition in the loop
+ * adds a constant to it, like the variable of a for loop.  Each product of
+ * a basic induction variable i with a constant or loop-invariant local k
+ * is given a new variable which is set to i * k in the loop's preheader
+ * and has k times the step added to it right after i is stepped, so that
+ * it always equals i * k in the loop.  The products become moves of it.
+ * Arithmetic wraps around in 32 bits, so this holds even if i * k
+ * overflows.
+ *
+ * If afterwards i is only used by a loop test i < n at the end of the
+ * loop's only latch, just after i is stepped by one, and is dead once the
+ * loop exits, the test is rewritten to compare the product with n * k
+ * instead and i is no longer stepped.  This is only done when i starts at
+ * a known constant, n and k are positive constants, and none of the
+ * products the test can see overflow.
+ *
+ * The numbers of reduced multiplications and eliminated induction
+ * variables are reported to the PhaseTimer as "reduced multiplications"
+ * and "eliminated induction variables".
+ */
+public class StrengthReduction {
+  private BasicBlockNode methodEnter;
+  private List<BasicBlockNode> blocks;
+  /** The method's body, which new variables are declared in. */
+  private ASTNode body;
+  private Dominators dom;
+
+  private int reduced = 0;
+  private int eliminated = 0;
+
+  /**
+   * A basic induction variable of a loop, and the products of it which
+   * have been reduced.
+   */
+  private static class InductionVariable {
+    private TypedDescriptor var;
+    private BasicBlockNode incrementBlock;
+    private OpStatement increment;
+    private int step;
+    // The reduced variable for each factor, keyed by the constant or the
+    // location of the invariant local.
+    private Map<Object, LocalDescriptor> products =
+      new LinkedHashMap<Object, LocalDescriptor>();
+    private Map<Object, Argument> factors = new HashMap<Object, Argument>();
+  }
+
+  /**
+   * Runs strength reduction on the method md starting at methodEnter.  Any
+   * preheaders which are created are added to blocks.
+   */
+  public static void performStrengthReduction(BasicBlockNode methodEnter,
+      List<BasicBlockNode> blocks, MethodDescriptor md) {
+    StrengthReduction sr = new StrengthReduction(methodEnter, blocks, md);
+    sr.run();
+    PhaseTimer.count("reduced multiplications", sr.reduced);
+    PhaseTimer.count("eliminated induction variables", sr.eliminated);
+  }
+
+  private StrengthReduction(BasicBlockNode methodEnter,
+                            List<BasicBlockNode> blocks,
+                            MethodDescriptor md) {
+    this.methodEnter = methodEnter;
+    this.blocks = blocks;
+    this.body = md.getCode();
+  }
+
+  private void run() {
+    dom = Dominators.forMethod(methodEnter);
+    List<Loop> loops = dom.getLoopNest().getLoops();
+    if (loops.isEmpty()) {
+      return;
+    }
+
+    // Give every loop a preheader first, and then find the loops again so
+    // that each preheader is inside the loops which enclose it.
+    boolean added = false;
+    for (Loop loop : loops) {
+      if (LoopInvariantCodeMotion.findPreheader(loop) == null) {
+        LoopInvariantCodeMotion.makePreheader(loop.getHeader(),
+                                              loop.getBlocks(), blocks);
+        added = true;
+      }
+    }
+    if (added) {
+      dom = Dominators.forMethod(methodEnter);
+    }
+
+    // Reducing a loop only adds statements to its preheader and latches,
+    // so the loop nest stays valid throughout.
+    for (Loop loop : dom.getLoopNest().getLoops()) {
+      BasicBlockNode preheader = LoopInvariantCodeMotion.findPreheader(loop);
+      if (preheader != null) {
+        reduce(loop, preheader);
+      }
+    }
+  }
+
+  private void reduce(Loop loop, BasicBlockNode preheader) {
+    List<BasicBlockNode> loopBlocks = new ArrayList<BasicBlockNode>();
+    for (BasicBlockNode node : dom.getBlocks()) {
+      if (loop.contains(node)) {
+        loopBlocks.add(node);
+      }
+    }
+
+    // Count the definitions of each local in the loop.
+    Map<VariableLocation, Integer> defCounts =
+      new HashMap<VariableLocation, Integer>();
+    Map<VariableLocation, InductionVariable> ivs =
+      new LinkedHashMap<VariableLocation, InductionVariable>();
+    for (BasicBlockNode node : loopBlocks) {
+      List<BasicStatement> stmts = node.getStatements();
+      for (int ii = 0; ii < stmts.size(); ii++) {
+        TypedDescriptor def = SsaForm.getDefinedVariable(stmts.get(ii));
+        if (def == null) {
+          continue;
+        }
+        VariableLocation loc = def.getLocation();
+        Integer count = defCounts.get(loc);
+        defCounts.put(loc, (count == null) ? 1 : count + 1);
+
+        Integer step = getStep(stmts.get(ii), def);
+        if (step != null && !(node.isBranch() && ii == stmts.size() - 1)) {
+          InductionVariable iv = new InductionVariable();
+          iv.var = def;
+          iv.incrementBlock = node;
+          iv.increment = (OpStatement) stmts.get(ii);
+          iv.step = step;
+          ivs.put(loc, iv);
+        }
+      }
+    }
+    for (VariableLocation loc :
+         new ArrayList<VariableLocation>(ivs.keySet())) {
+      if (defCounts.get(loc) != 1) {
+        ivs.remove(loc);
+      }
+    }
+    if (ivs.isEmpty()) {
+      return;
+    }
+
+    // Replace each product of an induction variable and an invariant with
+    // a move from the product's variable.
+    for (BasicBlockNode node : loopBlocks) {
+      List<BasicStatement> stmts = node.getStatements();
+      boolean changed = false;
+      for (int ii = 0; ii < stmts.size(); ii++) {
+        if (!(stmts.get(ii) instanceof OpStatement)) {
+          continue;
+        }
+        OpStatement op = (OpStatement) stmts.get(ii);
+        if (op.getOp() != AsmOp.MULTIPLY || op.getResult() == null) {
+          continue;
+        }
+        InductionVariable iv = getInductionVariable(op.getArg1(), ivs);
+        Argument factor = op.getArg2();
+        if (iv == null || !isInvariant(factor, defCounts)) {
+          iv = getInductionVariable(op.getArg2(), ivs);
+          factor = op.getArg1();
+        }
+        if (iv == null || !isInvariant(factor, defCounts)) {
+          continue;
+        }
+        LocalDescriptor product = getProduct(iv, factor);
+        if (product == null) {
+          continue;
+        }
+        stmts.set(ii, new OpStatement(op.getNode(), AsmOp.MOVE,
+                                      Argument.makeArgument(product),
+                                      Argument.makeArgument(op.getResult()),
+                                      null));
+        changed = true;
+        reduced++;
+      }
+      if (changed) {
+        node.setStatements(stmts);
+      }
+    }
+
+    for (InductionVariable iv : ivs.values()) {
+      if (iv.products.isEmpty()) {
+        continue;
+      }
+      maintainProducts(iv, preheader);
+      tryToEliminate(iv, loop, loopBlocks, preheader);
+    }
+  }
+
+  /**
+   * Returns how much stmt adds to def, if it adds a constant to it.
+   */
+  private static Integer getStep(BasicStatement stmt, TypedDescriptor def) {
+    if (!(stmt instanceof OpStatement)) {
+      return null;
+    }
+    OpStatement op = (OpStatement) stmt;
+    Argument arg1 = op.getArg1();
+    Argument arg2 = op.getArg2();
+    if (op.getOp() == AsmOp.ADD) {
+      if (isVariable(arg1, def) && isIntConstant(arg2)) {
+        return ((ConstantArgument) arg2).getInt();
+      }
+      if (isVariable(arg2, def) && isIntConstant(arg1)) {
+        return ((ConstantArgument) arg1).getInt();
+      }
+    } else if (op.getOp() == AsmOp.SUBTRACT) {
+      if (isVariable(arg1, def) && isIntConstant(arg2)) {
+        return -((ConstantArgument) arg2).getInt();
+      }
+    }
+    return null;
+  }
+
+  private static InductionVariable getInductionVariable(Argument arg,
+      Map<VariableLocation, InductionVariable> ivs) {
+    if (!(arg instanceof VariableArgument) ||
+        arg instanceof ArrayVariableArgument || arg.getDesc() == null) {
+      return null;
+    }
+    return ivs.get(arg.getDesc().getLocation());
+  }
+
+  /**
+   * Returns whether arg is an integer constant or a local which the loop
+   * never assigns.
+   */
+  private static boolean isInvariant(Argument arg,
+                                     Map<VariableLocation, Integer> defs) {
+    if (isIntConstant(arg)) {
+      return true;
+    }
+    return arg instanceof VariableArgument &&
+      !(arg instanceof ArrayVariableArgument) &&
+      SsaForm.isTracked(arg.getDesc()) &&
+      !defs.containsKey(arg.getDesc().getLocation());
+  }
+
+  /**
+   * Returns the variable which holds iv times factor, creating it if
+   * needed, or null if it cannot be kept up to date cheaply.
+   */
+  private LocalDescriptor getProduct(InductionVariable iv, Argument factor) {
+    Object key = isIntConstant(factor) ?
+      (Object) ((ConstantArgument) factor).getInt() :
+      (Object) factor.getDesc().getLocation();
+    LocalDescriptor product = iv.products.get(key);
+    if (product != null) {
+      return product;
+    }
+    if (!isIntConstant(factor) && iv.step != 1 && iv.step != -1) {
+      // Stepping the product would need a multiplication of its own.
+      return null;
+    }
+
+    product = CFGGenerator.makeTemp(body, DecafType.INT);
+    iv.products.put(key, product);
+    iv.factors.put(key, factor);
+    return product;
+  }
+
+  /**
+   * Sets each product of iv in the preheader from iv's value on entry, and
+   * steps it right after iv is stepped.
+   */
+  private void maintainProducts(InductionVariable iv,
+                                BasicBlockNode preheader) {
+    ConstantArgument initial = findInitialValue(iv.var, preheader);
+    List<BasicStatement> stmts = iv.incrementBlock.getStatements();
+    int next = stmts.indexOf(iv.increment) + 1;
+    for (Object key : iv.products.keySet()) {
+      LocalDescriptor product = iv.products.get(key);
+      Argument factor = iv.factors.get(key);
+      if (initial != null && isIntConstant(factor)) {
+        int value = initial.getInt() * ((ConstantArgument) factor).getInt();
+        preheader.addStatement(new OpStatement(body, AsmOp.MOVE,
+          new ConstantArgument(value), Argument.makeArgument(product),
+          null));
+      } else {
+        preheader.addStatement(new OpStatement(body, AsmOp.MULTIPLY,
+          Argument.makeArgument(iv.var), factor, product));
+      }
+
+      Argument productArg = Argument.makeArgument(product);
+      OpStatement stepStmt;
+      if (isIntConstant(factor)) {
+        int delta = iv.step * ((ConstantArgument) factor).getInt();
+        stepStmt = new OpStatement(iv.increment.getNode(), AsmOp.ADD,
+                                   productArg, new ConstantArgument(delta),
+                                   product);
+      } else {
+        stepStmt = new OpStatement(iv.increment.getNode(),
+          (iv.step == 1) ? AsmOp.ADD : AsmOp.SUBTRACT, productArg, factor,
+          product);
+      }
+      stmts.add(next++, stepStmt);
+    }
+    iv.incrementBlock.setStatements(stmts);
+  }
+
+  /**
+   * Rewrites the loop test on iv to use one of its products instead, and
+   * stops stepping iv, if iv is then dead.
+   */
+  private void tryToEliminate(InductionVariable iv, Loop loop,
+                              List<BasicBlockNode> loopBlocks,
+                              BasicBlockNode preheader) {
+    BasicBlockNode latch = iv.incrementBlock;
+    if (iv.step != 1 || loop.getLatches().size() != 1 ||
+        loop.getLatches().get(0) != latch || !latch.isBranch() ||
+        latch.getBranchTarget() != loop.getHeader()) {
+      return;
+    }
+
+    // The test must be on iv and a constant, and iv must not be used
+    // anywhere else in the loop.
+    OpStatement test = null;
+    for (BasicBlockNode node : loopBlocks) {
+      for (BasicStatement s : node.getStatements()) {
+        if (s == iv.increment || !usesVariable(s, iv.var)) {
+          continue;
+        }
+        if (node != latch || s != latch.getLastStatement() ||
+            !(s instanceof OpStatement) || test != null) {
+          return;
+        }
+        test = (OpStatement) s;
+      }
+    }
+    if (test == null || test.getOp() != AsmOp.LESS_THAN ||
+        test.getResult() != null || !isVariable(test.getArg1(), iv.var) ||
+        !isIntConstant(test.getArg2())) {
+      return;
+    }
+    // The product has to replace iv, so iv must be dead after the loop.
+    Liveness live = new Liveness(methodEnter);
+    for (BasicBlockNode node : loopBlocks) {
+      for (BasicBlockNode succ : new BasicBlockNode[] {node.getNext(),
+                                                       node.getBranchTarget()}) {
+        if (succ != null && !loop.contains(succ) &&
+            live.getBlockItem(succ).isLiveOnEntrance(iv.var)) {
+          return;
+        }
+      }
+    }
+
+    // The test sees iv go from one past its initial value up to the bound,
+    // and comparing the products instead is only right if none of those
+    // overflow.
+    ConstantArgument initial = findInitialValue(iv.var, preheader);
+    if (initial == null) {
+      return;
+    }
+    long bound = ((ConstantArgument) test.getArg2()).getInt();
+    long low = Math.min(initial.getInt() + 1L, bound);
+    long high = Math.max(initial.getInt() + 1L, bound);
+    for (Object key : iv.products.keySet()) {
+      if (!(key instanceof Integer) || (Integer) key <= 0) {
+        continue;
+      }
+      long factor = (Integer) key;
+      if (low * factor < Integer.MIN_VALUE ||
+          high * factor > Integer.MAX_VALUE) {
+        continue;
+      }
+
+      List<BasicStatement> stmts = latch.getStatements();
+      stmts.remove(iv.increment);
+      stmts.set(stmts.size() - 1, new OpStatement(test.getNode(),
+        AsmOp.LESS_THAN, Argument.makeArgument(iv.products.get(key)),
+        new ConstantArgument((int) (bound * factor)), null));
+      latch.setStatements(stmts);
+      eliminated++;
+      return;
+    }
+  }
+
+  /**
+   * Returns the constant var holds when control leaves preheader, if it is
+   * assigned one along the straight-line path ending there.
+   */
+  private static ConstantArgument findInitialValue(TypedDescriptor var,
+                                                   BasicBlockNode preheader) {
+    Set<BasicBlockNode> seen = new HashSet<BasicBlockNode>();
+    BasicBlockNode node = preheader;
+    while (node != null && seen.add(node)) {
+      List<BasicStatement> stmts = node.getStatements();
+      for (int ii = stmts.size() - 1; ii >= 0; ii--) {
+        BasicStatement s = stmts.get(ii);
+        TypedDescriptor def = SsaForm.getDefinedVariable(s);
+        if (def == null ||
+            !def.getLocation().equals(var.getLocation())) {
+          continue;
+        }
+        OpStatement op = (OpStatement) s;
+        if (op.getOp() == AsmOp.MOVE && isIntConstant(op.getArg1())) {
+          return (ConstantArgument) op.getArg1();
+        }
+        return null;
+      }
+      if (node.getPredecessors().size() != 1) {
+        return null;
+      }
+      node = node.getPredecessors().iterator().next();
+    }
+    return null;
+  }
+
+  private static boolean usesVariable(BasicStatement s, TypedDescriptor var) {
+    for (TypedDescriptor used : SsaForm.getUsedVariables(s)) {
+      if (used.getLocation().equals(var.getLocation())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isVariable(Argument arg, TypedDescriptor var) {
+    return arg instanceof VariableArgument &&
+      !(arg instanceof ArrayVariableArgument) && arg.getDesc() != null &&
+      arg.getDesc().getLocation().equals(var.getLocation());
+  }
+
+  private static boolean isIntConstant(Argument arg) {
+    return arg instanceof ConstantArgument &&
+      arg.getType() == ArgType.CONST_INT;
+  }
+}
@@ -0,0 +1,320 @@
+package edu.mit.compilers.le02.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.mit.compilers.le02.DecafType;
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.ast.ASTNode;
+import edu.mit.compilers.le02.ast.ASTNodeVisitor;
+import edu.mit.compilers.le02.ast.ArrayLocationNode;
+import edu.mit.compilers.le02.ast.AssignNode;
+import edu.mit.compilers.le02.ast.ClassNode;
+import edu.mit.compilers.le02.ast.ExpressionNode;
+import edu.mit.compilers.le02.ast.ForNode;
+import edu.mit.compilers.le02.ast.IntNode;
+import edu.mit.compilers.le02.ast.MathOpNode;
+import edu.mit.compilers.le02.ast.MinusNode;
+import edu.mit.compilers.le02.ast.StatementNode;
+import edu.mit.compilers.le02.ast.VariableNode;
+import edu.mit.compilers.le02.opt.DependenceAnalysis.Affine;
+import edu.mit.compilers.le02.symboltable.FieldDescriptor;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+/**
+ * Finds the innermost for loops which can run two iterations at a time in
+ * the SSE registers.  Array elements are 64-bit slots holding sign-extended
+ * ints, so a register holds two of them; only the low half of each lane has
+ * to be right until it is stored, so the 32-bit SSE2 adds and subtracts and
+ * the unsigned 32x32 -> 64-bit multiply all give the same results as the
+ * scalar code.  A loop qualifies if
+ * - its body only assigns to array elements, each the value of an
+ *   expression of +, -, *, unary minus, constants, elements of arrays and
+ *   variables which the loop does not write;
+ * - every subscript in it is the loop variable plus something the loop
+ *   does not change, whose accesses can be checked before the loop nest
+ *   runs (see LoopMonotonicCode);
+ * - it carries no dependence, or only under conditions which can be checked
+ *   before it runs (see DependenceAnalysis);
+ * - it fits in the registers: at most MAX_ARGS values are passed to it, it
+ *   addresses at most MAX_POINTERS (array, offset) pairs, and it needs no
+ *   more than the 16 SSE registers.
+ *
+ * CFGGenerator makes each such loop a call, which AsmBasicBlock expands in
+ * place, followed by the loop itself for the last iteration if there is an
+ * odd number of them.  The call makes the optimizer assume the worst about
+ * what it reads and writes.
+ */
+public class VectorLoops extends ASTNodeVisitor<Boolean> {
+  /** The most values which can be passed to a vector loop in registers. */
+  private static final int MAX_ARGS = 6;
+  /** The most pointers into arrays the vector loop can keep. */
+  private static final int MAX_POINTERS = 3;
+  private static final int NUM_XMM_REGISTERS = 16;
+
+  private static VectorLoops instance;
+  private static Map<ForNode, VectorLoop> loops;
+  private static Map<String, VectorLoop> loopsByName;
+
+  /**
+   * The description of a vector loop.  It is passed the first and the end
+   * of its iterations, then the offsets, then the scalars, and returns the
+   * first iteration it did not run.  Each offset is the part of a subscript
+   * other than the loop variable, and each pointer is the address of an
+   * array plus one of the offsets.
+   */
+  public static class VectorLoop {
+    private ForNode node;
+    private String name;
+    private TypedDescriptor loopVar;
+    private List<Affine> offsets = new ArrayList<Affine>();
+    private List<TypedDescriptor> scalars = new ArrayList<TypedDescriptor>();
+    private List<Integer> constants = new ArrayList<Integer>();
+    private List<FieldDescriptor> pointerArrays =
+      new ArrayList<FieldDescriptor>();
+    private List<Integer> pointerOffsets = new ArrayList<Integer>();
+    private Map<ArrayLocationNode, Integer> pointers =
+      new HashMap<ArrayLocationNode, Integer>();
+    private List<AssignNode> stores = new ArrayList<AssignNode>();
+    private int depth = 0;
+
+    public VectorLoop(ForNode node, String name) {
+      this.node = node;
+      this.name = name;
+      this.loopVar = node.getInit().getLoc().getDesc();
+    }
+
+    public ForNode getNode() {
+      return node;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public List<Affine> getOffsets() {
+      return offsets;
+    }
+
+    public List<TypedDescriptor> getScalars() {
+      return scalars;
+    }
+
+    public List<Integer> getConstants() {
+      return constants;
+    }
+
+    public int getNumPointers() {
+      return pointerArrays.size();
+    }
+
+    public FieldDescriptor getPointerArray(int pointer) {
+      return pointerArrays.get(pointer);
+    }
+
+    public int getPointerOffset(int pointer) {
+      return pointerOffsets.get(pointer);
+    }
+
+    /**
+     * Returns the pointer through which an array element is accessed.
+     */
+    public int getPointer(ArrayLocationNode loc) {
+      return pointers.get(loc);
+    }
+
+    public List<AssignNode> getStores() {
+      return stores;
+    }
+
+    /**
+     * Returns the number of SSE registers needed for the stores, on top of
+     * those holding scalars and constants.
+     */
+    public int getDepth() {
+      return depth;
+    }
+
+    /**
+     * Returns whether an expression is a scalar or a constant, which are
+     * put in SSE registers before the loop starts.
+     */
+    public boolean isInvariant(ExpressionNode expr) {
+      return expr instanceof IntNode || (expr instanceof VariableNode &&
+          !(((VariableNode) expr).getLoc() instanceof ArrayLocationNode));
+    }
+
+    private boolean addAccess(ArrayLocationNode loc) {
+      Affine index = Affine.of(loc.getIndex());
+      if (loc.getDesc().getType() != DecafType.INT_ARRAY || index == null ||
+          index.getCoefficient(loopVar) != 1 ||
+          !LoopMonotonicCode.getMonotonicExprs().contains(loc.getIndex())) {
+        return false;
+      }
+      Affine offset = index.plus(new Affine(loopVar), -1);
+      for (TypedDescriptor var : offset.getCoefficients().keySet()) {
+        if (!LoopMonotonicCode.isUntouched(node, var, false)) {
+          return false;
+        }
+      }
+
+      int offsetIndex = offsets.indexOf(offset);
+      if (offsetIndex < 0) {
+        offsetIndex = offsets.size();
+        offsets.add(offset);
+      }
+      FieldDescriptor array = (FieldDescriptor) loc.getDesc();
+      int pointer = 0;
+      while (pointer < pointerArrays.size() &&
+             (pointerArrays.get(pointer) != array ||
+              pointerOffsets.get(pointer) != offsetIndex)) {
+        pointer++;
+      }
+      if (pointer == pointerArrays.size()) {
+        pointerArrays.add(array);
+        pointerOffsets.add(offsetIndex);
+      }
+      pointers.put(loc, pointer);
+      return true;
+    }
+
+    /**
+     * Returns the number of SSE registers needed to compute an expression,
+     * or -1 if it cannot be computed in them.
+     */
+    private int registersNeeded(ExpressionNode expr) {
+      if (expr instanceof IntNode) {
+        int value = ((IntNode) expr).getValue();
+        if (!constants.contains(value)) {
+          constants.add(value);
+        }
+        return 1;
+      }
+
+      if (expr instanceof VariableNode) {
+        VariableNode var = (VariableNode) expr;
+        if (var.getLoc() instanceof ArrayLocationNode) {
+          return addAccess((ArrayLocationNode) var.getLoc()) ? 1 : -1;
+        }
+        TypedDescriptor desc = var.getLoc().getDesc();
+        if (desc == loopVar ||
+            !LoopMonotonicCode.isUntouched(node, desc, false)) {
+          return -1;
+        }
+        if (!scalars.contains(desc)) {
+          scalars.add(desc);
+        }
+        return 1;
+      }
+
+      if (expr instanceof MinusNode) {
+        int inner = registersNeeded(((MinusNode) expr).getExpr());
+        return (inner < 0) ? -1 : inner + 1;
+      }
+
+      if (!(expr instanceof MathOpNode)) {
+        return -1;
+      }
+      MathOpNode op = (MathOpNode) expr;
+      switch (op.getOp()) {
+       case ADD:
+       case SUBTRACT:
+       case MULTIPLY:
+        break;
+       default:
+        return -1;
+      }
+      int left = registersNeeded(op.getLeft());
+      int right = registersNeeded(op.getRight());
+      if (left < 0 || right < 0) {
+        return -1;
+      }
+      // Scalars and constants are used from their own registers.
+      return Math.max(left, isInvariant(op.getRight()) ? 1 : right + 1);
+    }
+
+    private boolean analyze() {
+      for (StatementNode stmt : node.getBody().getStatements()) {
+        if (!(stmt instanceof AssignNode)) {
+          return false;
+        }
+        AssignNode assign = (AssignNode) stmt;
+        if (!(assign.getLoc() instanceof ArrayLocationNode) ||
+            !addAccess((ArrayLocationNode) assign.getLoc())) {
+          return false;
+        }
+        int needed = registersNeeded(assign.getValue());
+        if (needed < 0) {
+          return false;
+        }
+        // Storing the result takes a second register.
+        depth = Math.max(depth, Math.max(needed, 2));
+        stores.add(assign);
+      }
+
+      return !stores.isEmpty() &&
+        2 + offsets.size() + scalars.size() <= MAX_ARGS &&
+        pointerArrays.size() <= MAX_POINTERS &&
+        scalars.size() + constants.size() + depth <= NUM_XMM_REGISTERS &&
+        !DependenceAnalysis.getDependences(node).isDependent();
+    }
+  }
+
+  private static VectorLoops getInstance() {
+    if (instance == null) {
+      instance = new VectorLoops();
+    }
+    return instance;
+  }
+
+  /**
+   * Finds the loops which can be vectorized.  The results of
+   * LoopMonotonicCode.findMonotonicCode and DependenceAnalysis.findDependences
+   * for the same AST must be available.
+   */
+  public static void findVectorLoops(ASTNode root) {
+    loops = new HashMap<ForNode, VectorLoop>();
+    loopsByName = new HashMap<String, VectorLoop>();
+
+    assert(root instanceof ClassNode);
+    root.accept(getInstance());
+    PhaseTimer.count("vector loops", loops.size());
+  }
+
+  /**
+   * Drops all results so that nothing from the last AST analyzed is kept
+   * alive between compilations.
+   */
+  public static void reset() {
+    loops = null;
+    loopsByName = null;
+    instance = null;
+  }
+
+  /**
+   * Returns the vector loop for a for loop, or null if it has none.
+   */
+  public static VectorLoop getVectorLoop(ForNode node) {
+    return (loops == null) ? null : loops.get(node);
+  }
+
+  /**
+   * Returns the vector loop called by a name, or null if there is none.
+   */
+  public static VectorLoop getVectorLoop(String name) {
+    return (loopsByName == null) ? null : loopsByName.get(name);
+  }
+
+  @Override
+  public Boolean visit(ForNode node) {
+    VectorLoop loop = new VectorLoop(node, "vector." + loops.size());
+    if (loop.analyze()) {
+      loops.put(node, loop);
+      loopsByName.put(loop.getName(), loop);
+    }
+    defaultBehavior(node);
+    return true;
+  }
+}
@@ -2,6 +2,7 @@
 package edu.mit.compilers.le02.opt;
 
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import edu.mit.compilers.le02.RegisterLocation.Register;
@@ -27,6 +28,9 @@ import edu.mit.compilers.le02.symboltable.TypedDescriptor;
  * @author David Koh (dkoh@mit.edu)
  */
 public class Web implements Comparable<Web> {
+  private static final int LOOP_WEIGHT = 10;
+  private static final int MAX_LOOP_DEPTH = 4;
+
   private int color;
   private Web rep;
   private int _rank;
@@ -34,11 +38,10 @@ public class Web implements Comparable<Web> {
   private TypedDescriptor desc;
   private HashSet<BasicStatement> stmts;
   private int id;
-  private static int nextID = 0;
 
 
-  public Web(TypedDescriptor loc, BasicStatement def) {
-    this.id = nextID++;
+  public Web(TypedDescriptor loc, BasicStatement def, int id) {
+    this.id = id;
     this.rep = this;
     this._rank = 0;
     this.desc = loc;
@@ -122,9 +125,24 @@ public class Web implements Comparable<Web> {
     this.color = color;
   }
 
-  // TODO: Include loop nesting in spill cost
-  public int getSpillCost() {
-    return this.stmts.size();
+  /**
+   * Returns the cost of leaving this web out of a register.  Each statement
+   * counts LOOP_WEIGHT times as much for every loop it is inside, up to
+   * MAX_LOOP_DEPTH loops.  Statements missing from loopDepths count once.
+   */
+  public int getSpillCost(Map<BasicStatement, Integer> loopDepths) {
+    int cost = 0;
+    for (BasicStatement s : this.stmts) {
+      Integer depth = loopDepths.get(s);
+      int weight = 1;
+      if (depth != null) {
+        for (int i = 0; i < depth && i < MAX_LOOP_DEPTH; i++) {
+          weight *= LOOP_WEIGHT;
+        }
+      }
+      cost += weight;
+    }
+    return cost;
   }
 
   @Override
@@ -86,6 +86,24 @@ public class SymbolTable {
     return this.putHelper(id, descriptor, sl);
   }
 
+  /**
+   * Add a field after the tables below this one were created.  Each table
+   * keeps its own list of the fields in scope, so the field is added to the
+   * lists of all of them as well.
+   */
+  public boolean putLateField(String id, FieldDescriptor descriptor,
+      SourceLocation sl) {
+    addFieldBelow(descriptor);
+    return this.putHelper(id, descriptor, sl);
+  }
+
+  private void addFieldBelow(FieldDescriptor descriptor) {
+    this.fields.add(descriptor);
+    for (SymbolTable child : children) {
+      child.addFieldBelow(descriptor);
+    }
+  }
+
   /**
    * Add a new entry to the symbol table. Verify that it does not already
    * exist in this table or any ancestor
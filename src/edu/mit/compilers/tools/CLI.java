@@ -9,8 +9,9 @@ import edu.mit.compilers.le02.Main.Optimization;
  * A generic command-line interface for 6.035 compilers.  This class
  * provides command-line parsing for student projects.  It recognizes
  * the required <tt>-target</tt>, <tt>-debug</tt>, <tt>-opt</tt>, and
- * <tt>-o</tt> switches, and generates a name for input and output
- * files.
+ * <tt>-o</tt> switches, as well as <tt>-jobs</tt>, <tt>-threads</tt>,
+ * <tt>-unrollfactor</tt>, <tt>-batch</tt> and <tt>-stats</tt>, and generates
+ * a name for input and output files.
  *
  * @author  6.035 Staff (<tt>6.035-staff@mit.edu</tt>)
  */
@@ -86,6 +87,57 @@ public class CLI {
    */
   public static boolean compat;
 
+  /**
+   * Whether to annotate each assembly instruction with the source line it
+   * came from.  This is true unless <tt>-noannotate</tt> was passed on the
+   * command line.
+   */
+  public static boolean annotate;
+
+  /**
+   * The number of worker threads to use when optimizing methods.  This is
+   * set by <tt>-jobs <I>n</I></tt>; a value of 1 optimizes serially.
+   */
+  public static int jobs;
+
+  /**
+   * The number of threads the compiled program splits parallel loops
+   * across.  This is set by <tt>-threads <I>n</I></tt>, and defaults to 4.
+   */
+  public static int threads;
+
+  /**
+   * The number of copies of their bodies unrolled loops run back to back.
+   * This is set by <tt>-unrollfactor <I>n</I></tt>, and defaults to 4.
+   */
+  public static int unroll;
+
+  /**
+   * The batch flag.  This is true if <tt>-batch</tt> was passed on the
+   * command line, requesting that every input file be compiled in a single
+   * run of the compiler.
+   */
+  public static boolean batch;
+
+  /**
+   * The stats flag.  This is true if <tt>-stats</tt> was passed on the
+   * command line, requesting per-phase timing, memory and object counts.
+   */
+  public static boolean stats;
+
+  /**
+   * Name of the file to write statistics to as JSON, one object per input.
+   * Set by <tt>-statsfile <I>file</I></tt>.  If this is null, statistics
+   * are printed to stderr.
+   */
+  public static String statsfile;
+
+  /**
+   * Vector of String containing every input file name given on the command
+   * line.  Only filled in batch mode.
+   */
+  public static Vector<String> infiles;
+
   /**
    * The static constant string displayed for stdin as a file.
    */
@@ -101,8 +153,13 @@ public class CLI {
     outfile = null;
     infile = null;
     target = Action.DEFAULT;
+    jobs = 1;
+    threads = 4;
+    unroll = 4;
+    annotate = true;
     extras = new Vector<String>();
     extraopts = new Vector<String>();
+    infiles = new Vector<String>();
   }
 
   /**
@@ -137,7 +194,6 @@ public class CLI {
    * @param optnames Ordered array of recognized optimization names.  */
   public static void parse (String args[], EnumSet<Optimization> opts) {
     int context = 0;
-    String ext = ".out";
 
     for (int i = 0; i < args.length; i++)
     {
@@ -154,6 +210,21 @@ public class CLI {
         context = 0;
         compat = true;
         continue;
+      } else if (args[i].equals("-batch")) {
+        context = 0;
+        batch = true;
+        continue;
+      } else if (args[i].equals("-noannotate")) {
+        context = 0;
+        annotate = false;
+        continue;
+      } else if (args[i].equals("-stats")) {
+        context = 0;
+        stats = true;
+        continue;
+      } else if (args[i].equals("-statsfile")) {
+        context = 5;
+        continue;
       } else if (args[i].equals("-opt")) {
         context = 1;
         continue;
@@ -163,6 +234,15 @@ public class CLI {
       } else if (args[i].equals("-target")) {
         context = 3;
         continue;
+      } else if (args[i].equals("-jobs")) {
+        context = 4;
+        continue;
+      } else if (args[i].equals("-threads")) {
+        context = 6;
+        continue;
+      } else if (args[i].equals("-unrollfactor")) {
+        context = 7;
+        continue;
       }
 
       // Parse either flag arguments, or general arguments.
@@ -171,7 +251,9 @@ public class CLI {
         boolean hit = false;
         for (Optimization opt : Optimization.values()) {
           if ((args[i].equals("all") &&
-                opt != Optimization.GLOBAL_COMMON_SUBEXPR) ||
+                opt != Optimization.GLOBAL_COMMON_SUBEXPR &&
+                opt != Optimization.LINEAR_SCAN &&
+                opt != Optimization.PARALLELIZATION) ||
               (args[i].equals(opt.flagName()))) {
             hit = true;
             opts.add(opt);
@@ -211,6 +293,35 @@ public class CLI {
         }
         context = 0;
         break;
+       case 4:
+        try {
+          jobs = Math.max(1, Integer.parseInt(args[i]));
+        } catch (NumberFormatException nfe) {
+          extras.addElement(args[i]);
+        }
+        context = 0;
+        break;
+       case 5:
+        statsfile = args[i];
+        stats = true;
+        context = 0;
+        break;
+       case 6:
+        try {
+          threads = Math.max(1, Integer.parseInt(args[i]));
+        } catch (NumberFormatException nfe) {
+          extras.addElement(args[i]);
+        }
+        context = 0;
+        break;
+       case 7:
+        try {
+          unroll = Math.max(1, Integer.parseInt(args[i]));
+        } catch (NumberFormatException nfe) {
+          extras.addElement(args[i]);
+        }
+        context = 0;
+        break;
        default:
         extras.addElement(args[i]);
       }
@@ -228,42 +339,67 @@ public class CLI {
       i++;
     }
 
-    // create outfile name
+    if (batch) {
+      if (infile != null) {
+        infiles.addElement(infile);
+      }
+      i = 0;
+      while (i < extras.size()) {
+        String fn = extras.elementAt(i);
+        if (fn.charAt(0) != '-') {
+          infiles.addElement(fn);
+          extras.removeElementAt(i);
+        } else {
+          i++;
+        }
+      }
+    }
+
+    // In batch mode each file's output name is chosen as it is compiled,
+    // so outfile is only set here if -o was given.
+    if (outfile == null && infile != null && !batch) {
+      outfile = defaultOutfile(infile);
+    }
+  }
+
+  /**
+   * Returns the extension used for output files of the current target.
+   */
+  private static String outputExtension() {
     switch (target) {
      case SCAN:
-      ext = ".scan";
-      break;
+      return ".scan";
      case PARSE:
-      ext = ".parse";
-      break;
+      return ".parse";
      case INTER:
-      ext = ".ir";
-      break;
+      return ".ir";
      case LOWIR:
-      ext = ".lowir";
-      break;
+      return ".lowir";
      case CFG:
-      ext = ".dot";
-      break;
+      return ".dot";
      case ASSEMBLY:
-      ext = ".s";
-      break;
+      return ".s";
      case DEFAULT:
      default:
-      ext = ".out";
-      break;
+      return ".out";
     }
+  }
 
-    if (outfile == null && infile != null) {
-      int dot = infile.lastIndexOf('.');
-      int slash = infile.lastIndexOf('/');
-      // Last dot comes after last slash means that the file
-      // has an extension.  Note that the base case where dot
-      // or slash are -1 also work.
-      if (dot <= slash)
-        outfile = infile + ext;
-      else
-        outfile = infile.substring(0, dot) + ext;
+  /**
+   * Generates the name of the output file for an input file, by replacing
+   * its extension with the one for the current target.
+   */
+  public static String defaultOutfile(String input) {
+    String ext = outputExtension();
+    int dot = input.lastIndexOf('.');
+    int slash = input.lastIndexOf('/');
+    // Last dot comes after last slash means that the file
+    // has an extension.  Note that the base case where dot
+    // or slash are -1 also work.
+    if (dot <= slash) {
+      return input + ext;
+    } else {
+      return input.substring(0, dot) + ext;
     }
   }
 }
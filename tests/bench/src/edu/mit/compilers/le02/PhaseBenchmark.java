@@ -0,0 +1,245 @@
+package edu.mit.compilers.le02;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import antlr.ANTLRException;
+import antlr.Token;
+import edu.mit.compilers.le02.Main.Optimization;
+import edu.mit.compilers.le02.grammar.DecafParserTokenTypes;
+import edu.mit.compilers.le02.grammar.DecafScanner;
+import edu.mit.compilers.tools.CLI;
+
+/**
+ * Measures the compile time of each compiler phase, so that compile-time
+ * regressions can be caught against a baseline.
+ *
+ * Every input group is compiled warmup times to let the JIT settle and then
+ * iterations times under a PhaseTimer; the mean time per compile of the
+ * whole group is reported for each phase.  Inputs default to the codegen,
+ * optimizer and derby programs plus synthetic programs scaled to a number
+ * of methods.
+ *
+ * Usage: PhaseBenchmark [-warmup n] [-iterations n] [-scale methods]...
+ *                       [compiler flags] [files or directories]
+ */
+public class PhaseBenchmark {
+  private static int warmup = 3;
+  private static int iterations = 5;
+
+  public static void main(String[] args) throws IOException {
+    List<Integer> scales = new ArrayList<Integer>();
+    List<String> compilerArgs = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-warmup") && i + 1 < args.length) {
+        warmup = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-iterations") && i + 1 < args.length) {
+        iterations = Math.max(1, Integer.parseInt(args[++i]));
+      } else if (args[i].equals("-scale") && i + 1 < args.length) {
+        scales.add(Integer.parseInt(args[++i]));
+      } else {
+        compilerArgs.add(args[i]);
+      }
+    }
+    compilerArgs.addAll(Arrays.asList("-batch", "-target", "assembly"));
+
+    EnumSet<Optimization> opts = EnumSet.noneOf(Optimization.class);
+    CLI.parse(compilerArgs.toArray(new String[compilerArgs.size()]), opts);
+
+    Map<String, List<File>> groups = new LinkedHashMap<String, List<File>>();
+    if (CLI.infiles.isEmpty()) {
+      addInput(groups, new File("tests/codegen/input"));
+      addInput(groups, new File("tests/optimizer/input"));
+      addInput(groups, new File("tests/derby/derby.dcf"));
+      if (scales.isEmpty()) {
+        scales.addAll(Arrays.asList(16, 32, 64));
+      }
+    } else {
+      for (String name : CLI.infiles) {
+        addInput(groups, new File(name));
+      }
+    }
+    for (int scale : scales) {
+      File synthetic = File.createTempFile("synthetic" + scale, ".dcf");
+      synthetic.deleteOnExit();
+      FileWriter writer = new FileWriter(synthetic);
+      writer.write(syntheticProgram(scale));
+      writer.close();
+      groups.put("synthetic-" + scale,
+                 new ArrayList<File>(Arrays.asList(synthetic)));
+    }
+
+    File outfile = File.createTempFile("bench", ".s");
+    outfile.deleteOnExit();
+
+    System.out.println("opts " + opts + ", jobs " + CLI.jobs + ", " +
+      warmup + " warmup, " + iterations + " measured iterations");
+    Map<String, Map<String, Long>> results =
+      new LinkedHashMap<String, Map<String, Long>>();
+    for (Map.Entry<String, List<File>> group : groups.entrySet()) {
+      List<byte[]> sources = new ArrayList<byte[]>();
+      for (File f : group.getValue()) {
+        sources.add(Files.readAllBytes(f.toPath()));
+      }
+
+      for (int i = 0; i < warmup; i++) {
+        compileAll(group.getValue(), sources, opts, outfile);
+      }
+      PhaseTimer timer = new PhaseTimer();
+      PhaseTimer.setCurrent(timer);
+      for (int i = 0; i < iterations; i++) {
+        compileAll(group.getValue(), sources, opts, outfile);
+      }
+      PhaseTimer.setCurrent(null);
+      results.put(group.getKey(), timer.getTimes());
+    }
+
+    printTable(results);
+  }
+
+  private static void addInput(Map<String, List<File>> groups, File input) {
+    List<File> files = new ArrayList<File>();
+    String group;
+    if (input.isDirectory()) {
+      File[] contents = input.listFiles();
+      Arrays.sort(contents);
+      for (File f : contents) {
+        if (f.getName().endsWith(".dcf")) {
+          files.add(f);
+        }
+      }
+      group = input.getAbsoluteFile().getParentFile().getName();
+    } else {
+      files.add(input);
+      group = input.getAbsoluteFile().getParentFile().getName();
+    }
+    if (groups.containsKey(group)) {
+      groups.get(group).addAll(files);
+    } else {
+      groups.put(group, files);
+    }
+  }
+
+  private static void compileAll(List<File> files, List<byte[]> sources,
+                                 EnumSet<Optimization> opts, File outfile) {
+    for (int i = 0; i < files.size(); i++) {
+      Main.resetCompilerState();
+      CLI.infile = files.get(i).getPath();
+      CLI.outfile = outfile.getPath();
+
+      PhaseTimer.Sample phase = PhaseTimer.start();
+      scan(sources.get(i));
+      PhaseTimer.stop("scan", phase);
+
+      if (!Main.generateAsm(new ByteArrayInputStream(sources.get(i)), opts) ||
+          !ErrorReporting.noErrors()) {
+        ErrorReporting.printErrors(System.err);
+        throw new RuntimeException("Failed to compile " + CLI.infile);
+      }
+    }
+  }
+
+  private static void scan(byte[] source) {
+    DecafScanner scanner =
+      Main.initializeScanner(new ByteArrayInputStream(source));
+    try {
+      Token token;
+      do {
+        token = scanner.nextToken();
+      } while (token.getType() != DecafParserTokenTypes.EOF);
+    } catch (ANTLRException e) {
+      throw new RuntimeException("Failed to scan " + CLI.infile, e);
+    }
+  }
+
+  private static void printTable(Map<String, Map<String, Long>> results) {
+    Set<String> phases = new LinkedHashSet<String>();
+    for (Map<String, Long> times : results.values()) {
+      phases.addAll(times.keySet());
+    }
+
+    StringBuilder header = new StringBuilder(String.format("%-12s", "phase"));
+    for (String group : results.keySet()) {
+      header.append(String.format(" %14s", group));
+    }
+    System.out.println(header);
+
+    long[] totals = new long[results.size()];
+    for (String phase : phases) {
+      StringBuilder row = new StringBuilder(String.format("%-12s", phase));
+      int col = 0;
+      for (Map<String, Long> times : results.values()) {
+        Long nanos = times.get(phase);
+        long value = (nanos == null) ? 0 : nanos;
+        // Scanning is also counted in parse, so keep it out of the total.
+        if (!phase.equals("scan")) {
+          totals[col] += value;
+        }
+        row.append(String.format(" %14.3f", value / 1e6 / iterations));
+        col++;
+      }
+      System.out.println(row);
+    }
+
+    StringBuilder row = new StringBuilder(String.format("%-12s", "total"));
+    for (long total : totals) {
+      row.append(String.format(" %14.3f", total / 1e6 / iterations));
+    }
+    System.out.println(row);
+    System.out.println("(ms per compile of each group; parse includes scan)");
+  }
+
+  /**
+   * Generates a Decaf program with the given number of loop-heavy methods,
+   * called in turn from main.
+   */
+  static String syntheticProgram(int methods) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("class Program {\n");
+    sb.append("  int g[1000];\n");
+    sb.append("  int h[1000];\n\n");
+    for (int m = 0; m < methods; m++) {
+      sb.append("  int k" + m + "(int n, int c) {\n");
+      sb.append("    int i, j, s, t;\n");
+      sb.append("    s = 0;\n");
+      sb.append("    t = n * " + (m % 7 + 2) + " + c;\n");
+      sb.append("    for i = 0, n {\n");
+      sb.append("      g[i] = g[i] + i * t;\n");
+      sb.append("      if (g[i] > " + (100 + m) + ") {\n");
+      sb.append("        s = s + g[i] / 7 - (i % 5);\n");
+      sb.append("      } else {\n");
+      sb.append("        s = s - g[i] * 2 + t;\n");
+      sb.append("      }\n");
+      sb.append("      for j = 0, 10 {\n");
+      sb.append("        h[i] = h[i] + g[j] * (t + j) - s;\n");
+      sb.append("      }\n");
+      sb.append("    }\n");
+      sb.append("    if (s < 0 || t == " + m + ") {\n");
+      sb.append("      s = -s;\n");
+      sb.append("    }\n");
+      sb.append("    return s + t * t;\n");
+      sb.append("  }\n\n");
+    }
+    sb.append("  void main() {\n");
+    sb.append("    int total;\n");
+    sb.append("    total = 0;\n");
+    for (int m = 0; m < methods; m++) {
+      sb.append("    total = total + k" + m + "(100, total);\n");
+    }
+    sb.append("    callout(\"printf\", \"%d\\n\", total);\n");
+    sb.append("  }\n");
+    sb.append("}\n");
+    return sb.toString();
+  }
+}
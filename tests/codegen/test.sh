@@ -2,7 +2,7 @@
 
 runcompiler() {
   java -jar `dirname $0`/../../dist/Compiler.jar \
-    -target codegen -opt all -o $2 $1
+    -target codegen -opt all $3 -o $2 $1
 }
 
 fail=0
@@ -12,10 +12,14 @@ if ! gcc -v 2>&1 |grep -q '^Target: x86_64-linux-gnu'; then
   exit 0;
 fi
 
-for file in `dirname $0`/input/*.dcf; do
+# Compiles file with -opt all and any extra optimizations in $2, and checks
+# the output of running it.
+runtest() {
+  file=$1
+  opts=$2
   asm=`tempfile --suffix=.s`
   msg=""
-  if runcompiler $file $asm; then
+  if runcompiler $file $asm "$opts"; then
     binary=`tempfile`
     if gcc -o $binary -L `dirname $0`/lib -l6035 $asm; then
       output=`tempfile`
@@ -35,7 +39,7 @@ for file in `dirname $0`/input/*.dcf; do
   fi
   if [ ! -z "$msg" ]; then
     fail=1
-    echo $file
+    echo $file $opts
     if [ ! -z "$diffout" ]; then
       cat $diffout
     elif [ ! -z "$output" ]; then
@@ -44,6 +48,15 @@ for file in `dirname $0`/input/*.dcf; do
     echo $msg
   fi
   rm -f $diffout $output $binary $asm;
+}
+
+for file in `dirname $0`/input/*.dcf; do
+  runtest $file
 done
 
+# Optimizations which -opt all leaves out.
+runtest `dirname $0`/input/16-qsort.dcf gcse
+runtest `dirname $0`/input/xx-loop-break-index.dcf gcse
+runtest `dirname $0`/input/16-qsort.dcf linearscan
+
 exit $fail;
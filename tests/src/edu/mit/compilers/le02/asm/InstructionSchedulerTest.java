@@ -0,0 +1,55 @@
+package edu.mit.compilers.le02.asm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.SourceLocation;
+import edu.mit.compilers.le02.RegisterLocation.Register;
+
+public class InstructionSchedulerTest extends TestCase {
+  private SourceLocation sl = SourceLocation.getSourceLocationWithoutDetails();
+
+  private AsmInstruction inst(AsmOpCode op, AsmArg a, AsmArg b) {
+    return new AsmInstruction(op, a, b, sl);
+  }
+
+  private List<AsmObject> schedule(AsmObject... objs) {
+    List<AsmObject> code = new ArrayList<AsmObject>();
+    for (AsmObject obj : objs) {
+      code.add(obj);
+    }
+    return new InstructionScheduler().schedule(code);
+  }
+
+  public void testLoadHoisted() {
+    AsmInstruction add =
+      inst(AsmOpCode.ADDL, new ImmediateAsmArg(1), Register.EBX);
+    AsmInstruction load =
+      inst(AsmOpCode.MOVQ, MemoryAsmArg.based(-8, Register.RBP), Register.R10);
+    AsmInstruction use = inst(AsmOpCode.ADDL, Register.R10D, Register.ECX);
+    AsmInstruction ret = new AsmInstruction(AsmOpCode.RET, sl);
+    List<AsmObject> code = schedule(add, load, use, ret);
+    assertSame(load, code.get(0));
+    assertSame(add, code.get(1));
+    assertSame(use, code.get(2));
+    assertSame(ret, code.get(3));
+  }
+
+  public void testDependenciesKept() {
+    MemoryAsmArg slot = MemoryAsmArg.based(-8, Register.RBP);
+    AsmInstruction store = inst(AsmOpCode.MOVQ, Register.R10, slot);
+    AsmInstruction load = inst(AsmOpCode.MOVQ, slot, Register.R11);
+    AsmInstruction cmp = inst(AsmOpCode.CMPL, Register.R11D, Register.EAX);
+    AsmInstruction mul = inst(AsmOpCode.IMULL, Register.EBX, Register.ECX);
+    AsmInstruction jump =
+      new AsmInstruction(AsmOpCode.JL, new LabelAsmArg("a"), sl);
+    List<AsmObject> code = schedule(mul, store, load, cmp, jump);
+    // The imul clobbers the flags, so it must stay ahead of the cmpl whose
+    // flags the jl reads.  The store, load and cmpl keep their order.
+    assertTrue(code.indexOf(store) < code.indexOf(load));
+    assertTrue(code.indexOf(load) < code.indexOf(cmp));
+    assertTrue(code.indexOf(mul) < code.indexOf(cmp));
+    assertSame(jump, code.get(4));
+  }
+}
@@ -0,0 +1,112 @@
+package edu.mit.compilers.le02.asm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.SourceLocation;
+import edu.mit.compilers.le02.RegisterLocation.Register;
+
+public class PeepholeOptimizerTest extends TestCase {
+  private SourceLocation sl = SourceLocation.getSourceLocationWithoutDetails();
+
+  private AsmInstruction inst(AsmOpCode op, AsmArg a, AsmArg b) {
+    return new AsmInstruction(op, a, b, sl);
+  }
+
+  private AsmInstruction jump(AsmOpCode op, String label) {
+    return new AsmInstruction(op, new LabelAsmArg(label), sl);
+  }
+
+  private List<AsmObject> optimize(AsmObject... objs) {
+    List<AsmObject> code = new ArrayList<AsmObject>();
+    for (AsmObject obj : objs) {
+      code.add(obj);
+    }
+    new PeepholeOptimizer().optimize(code);
+    return code;
+  }
+
+  public void testStoreReload() {
+    MemoryAsmArg slot = MemoryAsmArg.based(-8, Register.RBP);
+    List<AsmObject> code = optimize(
+      inst(AsmOpCode.MOVQ, Register.R10, slot),
+      inst(AsmOpCode.MOVQ, slot, Register.R10),
+      inst(AsmOpCode.MOVQ, slot, Register.R11),
+      new AsmInstruction(AsmOpCode.RET, sl));
+    assertEquals(3, code.size());
+    AsmInstruction copy = (AsmInstruction) code.get(1);
+    assertEquals(AsmOpCode.MOVQ, copy.getOpcode());
+    assertEquals(Register.R10, copy.getFirstOperand());
+    assertEquals(Register.R11, copy.getSecondOperand());
+  }
+
+  public void testReloadAfterClobber() {
+    MemoryAsmArg slot = MemoryAsmArg.based(-8, Register.RBP);
+    List<AsmObject> code = optimize(
+      inst(AsmOpCode.MOVQ, Register.R10, slot),
+      inst(AsmOpCode.ADDL, new ImmediateAsmArg(1), Register.R10D),
+      inst(AsmOpCode.MOVQ, slot, Register.R10));
+    assertEquals(3, code.size());
+  }
+
+  public void testZeroXorOnlyWhenFlagsDead() {
+    List<AsmObject> code = optimize(
+      inst(AsmOpCode.MOVQ, new ImmediateAsmArg(0), Register.R10),
+      inst(AsmOpCode.CMPL, Register.R10D, Register.EAX),
+      inst(AsmOpCode.MOVQ, new ImmediateAsmArg(0), Register.R11),
+      jump(AsmOpCode.JL, "away"));
+    assertEquals(AsmOpCode.XORL, ((AsmInstruction) code.get(0)).getOpcode());
+    assertEquals(Register.R10D,
+                 ((AsmInstruction) code.get(0)).getSecondOperand());
+    assertEquals(AsmOpCode.MOVQ, ((AsmInstruction) code.get(2)).getOpcode());
+  }
+
+  public void testRedundantCompare() {
+    List<AsmObject> code = optimize(
+      inst(AsmOpCode.CMPL, new ImmediateAsmArg(1), Register.EAX),
+      jump(AsmOpCode.JE, "away"),
+      inst(AsmOpCode.MOVL, Register.EBX, Register.ECX),
+      inst(AsmOpCode.CMPL, new ImmediateAsmArg(1), Register.EAX),
+      jump(AsmOpCode.JL, "away"));
+    assertEquals(4, code.size());
+  }
+
+  public void testJumpThreading() {
+    List<AsmObject> code = optimize(
+      jump(AsmOpCode.JL, "a"),
+      new AsmInstruction(AsmOpCode.RET, sl),
+      AsmFile.writeLabel("a"),
+      jump(AsmOpCode.JMP, "b"),
+      AsmFile.writeLabel("c"),
+      new AsmInstruction(AsmOpCode.RET, sl),
+      AsmFile.writeLabel("b"),
+      jump(AsmOpCode.JMP, "c"));
+    assertEquals(new LabelAsmArg("c"),
+                 ((AsmInstruction) code.get(0)).getFirstOperand());
+  }
+
+  public void testBranchOverJump() {
+    List<AsmObject> code = optimize(
+      jump(AsmOpCode.JL, "a"),
+      jump(AsmOpCode.JMP, "b"),
+      AsmFile.writeLabel("a"),
+      new AsmInstruction(AsmOpCode.RET, sl),
+      AsmFile.writeLabel("b"),
+      new AsmInstruction(AsmOpCode.LEAVE, sl));
+    assertEquals(5, code.size());
+    AsmInstruction first = (AsmInstruction) code.get(0);
+    assertEquals(AsmOpCode.JGE, first.getOpcode());
+    assertEquals(new LabelAsmArg("b"), first.getFirstOperand());
+  }
+
+  public void testJumpToNext() {
+    List<AsmObject> code = optimize(
+      jump(AsmOpCode.JMP, "a"),
+      new AsmString("  /* comment */"),
+      AsmFile.writeLabel("a"),
+      new AsmInstruction(AsmOpCode.RET, sl));
+    assertEquals(3, code.size());
+    assertTrue(code.get(0) instanceof AsmString);
+  }
+}
@@ -0,0 +1,47 @@
+package edu.mit.compilers.le02.cfg;
+
+import junit.framework.TestCase;
+
+
+public class BasicBlockNodeTest extends TestCase {
+
+  /**
+   * Builds a branch whose sides are both empty, with the taken side falling
+   * through to the other: top branches to left and falls through to right,
+   * left falls through to right, and right falls through to end.
+   */
+  private BasicBlockNode[] makeEmptyDiamond() {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    BasicBlockNode left = new BasicBlockNode("block1", "main");
+    BasicBlockNode right = new BasicBlockNode("block2", "main");
+    BasicBlockNode end = new BasicBlockNode("block3", "main");
+
+    top.setNext(right);
+    top.setBranchTarget(left);
+    left.setNext(right);
+    right.setNext(end);
+    return new BasicBlockNode[] {top, left, right, end};
+  }
+
+  /**
+   * Test that removing the empty blocks leaves top branching straight to end
+   * whichever is removed first.
+   */
+  public void testRemoveEmptyBlocks() {
+    BasicBlockNode[] nodes = makeEmptyDiamond();
+    nodes[1].removeFromCFG();
+    nodes[2].removeFromCFG();
+    assertSame(nodes[3], nodes[0].getNext());
+    assertSame(nodes[3], nodes[0].getBranchTarget());
+    assertEquals(1, nodes[3].getPredecessors().size());
+    assertTrue(nodes[3].getPredecessors().contains(nodes[0]));
+
+    nodes = makeEmptyDiamond();
+    nodes[2].removeFromCFG();
+    nodes[1].removeFromCFG();
+    assertSame(nodes[3], nodes[0].getNext());
+    assertSame(nodes[3], nodes[0].getBranchTarget());
+    assertEquals(1, nodes[3].getPredecessors().size());
+    assertTrue(nodes[3].getPredecessors().contains(nodes[0]));
+  }
+}
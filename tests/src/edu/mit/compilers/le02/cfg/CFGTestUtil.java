@@ -0,0 +1,44 @@
+package edu.mit.compilers.le02.cfg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.mit.compilers.le02.DecafType;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+/**
+ * Utility methods for building control flow graphs by hand in unit tests.
+ */
+public class CFGTestUtil {
+  public static LocalDescriptor makeLocal(String name, int offset) {
+    return new LocalDescriptor(null, name, DecafType.INT, offset);
+  }
+
+  public static OpStatement makeDef(TypedDescriptor var, int value) {
+    return new OpStatement(null, AsmOp.MOVE, Argument.makeArgument(value),
+                           Argument.makeArgument(var), null);
+  }
+
+  public static OpStatement makeOp(AsmOp op, TypedDescriptor var, int value,
+                                   TypedDescriptor res) {
+    return new OpStatement(null, op, Argument.makeArgument(var),
+                           Argument.makeArgument(value), res);
+  }
+
+  public static OpStatement makeOp(AsmOp op, TypedDescriptor left,
+                                   TypedDescriptor right,
+                                   TypedDescriptor res) {
+    return new OpStatement(null, op, Argument.makeArgument(left),
+                           Argument.makeArgument(right), res);
+  }
+
+  public static List<BasicBlockNode> makeBlocks(BasicBlockNode... nodes) {
+    List<BasicBlockNode> blocks = new ArrayList<BasicBlockNode>();
+    for (BasicBlockNode node : nodes) {
+      blocks.add(node);
+    }
+    return blocks;
+  }
+}
@@ -0,0 +1,149 @@
+package edu.mit.compilers.le02.dfa;
+
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.dfa.LoopNest.Loop;
+
+
+public class DominatorsTest extends TestCase {
+
+  private BasicBlockNode makeBlock(String id) {
+    return new BasicBlockNode(id, "main");
+  }
+
+  /**
+   * Test that neither side of an if dominates the join, and that the join
+   * is the frontier of both sides.
+   */
+  public void testDiamond() {
+    BasicBlockNode top = makeBlock("main");
+    BasicBlockNode left = makeBlock("block1");
+    BasicBlockNode right = makeBlock("block2");
+    BasicBlockNode end = makeBlock("block3");
+
+    top.setNext(left);
+    top.setBranchTarget(right);
+    left.setNext(end);
+    right.setNext(end);
+
+    Dominators dom = Dominators.forMethod(top);
+    assertSame(top, dom.getEntry());
+    assertEquals(4, dom.getBlocks().size());
+    assertSame(top, dom.getBlocks().get(0));
+    assertSame(end, dom.getBlocks().get(3));
+
+    assertNull(dom.getImmediateDominator(top));
+    assertSame(top, dom.getImmediateDominator(left));
+    assertSame(top, dom.getImmediateDominator(right));
+    assertSame(top, dom.getImmediateDominator(end));
+    assertEquals(3, dom.getChildren(top).size());
+
+    assertTrue(dom.dominates(top, end));
+    assertTrue(dom.dominates(end, end));
+    assertFalse(dom.dominates(left, end));
+    assertFalse(dom.dominates(right, end));
+    assertFalse(dom.dominates(end, top));
+
+    assertTrue(dom.getFrontier(top).isEmpty());
+    assertTrue(dom.getFrontier(end).isEmpty());
+    Set<BasicBlockNode> frontier = dom.getFrontier(left);
+    assertEquals(1, frontier.size());
+    assertTrue(frontier.contains(end));
+    frontier = dom.getFrontier(right);
+    assertEquals(1, frontier.size());
+    assertTrue(frontier.contains(end));
+
+    assertTrue(dom.getLoopNest().getLoops().isEmpty());
+  }
+
+  /**
+   * Test a loop nested in another: the inner loop comes first, both are
+   * found with their headers and latches, and a loop header is in its own
+   * frontier.
+   */
+  public void testNestedLoop() {
+    BasicBlockNode top = makeBlock("main");
+    BasicBlockNode outer = makeBlock("block1");
+    BasicBlockNode inner = makeBlock("block2");
+    BasicBlockNode body = makeBlock("block3");
+    BasicBlockNode latch = makeBlock("block4");
+    BasicBlockNode end = makeBlock("block5");
+
+    top.setNext(outer);
+    outer.setNext(inner);
+    outer.setBranchTarget(end);
+    inner.setNext(body);
+    inner.setBranchTarget(latch);
+    body.setNext(inner);
+    latch.setNext(outer);
+
+    Dominators dom = Dominators.forMethod(top);
+    assertSame(outer, dom.getImmediateDominator(inner));
+    assertSame(inner, dom.getImmediateDominator(body));
+    assertSame(inner, dom.getImmediateDominator(latch));
+    assertSame(outer, dom.getImmediateDominator(end));
+
+    assertTrue(dom.getFrontier(body).contains(inner));
+    assertTrue(dom.getFrontier(inner).contains(inner));
+    assertTrue(dom.getFrontier(inner).contains(outer));
+    assertTrue(dom.getFrontier(latch).contains(outer));
+    assertFalse(dom.getFrontier(outer).contains(end));
+
+    LoopNest nest = dom.getLoopNest();
+    List<Loop> loops = nest.getLoops();
+    assertEquals(2, loops.size());
+    Loop innerLoop = loops.get(0);
+    Loop outerLoop = loops.get(1);
+    assertSame(inner, innerLoop.getHeader());
+    assertSame(outer, outerLoop.getHeader());
+    assertSame(outerLoop, innerLoop.getParent());
+    assertNull(outerLoop.getParent());
+    assertEquals(1, innerLoop.getLatches().size());
+    assertSame(body, innerLoop.getLatches().get(0));
+    assertSame(latch, outerLoop.getLatches().get(0));
+
+    assertEquals(2, innerLoop.getBlocks().size());
+    assertEquals(4, outerLoop.getBlocks().size());
+    assertFalse(innerLoop.contains(latch));
+    assertTrue(outerLoop.contains(body));
+    assertFalse(outerLoop.contains(end));
+
+    assertSame(innerLoop, nest.getLoop(body));
+    assertSame(outerLoop, nest.getLoop(latch));
+    assertNull(nest.getLoop(end));
+    assertEquals(2, nest.getDepth(body));
+    assertEquals(1, nest.getDepth(latch));
+    assertEquals(0, nest.getDepth(top));
+  }
+
+  /**
+   * Test that the cached dominators are dropped once an edge changes.
+   */
+  public void testInvalidation() {
+    BasicBlockNode top = makeBlock("main");
+    BasicBlockNode middle = makeBlock("block1");
+    BasicBlockNode end = makeBlock("block2");
+
+    top.setNext(middle);
+    middle.setNext(end);
+
+    Dominators dom = Dominators.forMethod(top);
+    assertTrue(dom.isCurrent());
+    assertSame(dom, Dominators.forMethod(top));
+    assertSame(middle, dom.getImmediateDominator(end));
+
+    top.setNext(end);
+    assertFalse(dom.isCurrent());
+
+    Dominators newDom = Dominators.forMethod(top);
+    assertNotSame(dom, newDom);
+    assertTrue(newDom.isCurrent());
+    assertSame(top, newDom.getImmediateDominator(end));
+    assertFalse(newDom.isReachable(middle));
+    assertEquals(-1, newDom.getNumber(middle));
+    assertEquals(2, newDom.getBlocks().size());
+  }
+}
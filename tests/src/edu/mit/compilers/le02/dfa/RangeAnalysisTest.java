@@ -0,0 +1,191 @@
+package edu.mit.compilers.le02.dfa;
+
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeBlocks;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeDef;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeLocal;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeOp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.opt.BoundsCheckElimination;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+
+
+public class RangeAnalysisTest extends TestCase {
+  private LocalDescriptor x = makeLocal("x", -8);
+  private LocalDescriptor y = makeLocal("y", -16);
+
+  /**
+   * Test that arithmetic which may overflow gives every int, since the
+   * generated code wraps around, and that arithmetic which cannot does not.
+   */
+  public void testWraparound() {
+    Range max = Range.of(Integer.MAX_VALUE);
+    Range min = Range.of(Integer.MIN_VALUE);
+    assertEquals(Range.ALL, max.plus(Range.of(1)));
+    assertEquals(Range.ALL, min.minus(Range.of(1)));
+    assertEquals(Range.ALL, min.negate());
+    assertEquals(Range.ALL, Range.of(65536).times(Range.of(65536)));
+    assertEquals(Range.ALL, Range.of(-2, 2).times(max));
+
+    assertEquals(max, Range.of(Integer.MAX_VALUE - 1).plus(Range.of(1)));
+    assertEquals(Range.of(6, 15), Range.of(1, 10).plus(Range.of(5)));
+    assertEquals(Range.of(-20, 30), Range.of(-2, 3).times(Range.of(10)));
+  }
+
+  /**
+   * Test that widening pushes only the bounds which moved to the end of the
+   * ints.
+   */
+  public void testWiden() {
+    Range earlier = Range.of(0, 10);
+    assertEquals(earlier, earlier.widen(Range.of(2, 8)));
+    assertEquals(Range.of(0, Integer.MAX_VALUE),
+                 earlier.widen(Range.of(0, 11)));
+    assertEquals(Range.of(Integer.MIN_VALUE, 10),
+                 earlier.widen(Range.of(-1, 10)));
+    assertEquals(Range.ALL, earlier.widen(Range.of(-1, 11)));
+    assertEquals(earlier, Range.EMPTY.widen(earlier));
+  }
+
+  /**
+   * Test that a value which grows around a loop with an unknown condition
+   * is widened up to the largest int, keeping its lower bound, and that a
+   * bounded loop's variable is bounded again inside the body and after it.
+   */
+  public void testLoop() {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    BasicBlockNode header = new BasicBlockNode("block1", "main");
+    BasicBlockNode body = new BasicBlockNode("block2", "main");
+    BasicBlockNode exit = new BasicBlockNode("block3", "main");
+    BasicBlockNode lower = new BasicBlockNode("block4", "main");
+    BasicBlockNode end = new BasicBlockNode("block5", "main");
+
+    top.setNext(header);
+    header.setNext(exit);
+    header.setBranchTarget(body);
+    body.setNext(header);
+    body.setBranchTarget(header);
+    exit.setNext(lower);
+    exit.setBranchTarget(lower);
+    lower.setNext(end);
+    lower.setBranchTarget(end);
+
+    // y is never given a value, so the loop may run any number of times,
+    // but x + 1 cannot wrap around.
+    top.addStatement(makeDef(x, 0));
+    header.addStatement(makeOp(AsmOp.LESS_THAN, x, y, null));
+    body.addStatement(makeOp(AsmOp.ADD, x, 1, x));
+    body.addStatement(makeOp(AsmOp.LESS_THAN, x, 1, null));
+    exit.addStatement(makeOp(AsmOp.LESS_THAN, x, 1000, null));
+    lower.addStatement(makeOp(AsmOp.GREATER_OR_EQUAL, x, 0, null));
+
+    RangeAnalysis ranges = new RangeAnalysis(top);
+    assertEquals(Range.BOOLEAN, ranges.evaluateCondition(header));
+    assertEquals(Range.FALSE, ranges.evaluateCondition(body));
+    assertEquals(Range.BOOLEAN, ranges.evaluateCondition(exit));
+    assertEquals(Range.TRUE, ranges.evaluateCondition(lower));
+
+    // Now bound the loop by x itself.
+    header.setStatements(new ArrayList<BasicStatement>());
+    header.addStatement(makeOp(AsmOp.LESS_THAN, x, 10, null));
+    body.setStatements(new ArrayList<BasicStatement>());
+    body.addStatement(makeOp(AsmOp.ADD, x, 1, x));
+    body.addStatement(makeOp(AsmOp.LESS_OR_EQUAL, x, 10, null));
+    exit.setStatements(new ArrayList<BasicStatement>());
+    exit.addStatement(makeOp(AsmOp.GREATER_OR_EQUAL, x, 10, null));
+
+    ranges = new RangeAnalysis(top);
+    assertEquals(Range.BOOLEAN, ranges.evaluateCondition(header));
+    assertEquals(Range.TRUE, ranges.evaluateCondition(body));
+    assertEquals(Range.TRUE, ranges.evaluateCondition(exit));
+  }
+
+  /**
+   * Test that what a branch says about its operand holds on the edge it
+   * does not take as well as on the one it does.
+   */
+  public void testNotTakenEdge() {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    BasicBlockNode negative = new BasicBlockNode("block1", "main");
+    BasicBlockNode rest = new BasicBlockNode("block2", "main");
+    BasicBlockNode end = new BasicBlockNode("block3", "main");
+
+    top.setNext(rest);
+    top.setBranchTarget(negative);
+    negative.setNext(end);
+    negative.setBranchTarget(end);
+    rest.setNext(end);
+    rest.setBranchTarget(end);
+
+    // x is in [-4, 4], whatever y is.
+    top.addStatement(makeOp(AsmOp.MODULO, y, 5, x));
+    top.addStatement(makeOp(AsmOp.LESS_THAN, x, 0, null));
+    negative.addStatement(makeOp(AsmOp.GREATER_THAN, x, -5, null));
+    rest.addStatement(makeOp(AsmOp.LESS_THAN, x, 0, null));
+    end.addStatement(makeOp(AsmOp.GREATER_THAN, x, 4, null));
+
+    RangeAnalysis ranges = new RangeAnalysis(top);
+    assertEquals(Range.BOOLEAN, ranges.evaluateCondition(top));
+    assertEquals(Range.TRUE, ranges.evaluateCondition(negative));
+    assertEquals(Range.FALSE, ranges.evaluateCondition(rest));
+  }
+
+  /**
+   * Test that the bounds checks of an index which a loop keeps in bounds
+   * are removed, while the check of an index which really is out of bounds
+   * is kept, along with the block which reports it.
+   */
+  public void testBoundsChecks() {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    BasicBlockNode header = new BasicBlockNode("block1", "main");
+    BasicBlockNode lowCheck = new BasicBlockNode("block2", "main");
+    BasicBlockNode highCheck = new BasicBlockNode("block3", "main");
+    BasicBlockNode body = new BasicBlockNode("block4", "main");
+    BasicBlockNode error = new BasicBlockNode("block5", "main");
+    BasicBlockNode after = new BasicBlockNode("block6", "main");
+    BasicBlockNode access = new BasicBlockNode("block7", "main");
+
+    top.setNext(header);
+    header.setNext(after);
+    header.setBranchTarget(lowCheck);
+    lowCheck.setNext(highCheck);
+    lowCheck.setBranchTarget(error);
+    highCheck.setNext(body);
+    highCheck.setBranchTarget(error);
+    body.setNext(header);
+    after.setNext(access);
+    after.setBranchTarget(error);
+
+    // for (x = 0; x < 10; x++) { A[x] } and then A[x], with A of size 10.
+    top.addStatement(makeDef(x, 0));
+    header.addStatement(makeOp(AsmOp.LESS_THAN, x, 10, null));
+    lowCheck.addStatement(makeOp(AsmOp.LESS_THAN, x, 0, null));
+    highCheck.addStatement(makeOp(AsmOp.GREATER_OR_EQUAL, x, 10, null));
+    body.addStatement(makeOp(AsmOp.ADD, x, 1, x));
+    error.addStatement(makeDef(y, -1));
+    after.addStatement(makeOp(AsmOp.GREATER_OR_EQUAL, x, 10, null));
+    access.addStatement(makeDef(y, 1));
+
+    List<BasicBlockNode> blocks = makeBlocks(top, header, lowCheck, highCheck,
+                                             body, error, after, access);
+    BoundsCheckElimination.performBoundsCheckElimination(top, blocks);
+
+    assertFalse(lowCheck.isBranch());
+    assertSame(highCheck, lowCheck.getNext());
+    assertFalse(highCheck.isBranch());
+    assertSame(body, highCheck.getNext());
+    assertTrue(lowCheck.getStatements().isEmpty());
+
+    assertFalse(after.isBranch());
+    assertSame(error, after.getNext());
+    assertTrue(blocks.contains(error));
+    assertFalse(blocks.contains(access));
+  }
+}
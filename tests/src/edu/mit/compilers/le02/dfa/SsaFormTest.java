@@ -0,0 +1,128 @@
+package edu.mit.compilers.le02.dfa;
+
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeDef;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeLocal;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeOp;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.dfa.SsaForm.Phi;
+import edu.mit.compilers.le02.dfa.SsaForm.Value;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+
+
+public class SsaFormTest extends TestCase {
+  private LocalDescriptor x = makeLocal("x", -8);
+  private LocalDescriptor y = makeLocal("y", -16);
+
+  /**
+   * Test that a variable set on one side of an if gets a phi at the join,
+   * and that a variable set only before the if does not.
+   */
+  public void testPhiAtJoin() {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    BasicBlockNode left = new BasicBlockNode("block1", "main");
+    BasicBlockNode right = new BasicBlockNode("block2", "main");
+    BasicBlockNode end = new BasicBlockNode("block3", "main");
+
+    top.setNext(left);
+    top.setBranchTarget(right);
+    left.setNext(end);
+    right.setNext(end);
+
+    OpStatement topDef = makeDef(x, 1);
+    OpStatement leftDef = makeDef(x, 2);
+    OpStatement use = makeOp(AsmOp.ADD, x, 1, y);
+    OpStatement yUse = makeOp(AsmOp.ADD, y, 1, y);
+    top.addStatement(makeDef(y, 0));
+    top.addStatement(topDef);
+    left.addStatement(leftDef);
+    right.addStatement(makeOp(AsmOp.ADD, y, 3, y));
+    end.addStatement(use);
+    end.addStatement(yUse);
+
+    SsaForm ssa = new SsaForm(top);
+    assertTrue(ssa.getPhis(left).isEmpty());
+    assertTrue(ssa.getPhis(right).isEmpty());
+
+    // Both variables differ along the two edges into end.
+    List<Phi> phis = ssa.getPhis(end);
+    assertEquals(2, phis.size());
+    Phi phi = null;
+    for (Phi p : phis) {
+      if (p.getTarget().getVariable().equals(x.getLocation())) {
+        phi = p;
+      }
+    }
+    assertNotNull(phi);
+    assertSame(end, phi.getBlock());
+    assertSame(phi, phi.getTarget().getPhi());
+    assertEquals(2, phi.getOperands().size());
+    assertSame(ssa.getDefinition(left, leftDef), phi.getOperands().get(left));
+    assertSame(ssa.getDefinition(top, topDef), phi.getOperands().get(right));
+
+    // The use in end sees the phi, and the definitions know their users.
+    assertSame(phi.getTarget(), ssa.getUse(end, use, x));
+    assertEquals(1, phi.getTarget().getUsers().size());
+    assertSame(use, phi.getTarget().getUsers().get(0).getStatement());
+    assertTrue(ssa.getDefinition(top, topDef).getPhiUsers().contains(phi));
+
+    // The add in end defines a new value of y, used by the next statement.
+    Value yValue = ssa.getDefinition(end, use);
+    assertSame(use, yValue.getDefinition());
+    assertSame(yValue, ssa.getUse(end, yUse, y));
+  }
+
+  /**
+   * Test that a variable set in a loop gets a phi at the header merging
+   * its value before the loop with the one from the latch.
+   */
+  public void testLoopPhi() {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    BasicBlockNode header = new BasicBlockNode("block1", "main");
+    BasicBlockNode body = new BasicBlockNode("block2", "main");
+    BasicBlockNode exit = new BasicBlockNode("block3", "main");
+
+    top.setNext(header);
+    header.setNext(exit);
+    header.setBranchTarget(body);
+    body.setNext(header);
+
+    OpStatement init = makeDef(x, 0);
+    OpStatement cond = makeOp(AsmOp.LESS_THAN, x, 10, null);
+    OpStatement step = makeOp(AsmOp.ADD, x, 1, x);
+    top.addStatement(init);
+    header.addStatement(cond);
+    body.addStatement(step);
+    exit.addStatement(makeOp(AsmOp.ADD, x, 0, y));
+
+    SsaForm ssa = new SsaForm(top);
+    List<Phi> phis = ssa.getPhis(header);
+    assertEquals(1, phis.size());
+    Phi phi = phis.get(0);
+    assertSame(ssa.getDefinition(top, init), phi.getOperands().get(top));
+    assertSame(ssa.getDefinition(body, step), phi.getOperands().get(body));
+    assertSame(phi.getTarget(), ssa.getUse(header, cond, x));
+    assertSame(phi.getTarget(), ssa.getUse(body, step, x));
+    assertTrue(ssa.getPhis(exit).isEmpty());
+  }
+
+  /**
+   * Test that a variable read before it is set uses its value on entry.
+   */
+  public void testInitialValue() {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    OpStatement use = makeOp(AsmOp.ADD, x, 1, y);
+    top.addStatement(use);
+
+    SsaForm ssa = new SsaForm(top);
+    Value value = ssa.getUse(top, use, x);
+    assertNotNull(value);
+    assertTrue(value.isInitial());
+    assertNull(ssa.getUse(top, use, y));
+  }
+}
@@ -0,0 +1,105 @@
+package edu.mit.compilers.le02.opt;
+
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeBlocks;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeDef;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeLocal;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeOp;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.ConstantArgument;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+
+
+public class ConstantFoldingTest extends TestCase {
+  private LocalDescriptor x = makeLocal("x", -8);
+  private LocalDescriptor y = makeLocal("y", -16);
+
+  private int fold(AsmOp op, int a, int b) {
+    ConstantArgument c = ConstantFolding.fold(op, new ConstantArgument(a),
+                                              new ConstantArgument(b));
+    assertNotNull(c);
+    return c.getInt();
+  }
+
+  private OpStatement getOp(BasicBlockNode node, int index) {
+    return (OpStatement) node.getStatements().get(index);
+  }
+
+  /**
+   * Test that folded arithmetic wraps around at 32 bits, as the generated
+   * code does.
+   */
+  public void testWraparound() {
+    assertEquals(Integer.MIN_VALUE,
+                 fold(AsmOp.ADD, Integer.MAX_VALUE, 1));
+    assertEquals(Integer.MAX_VALUE,
+                 fold(AsmOp.SUBTRACT, Integer.MIN_VALUE, 1));
+    assertEquals(0, fold(AsmOp.MULTIPLY, 65536, 65536));
+    assertEquals(Integer.MIN_VALUE,
+                 fold(AsmOp.UNARY_MINUS, Integer.MIN_VALUE, 0));
+    assertEquals(-3, fold(AsmOp.DIVIDE, -7, 2));
+    assertEquals(-1, fold(AsmOp.MODULO, -7, 2));
+
+    BasicBlockNode node = new BasicBlockNode("main", "main");
+    node.addStatement(makeDef(x, Integer.MAX_VALUE));
+    node.addStatement(makeOp(AsmOp.ADD, x, 1, y));
+    assertTrue(ConstantFolding.performConstantFolding(makeBlocks(node)));
+
+    OpStatement op = getOp(node, 1);
+    assertEquals(AsmOp.MOVE, op.getOp());
+    assertEquals(Integer.MIN_VALUE,
+                 ((ConstantArgument) op.getArg1()).getInt());
+    assertEquals(y, op.getArg2().getDesc());
+  }
+
+  /**
+   * Test that divisions which would trap at run time are not folded.
+   */
+  public void testTrappingDivision() {
+    ConstantArgument min = new ConstantArgument(Integer.MIN_VALUE);
+    ConstantArgument minusOne = new ConstantArgument(-1);
+    ConstantArgument zero = new ConstantArgument(0);
+    assertNull(ConstantFolding.fold(AsmOp.DIVIDE, min, minusOne));
+    assertNull(ConstantFolding.fold(AsmOp.MODULO, min, minusOne));
+    assertNull(ConstantFolding.fold(AsmOp.DIVIDE, minusOne, zero));
+    assertNull(ConstantFolding.fold(AsmOp.MODULO, minusOne, zero));
+
+    BasicBlockNode node = new BasicBlockNode("main", "main");
+    node.addStatement(makeDef(x, Integer.MIN_VALUE));
+    node.addStatement(makeOp(AsmOp.DIVIDE, x, -1, y));
+    node.addStatement(makeOp(AsmOp.MODULO, y, 0, y));
+    ConstantFolding.performConstantFolding(makeBlocks(node));
+
+    // The constant is substituted, but the division itself stays.
+    OpStatement op = getOp(node, 1);
+    assertEquals(AsmOp.DIVIDE, op.getOp());
+    assertEquals(Integer.MIN_VALUE,
+                 ((ConstantArgument) op.getArg1()).getInt());
+    assertEquals(AsmOp.MODULO, getOp(node, 2).getOp());
+  }
+
+  /**
+   * Test that a multiplication by a power of two becomes a left shift,
+   * while a division by a power of two stays a division, since a right
+   * shift would round negative numbers the wrong way.
+   */
+  public void testPowerOfTwo() {
+    BasicBlockNode node = new BasicBlockNode("main", "main");
+    node.addStatement(makeOp(AsmOp.MULTIPLY, x, 8, y));
+    node.addStatement(makeOp(AsmOp.DIVIDE, x, 8, y));
+    node.addStatement(makeOp(AsmOp.MULTIPLY, x, 6, y));
+    ConstantFolding.performConstantFolding(makeBlocks(node));
+
+    OpStatement shift = getOp(node, 0);
+    assertEquals(AsmOp.SHL, shift.getOp());
+    assertEquals(3, ((ConstantArgument) shift.getArg1()).getInt());
+    assertEquals(x, shift.getArg2().getDesc());
+    assertEquals(y, shift.getResult());
+
+    assertEquals(AsmOp.DIVIDE, getOp(node, 1).getOp());
+    assertEquals(AsmOp.MULTIPLY, getOp(node, 2).getOp());
+  }
+}
@@ -0,0 +1,241 @@
+package edu.mit.compilers.le02.opt;
+
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.ErrorReporting;
+import edu.mit.compilers.le02.Main;
+import edu.mit.compilers.le02.StreamUtil;
+import edu.mit.compilers.le02.ast.ASTNode;
+import edu.mit.compilers.le02.ast.ASTNodeVisitor;
+import edu.mit.compilers.le02.ast.ArrayLocationNode;
+import edu.mit.compilers.le02.ast.ForNode;
+import edu.mit.compilers.le02.grammar.DecafParser;
+import edu.mit.compilers.le02.grammar.DecafScanner;
+import edu.mit.compilers.le02.ir.IrGenerator;
+import edu.mit.compilers.le02.opt.DependenceAnalysis.Affine;
+import edu.mit.compilers.le02.opt.DependenceAnalysis.Dependences;
+import edu.mit.compilers.le02.semanticchecks.MasterChecker;
+import edu.mit.compilers.le02.stgenerator.SymbolTableGenerator;
+import edu.mit.compilers.le02.symboltable.TypedDescriptor;
+
+
+public class DependenceAnalysisTest extends TestCase {
+  private List<ForNode> loops;
+  private List<ArrayLocationNode> accesses;
+
+  public void setUp() {
+    Main.resetCompilerState();
+  }
+
+  /**
+   * Lists the for loops of a program, outermost first, and its array
+   * accesses, in the order they appear.
+   */
+  private class Collector extends ASTNodeVisitor<Boolean> {
+    @Override
+    public Boolean visit(ForNode node) {
+      loops.add(node);
+      defaultBehavior(node);
+      return true;
+    }
+
+    @Override
+    public Boolean visit(ArrayLocationNode node) {
+      accesses.add(node);
+      defaultBehavior(node);
+      return true;
+    }
+  }
+
+  /**
+   * Analyzes the body of a method, given with the global array a and the
+   * parameters of the method, and returns the dependences of its first
+   * loop.
+   */
+  private Dependences analyze(String params, String body) throws Exception {
+    String program =
+      "class Program {\n" +
+      "  int a[1000];\n" +
+      "  void f(" + params + ") {\n" +
+      "    int i, j;\n" +
+      body +
+      "  }\n" +
+      "  void main() {}\n" +
+      "}\n";
+    DecafScanner lexer = new DecafScanner(new DataInputStream(
+        StreamUtil.createInputStream(program)));
+    DecafParser parser = new DecafParser(lexer);
+    parser.program();
+    ASTNode root = IrGenerator.generateIR(parser.getAST());
+    SymbolTableGenerator.generateSymbolTable(root);
+    MasterChecker.checkAll(root);
+    assertTrue(ErrorReporting.noErrors());
+
+    LoopMonotonicCode.findMonotonicCode(root);
+    DependenceAnalysis.findDependences(root);
+    loops = new ArrayList<ForNode>();
+    accesses = new ArrayList<ArrayLocationNode>();
+    root.accept(new Collector());
+    return DependenceAnalysis.getDependences(loops.get(0));
+  }
+
+  /**
+   * Checks that the loop may carry a dependence only for some values of
+   * the given symbol, and of no other variable.
+   */
+  private void assertConditionsIn(Dependences deps, String symbol) {
+    assertFalse(deps.isDependent());
+    assertFalse(deps.isIndependent());
+    for (List<Affine> condition : deps.getConditions()) {
+      assertFalse(condition.isEmpty());
+      for (Affine f : condition) {
+        assertFalse(f.isConstant());
+        for (TypedDescriptor var : f.getCoefficients().keySet()) {
+          assertEquals(symbol, var.getId());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether the conditions of a loop, which are in a single symbol,
+   * all hold when it has the given value.
+   */
+  private boolean holds(Dependences deps, long value) {
+    for (List<Affine> condition : deps.getConditions()) {
+      boolean positive = false;
+      for (Affine f : condition) {
+        for (long coeff : f.getCoefficients().values()) {
+          positive |= f.getConstant() + coeff * value > 0;
+        }
+      }
+      if (!positive) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Test that subscripts are turned into affine functions of the variables
+   * they use, and that a product of two variables is not affine.
+   */
+  public void testAffine() throws Exception {
+    analyze("int w",
+      "    for i = 1, 10 {\n" +
+      "      for j = 0, w {\n" +
+      "        a[(i - 1) * 100 + j] = a[2 * i + 1] + a[i * w];\n" +
+      "      }\n" +
+      "    }\n");
+    TypedDescriptor i = loops.get(0).getInit().getLoc().getDesc();
+    TypedDescriptor j = loops.get(1).getInit().getLoc().getDesc();
+
+    Affine row = Affine.of(accesses.get(0).getIndex());
+    assertEquals(100, row.getCoefficient(i));
+    assertEquals(1, row.getCoefficient(j));
+    assertEquals(-100, row.getConstant());
+
+    Affine odd = Affine.of(accesses.get(1).getIndex());
+    assertEquals(2, odd.getCoefficient(i));
+    assertEquals(0, odd.getCoefficient(j));
+    assertEquals(1, odd.getConstant());
+
+    assertNull(Affine.of(accesses.get(2).getIndex()));
+  }
+
+  /**
+   * Test that reading the element written by the last iteration is a
+   * dependence.
+   */
+  public void testDistanceOne() throws Exception {
+    Dependences deps = analyze("",
+      "    for i = 1, 100 {\n" +
+      "      a[i] = a[i - 1];\n" +
+      "    }\n");
+    assertTrue(deps.isDependent());
+  }
+
+  /**
+   * Test that the GCD test proves that even and odd elements never meet.
+   */
+  public void testGcd() throws Exception {
+    Dependences deps = analyze("",
+      "    for i = 0, 100 {\n" +
+      "      a[2 * i] = a[2 * i + 1];\n" +
+      "    }\n");
+    assertTrue(deps.isIndependent());
+  }
+
+  /**
+   * Test that an offset the loop never changes gives conditions on it to
+   * be checked at run time, rather than a dependence.
+   */
+  public void testSymbolicOffset() throws Exception {
+    Dependences deps = analyze("int k",
+      "    for i = 0, 100 {\n" +
+      "      a[i] = a[i + k];\n" +
+      "    }\n");
+    assertConditionsIn(deps, "k");
+    assertTrue(holds(deps, 100));
+    assertTrue(holds(deps, -100));
+    assertFalse(holds(deps, 1));
+    assertFalse(holds(deps, -1));
+  }
+
+  /**
+   * Test that the bounds of an inner loop are taken into account, giving
+   * conditions on them.  Each iteration here reads the row of 100 elements
+   * the last one wrote, so they only hold when the inner loop does not run.
+   */
+  public void testInnerLoopBound() throws Exception {
+    Dependences deps = analyze("int w",
+      "    for i = 1, 9 {\n" +
+      "      for j = 0, w {\n" +
+      "        a[i * 100 + j] = a[(i - 1) * 100 + j];\n" +
+      "      }\n" +
+      "    }\n");
+    assertConditionsIn(deps, "w");
+    assertTrue(holds(deps, 0));
+    assertFalse(holds(deps, 1));
+    assertFalse(holds(deps, 100));
+
+    // Reading further on in the same row only reaches the next row when the
+    // inner loop runs past its middle.
+    deps = analyze("int w",
+      "    for i = 1, 9 {\n" +
+      "      for j = 0, w {\n" +
+      "        a[i * 100 + j] = a[i * 100 + j + 50];\n" +
+      "      }\n" +
+      "    }\n");
+    assertConditionsIn(deps, "w");
+    assertTrue(holds(deps, 50));
+    assertFalse(holds(deps, 100));
+  }
+
+  /**
+   * Test that a loop needing more run-time checks than are worth making is
+   * taken to be dependent.
+   */
+  public void testTooManyConditions() throws Exception {
+    String params = "";
+    String sum = "0";
+    for (int k = 0; k < 20; k++) {
+      params += (k == 0 ? "" : ", ") + "int k" + k;
+      sum += " + a[i + k" + k + "]";
+    }
+    Dependences deps = analyze(params,
+      "    for i = 0, 100 {\n" +
+      "      a[i] = " + sum + ";\n" +
+      "    }\n");
+    assertTrue(deps.isDependent());
+
+    deps = analyze("int k0, int k1",
+      "    for i = 0, 100 {\n" +
+      "      a[i] = a[i + k0] + a[i + k1];\n" +
+      "    }\n");
+    assertFalse(deps.isDependent());
+  }
+}
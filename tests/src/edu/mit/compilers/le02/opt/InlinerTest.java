@@ -0,0 +1,151 @@
+package edu.mit.compilers.le02.opt;
+
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.ErrorReporting;
+import edu.mit.compilers.le02.Main;
+import edu.mit.compilers.le02.Main.Optimization;
+import edu.mit.compilers.le02.StreamUtil;
+import edu.mit.compilers.le02.ast.ASTNode;
+import edu.mit.compilers.le02.cfg.BasicBlockGraph;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.CFGGenerator;
+import edu.mit.compilers.le02.cfg.CallStatement;
+import edu.mit.compilers.le02.cfg.ControlFlowGraph;
+import edu.mit.compilers.le02.grammar.DecafParser;
+import edu.mit.compilers.le02.grammar.DecafScanner;
+import edu.mit.compilers.le02.ir.IrGenerator;
+import edu.mit.compilers.le02.semanticchecks.MasterChecker;
+import edu.mit.compilers.le02.stgenerator.SymbolTableGenerator;
+
+
+public class InlinerTest extends TestCase {
+  public void setUp() {
+    Main.resetCompilerState();
+  }
+
+  /**
+   * Compiles a program with only inlining turned on, and returns the names
+   * of the methods main still calls.
+   */
+  private List<String> getCallsOfMain(String program) throws Exception {
+    DecafScanner lexer = new DecafScanner(new DataInputStream(
+        StreamUtil.createInputStream(program)));
+    DecafParser parser = new DecafParser(lexer);
+    parser.program();
+    ASTNode root = IrGenerator.generateIR(parser.getAST());
+    SymbolTableGenerator.generateSymbolTable(root);
+    MasterChecker.checkAll(root);
+    assertTrue(ErrorReporting.noErrors());
+
+    EnumSet<Optimization> opts = EnumSet.of(Optimization.INLINING);
+    ControlFlowGraph cfg = BasicBlockGraph.makeBasicBlockGraph(
+        CFGGenerator.generateCFG(root, opts), opts);
+
+    List<String> calls = new ArrayList<String>();
+    List<BasicBlockNode> blocks = new ArrayList<BasicBlockNode>();
+    Set<BasicBlockNode> seen = new HashSet<BasicBlockNode>();
+    blocks.add((BasicBlockNode) cfg.getMethod("main"));
+    for (int ii = 0; ii < blocks.size(); ii++) {
+      BasicBlockNode node = blocks.get(ii);
+      for (BasicStatement stmt : node.getStatements()) {
+        if (stmt instanceof CallStatement &&
+            !((CallStatement) stmt).isCallout()) {
+          calls.add(((CallStatement) stmt).getMethodName());
+        }
+      }
+      for (BasicBlockNode succ : new BasicBlockNode[] {
+             node.getNext(), node.getBranchTarget() }) {
+        if (succ != null && seen.add(succ)) {
+          blocks.add(succ);
+        }
+      }
+    }
+    return calls;
+  }
+
+  /**
+   * Test that a call to a small method which calls nothing is inlined.
+   */
+  public void testInlineLeaf() throws Exception {
+    List<String> calls = getCallsOfMain(
+      "class Program {\n" +
+      "  int f(int x) { return x + 1; }\n" +
+      "  void main() {\n" +
+      "    int a;\n" +
+      "    a = f(2);\n" +
+      "    callout(\"printf\", \"%d\\n\", a);\n" +
+      "  }\n" +
+      "}\n");
+    assertTrue(calls.isEmpty());
+  }
+
+  /**
+   * Test that a recursive method is never inlined, however small.
+   */
+  public void testKeepRecursive() throws Exception {
+    List<String> calls = getCallsOfMain(
+      "class Program {\n" +
+      "  int f(int x) {\n" +
+      "    if (x <= 0) { return 0; }\n" +
+      "    return f(x - 1) + 1;\n" +
+      "  }\n" +
+      "  void main() {\n" +
+      "    int a;\n" +
+      "    a = f(2);\n" +
+      "    callout(\"printf\", \"%d\\n\", a);\n" +
+      "  }\n" +
+      "}\n");
+    assertEquals(1, calls.size());
+    assertEquals("f", calls.get(0));
+  }
+
+  /**
+   * Test that a method which calls a recursive method is not inlined
+   * either, since the recursive call could then never be inlined in turn.
+   */
+  public void testKeepCallerOfRecursive() throws Exception {
+    List<String> calls = getCallsOfMain(
+      "class Program {\n" +
+      "  int g(int x) {\n" +
+      "    if (x <= 0) { return 0; }\n" +
+      "    return g(x - 1) + 2;\n" +
+      "  }\n" +
+      "  int f(int x) { return g(x) + 1; }\n" +
+      "  void main() {\n" +
+      "    int a;\n" +
+      "    a = f(2);\n" +
+      "    callout(\"printf\", \"%d\\n\", a);\n" +
+      "  }\n" +
+      "}\n");
+    assertEquals(1, calls.size());
+    assertEquals("f", calls.get(0));
+  }
+
+  /**
+   * Test that a method returning a value which may fall off its end is not
+   * inlined, since it has to report the missing return itself.
+   */
+  public void testKeepFallingOff() throws Exception {
+    List<String> calls = getCallsOfMain(
+      "class Program {\n" +
+      "  int f(int x) {\n" +
+      "    if (x > 0) { return x; }\n" +
+      "  }\n" +
+      "  void main() {\n" +
+      "    int a;\n" +
+      "    a = f(2);\n" +
+      "    callout(\"printf\", \"%d\\n\", a);\n" +
+      "  }\n" +
+      "}\n");
+    assertEquals(1, calls.size());
+    assertEquals("f", calls.get(0));
+  }
+}
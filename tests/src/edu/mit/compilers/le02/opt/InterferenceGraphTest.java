@@ -0,0 +1,128 @@
+package edu.mit.compilers.le02.opt;
+
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeDef;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeLocal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+
+
+public class InterferenceGraphTest extends TestCase {
+  private Map<BasicStatement, Integer> loopDepths =
+    new HashMap<BasicStatement, Integer>();
+  private int nextId = 0;
+  private PhaseTimer timer;
+
+  public void setUp() {
+    timer = new PhaseTimer();
+    PhaseTimer.setCurrent(timer);
+  }
+
+  public void tearDown() {
+    PhaseTimer.setCurrent(null);
+  }
+
+  private long getCount(String what) {
+    Long n = timer.getCounts().get(what);
+    return (n == null) ? 0 : n;
+  }
+
+  /**
+   * Makes a web of a new local, defined by a statement inside depth loops.
+   */
+  private Web makeWeb(String name, int depth) {
+    nextId++;
+    LocalDescriptor var = makeLocal(name, -8 * nextId);
+    BasicStatement def = makeDef(var, 0);
+    loopDepths.put(def, depth);
+    return new Web(var, def, nextId);
+  }
+
+  private InterferenceGraph makeGraph(Web... webs) {
+    InterferenceGraph graph = new InterferenceGraph();
+    for (Web web : webs) {
+      graph.addNode(web);
+    }
+    return graph;
+  }
+
+  /**
+   * Test that a copy between two webs which do not interfere is coalesced,
+   * so both get the same register and the move disappears.
+   */
+  public void testCoalesceMove() {
+    Web a = makeWeb("a", 0);
+    Web b = makeWeb("b", 0);
+    Web c = makeWeb("c", 0);
+    InterferenceGraph graph = makeGraph(a, b, c);
+    graph.linkNodes(a, c);
+    graph.linkNodes(b, c);
+    graph.addMove(a, b, 0);
+
+    assertEquals(2, graph.colorGraph(3, 0, loopDepths));
+    assertEquals(1, getCount("coalesced moves"));
+    assertEquals(a.getColor(), b.getColor());
+    assertTrue(a.getColor() >= 0);
+    assertTrue(c.getColor() >= 0);
+    assertTrue(a.getColor() != c.getColor());
+  }
+
+  /**
+   * Test that a copy between two webs which interfere is not coalesced.
+   */
+  public void testKeepInterferingMove() {
+    Web a = makeWeb("a", 0);
+    Web b = makeWeb("b", 0);
+    InterferenceGraph graph = makeGraph(a, b);
+    graph.linkNodes(a, b);
+    graph.addMove(a, b, 0);
+
+    assertEquals(2, graph.colorGraph(3, 0, loopDepths));
+    assertEquals(0, getCount("coalesced moves"));
+    assertTrue(a.getColor() >= 0);
+    assertTrue(b.getColor() >= 0);
+    assertTrue(a.getColor() != b.getColor());
+  }
+
+  /**
+   * Test that when there are too few registers, the web which is cheapest
+   * to leave on the stack is spilled, and the others are still colored.
+   */
+  public void testSpillCheapest() {
+    Web outer = makeWeb("outer", 0);
+    Web inner = makeWeb("inner", 2);
+    Web loop = makeWeb("loop", 1);
+    InterferenceGraph graph = makeGraph(outer, inner, loop);
+    graph.linkNodes(outer, inner);
+    graph.linkNodes(outer, loop);
+    graph.linkNodes(inner, loop);
+
+    assertEquals(2, graph.colorGraph(2, 0, loopDepths));
+    assertEquals(1, getCount("spilled webs"));
+    assertEquals(-1, outer.getColor());
+    assertTrue(inner.getColor() >= 0);
+    assertTrue(loop.getColor() >= 0);
+    assertTrue(inner.getColor() != loop.getColor());
+  }
+
+  /**
+   * Test that a web live across a call gets one of the callee-saved colors,
+   * which the other webs avoid.
+   */
+  public void testCallCrossing() {
+    Web crossing = makeWeb("crossing", 0);
+    Web local = makeWeb("local", 0);
+    InterferenceGraph graph = makeGraph(crossing, local);
+    graph.linkNodes(crossing, local);
+    graph.addCallCrossing(crossing);
+
+    graph.colorGraph(4, 2, loopDepths);
+    assertTrue(crossing.getColor() >= 0 && crossing.getColor() < 2);
+    assertTrue(local.getColor() >= 2);
+  }
+}
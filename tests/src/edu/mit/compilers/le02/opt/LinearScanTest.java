@@ -0,0 +1,105 @@
+package edu.mit.compilers.le02.opt;
+
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeDef;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeLocal;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.PhaseTimer;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+
+
+public class LinearScanTest extends TestCase {
+  private LinearScan scan;
+  private int nextId = 0;
+  private PhaseTimer timer;
+
+  public void setUp() {
+    scan = new LinearScan();
+    timer = new PhaseTimer();
+    PhaseTimer.setCurrent(timer);
+  }
+
+  public void tearDown() {
+    PhaseTimer.setCurrent(null);
+  }
+
+  private long getCount(String what) {
+    Long n = timer.getCounts().get(what);
+    return (n == null) ? 0 : n;
+  }
+
+  /**
+   * Makes a web of a new local which is live from start to end.
+   */
+  private Web makeInterval(String name, int start, int end) {
+    nextId++;
+    LocalDescriptor var = makeLocal(name, -8 * nextId);
+    Web web = new Web(var, makeDef(var, 0), nextId);
+    scan.addPosition(web, start);
+    scan.addPosition(web, end);
+    return web;
+  }
+
+  /**
+   * Test that when every register is taken, the active interval which ends
+   * last is spilled, and the new interval takes its register.
+   */
+  public void testSpillLongestActive() {
+    Web a = makeInterval("a", 0, 10);
+    Web b = makeInterval("b", 1, 3);
+    Web c = makeInterval("c", 2, 5);
+
+    // a is given color 0 and b color 1 before c starts.
+    assertEquals(2, scan.allocate(2, 0));
+    assertEquals(1, getCount("spilled webs"));
+    assertEquals(-1, a.getColor());
+    assertEquals(1, b.getColor());
+    assertEquals(0, c.getColor());
+  }
+
+  /**
+   * Test that the new interval is itself spilled when it ends after every
+   * active one.
+   */
+  public void testSpillCurrent() {
+    Web a = makeInterval("a", 0, 3);
+    Web b = makeInterval("b", 1, 4);
+    Web c = makeInterval("c", 2, 10);
+
+    assertEquals(2, scan.allocate(2, 0));
+    assertEquals(1, getCount("spilled webs"));
+    assertEquals(-1, c.getColor());
+    assertTrue(a.getColor() >= 0);
+    assertTrue(b.getColor() >= 0);
+    assertTrue(a.getColor() != b.getColor());
+  }
+
+  /**
+   * Test that the register of an interval which has ended is given to the
+   * next one, so nothing is spilled.
+   */
+  public void testReuseExpired() {
+    Web a = makeInterval("a", 0, 2);
+    Web b = makeInterval("b", 1, 5);
+    Web c = makeInterval("c", 3, 6);
+
+    assertEquals(2, scan.allocate(2, 0));
+    assertEquals(0, getCount("spilled webs"));
+    assertEquals(a.getColor(), c.getColor());
+    assertTrue(b.getColor() != c.getColor());
+  }
+
+  /**
+   * Test that an interval live across a call gets one of the callee-saved
+   * colors, which the other intervals avoid.
+   */
+  public void testCallCrossing() {
+    Web local = makeInterval("local", 0, 4);
+    Web crossing = makeInterval("crossing", 1, 5);
+    scan.addCallCrossing(crossing);
+
+    scan.allocate(4, 2);
+    assertTrue(crossing.getColor() >= 0 && crossing.getColor() < 2);
+    assertTrue(local.getColor() >= 2);
+  }
+}
@@ -0,0 +1,143 @@
+package edu.mit.compilers.le02.opt;
+
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeBlocks;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeDef;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeLocal;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeOp;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.ConstantArgument;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+
+
+public class SparseConditionalConstantPropagationTest extends TestCase {
+  private LocalDescriptor x = makeLocal("x", -8);
+  private LocalDescriptor y = makeLocal("y", -16);
+
+  /**
+   * Test that a branch on a constant is folded, that the side it never
+   * takes is removed, and that the constant then flows through the join
+   * which that side would have spoiled.
+   */
+  public void testDeadBranch() {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    BasicBlockNode taken = new BasicBlockNode("block1", "main");
+    BasicBlockNode dead = new BasicBlockNode("block2", "main");
+    BasicBlockNode end = new BasicBlockNode("block3", "main");
+
+    top.setNext(dead);
+    top.setBranchTarget(taken);
+    taken.setNext(end);
+    dead.setNext(end);
+
+    top.addStatement(makeDef(x, 1));
+    top.addStatement(makeOp(AsmOp.EQUAL, x, 1, null));
+    taken.addStatement(makeDef(y, 2));
+    dead.addStatement(makeDef(x, 7));
+    end.addStatement(makeOp(AsmOp.ADD, x, 3, y));
+
+    List<BasicBlockNode> blocks = makeBlocks(top, taken, dead, end);
+    SparseConditionalConstantPropagation
+      .performSparseConditionalConstantPropagation(top, blocks);
+
+    assertFalse(top.isBranch());
+    assertSame(taken, top.getNext());
+    assertEquals(1, top.getStatements().size());
+    assertFalse(blocks.contains(dead));
+    assertEquals(1, end.getPredecessors().size());
+
+    BasicStatement stmt = end.getStatements().get(0);
+    assertTrue(stmt instanceof OpStatement);
+    OpStatement op = (OpStatement) stmt;
+    assertEquals(AsmOp.MOVE, op.getOp());
+    assertEquals(4, ((ConstantArgument) op.getArg1()).getInt());
+    assertEquals(y, op.getArg2().getDesc());
+  }
+
+  /**
+   * Test that a value carried around a loop varies, even though it starts
+   * out constant, so neither the loop test nor the increment is folded.
+   */
+  public void testLoopCarriedValue() {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    BasicBlockNode header = new BasicBlockNode("block1", "main");
+    BasicBlockNode body = new BasicBlockNode("block2", "main");
+    BasicBlockNode exit = new BasicBlockNode("block3", "main");
+
+    top.setNext(header);
+    header.setNext(exit);
+    header.setBranchTarget(body);
+    body.setNext(header);
+
+    OpStatement cond = makeOp(AsmOp.LESS_THAN, x, 10, null);
+    OpStatement step = makeOp(AsmOp.ADD, x, 1, x);
+    OpStatement after = makeOp(AsmOp.MULTIPLY, x, 2, y);
+    top.addStatement(makeDef(x, 0));
+    header.addStatement(cond);
+    body.addStatement(step);
+    exit.addStatement(after);
+
+    List<BasicBlockNode> blocks = makeBlocks(top, header, body, exit);
+    SparseConditionalConstantPropagation
+      .performSparseConditionalConstantPropagation(top, blocks);
+
+    assertEquals(4, blocks.size());
+    assertTrue(header.isBranch());
+    assertSame(body, header.getBranchTarget());
+    assertSame(exit, header.getNext());
+    assertSame(cond, header.getStatements().get(0));
+    assertSame(step, body.getStatements().get(0));
+    assertSame(after, exit.getStatements().get(0));
+  }
+
+  /**
+   * Test that a phi argument arriving along an edge which is never taken
+   * is ignored.  x is only changed under a test which x itself keeps from
+   * passing, so it stays constant around the loop.
+   */
+  public void testNonExecutablePhiArgument() {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    BasicBlockNode header = new BasicBlockNode("block1", "main");
+    BasicBlockNode body = new BasicBlockNode("block2", "main");
+    BasicBlockNode change = new BasicBlockNode("block3", "main");
+    BasicBlockNode latch = new BasicBlockNode("block4", "main");
+    BasicBlockNode exit = new BasicBlockNode("block5", "main");
+
+    top.setNext(header);
+    header.setNext(exit);
+    header.setBranchTarget(body);
+    body.setNext(latch);
+    body.setBranchTarget(change);
+    change.setNext(latch);
+    latch.setNext(header);
+
+    // y is never given a value, so the loop test is not constant.
+    top.addStatement(makeDef(x, 1));
+    header.addStatement(makeOp(AsmOp.LESS_THAN, y, 10, null));
+    body.addStatement(makeOp(AsmOp.NOT_EQUAL, x, 1, null));
+    change.addStatement(makeDef(x, 2));
+    latch.addStatement(makeOp(AsmOp.ADD, y, 1, y));
+    exit.addStatement(makeOp(AsmOp.ADD, x, 3, y));
+
+    List<BasicBlockNode> blocks =
+      makeBlocks(top, header, body, change, latch, exit);
+    SparseConditionalConstantPropagation
+      .performSparseConditionalConstantPropagation(top, blocks);
+
+    assertTrue(header.isBranch());
+    assertFalse(body.isBranch());
+    assertSame(latch, body.getNext());
+    assertTrue(body.getStatements().isEmpty());
+    assertFalse(blocks.contains(change));
+
+    OpStatement op = (OpStatement) exit.getStatements().get(0);
+    assertEquals(AsmOp.MOVE, op.getOp());
+    assertEquals(4, ((ConstantArgument) op.getArg1()).getInt());
+  }
+}
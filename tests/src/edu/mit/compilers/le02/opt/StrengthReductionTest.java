@@ -0,0 +1,168 @@
+package edu.mit.compilers.le02.opt;
+
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeBlocks;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeDef;
+import static edu.mit.compilers.le02.cfg.CFGTestUtil.makeOp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.mit.compilers.le02.DecafType;
+import edu.mit.compilers.le02.ast.BlockNode;
+import edu.mit.compilers.le02.ast.StatementNode;
+import edu.mit.compilers.le02.ast.VarDeclNode;
+import edu.mit.compilers.le02.cfg.BasicBlockNode;
+import edu.mit.compilers.le02.cfg.BasicStatement;
+import edu.mit.compilers.le02.cfg.ConstantArgument;
+import edu.mit.compilers.le02.cfg.OpStatement;
+import edu.mit.compilers.le02.cfg.OpStatement.AsmOp;
+import edu.mit.compilers.le02.symboltable.LocalDescriptor;
+import edu.mit.compilers.le02.symboltable.MethodDescriptor;
+import edu.mit.compilers.le02.symboltable.SymbolTable;
+
+
+public class StrengthReductionTest extends TestCase {
+  private SymbolTable symbolTable;
+  private MethodDescriptor method;
+  private LocalDescriptor i;
+  private LocalDescriptor t;
+
+  public void setUp() {
+    symbolTable = new SymbolTable(null);
+    BlockNode body = new BlockNode(null, new ArrayList<VarDeclNode>(),
+                                   new ArrayList<StatementNode>());
+    body.setSymbolTable(symbolTable);
+    method = new MethodDescriptor(null, "main", DecafType.VOID, symbolTable,
+                                  new ArrayList<String>(), body, null);
+    // The new variables have to be placed below these.
+    i = new LocalDescriptor(symbolTable, "i", DecafType.INT, -8);
+    t = new LocalDescriptor(symbolTable, "t", DecafType.INT, -16);
+    symbolTable.put("i", i, null);
+    symbolTable.put("t", t, null);
+  }
+
+  private OpStatement findOp(BasicBlockNode node, AsmOp op) {
+    for (BasicStatement s : node.getStatements()) {
+      if (s instanceof OpStatement && ((OpStatement) s).getOp() == op) {
+        return (OpStatement) s;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Builds the loop "i = 0; do { t = i * factor; i++; } while (i < bound)"
+   * and runs strength reduction on it.  Returns the loop's only block.
+   */
+  private BasicBlockNode reduceCountedLoop(int factor, int bound) {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    BasicBlockNode loop = new BasicBlockNode("block1", "main");
+    BasicBlockNode exit = new BasicBlockNode("block2", "main");
+
+    top.setNext(loop);
+    loop.setNext(exit);
+    loop.setBranchTarget(loop);
+
+    top.addStatement(makeDef(i, 0));
+    loop.addStatement(makeOp(AsmOp.MULTIPLY, i, factor, t));
+    loop.addStatement(makeOp(AsmOp.ADD, i, 1, i));
+    loop.addStatement(makeOp(AsmOp.LESS_THAN, i, bound, null));
+    exit.addStatement(makeOp(AsmOp.ADD, t, 1, t));
+
+    StrengthReduction.performStrengthReduction(
+      top, makeBlocks(top, loop, exit), method);
+    return loop;
+  }
+
+  /**
+   * Test that a product of the loop variable becomes a move of a new
+   * variable, which is set before the loop and stepped along with the loop
+   * variable.
+   */
+  public void testReduceProduct() {
+    BasicBlockNode top = new BasicBlockNode("main", "main");
+    BasicBlockNode header = new BasicBlockNode("block1", "main");
+    BasicBlockNode body = new BasicBlockNode("block2", "main");
+    BasicBlockNode exit = new BasicBlockNode("block3", "main");
+
+    top.setNext(header);
+    header.setNext(exit);
+    header.setBranchTarget(body);
+    body.setNext(header);
+
+    top.addStatement(makeDef(i, 0));
+    header.addStatement(makeOp(AsmOp.LESS_THAN, i, 10, null));
+    body.addStatement(makeOp(AsmOp.MULTIPLY, i, 4, t));
+    body.addStatement(makeOp(AsmOp.ADD, i, 1, i));
+    exit.addStatement(makeOp(AsmOp.ADD, t, 1, t));
+
+    List<BasicBlockNode> blocks = makeBlocks(top, header, body, exit);
+    StrengthReduction.performStrengthReduction(top, blocks, method);
+
+    List<BasicStatement> stmts = body.getStatements();
+    assertEquals(3, stmts.size());
+    assertNull(findOp(body, AsmOp.MULTIPLY));
+    OpStatement move = (OpStatement) stmts.get(0);
+    assertEquals(AsmOp.MOVE, move.getOp());
+    LocalDescriptor product = (LocalDescriptor) move.getArg1().getDesc();
+    assertNotSame(i, product);
+    assertNotSame(t, product);
+    assertEquals(t, move.getArg2().getDesc());
+
+    // The product is stepped by 4 right after i is stepped by 1.
+    OpStatement step = (OpStatement) stmts.get(2);
+    assertEquals(AsmOp.ADD, step.getOp());
+    assertEquals(product, step.getResult());
+    assertEquals(4, ((ConstantArgument) step.getArg2()).getInt());
+
+    // It starts out as 0 * 4, before the loop.
+    OpStatement init = (OpStatement) top.getLastStatement();
+    assertEquals(AsmOp.MOVE, init.getOp());
+    assertEquals(0, ((ConstantArgument) init.getArg1()).getInt());
+    assertEquals(product, init.getArg2().getDesc());
+
+    // The loop test still needs i.
+    assertSame(header, body.getNext());
+    assertEquals(AsmOp.LESS_THAN,
+                 ((OpStatement) header.getLastStatement()).getOp());
+    assertEquals(i, ((OpStatement) header.getLastStatement())
+                 .getArg1().getDesc());
+  }
+
+  /**
+   * Test that the loop variable is replaced by the product in the loop
+   * test when none of the products the test sees can overflow.
+   */
+  public void testEliminateLoopVariable() {
+    BasicBlockNode loop = reduceCountedLoop(1000000, 100);
+
+    assertNull(findOp(loop, AsmOp.MULTIPLY));
+    OpStatement test = (OpStatement) loop.getLastStatement();
+    assertEquals(AsmOp.LESS_THAN, test.getOp());
+    assertNotSame(i, test.getArg1().getDesc());
+    assertEquals(100000000, ((ConstantArgument) test.getArg2()).getInt());
+    for (BasicStatement s : loop.getStatements()) {
+      assertNotSame(i, s.getResult());
+    }
+  }
+
+  /**
+   * Test that the loop variable is kept when the product may overflow,
+   * since comparing the wrapped products would end the loop at the wrong
+   * time.  The product itself is still reduced.
+   */
+  public void testKeepLoopVariableOnOverflow() {
+    BasicBlockNode loop = reduceCountedLoop(1000000, 10000);
+
+    assertNull(findOp(loop, AsmOp.MULTIPLY));
+    OpStatement test = (OpStatement) loop.getLastStatement();
+    assertEquals(AsmOp.LESS_THAN, test.getOp());
+    assertSame(i, test.getArg1().getDesc());
+    assertEquals(10000, ((ConstantArgument) test.getArg2()).getInt());
+
+    OpStatement step = findOp(loop, AsmOp.ADD);
+    assertNotNull(step);
+    assertSame(i, step.getResult());
+  }
+}